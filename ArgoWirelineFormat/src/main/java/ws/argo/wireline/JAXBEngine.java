@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.wireline;
+
+import java.io.InputStream;
+import java.io.Writer;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * The JAXBEngine holds everything the wireline serializers need to marshal and
+ * unmarshal one set of JAXB classes. Creating a JAXBContext is very expensive,
+ * so each engine creates its context once and the serializers keep the engine
+ * in a static field.
+ *
+ * <p>
+ * The JAXBContext is thread safe but the Marshallers, Unmarshallers and SAX
+ * XMLReaders it hands out are not. So the engine keeps one of each per thread
+ * and reuses them for every call on that thread. If a call fails then the
+ * thread's instances are thrown away in case the failure left them in a bad
+ * state.
+ *
+ * @author jmsimpson
+ *
+ */
+public class JAXBEngine {
+
+  private final JAXBContext context;
+
+  private final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>() {
+    @Override
+    protected Marshaller initialValue() {
+      try {
+        Marshaller marshaller = context.createMarshaller();
+        // output pretty printed
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        return marshaller;
+      } catch (JAXBException e) {
+        throw new IllegalStateException("Unable to create a JAXB Marshaller", e);
+      }
+    }
+  };
+
+  private final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>() {
+    @Override
+    protected Unmarshaller initialValue() {
+      try {
+        return context.createUnmarshaller();
+      } catch (JAXBException e) {
+        throw new IllegalStateException("Unable to create a JAXB Unmarshaller", e);
+      }
+    }
+  };
+
+  private final ThreadLocal<XMLReader> readers = new ThreadLocal<XMLReader>() {
+    @Override
+    protected XMLReader initialValue() {
+      try {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        return spf.newSAXParser().getXMLReader();
+      } catch (ParserConfigurationException | SAXException e) {
+        throw new IllegalStateException("Unable to create a SAX XMLReader", e);
+      }
+    }
+  };
+
+  /**
+   * Create a new engine for the JAXB classes.
+   *
+   * @param classesToBeBound the JAXB classes (see
+   *          {@link JAXBContext#newInstance(Class...)})
+   */
+  public JAXBEngine(Class<?>... classesToBeBound) {
+    try {
+      context = JAXBContext.newInstance(classesToBeBound);
+    } catch (JAXBException e) {
+      throw new IllegalStateException("Unable to create the JAXBContext", e);
+    }
+  }
+
+  public JAXBContext getContext() {
+    return context;
+  }
+
+  /**
+   * Marshal the JAXB object to the writer as pretty printed XML.
+   *
+   * @param jaxbElement the JAXB object
+   * @param writer where the XML goes
+   * @param fragment true if the XML declaration should be left off
+   * @throws JAXBException if the object couldn't be marshalled
+   */
+  public void marshal(Object jaxbElement, Writer writer, boolean fragment) throws JAXBException {
+    try {
+      Marshaller marshaller = marshallers.get();
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, fragment);
+      marshaller.marshal(jaxbElement, writer);
+    } catch (JAXBException | RuntimeException e) {
+      marshallers.remove();
+      throw e;
+    }
+  }
+
+  /**
+   * Unmarshal the XML from the stream. The SAX parser has secure processing
+   * turned on.
+   *
+   * @param inputStream the XML
+   * @return the JAXB object
+   * @throws JAXBException if the XML couldn't be unmarshalled
+   */
+  public Object unmarshal(InputStream inputStream) throws JAXBException {
+    try {
+      SAXSource saxSource = new SAXSource(readers.get(), new InputSource(inputStream));
+      return unmarshallers.get().unmarshal(saxSource);
+    } catch (JAXBException | RuntimeException e) {
+      unmarshallers.remove();
+      readers.remove();
+      throw e;
+    }
+  }
+
+}
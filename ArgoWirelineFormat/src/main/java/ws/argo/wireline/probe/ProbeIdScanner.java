@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.wireline.probe;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The ProbeIdScanner pulls the probe id attribute out of the raw wireline
+ * bytes without parsing the XML. It's used to throw away duplicate probes
+ * before paying for a full parse.
+ *
+ * <p>The scan is deliberately strict and bounded. It skips the XML declaration
+ * and any comments, checks that the root element is a probe and then reads the
+ * id attribute off the start tag. Anything it doesn't understand (a DOCTYPE, an
+ * entity reference in the id, a UTF-16 payload, a start tag past the scan
+ * limit) makes it give up and return null, and the caller should just do the
+ * full parse.
+ *
+ * @author jmsimpson
+ *
+ */
+public final class ProbeIdScanner {
+
+  // The probe start tag is always right at the front of the payload
+  public static final int MAX_SCAN_BYTES = 2048;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] PROBE = "probe".getBytes(UTF8);
+
+  private ProbeIdScanner() {
+  }
+
+  /**
+   * Scan the bytes from the buffer's position to its limit for the probe id.
+   * The buffer's position and limit are not changed.
+   *
+   * @param payload the raw probe payload
+   * @return the probe id or null if it couldn't be found
+   */
+  public static String scanProbeId(ByteBuffer payload) {
+    return new Scan(payload, payload.position(), Math.min(payload.limit(), payload.position() + MAX_SCAN_BYTES)).probeId();
+  }
+
+  /**
+   * Scan the bytes for the probe id.
+   *
+   * @param payload the raw probe payload
+   * @param offset where the payload starts in the array
+   * @param length the length of the payload
+   * @return the probe id or null if it couldn't be found
+   */
+  public static String scanProbeId(byte[] payload, int offset, int length) {
+    return scanProbeId(ByteBuffer.wrap(payload, offset, length));
+  }
+
+  /**
+   * One pass over the payload. Holds the cursor so the helper methods don't
+   * have to pass it around.
+   */
+  private static final class Scan {
+    private final ByteBuffer bytes;
+    private final int        limit;
+    private int              pos;
+
+    Scan(ByteBuffer bytes, int start, int limit) {
+      this.bytes = bytes;
+      this.pos = start;
+      this.limit = limit;
+    }
+
+    String probeId() {
+      skipByteOrderMark();
+
+      // Skip the prolog to the root element
+      while (true) {
+        skipWhitespace();
+        if (!consume('<')) {
+          return null;
+        }
+        if (consume('?')) {
+          if (!skipPast('?', '>')) {
+            return null;
+          }
+        } else if (peek() == '!') {
+          if (!(consume('!') && consume('-') && consume('-') && skipPast('-', '-') && consume('>'))) {
+            // a DOCTYPE or something else odd - leave it to the real parser
+            return null;
+          }
+        } else {
+          break;
+        }
+      }
+
+      if (!readRootName()) {
+        return null;
+      }
+
+      // Now the attributes
+      while (true) {
+        if (!skipWhitespace()) {
+          return null;
+        }
+        int nameStart = pos;
+        while (pos < limit && isNameChar(peek())) {
+          pos++;
+        }
+        int nameEnd = pos;
+        if (nameEnd == nameStart) {
+          // hit the end of the start tag (or junk) without finding the id
+          return null;
+        }
+
+        skipWhitespace();
+        if (!consume('=')) {
+          return null;
+        }
+        skipWhitespace();
+
+        byte quote = peek();
+        if (quote != '"' && quote != '\'') {
+          return null;
+        }
+        pos++;
+        int valueStart = pos;
+        while (pos < limit && bytes.get(pos) != quote) {
+          if (bytes.get(pos) == '&' || bytes.get(pos) == '<') {
+            return null;
+          }
+          pos++;
+        }
+        if (pos >= limit) {
+          return null;
+        }
+        int valueEnd = pos;
+        pos++;
+
+        if (nameEnd - nameStart == 2 && bytes.get(nameStart) == 'i' && bytes.get(nameStart + 1) == 'd') {
+          return decode(valueStart, valueEnd);
+        }
+      }
+    }
+
+    /**
+     * Read the root element name. It has to be probe, with or without a
+     * namespace prefix.
+     */
+    private boolean readRootName() {
+      int nameStart = pos;
+      int localStart = pos;
+      while (pos < limit && isNameChar(peek())) {
+        if (peek() == ':') {
+          localStart = pos + 1;
+        }
+        pos++;
+      }
+      if (pos - localStart != PROBE.length || pos == nameStart) {
+        return false;
+      }
+      for (int i = 0; i < PROBE.length; i++) {
+        if (bytes.get(localStart + i) != PROBE[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String decode(int start, int end) {
+      byte[] value = new byte[end - start];
+      for (int i = 0; i < value.length; i++) {
+        value[i] = bytes.get(start + i);
+      }
+      return new String(value, UTF8);
+    }
+
+    private void skipByteOrderMark() {
+      if (limit - pos >= 3 && bytes.get(pos) == (byte) 0xEF && bytes.get(pos + 1) == (byte) 0xBB && bytes.get(pos + 2) == (byte) 0xBF) {
+        pos += 3;
+      }
+    }
+
+    /**
+     * @return true if there was at least one whitespace byte
+     */
+    private boolean skipWhitespace() {
+      int start = pos;
+      while (pos < limit && isWhitespace(bytes.get(pos))) {
+        pos++;
+      }
+      return pos > start;
+    }
+
+    /**
+     * Move the cursor past the next occurrence of the two bytes.
+     */
+    private boolean skipPast(char first, char second) {
+      while (pos + 1 < limit) {
+        if (bytes.get(pos) == first && bytes.get(pos + 1) == second) {
+          pos += 2;
+          return true;
+        }
+        pos++;
+      }
+      return false;
+    }
+
+    private boolean consume(char c) {
+      if (pos < limit && bytes.get(pos) == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private byte peek() {
+      return pos < limit ? bytes.get(pos) : 0;
+    }
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  private static boolean isNameChar(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == ':' || b == '_' || b == '-' || b == '.';
+  }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.wireline.probe;
+
+import java.io.InputStream;
+
+/**
+ * A ProbeReader turns the wireline payload into a ProbeWrapper. The
+ * {@link XMLSerializer} does it through JAXB and the
+ * {@link StreamingProbeReader} reads the bytes straight into the wrapper.
+ * 
+ * @author jmsimpson
+ *
+ */
+public interface ProbeReader {
+
+  /**
+   * Create a new ProbeWrapper from the wireline payload.
+   * 
+   * @param payload the string serialized probe that came directly off the wire
+   * @return the ProbeWrapper instance
+   * @throws ProbeParseException if there was an issue parsing the payload
+   */
+  ProbeWrapper unmarshal(String payload) throws ProbeParseException;
+
+  /**
+   * Create a new ProbeWrapper from the wireline payload.
+   * 
+   * @param payload the serialized probe that came directly off the wire
+   * @return the ProbeWrapper instance
+   * @throws ProbeParseException if there was an issue parsing the payload
+   */
+  ProbeWrapper unmarshal(InputStream payload) throws ProbeParseException;
+
+}
@@ -36,6 +36,9 @@ public class ProbeWrapper {
   public static final String XML  = "XML";
   public static final String JSON = "JSON";
 
+  // The serializer is stateless so one can be shared by every probe
+  private static final XMLSerializer SERIALIZER = new XMLSerializer();
+
   /**
    * This is a wrapper class for the label, URL pair for a respondTo address.
    */
@@ -101,6 +104,11 @@ public class ProbeWrapper {
   private String desVersion;
   private String respondToPayloadType;
 
+  // where the probe came from - set by the transport, never on the wire
+  private String senderAddress;
+  // when the probe was received (System.nanoTime()) - set by the transport
+  private long   receivedAt;
+
   public ProbeWrapper(String probeID) {
     setProbeId(probeID);
     this.desVersion = PROBE_DES_VERSION;
@@ -220,6 +228,36 @@ public class ProbeWrapper {
     this.clientId = clientId;
   }
 
+  /**
+   * The network address the probe was received from, if the transport knows
+   * it. It's not part of the probe payload so it's not serialized and it
+   * doesn't count in equals.
+   * 
+   * @return the sender's address or null
+   */
+  public String getSenderAddress() {
+    return senderAddress;
+  }
+
+  public void setSenderAddress(String senderAddress) {
+    this.senderAddress = senderAddress;
+  }
+
+  /**
+   * When the transport received the probe, as a {@link System#nanoTime()}
+   * value. Like the sender address it's not serialized and doesn't count in
+   * equals.
+   * 
+   * @return the receive time or 0 if the transport didn't set it
+   */
+  public long getReceivedAt() {
+    return receivedAt;
+  }
+
+  public void setReceivedAt(long receivedAt) {
+    this.receivedAt = receivedAt;
+  }
+
   public String getDESVersion() {
     return desVersion != null ? desVersion : "";
   }
@@ -292,9 +330,7 @@ public class ProbeWrapper {
    * @return the XML payload
    */
   public String asXML() {
-    XMLSerializer serializer = new XMLSerializer();
-
-    return serializer.marshal(this);
+    return SERIALIZER.marshal(this);
 
   }
   
@@ -304,9 +340,7 @@ public class ProbeWrapper {
    * @return the XML payload
    */
   public String asXMLFragment() {
-    XMLSerializer serializer = new XMLSerializer();
-
-    return serializer.marshalFragment(this);
+    return SERIALIZER.marshalFragment(this);
 
   }
   
@@ -0,0 +1,813 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.wireline.probe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * The StreamingProbeReader reads the wireline probe straight into a
+ * ProbeWrapper in one pass over the raw UTF-8 bytes. It never builds the JAXB
+ * object tree and doesn't pay the per-document setup cost of a general purpose
+ * XML parser, so it's several times cheaper than unmarshalling through the
+ * {@link XMLSerializer}.
+ * 
+ * <p>
+ * It only understands the probe, and checks the payload against the
+ * argoProbe.xsd structure as it goes: the root element is probe (in no
+ * namespace) with only the id, DESVersion and client attributes, followed by
+ * respondToPayloadType, an ra with at least one respondTo, and then the
+ * optional scids and siids in that order. Comments, processing instructions,
+ * CDATA sections, the predefined entities and character references are
+ * handled the way any XML parser would. Anything else (unknown or out of order
+ * elements, text between elements, a DOCTYPE, an encoding other than UTF-8) is
+ * a ProbeParseException. There is no DTD support at all, so there are no
+ * external entities to worry about.
+ * 
+ * <p>
+ * The reader holds no state and can be shared between threads.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class StreamingProbeReader implements ProbeReader {
+
+  private static final Charset UTF8  = Charset.forName("UTF-8");
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  // Don't hang on to the read buffer if some huge payload made it grow
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+  private static final ThreadLocal<byte[][]> READ_BUFFERS = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[][] { new byte[INITIAL_BUFFER_SIZE] };
+    }
+  };
+
+  public StreamingProbeReader() {
+  }
+
+  @Override
+  public ProbeWrapper unmarshal(String payload) throws ProbeParseException {
+    byte[] bytes = payload.getBytes(UTF8);
+    return unmarshal(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public ProbeWrapper unmarshal(InputStream payload) throws ProbeParseException {
+    byte[][] holder = READ_BUFFERS.get();
+    byte[] bytes = holder[0];
+    int length = 0;
+    try {
+      int n;
+      while ((n = payload.read(bytes, length, bytes.length - length)) != -1) {
+        length += n;
+        if (length == bytes.length) {
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+      }
+    } catch (IOException e) {
+      throw new ProbeParseException(e);
+    }
+    holder[0] = bytes.length > MAX_RETAINED_BUFFER ? new byte[INITIAL_BUFFER_SIZE] : bytes;
+
+    return unmarshal(bytes, 0, length);
+  }
+
+  /**
+   * Create a new ProbeWrapper from the wireline payload bytes.
+   * 
+   * @param payload the UTF-8 bytes that came directly off the wire
+   * @param offset where the payload starts in the array
+   * @param length the length of the payload
+   * @return the ProbeWrapper instance
+   * @throws ProbeParseException if there was an issue parsing the payload
+   */
+  public ProbeWrapper unmarshal(byte[] payload, int offset, int length) throws ProbeParseException {
+    return new Scan(payload, offset, offset + length).probe();
+  }
+
+  /**
+   * One pass over the payload. Holds the cursor and the scratch space for
+   * values that need unescaping so the helper methods don't have to pass them
+   * around.
+   */
+  private static final class Scan {
+    private final byte[] bytes;
+    private final int    limit;
+    private int          pos;
+
+    // the last name read
+    private int nameStart;
+    private int nameEnd;
+
+    // the last attribute read
+    private int    attributeStart;
+    private int    attributeEnd;
+    private String attributeValue;
+
+    // true if the last start tag ended with />
+    private boolean emptyElement;
+
+    private byte[] scratch = new byte[256];
+    private int    scratchLength;
+
+    Scan(byte[] bytes, int start, int limit) {
+      this.bytes = bytes;
+      this.pos = start;
+      this.limit = limit;
+    }
+
+    ProbeWrapper probe() throws ProbeParseException {
+      skipByteOrderMark();
+      xmlDeclaration();
+      skipMisc();
+      if (lookingAt("<!")) {
+        throw error("DOCTYPEs are not allowed in a probe");
+      }
+      if (pos >= limit) {
+        throw error("The payload is empty");
+      }
+
+      startTag("probe");
+      String id = null;
+      String desVersion = null;
+      String client = null;
+      while (nextAttribute()) {
+        if (attributeIs("id") && id == null) {
+          id = attributeValue;
+        } else if (attributeIs("DESVersion") && desVersion == null) {
+          desVersion = attributeValue;
+        } else if (attributeIs("client") && client == null) {
+          client = attributeValue;
+        } else {
+          throw unexpectedAttribute();
+        }
+      }
+
+      ProbeWrapper probe = new ProbeWrapper(id);
+      probe.setClientId(client);
+      probe.setDESVersion(desVersion);
+
+      childStart("respondToPayloadType");
+      noAttributes();
+      probe.setRespondToPayloadType(text("respondToPayloadType"));
+
+      childStart("ra");
+      noAttributes();
+      while (hasChildElement()) {
+        startTag("respondTo");
+        String label = null;
+        while (nextAttribute()) {
+          if (attributeIs("label") && label == null) {
+            label = attributeValue;
+          } else {
+            throw unexpectedAttribute();
+          }
+        }
+        probe.addRespondToURL(label, text("respondTo"));
+      }
+      endTag("ra");
+      if (probe.getRespondToURLs().isEmpty()) {
+        throw error("The probe has no respondTo URLs");
+      }
+
+      if (hasChildElement() && nextElementIs("scids")) {
+        startTag("scids");
+        noAttributes();
+        while (hasChildElement()) {
+          startTag("serviceContractID");
+          noAttributes();
+          probe.addServiceContractID(text("serviceContractID"));
+        }
+        endTag("scids");
+      }
+
+      if (hasChildElement() && nextElementIs("siids")) {
+        startTag("siids");
+        noAttributes();
+        while (hasChildElement()) {
+          startTag("serviceInstanceID");
+          noAttributes();
+          probe.addServiceInstanceID(text("serviceInstanceID"));
+        }
+        endTag("siids");
+      }
+
+      if (hasChildElement()) {
+        pos++;
+        readName();
+        throw error("Unexpected element [" + name() + "] in the probe");
+      }
+      endTag("probe");
+
+      // Nothing but comments and whitespace is allowed after the probe
+      skipMisc();
+      if (pos < limit) {
+        throw error("Unexpected content after the probe");
+      }
+
+      return probe;
+    }
+
+    // Tags
+
+    /**
+     * Read the start of a tag up to its attributes. Elements with a namespace
+     * prefix can't be in the probe's (empty) namespace.
+     */
+    private void startTag(String name) throws ProbeParseException {
+      if (!consume('<')) {
+        throw error("Expected element [" + name + "]");
+      }
+      readName();
+      if (!nameIs(name)) {
+        throw error("Expected element [" + name + "] but found [" + name() + "]");
+      }
+      emptyElement = false;
+    }
+
+    private void childStart(String name) throws ProbeParseException {
+      if (!hasChildElement()) {
+        throw error("Expected element [" + name + "]");
+      }
+      startTag(name);
+    }
+
+    private void endTag(String name) throws ProbeParseException {
+      if (emptyElement) {
+        emptyElement = false;
+        return;
+      }
+      skipMisc();
+      if (!(consume('<') && consume('/'))) {
+        throw error("Expected the end of element [" + name + "]");
+      }
+      readName();
+      if (!nameIs(name)) {
+        throw error("Expected the end of element [" + name + "] but found [" + name() + "]");
+      }
+      skipWhitespace();
+      if (!consume('>')) {
+        throw error("Malformed end tag");
+      }
+    }
+
+    /**
+     * In element only content, skip to the next tag and say whether it's the
+     * start of a child element (rather than the end of this one).
+     */
+    private boolean hasChildElement() throws ProbeParseException {
+      if (emptyElement) {
+        return false;
+      }
+      skipMisc();
+      if (pos >= limit) {
+        throw error("The payload is truncated");
+      }
+      return !lookingAt("</");
+    }
+
+    private boolean nextElementIs(String name) {
+      int end = pos + 1 + name.length();
+      if (end >= limit) {
+        return false;
+      }
+      for (int i = 0; i < name.length(); i++) {
+        if (bytes[pos + 1 + i] != name.charAt(i)) {
+          return false;
+        }
+      }
+      return !isNameChar(bytes[end]);
+    }
+
+    // Attributes
+
+    /**
+     * Read the next attribute of the current start tag. Namespace declarations
+     * are skipped, but a default namespace would move the probe out of the
+     * empty namespace so it's an error.
+     * 
+     * @return false when the end of the start tag has been reached
+     */
+    private boolean nextAttribute() throws ProbeParseException {
+      while (true) {
+        boolean whitespace = skipWhitespace();
+        if (consume('>')) {
+          return false;
+        }
+        if (consume('/')) {
+          if (!consume('>')) {
+            throw error("Malformed start tag");
+          }
+          emptyElement = true;
+          return false;
+        }
+        if (!whitespace) {
+          throw error("Malformed start tag");
+        }
+
+        readName();
+        attributeStart = nameStart;
+        attributeEnd = nameEnd;
+        skipWhitespace();
+        if (!consume('=')) {
+          throw error("Malformed attribute [" + name() + "]");
+        }
+        skipWhitespace();
+        attributeValue = attributeValue();
+
+        if (attributeIs("xmlns")) {
+          if (!attributeValue.isEmpty()) {
+            throw error("The probe can't be in the namespace [" + attributeValue + "]");
+          }
+        } else if (!startsWith(attributeStart, attributeEnd, "xmlns:")) {
+          return true;
+        }
+      }
+    }
+
+    private void noAttributes() throws ProbeParseException {
+      if (nextAttribute()) {
+        throw unexpectedAttribute();
+      }
+    }
+
+    private boolean attributeIs(String name) {
+      return equals(attributeStart, attributeEnd, name);
+    }
+
+    private ProbeParseException unexpectedAttribute() {
+      return error("Unexpected attribute [" + new String(bytes, attributeStart, attributeEnd - attributeStart, UTF8) + "]");
+    }
+
+    /**
+     * Read a quoted attribute value. Whitespace is normalized to spaces as the
+     * XML spec requires.
+     */
+    private String attributeValue() throws ProbeParseException {
+      byte quote = peek();
+      if (quote != '"' && quote != '\'') {
+        throw error("Attribute values must be quoted");
+      }
+      pos++;
+
+      scratchLength = 0;
+      boolean copied = false;
+      int runStart = pos;
+      while (true) {
+        if (pos >= limit) {
+          throw error("The payload is truncated");
+        }
+        byte c = bytes[pos];
+        if (c == quote) {
+          break;
+        } else if (c == '<') {
+          throw error("< is not allowed in an attribute value");
+        } else if (c == '&') {
+          copy(runStart, pos);
+          copied = true;
+          entity();
+          runStart = pos;
+        } else if (c == '\r' || c == '\n' || c == '\t') {
+          copy(runStart, pos);
+          copied = true;
+          append((byte) ' ');
+          pos++;
+          if (c == '\r' && pos < limit && bytes[pos] == '\n') {
+            pos++;
+          }
+          runStart = pos;
+        } else {
+          checkChar(c);
+          pos++;
+        }
+      }
+
+      String value;
+      if (copied) {
+        copy(runStart, pos);
+        value = decode(scratch, 0, scratchLength);
+      } else {
+        value = decode(bytes, runStart, pos);
+      }
+      pos++; // the closing quote
+      return value;
+    }
+
+    // Content
+
+    /**
+     * Read the text content of a simple element up to and including its end
+     * tag. Line endings are normalized to \n as the XML spec requires.
+     */
+    private String text(String name) throws ProbeParseException {
+      if (emptyElement) {
+        emptyElement = false;
+        return "";
+      }
+
+      scratchLength = 0;
+      boolean copied = false;
+      int runStart = pos;
+      while (true) {
+        if (pos >= limit) {
+          throw error("The payload is truncated");
+        }
+        byte c = bytes[pos];
+        if (c == '<') {
+          if (lookingAt("</")) {
+            break;
+          }
+          copy(runStart, pos);
+          copied = true;
+          if (lookingAt("<![CDATA[")) {
+            cdata();
+          } else if (lookingAt("<!--")) {
+            comment();
+          } else if (lookingAt("<?")) {
+            processingInstruction();
+          } else {
+            throw error("Element [" + name + "] can only contain text");
+          }
+          runStart = pos;
+        } else if (c == '&') {
+          copy(runStart, pos);
+          copied = true;
+          entity();
+          runStart = pos;
+        } else if (c == '\r') {
+          copy(runStart, pos);
+          copied = true;
+          append((byte) '\n');
+          pos++;
+          if (pos < limit && bytes[pos] == '\n') {
+            pos++;
+          }
+          runStart = pos;
+        } else if (c == '>' && pos - runStart >= 2 && bytes[pos - 1] == ']' && bytes[pos - 2] == ']') {
+          throw error("]]> is not allowed in text");
+        } else {
+          checkChar(c);
+          pos++;
+        }
+      }
+
+      String value;
+      if (copied) {
+        copy(runStart, pos);
+        value = decode(scratch, 0, scratchLength);
+      } else {
+        value = decode(bytes, runStart, pos);
+      }
+      endTag(name);
+      return value;
+    }
+
+    private void cdata() throws ProbeParseException {
+      pos += "<![CDATA[".length();
+      while (pos + 2 < limit) {
+        byte c = bytes[pos];
+        if (c == ']' && bytes[pos + 1] == ']' && bytes[pos + 2] == '>') {
+          pos += 3;
+          return;
+        }
+        if (c == '\r') {
+          append((byte) '\n');
+          if (bytes[pos + 1] == '\n') {
+            pos++;
+          }
+        } else {
+          checkChar(c);
+          append(c);
+        }
+        pos++;
+      }
+      throw error("Unterminated CDATA section");
+    }
+
+    /**
+     * Decode a predefined entity or a character reference into the scratch
+     * space. There is no DTD so no other entities can exist.
+     */
+    private void entity() throws ProbeParseException {
+      int start = ++pos;
+      while (pos < limit && bytes[pos] != ';') {
+        if (pos - start > 10) {
+          throw error("Malformed entity reference");
+        }
+        pos++;
+      }
+      if (pos >= limit) {
+        throw error("The payload is truncated");
+      }
+      int end = pos++;
+
+      if (equals(start, end, "lt")) {
+        append((byte) '<');
+      } else if (equals(start, end, "gt")) {
+        append((byte) '>');
+      } else if (equals(start, end, "amp")) {
+        append((byte) '&');
+      } else if (equals(start, end, "quot")) {
+        append((byte) '"');
+      } else if (equals(start, end, "apos")) {
+        append((byte) '\'');
+      } else if (end - start >= 2 && bytes[start] == '#') {
+        appendCodePoint(characterReference(start + 1, end));
+      } else {
+        throw error("Unknown entity [" + new String(bytes, start, end - start, UTF8) + "]");
+      }
+    }
+
+    private int characterReference(int start, int end) throws ProbeParseException {
+      int radix = 10;
+      if (bytes[start] == 'x') {
+        radix = 16;
+        start++;
+      }
+      if (start == end) {
+        throw error("Malformed character reference");
+      }
+      int codePoint = 0;
+      for (int i = start; i < end; i++) {
+        int digit = Character.digit(bytes[i], radix);
+        if (digit < 0) {
+          throw error("Malformed character reference");
+        }
+        codePoint = codePoint * radix + digit;
+      }
+      boolean valid = codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD || (codePoint >= 0x20 && codePoint <= 0xD7FF)
+          || (codePoint >= 0xE000 && codePoint <= 0xFFFD) || (codePoint >= 0x10000 && codePoint <= 0x10FFFF);
+      if (!valid) {
+        throw error("Character reference to an illegal character");
+      }
+      return codePoint;
+    }
+
+    // Prolog and misc
+
+    private void skipByteOrderMark() {
+      if (limit - pos >= 3 && bytes[pos] == (byte) 0xEF && bytes[pos + 1] == (byte) 0xBB && bytes[pos + 2] == (byte) 0xBF) {
+        pos += 3;
+      }
+    }
+
+    /**
+     * The XML declaration is optional, but if it names an encoding it has to
+     * be one we can read as UTF-8.
+     */
+    private void xmlDeclaration() throws ProbeParseException {
+      if (!lookingAt("<?xml") || pos + 5 >= limit || !isWhitespace(bytes[pos + 5])) {
+        return;
+      }
+      int start = pos;
+      if (!skipPast("?>")) {
+        throw error("Unterminated XML declaration");
+      }
+      String declaration = new String(bytes, start, pos - start, ASCII);
+      int encoding = declaration.indexOf("encoding");
+      if (encoding >= 0) {
+        int quote = encoding + "encoding".length();
+        while (quote < declaration.length() && declaration.charAt(quote) != '"' && declaration.charAt(quote) != '\'') {
+          quote++;
+        }
+        int close = quote < declaration.length() ? declaration.indexOf(declaration.charAt(quote), quote + 1) : -1;
+        if (close < 0) {
+          throw error("Malformed XML declaration");
+        }
+        String name = declaration.substring(quote + 1, close);
+        if (!"UTF-8".equalsIgnoreCase(name) && !"UTF8".equalsIgnoreCase(name) && !"US-ASCII".equalsIgnoreCase(name)) {
+          throw error("Unsupported encoding [" + name + "]");
+        }
+      }
+    }
+
+    /**
+     * Skip whitespace, comments and processing instructions. Any other text is
+     * an error because the probe only has element content outside its simple
+     * elements.
+     */
+    private void skipMisc() throws ProbeParseException {
+      while (true) {
+        skipWhitespace();
+        if (lookingAt("<!--")) {
+          comment();
+        } else if (lookingAt("<?")) {
+          processingInstruction();
+        } else if (pos < limit && bytes[pos] != '<') {
+          throw error("Unexpected text");
+        } else {
+          return;
+        }
+      }
+    }
+
+    private void comment() throws ProbeParseException {
+      pos += "<!--".length();
+      while (pos + 1 < limit) {
+        if (bytes[pos] == '-' && bytes[pos + 1] == '-') {
+          if (pos + 2 < limit && bytes[pos + 2] == '>') {
+            pos += 3;
+            return;
+          }
+          throw error("-- is not allowed in a comment");
+        }
+        pos++;
+      }
+      throw error("Unterminated comment");
+    }
+
+    private void processingInstruction() throws ProbeParseException {
+      pos += "<?".length();
+      readName();
+      if (nameEnd - nameStart == 3 && name().equalsIgnoreCase("xml")) {
+        throw error("The XML declaration must be at the start of the payload");
+      }
+      if (!skipPast("?>")) {
+        throw error("Unterminated processing instruction");
+      }
+    }
+
+    // Low level helpers
+
+    private void readName() throws ProbeParseException {
+      nameStart = pos;
+      while (pos < limit && isNameChar(bytes[pos])) {
+        pos++;
+      }
+      nameEnd = pos;
+      if (nameEnd == nameStart) {
+        throw error("Expected a name");
+      }
+    }
+
+    private boolean nameIs(String name) {
+      return equals(nameStart, nameEnd, name);
+    }
+
+    private String name() {
+      return new String(bytes, nameStart, nameEnd - nameStart, UTF8);
+    }
+
+    private boolean equals(int start, int end, String value) {
+      return end - start == value.length() && startsWith(start, end, value);
+    }
+
+    private boolean startsWith(int start, int end, String value) {
+      if (end - start < value.length()) {
+        return false;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        if (bytes[start + i] != value.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean lookingAt(String value) {
+      return startsWith(pos, limit, value);
+    }
+
+    private boolean skipPast(String value) {
+      while (pos < limit) {
+        if (lookingAt(value)) {
+          pos += value.length();
+          return true;
+        }
+        pos++;
+      }
+      return false;
+    }
+
+    /**
+     * @return true if there was at least one whitespace byte
+     */
+    private boolean skipWhitespace() {
+      int start = pos;
+      while (pos < limit && isWhitespace(bytes[pos])) {
+        pos++;
+      }
+      return pos > start;
+    }
+
+    private boolean consume(char c) {
+      if (pos < limit && bytes[pos] == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private byte peek() throws ProbeParseException {
+      if (pos >= limit) {
+        throw error("The payload is truncated");
+      }
+      return bytes[pos];
+    }
+
+    /**
+     * Control characters other than tab, newline and carriage return aren't
+     * allowed anywhere in an XML document.
+     */
+    private void checkChar(byte c) throws ProbeParseException {
+      if (c >= 0 && c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+        throw error("Illegal character 0x" + Integer.toHexString(c));
+      }
+    }
+
+    private void copy(int start, int end) {
+      int length = end - start;
+      ensureScratch(length);
+      System.arraycopy(bytes, start, scratch, scratchLength, length);
+      scratchLength += length;
+    }
+
+    private void append(byte b) {
+      ensureScratch(1);
+      scratch[scratchLength++] = b;
+    }
+
+    private void appendCodePoint(int codePoint) {
+      ensureScratch(4);
+      if (codePoint < 0x80) {
+        scratch[scratchLength++] = (byte) codePoint;
+      } else if (codePoint < 0x800) {
+        scratch[scratchLength++] = (byte) (0xC0 | (codePoint >> 6));
+        scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else if (codePoint < 0x10000) {
+        scratch[scratchLength++] = (byte) (0xE0 | (codePoint >> 12));
+        scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        scratch[scratchLength++] = (byte) (0xF0 | (codePoint >> 18));
+        scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+      }
+    }
+
+    private void ensureScratch(int extra) {
+      if (scratchLength + extra > scratch.length) {
+        scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + extra));
+      }
+    }
+
+    /**
+     * Most values are plain ASCII (ids and URLs). Anything else has to be
+     * valid UTF-8.
+     */
+    private String decode(byte[] source, int start, int end) throws ProbeParseException {
+      for (int i = start; i < end; i++) {
+        if (source[i] < 0) {
+          try {
+            return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(source, start, end - start)).toString();
+          } catch (CharacterCodingException e) {
+            throw new ProbeParseException("Invalid UTF-8 in the probe", e);
+          }
+        }
+      }
+      return new String(source, start, end - start, ASCII);
+    }
+
+    private ProbeParseException error(String message) {
+      return new ProbeParseException(message + " at offset " + pos);
+    }
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  /**
+   * Bytes of multi-byte UTF-8 characters are all negative and are let through
+   * so non-ASCII names are read whole (and then rejected as unknown).
+   */
+  private static boolean isNameChar(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == ':' || b == '_' || b == '-' || b == '.' || b < 0;
+  }
+
+}
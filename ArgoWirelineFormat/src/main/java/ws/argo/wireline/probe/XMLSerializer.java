@@ -21,22 +21,9 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.PropertyException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.stream.FactoryConfigurationError;
-import javax.xml.transform.sax.SAXSource;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
+import ws.argo.wireline.JAXBEngine;
 import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
 import ws.argo.wireline.probe.xml.ObjectFactory;
 import ws.argo.wireline.probe.xml.Probe;
@@ -50,7 +37,9 @@ import ws.argo.wireline.probe.xml.Probe.Ra.RespondTo;
  * @author jmsimpson
  *
  */
-public class XMLSerializer {
+public class XMLSerializer implements ProbeReader {
+
+  private static final JAXBEngine ENGINE = new JAXBEngine(Probe.class);
 
   private ObjectFactory xmlProbeFactory = new ObjectFactory();
 
@@ -84,17 +73,7 @@ public class XMLSerializer {
 
     StringWriter sw = new StringWriter();
     try {
-      JAXBContext jaxbContext = JAXBContext.newInstance(Probe.class);
-      Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-
-      // output pretty printed
-      jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-      jaxbMarshaller.setProperty(Marshaller.JAXB_FRAGMENT, fragment);
-      
-      jaxbMarshaller.marshal(xmlProbe, sw);
-    } catch (PropertyException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      ENGINE.marshal(xmlProbe, sw, fragment);
     } catch (JAXBException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
@@ -144,7 +123,23 @@ public class XMLSerializer {
    * @return the ProbeWrapper instance
    * @throws ProbeParseException if there was an issue parsing the payload
    */
+  @Override
   public ProbeWrapper unmarshal(String payload) throws ProbeParseException {
+    return unmarshal(new ByteArrayInputStream(payload.getBytes(Charset.forName("UTF-8"))));
+  }
+
+  /**
+   * Create a new ProbeWrapper from the wireline payload. This version reads the
+   * payload straight from the stream so the caller doesn't have to copy the
+   * bytes off the wire into a String first.
+   * 
+   * @param payload - the serialized probe that came directly off the wire. This
+   *          should only be in XML
+   * @return the ProbeWrapper instance
+   * @throws ProbeParseException if there was an issue parsing the payload
+   */
+  @Override
+  public ProbeWrapper unmarshal(InputStream payload) throws ProbeParseException {
     Probe xmlProbe = parseProbePayload(payload);
 
     ProbeWrapper probe = new ProbeWrapper(xmlProbe.getId());
@@ -173,27 +168,13 @@ public class XMLSerializer {
     return probe;
   }
 
-  private static Probe parseProbePayload(String payload) throws ProbeParseException {
+  private static Probe parseProbePayload(InputStream inputStream) throws ProbeParseException {
 
-    JAXBContext jaxbContext;
     Probe probe = null;
 
     try {
-      jaxbContext = JAXBContext.newInstance(Probe.class);
-      Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-
-      InputStream inputStream = new ByteArrayInputStream(payload.getBytes(Charset.forName("UTF-8")));
-
-      SAXParserFactory spf = SAXParserFactory.newInstance();
-      spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-      SAXParser sp = spf.newSAXParser();
-      XMLReader xmlReader = sp.getXMLReader();
-      InputSource inputSource = new InputSource(inputStream);
-      SAXSource saxSource = new SAXSource(xmlReader, inputSource);
-
-      probe = (Probe) jaxbUnmarshaller.unmarshal(saxSource);
-
-    } catch (JAXBException | FactoryConfigurationError | ParserConfigurationException | SAXException e) {
+      probe = (Probe) ENGINE.unmarshal(inputStream);
+    } catch (JAXBException e) {
       throw new ProbeParseException(e);
     }
 
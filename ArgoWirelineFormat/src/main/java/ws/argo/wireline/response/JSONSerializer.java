@@ -1,5 +1,7 @@
 package ws.argo.wireline.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 
 import ws.argo.wireline.response.ServiceWrapper.AccessPoint;
@@ -19,6 +21,11 @@ import com.google.gson.Gson;
  */
 public class JSONSerializer {
 
+  // Gson is thread safe and expensive to create
+  private static final Gson GSON = new Gson();
+
+  private static final ResponseStreamWriter WRITER = new ResponseStreamWriter();
+
   public JSONSerializer() {
   }
 
@@ -29,13 +36,14 @@ public class JSONSerializer {
    * @return the wireline string
    */
   public String marshal(ResponseWrapper response) {
-    Gson gson = new Gson();
-
-    Response jsonResponse = composeResponseFromResponseWrapper(response);
-
-    String jsonString = gson.toJson(jsonResponse);
-
-    return jsonString;
+    StringWriter sw = new StringWriter();
+    try {
+      WRITER.writeJSON(response, sw);
+    } catch (IOException e) {
+      // a StringWriter doesn't throw IOExceptions
+      throw new IllegalStateException(e);
+    }
+    return sw.toString();
   }
 
   /**
@@ -45,37 +53,13 @@ public class JSONSerializer {
    * @return the wireline string
    */
   public String marshalService(ServiceWrapper service) {
-    Gson gson = new Gson();
-
     Service jsonService = composeServiceFromServiceWrapper(service);
 
-    String jsonString = gson.toJson(jsonService);
+    String jsonString = GSON.toJson(jsonService);
 
     return jsonString;
   }
 
-  private Response composeResponseFromResponseWrapper(ResponseWrapper response) {
-
-    Response jsonResponse = new Response();
-
-    jsonResponse.withProbeID(response.getProbeID()).withResponseID(response.getResponseID());
-
-    ArrayList<Service> jsonServices = new ArrayList<Service>();
-
-    for (ServiceWrapper service : response.getServices()) {
-      service.setResponseID(response.getResponseID());
-      service.setProbeID(response.getProbeID());
-      
-      Service jsonService = composeServiceFromServiceWrapper(service);
-      jsonServices.add(jsonService);
-    }
-
-    jsonResponse.setServices(jsonServices);
-
-    return jsonResponse;
-
-  }
-
   private Service composeServiceFromServiceWrapper(ServiceWrapper service) {
     Service jsonService = new Service();
 
@@ -135,9 +119,7 @@ public class JSONSerializer {
   }
 
   private ResponseWrapper unmarshalResponseJSON(String payload) {
-    Gson gson = new Gson();
-
-    Response jsonResponse = gson.fromJson(payload, Response.class);
+    Response jsonResponse = GSON.fromJson(payload, Response.class);
 
     ResponseWrapper response = new ResponseWrapper(jsonResponse.getProbeID());
     response.setResponseID(jsonResponse.getResponseID());
@@ -154,9 +136,7 @@ public class JSONSerializer {
   }
 
   private ServiceWrapper unmarshalServiceJSON(String payload) {
-    Gson gson = new Gson();
-
-    Service jsonService = gson.fromJson(payload, Service.class);
+    Service jsonService = GSON.fromJson(payload, Service.class);
 
     ServiceWrapper service = createServiceWrapperFromService(jsonService);
 
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.wireline.response;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import ws.argo.wireline.response.ServiceWrapper.AccessPoint;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The ResponseStreamWriter writes a ResponseWrapper straight out as the
+ * wireline JSON or XML. It walks the ServiceWrappers directly rather than
+ * copying them into the generated JSON or JAXB classes first and then building
+ * the whole payload as a String, so a big response never exists in memory more
+ * than once.
+ * 
+ * <p>
+ * The output is the same as the {@link JSONSerializer} and
+ * {@link XMLSerializer} have always produced. The one difference is that the
+ * JSON serializer used to stamp the response and probe IDs onto the services
+ * themselves. The writer puts them in the payload without touching the
+ * services, which may be shared with other threads.
+ * 
+ * <p>
+ * When a response goes out on a stream and all of its services have been
+ * prepared (see {@link ServiceWrapper#prepareFragments()}), the services are
+ * copied in from their pre-serialized bytes. Only the response wrapper and the
+ * IDs are written for each response.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ResponseStreamWriter {
+
+  public static final String XML  = "XML";
+  public static final String JSON = "JSON";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+  private static final String INDENT          = "    ";
+  private static final String XML_FOOTER      = "\n</services>\n";
+
+  // only used to quote JSON strings - the defaults match the JsonWriter settings
+  private static final Gson GSON = new Gson();
+
+  // XMLOutputFactory isn't guaranteed to be thread safe
+  private static final ThreadLocal<XMLOutputFactory> FACTORIES = new ThreadLocal<XMLOutputFactory>() {
+    @Override
+    protected XMLOutputFactory initialValue() {
+      return XMLOutputFactory.newInstance();
+    }
+  };
+
+  public ResponseStreamWriter() {
+  }
+
+  /**
+   * Write the response to the stream as UTF-8. The stream is flushed but not
+   * closed.
+   * 
+   * @param response the response to write
+   * @param payloadType XML or JSON (anything else is JSON)
+   * @param out where the payload goes
+   * @throws IOException if the stream can't be written to
+   */
+  public void write(ResponseWrapper response, String payloadType, OutputStream out) throws IOException {
+    ServiceFragment[] fragments = preparedFragments(response);
+    if (fragments == null) {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+      if (XML.equals(payloadType)) {
+        writeXML(response, writer);
+      } else {
+        writeJSON(response, writer);
+      }
+      writer.flush();
+      return;
+    }
+
+    if (XML.equals(payloadType)) {
+      out.write(xmlHeader(response).getBytes(UTF8));
+      for (ServiceFragment fragment : fragments) {
+        out.write(fragment.xml);
+      }
+      out.write(XML_FOOTER.getBytes(UTF8));
+    } else {
+      out.write(jsonHeader(response).getBytes(UTF8));
+      byte[] serviceTail = jsonServiceTail(response).getBytes(UTF8);
+      for (int i = 0; i < fragments.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(fragments[i].jsonHead);
+        out.write(serviceTail);
+      }
+      out.write(']');
+      out.write('}');
+    }
+    out.flush();
+  }
+
+  /**
+   * Grab the fragments of all of the services up front (a setter could drop
+   * them at any time).
+   * 
+   * @return the fragments or null if the response is empty or any service
+   *         isn't prepared, in which case the whole response gets written out
+   *         in full
+   */
+  private ServiceFragment[] preparedFragments(ResponseWrapper response) {
+    if (response.getServices().isEmpty()) {
+      return null;
+    }
+    ServiceFragment[] fragments = new ServiceFragment[response.getServices().size()];
+    int i = 0;
+    for (ServiceWrapper service : response.getServices()) {
+      ServiceFragment fragment = service.getFragment();
+      if (fragment == null) {
+        return null;
+      }
+      fragments[i++] = fragment;
+    }
+    return fragments;
+  }
+
+  /**
+   * Encode a response holding the services into a template, which can then be
+   * written out for any number of responses with just their IDs changed. The
+   * prepared fragments of the services are used if there are any.
+   * 
+   * @param services the services in the response
+   * @param payloadType XML or JSON (anything else is JSON)
+   * @return the template
+   * @throws IOException if a service can't be rendered
+   */
+  public ResponseTemplate compile(Collection<ServiceWrapper> services, String payloadType) throws IOException {
+    if (XML.equals(payloadType)) {
+      ResponseTemplate.Builder template = new ResponseTemplate.Builder(XML, services.size());
+      template.append(XML_DECLARATION + "\n<services");
+      template.hole(ResponseTemplate.RESPONSE_ID, " responseID=\"", "\"");
+      template.hole(ResponseTemplate.PROBE_ID, " probeID=\"", "\"");
+      if (services.isEmpty()) {
+        return template.append("/>\n").build();
+      }
+      template.append(">");
+      for (ServiceWrapper service : services) {
+        ServiceFragment fragment = service.getFragment();
+        template.append(fragment != null ? fragment.xml : renderXML(service));
+      }
+      return template.append(XML_FOOTER).build();
+    } else {
+      ResponseTemplate.Builder template = new ResponseTemplate.Builder(JSON, services.size());
+      template.append("{");
+      template.hole(ResponseTemplate.RESPONSE_ID, "\"responseID\":", ",");
+      template.hole(ResponseTemplate.PROBE_ID, "\"probeID\":", ",").append("\"services\":[");
+      boolean first = true;
+      for (ServiceWrapper service : services) {
+        if (!first) {
+          template.append(",");
+        }
+        first = false;
+        ServiceFragment fragment = service.getFragment();
+        template.append(fragment != null ? fragment.jsonHead : renderJSON(service));
+        template.hole(ResponseTemplate.RESPONSE_ID, ",\"responseId\":", "");
+        template.hole(ResponseTemplate.PROBE_ID, ",\"probeId\":", "").append("}");
+      }
+      return template.append("]}").build();
+    }
+  }
+
+  /**
+   * Serialize the service into its XML and JSON fragments.
+   * 
+   * @param service the service to render
+   * @return the fragments
+   */
+  static ServiceFragment renderFragment(ServiceWrapper service) {
+    try {
+      return new ServiceFragment(renderXML(service), renderJSON(service));
+    } catch (IOException e) {
+      // only StringWriters are involved
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] renderXML(ServiceWrapper service) throws IOException {
+    StringWriter out = new StringWriter();
+    try {
+      XMLStreamWriter xml = FACTORIES.get().createXMLStreamWriter(out);
+      writeXMLService(xml, service);
+      xml.flush();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    return out.toString().getBytes(UTF8);
+  }
+
+  private static byte[] renderJSON(ServiceWrapper service) throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter json = newJsonWriter(out);
+    writeJSONService(json, service);
+    json.flush();
+    return out.toString().getBytes(UTF8);
+  }
+
+  /**
+   * The XML declaration and the services start tag.
+   */
+  private String xmlHeader(ResponseWrapper response) throws IOException {
+    StringWriter out = new StringWriter();
+    out.write(XML_DECLARATION);
+    out.write('\n');
+    try {
+      XMLStreamWriter xml = FACTORIES.get().createXMLStreamWriter(out);
+      xml.writeStartElement("services");
+      xmlAttribute(xml, "responseID", response.getResponseID());
+      xmlAttribute(xml, "probeID", response.getProbeID());
+      // closes off the start tag
+      xml.writeCharacters("");
+      xml.flush();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * The response object up to the start of the services array.
+   */
+  private String jsonHeader(ResponseWrapper response) {
+    StringBuilder buf = new StringBuilder("{");
+    if (response.getResponseID() != null) {
+      buf.append("\"responseID\":").append(GSON.toJson(response.getResponseID())).append(',');
+    }
+    if (response.getProbeID() != null) {
+      buf.append("\"probeID\":").append(GSON.toJson(response.getProbeID())).append(',');
+    }
+    return buf.append("\"services\":[").toString();
+  }
+
+  /**
+   * The end of each service object - the IDs and the closing brace.
+   */
+  private String jsonServiceTail(ResponseWrapper response) {
+    StringBuilder buf = new StringBuilder();
+    if (response.getResponseID() != null) {
+      buf.append(",\"responseId\":").append(GSON.toJson(response.getResponseID()));
+    }
+    if (response.getProbeID() != null) {
+      buf.append(",\"probeId\":").append(GSON.toJson(response.getProbeID()));
+    }
+    return buf.append('}').toString();
+  }
+
+  /**
+   * Write the response as the wireline JSON. The writer is flushed but not
+   * closed.
+   * 
+   * @param response the response to write
+   * @param out where the payload goes
+   * @throws IOException if the writer can't be written to
+   */
+  public void writeJSON(ResponseWrapper response, Writer out) throws IOException {
+    JsonWriter json = newJsonWriter(out);
+
+    json.beginObject();
+    jsonField(json, "responseID", response.getResponseID());
+    jsonField(json, "probeID", response.getProbeID());
+    json.name("services").beginArray();
+    for (ServiceWrapper service : response.getServices()) {
+      writeJSONService(json, service);
+      jsonField(json, "responseId", response.getResponseID());
+      jsonField(json, "probeId", response.getProbeID());
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+
+  private static JsonWriter newJsonWriter(Writer out) {
+    JsonWriter json = new JsonWriter(out);
+    // match the Gson defaults the JSONSerializer has always used
+    json.setHtmlSafe(true);
+    return json;
+  }
+
+  /**
+   * Write the service object up to the end of the access points. The caller
+   * adds the IDs and closes the object.
+   */
+  private static void writeJSONService(JsonWriter json, ServiceWrapper service) throws IOException {
+    json.beginObject();
+    jsonField(json, "id", service.getId());
+    jsonField(json, "serviceContractId", service.getServiceContractID());
+    jsonField(json, "serviceName", service.getServiceName());
+    if (!service.getConsumability().isEmpty()) {
+      jsonField(json, "consumability", service.getConsumability());
+    }
+    jsonField(json, "description", service.getDescription());
+    jsonField(json, "contractDescription", service.getContractDescription());
+    if (service.getTtl() != null) {
+      jsonField(json, "ttl", service.getTtl().toString());
+    }
+    json.name("accessPoints").beginArray();
+    for (AccessPoint ap : service.accessPoints) {
+      json.beginObject();
+      jsonField(json, "label", ap.label);
+      jsonField(json, "ipAddress", ap.ipAddress);
+      jsonField(json, "port", ap.port);
+      jsonField(json, "url", ap.url);
+      jsonField(json, "dataType", ap.dataType);
+      jsonField(json, "data", ap.data);
+      json.endObject();
+    }
+    json.endArray();
+  }
+
+  /**
+   * Null fields are left out, like Gson does.
+   */
+  private static void jsonField(JsonWriter json, String name, String value) throws IOException {
+    if (value != null) {
+      json.name(name).value(value);
+    }
+  }
+
+  /**
+   * Write the response as the wireline XML, laid out the way the JAXB
+   * marshaller formats it. The writer is flushed but not closed.
+   * 
+   * @param response the response to write
+   * @param out where the payload goes
+   * @throws IOException if the writer can't be written to
+   */
+  public void writeXML(ResponseWrapper response, Writer out) throws IOException {
+    out.write(XML_DECLARATION);
+    out.write('\n');
+    try {
+      XMLStreamWriter xml = FACTORIES.get().createXMLStreamWriter(out);
+
+      if (response.getServices().isEmpty()) {
+        // JAXB closes an empty element off in the start tag
+        xml.writeEmptyElement("services");
+        xmlAttribute(xml, "responseID", response.getResponseID());
+        xmlAttribute(xml, "probeID", response.getProbeID());
+      } else {
+        xml.writeStartElement("services");
+        xmlAttribute(xml, "responseID", response.getResponseID());
+        xmlAttribute(xml, "probeID", response.getProbeID());
+        for (ServiceWrapper service : response.getServices()) {
+          writeXMLService(xml, service);
+        }
+        indent(xml, 0);
+        xml.writeEndElement();
+      }
+      xml.writeCharacters("\n");
+      xml.flush();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    out.flush();
+  }
+
+  /**
+   * Write the service element, starting with the line break and indent in
+   * front of it.
+   */
+  private static void writeXMLService(XMLStreamWriter xml, ServiceWrapper service) throws XMLStreamException {
+    indent(xml, 1);
+    xml.writeStartElement("service");
+    xmlAttribute(xml, "id", service.getId());
+    xmlAttribute(xml, "contractID", service.getServiceContractID());
+    xmlAttribute(xml, "responseID", service.getResponseId());
+    xmlAttribute(xml, "probeID", service.getProbeId());
+    xmlElement(xml, 2, "serviceName", service.getServiceName());
+    xmlElement(xml, 2, "description", service.getDescription());
+    xmlElement(xml, 2, "contractDescription", service.getContractDescription());
+    xmlElement(xml, 2, "consumability", service.getConsumability());
+    xmlElement(xml, 2, "ttl", service.getTtl() != null ? Integer.toString(service.getTtl().intValue()) : "0");
+    if (!service.accessPoints.isEmpty()) {
+      indent(xml, 2);
+      xml.writeStartElement("accessPoints");
+      for (AccessPoint ap : service.accessPoints) {
+        indent(xml, 3);
+        xml.writeStartElement("accessPoint");
+        xmlAttribute(xml, "label", ap.label);
+        xmlElement(xml, 4, "ipAddress", ap.ipAddress);
+        xmlElement(xml, 4, "port", ap.port);
+        xmlElement(xml, 4, "url", ap.url);
+        indent(xml, 4);
+        if (ap.data != null) {
+          xml.writeStartElement("data");
+          xmlAttribute(xml, "type", ap.dataType);
+          xml.writeCharacters(xmlText(ap.data));
+          xml.writeEndElement();
+        } else {
+          xml.writeEmptyElement("data");
+          xmlAttribute(xml, "type", ap.dataType);
+        }
+        indent(xml, 3);
+        xml.writeEndElement();
+      }
+      indent(xml, 2);
+      xml.writeEndElement();
+    }
+    indent(xml, 1);
+    xml.writeEndElement();
+  }
+
+  private static void indent(XMLStreamWriter xml, int depth) throws XMLStreamException {
+    xml.writeCharacters("\n");
+    for (int i = 0; i < depth; i++) {
+      xml.writeCharacters(INDENT);
+    }
+  }
+
+  private static void xmlAttribute(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+    if (value != null) {
+      xml.writeAttribute(name, xmlText(value));
+    }
+  }
+
+  /**
+   * The JAXB marshaller drops carriage returns from text and attribute values
+   * (a CR LF comes out as just the LF), so they're dropped here too.
+   * 
+   * @param value the text
+   * @return the text without any carriage returns
+   */
+  static String xmlText(String value) {
+    return value.indexOf('\r') < 0 ? value : value.replace("\r", "");
+  }
+
+  /**
+   * A simple text element on its own line. Null values are left out, like JAXB
+   * does.
+   */
+  private static void xmlElement(XMLStreamWriter xml, int depth, String name, String value) throws XMLStreamException {
+    if (value != null) {
+      indent(xml, depth);
+      xml.writeStartElement(name);
+      xml.writeCharacters(xmlText(value));
+      xml.writeEndElement();
+    }
+  }
+
+}
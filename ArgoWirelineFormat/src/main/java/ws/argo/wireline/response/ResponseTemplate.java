@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.wireline.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+/**
+ * A ResponseTemplate is a whole response payload encoded once, with holes
+ * where the response and probe IDs go. Each hole takes the whole attribute (or
+ * field), name and all, so an ID that's null is left out the same way the
+ * {@link ResponseStreamWriter} leaves it out. When a handler answers lots of probes
+ * with the same set of services (like a naked probe that gets the whole
+ * catalog), the encoded body can be kept and each response is then just a copy
+ * of the template with the IDs patched in.
+ * 
+ * <p>
+ * Templates are built by {@link ResponseStreamWriter#compile}. They are
+ * immutable and can be shared between threads.
+ * 
+ * @author jmsimpson
+ *
+ */
+public final class ResponseTemplate {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // only used to quote JSON strings - the defaults match the JsonWriter settings
+  private static final Gson GSON = new Gson();
+
+  static final int RESPONSE_ID = 0;
+  static final int PROBE_ID    = 1;
+
+  private final String   payloadType;
+  private final int      numberOfServices;
+  private final byte[][] segments;
+  private final int[]    holes;
+  // what goes either side of the ID in each hole
+  private final byte[][] prefixes;
+  private final byte[][] suffixes;
+
+  private ResponseTemplate(String payloadType, int numberOfServices, List<byte[]> segments, List<Integer> holes, List<byte[]> prefixes, List<byte[]> suffixes) {
+    this.payloadType = payloadType;
+    this.numberOfServices = numberOfServices;
+    this.segments = segments.toArray(new byte[segments.size()][]);
+    this.holes = new int[holes.size()];
+    for (int i = 0; i < this.holes.length; i++) {
+      this.holes[i] = holes.get(i);
+    }
+    this.prefixes = prefixes.toArray(new byte[prefixes.size()][]);
+    this.suffixes = suffixes.toArray(new byte[suffixes.size()][]);
+  }
+
+  /**
+   * Return the payload type of the template.
+   * 
+   * @return XML or JSON
+   */
+  public String getPayloadType() {
+    return payloadType;
+  }
+
+  public int numberOfServices() {
+    return numberOfServices;
+  }
+
+  /**
+   * Write the template to the stream with the response and probe IDs of the
+   * response filled in. The services in the response are not looked at - it's
+   * up to the caller to make sure they are the ones the template was built
+   * from. An ID that's null is left out. The stream is flushed but not closed.
+   * 
+   * @param response the response whose IDs are written
+   * @param out where the payload goes
+   * @throws IOException if the stream can't be written to
+   */
+  public void write(ResponseWrapper response, OutputStream out) throws IOException {
+    byte[] responseID = encodeID(response.getResponseID());
+    byte[] probeID = encodeID(response.getProbeID());
+
+    for (int i = 0; i < holes.length; i++) {
+      out.write(segments[i]);
+      byte[] id = holes[i] == RESPONSE_ID ? responseID : probeID;
+      if (id != null) {
+        out.write(prefixes[i]);
+        out.write(id);
+        out.write(suffixes[i]);
+      }
+    }
+    out.write(segments[holes.length]);
+    out.flush();
+  }
+
+  private byte[] encodeID(String id) {
+    if (id == null) {
+      return null;
+    } else if (ResponseStreamWriter.XML.equals(payloadType)) {
+      return escapeAttribute(ResponseStreamWriter.xmlText(id)).getBytes(UTF8);
+    } else {
+      return GSON.toJson(id).getBytes(UTF8);
+    }
+  }
+
+  /**
+   * Escape an attribute value the same way the StAX writer does.
+   */
+  private static String escapeAttribute(String value) {
+    StringBuilder buf = null;
+    for (int i = 0; i < value.length(); i++) {
+      String entity;
+      switch (value.charAt(i)) {
+        case '&':
+          entity = "&amp;";
+          break;
+        case '<':
+          entity = "&lt;";
+          break;
+        case '>':
+          entity = "&gt;";
+          break;
+        case '"':
+          entity = "&quot;";
+          break;
+        default:
+          entity = null;
+      }
+      if (entity != null && buf == null) {
+        buf = new StringBuilder(value.length() + 16).append(value, 0, i);
+      }
+      if (entity != null) {
+        buf.append(entity);
+      } else if (buf != null) {
+        buf.append(value.charAt(i));
+      }
+    }
+    return buf != null ? buf.toString() : value;
+  }
+
+  /**
+   * Collects the fixed bytes and the ID holes in order. A hole's prefix and
+   * suffix are only written when its ID isn't null.
+   */
+  static final class Builder {
+    private final String                payloadType;
+    private final int                   numberOfServices;
+    private final List<byte[]>          segments = new ArrayList<byte[]>();
+    private final List<Integer>         holes    = new ArrayList<Integer>();
+    private final List<byte[]>          prefixes = new ArrayList<byte[]>();
+    private final List<byte[]>          suffixes = new ArrayList<byte[]>();
+    private final ByteArrayOutputStream current  = new ByteArrayOutputStream();
+
+    Builder(String payloadType, int numberOfServices) {
+      this.payloadType = payloadType;
+      this.numberOfServices = numberOfServices;
+    }
+
+    Builder append(String text) {
+      return append(text.getBytes(UTF8));
+    }
+
+    Builder append(byte[] bytes) {
+      current.write(bytes, 0, bytes.length);
+      return this;
+    }
+
+    Builder hole(int id, String prefix, String suffix) {
+      segments.add(current.toByteArray());
+      current.reset();
+      holes.add(id);
+      prefixes.add(prefix.getBytes(UTF8));
+      suffixes.add(suffix.getBytes(UTF8));
+      return this;
+    }
+
+    ResponseTemplate build() {
+      segments.add(current.toByteArray());
+      return new ResponseTemplate(payloadType, numberOfServices, segments, holes, prefixes, suffixes);
+    }
+  }
+
+}
@@ -32,10 +32,18 @@ import java.util.UUID;
  *
  */
 public class ResponseWrapper {
+
+  // The serializers are stateless so they can be shared by every response
+  private static final XMLSerializer  XML_SERIALIZER  = new XMLSerializer();
+  private static final JSONSerializer JSON_SERIALIZER = new JSONSerializer();
+
   String                          probeID;
   String                          responseID;
   private HashSet<ServiceWrapper> responses = new HashSet<ServiceWrapper>();
 
+  // not part of the wireline format - see setCacheKey
+  private Object                  cacheKey;
+
   /**
    * Create a new Response payload for a particular probe.
    * 
@@ -115,14 +123,31 @@ public class ResponseWrapper {
     return responses;
   }
 
+  public Object getCacheKey() {
+    return cacheKey;
+  }
+
+  /**
+   * Mark the services in this response as being the same as those in any
+   * other response from the same handler with an equal key. A handler sets
+   * this when its answer doesn't depend on the probe (e.g. a naked probe that
+   * gets everything) so the encoded payload can be cached as a
+   * {@link ResponseTemplate} and reused. The key has to change whenever the
+   * services do.
+   * 
+   * @param cacheKey the key, or null if the response shouldn't be cached
+   */
+  public void setCacheKey(Object cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
   /**
    * Return the XML string form of the Response payload.
    * 
    * @return the XML payload
    */
   public String toXML() {
-    XMLSerializer serializer = new XMLSerializer();
-    return serializer.marshal(this);
+    return XML_SERIALIZER.marshal(this);
 
   }
 
@@ -132,8 +157,7 @@ public class ResponseWrapper {
    * @return the JSON payload
    */
   public String toJSON() {
-    JSONSerializer serializer = new JSONSerializer();
-    return serializer.marshal(this);
+    return JSON_SERIALIZER.marshal(this);
 
   }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.wireline.response;
+
+/**
+ * The pre-serialized wireline forms of one service. A service in a response
+ * only depends on the response through the response and probe IDs in the JSON
+ * form, so everything else can be written once and copied into every response
+ * the service shows up in.
+ *
+ * <p>The XML is the whole indented service element. The JSON is the service
+ * object up to (and including) the access points array - the
+ * {@link ResponseStreamWriter} finishes it off with the IDs for each response.
+ * Both are UTF-8 bytes.
+ *
+ * @see ServiceWrapper#prepareFragments()
+ * @author jmsimpson
+ *
+ */
+final class ServiceFragment {
+
+  final byte[] xml;
+  final byte[] jsonHead;
+
+  ServiceFragment(byte[] xml, byte[] jsonHead) {
+    this.xml = xml;
+    this.jsonHead = jsonHead;
+  }
+
+}
@@ -51,6 +51,9 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
   public Integer                ttl;
   public ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
 
+  // the pre-serialized wireline forms - the setters throw them away
+  private transient volatile ServiceFragment fragment;
+
   /**
    * This is a convenience class for encapsulating access points.
    * 
@@ -233,7 +236,34 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
     ap.data = data;
 
     accessPoints.add(ap);
+    fragment = null;
+
+  }
 
+  /**
+   * Serialize the service into its wireline XML and JSON fragments now and hang
+   * on to them, so the {@link ResponseStreamWriter} can copy the bytes into
+   * each response rather than writing the service out every time. This is for
+   * services that are advertised over and over without changing, like the ones
+   * a config file handler holds.
+   * 
+   * <p>The setters (and {@link #addAccessPoint}) throw the fragments away, so
+   * call this again after changing the service. Changing the public fields or
+   * the access point list directly doesn't, so don't do that to a prepared
+   * service.
+   */
+  public void prepareFragments() {
+    fragment = ResponseStreamWriter.renderFragment(this);
+  }
+
+  /**
+   * Return the prepared fragments.
+   * 
+   * @return the fragments or null if the service hasn't been prepared (or has
+   *         changed since)
+   */
+  ServiceFragment getFragment() {
+    return fragment;
   }
 
   public String getId() {
@@ -242,6 +272,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setId(String id) {
     this.id = id;
+    fragment = null;
   }
 
   public String getServiceContractID() {
@@ -250,6 +281,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setServiceContractID(String serviceContractID) {
     this.serviceContractId = serviceContractID;
+    fragment = null;
   }
 
   public String getServiceName() {
@@ -258,6 +290,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setServiceName(String serviceName) {
     this.serviceName = serviceName;
+    fragment = null;
   }
 
   public String getDescription() {
@@ -266,6 +299,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setDescription(String description) {
     this.description = description;
+    fragment = null;
   }
 
   public String getContractDescription() {
@@ -274,6 +308,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setContractDescription(String contractDescription) {
     this.contractDescription = contractDescription;
+    fragment = null;
   }
 
   public String getConsumability() {
@@ -282,6 +317,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setConsumability(String consumability) {
     this.consumability = consumability;
+    fragment = null;
   }
 
   /**
@@ -297,6 +333,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setTtl(Integer ttl) {
     this.ttl = ttl;
+    fragment = null;
   }
 
   /**
@@ -310,6 +347,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 	if ( ttlString != null && !ttlString.isEmpty() )
     try {
       this.ttl = Integer.valueOf(ttlString);
+      fragment = null;
     } catch (NumberFormatException e) {
       LOGGER.warn("Error trying to format the string " + ttlString + " into an Integer.");
     }
@@ -321,6 +359,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setResponseID(String responseId) {
     this.responseId = responseId;
+    fragment = null;
   }
 
   public String getProbeId() {
@@ -329,6 +368,7 @@ public class ServiceWrapper implements Comparable<ServiceWrapper> {
 
   public void setProbeID(String probeId) {
     this.probeId = probeId;
+    fragment = null;
   }
 
   
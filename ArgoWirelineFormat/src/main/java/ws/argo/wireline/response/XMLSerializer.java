@@ -1,27 +1,14 @@
 package ws.argo.wireline.response;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
-import java.util.List;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.PropertyException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.stream.FactoryConfigurationError;
-import javax.xml.transform.sax.SAXSource;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
+import ws.argo.wireline.JAXBEngine;
 import ws.argo.wireline.response.ServiceWrapper.AccessPoint;
 import ws.argo.wireline.response.xml.ObjectFactory;
 import ws.argo.wireline.response.xml.Services;
@@ -39,6 +26,11 @@ import ws.argo.wireline.response.xml.Services.Service.AccessPoints.AccessPoint.D
  */
 public class XMLSerializer {
 
+  private static final JAXBEngine SERVICES_ENGINE = new JAXBEngine(Services.class);
+  private static final JAXBEngine SERVICE_ENGINE  = new JAXBEngine(Service.class);
+
+  private static final ResponseStreamWriter WRITER = new ResponseStreamWriter();
+
   public XMLSerializer() {
 
   }
@@ -51,24 +43,12 @@ public class XMLSerializer {
    * @return the wireline string
    */
   public String marshal(ResponseWrapper response) {
-
-    Services xmlServices = this.composeResponseFromResponseWrapper(response);
-
     StringWriter sw = new StringWriter();
     try {
-      JAXBContext jaxbContext = JAXBContext.newInstance(Services.class);
-      Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-
-      // output pretty printed
-      jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-
-      jaxbMarshaller.marshal(xmlServices, sw);
-    } catch (PropertyException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    } catch (JAXBException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      WRITER.writeXML(response, sw);
+    } catch (IOException e) {
+      // a StringWriter doesn't throw IOExceptions
+      throw new IllegalStateException(e);
     }
     return sw.toString();
   }
@@ -86,16 +66,7 @@ public class XMLSerializer {
 
     StringWriter sw = new StringWriter();
     try {
-      JAXBContext jaxbContext = JAXBContext.newInstance(Service.class);
-      Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-
-      // output pretty printed
-      jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-
-      jaxbMarshaller.marshal(xmlService, sw);
-    } catch (PropertyException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      SERVICE_ENGINE.marshal(xmlService, sw, false);
     } catch (JAXBException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
@@ -104,25 +75,6 @@ public class XMLSerializer {
 
   }
 
-  private Services composeResponseFromResponseWrapper(ResponseWrapper response) {
-
-    ObjectFactory of = new ObjectFactory();
-    Services xmlServices = of.createServices();
-
-    xmlServices.setProbeID(response.getProbeID());
-    xmlServices.setResponseID(response.getResponseID());
-
-    List<Service> serviceList = xmlServices.getService();
-
-    for (ServiceWrapper service : response.getServices()) {
-      Service xmlService = this.composeServiceFromServiceWrapper(service);
-      serviceList.add(xmlService);
-    }
-
-    return xmlServices;
-
-  }
-
   private Service composeServiceFromServiceWrapper(ServiceWrapper service) {
     ObjectFactory of = new ObjectFactory();
     Service xmlService = of.createServicesService();
@@ -241,25 +193,14 @@ public class XMLSerializer {
 
   private static Services parseResponsePayload(String payload) throws ResponseParseException {
 
-    JAXBContext jaxbContext;
     Services services = null;
 
     try {
-      jaxbContext = JAXBContext.newInstance(Services.class);
-      Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-
       InputStream inputStream = new ByteArrayInputStream(payload.getBytes(Charset.forName("UTF-8")));
 
-      SAXParserFactory spf = SAXParserFactory.newInstance();
-      spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-      SAXParser sp = spf.newSAXParser();
-      XMLReader xmlReader = sp.getXMLReader();
-      InputSource inputSource = new InputSource(inputStream);
-      SAXSource saxSource = new SAXSource(xmlReader, inputSource);
+      services = (Services) SERVICES_ENGINE.unmarshal(inputStream);
 
-      services = (Services) jaxbUnmarshaller.unmarshal(saxSource);
-
-    } catch (JAXBException | FactoryConfigurationError | ParserConfigurationException | SAXException e) {
+    } catch (JAXBException e) {
       throw new ResponseParseException(e);
     }
 
@@ -268,25 +209,14 @@ public class XMLSerializer {
 
   private static Service parseServicePayload(String payload) throws ResponseParseException {
 
-    JAXBContext jaxbContext;
     Service service = null;
 
     try {
-      jaxbContext = JAXBContext.newInstance(Service.class);
-      Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-
       InputStream inputStream = new ByteArrayInputStream(payload.getBytes(Charset.forName("UTF-8")));
 
-      SAXParserFactory spf = SAXParserFactory.newInstance();
-      spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-      SAXParser sp = spf.newSAXParser();
-      XMLReader xmlReader = sp.getXMLReader();
-      InputSource inputSource = new InputSource(inputStream);
-      SAXSource saxSource = new SAXSource(xmlReader, inputSource);
-
-      service = (Service) jaxbUnmarshaller.unmarshal(saxSource);
+      service = (Service) SERVICE_ENGINE.unmarshal(inputStream);
 
-    } catch (JAXBException | FactoryConfigurationError | ParserConfigurationException | SAXException e) {
+    } catch (JAXBException e) {
       throw new ResponseParseException(e);
     }
 
@@ -0,0 +1,83 @@
+package ws.argo.wireline.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ws.argo.wireline.probe.ProbeIdScanner;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * This test class checks that the ProbeIdScanner pulls the right id out of raw
+ * probe payloads and gives up on anything it isn't sure about.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ProbeIdScannerTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static String scan(String payload) {
+    byte[] bytes = payload.getBytes(UTF8);
+    return ProbeIdScanner.scanProbeId(bytes, 0, bytes.length);
+  }
+
+  @Test
+  public void testScanTestPayload() throws IOException {
+    byte[] bytes;
+    try (InputStream is = ProbeIdScannerTest.class.getResourceAsStream("/testProbePayload.xml")) {
+      bytes = IOUtils.toByteArray(is);
+    }
+    assertEquals("--ID--", ProbeIdScanner.scanProbeId(bytes, 0, bytes.length));
+  }
+
+  @Test
+  public void testScanMarshalledProbe() {
+    ProbeWrapper probe = new ProbeWrapper("urn:uuid:6f1e7e5c-0b1a-4d4e-9a57-1c2a7c0d3b44");
+    probe.setClientId("scanner-test");
+    probe.addRespondToURL("internal", "http://localhost:9998/listener/probeResponse");
+
+    String payload = new XMLSerializer().marshal(probe);
+    assertEquals(probe.getProbeId(), scan(payload));
+
+    // a direct buffer with some junk in front of the payload
+    byte[] bytes = payload.getBytes(UTF8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 10);
+    buffer.position(10);
+    buffer.put(bytes);
+    buffer.position(10);
+    assertEquals(probe.getProbeId(), ProbeIdScanner.scanProbeId(buffer));
+    assertEquals(10, buffer.position());
+  }
+
+  @Test
+  public void testScanVariations() {
+    assertEquals("abc", scan("<probe id='abc'/>"));
+    assertEquals("abc", scan("\uFEFF<?xml version=\"1.0\"?>\n<!-- <probe id=\"fake\"> -->\n<probe\n  client=\"c\"\n  id = \"abc\" >"));
+    assertEquals("abc", scan("<ns2:probe xmlns:ns2=\"urn:argo\" id=\"abc\">"));
+    assertEquals("\u00e9t\u00e9", scan("<probe id=\"\u00e9t\u00e9\">"));
+  }
+
+  @Test
+  public void testScanGivesUp() {
+    assertNull(scan("<probe client=\"c\"></probe>"));
+    assertNull(scan("<probes id=\"abc\">"));
+    assertNull(scan("<response id=\"abc\">"));
+    assertNull(scan("<!DOCTYPE probe><probe id=\"abc\">"));
+    assertNull(scan("<probe id=\"a&amp;b\">"));
+    assertNull(scan("<probe id=\"abc"));
+    assertNull(scan("<probe sid=\"abc\">"));
+    assertNull(scan("not xml at all"));
+    assertNull(scan(""));
+  }
+
+}
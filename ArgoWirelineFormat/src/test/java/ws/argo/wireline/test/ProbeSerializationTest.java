@@ -115,6 +115,20 @@ public class ProbeSerializationTest {
 
   }
 
+  @Test
+  public void testParsingProbeFromStream() throws ProbeParseException, IOException {
+
+    XMLSerializer serializer = new XMLSerializer();
+
+    ProbeWrapper probe;
+    try (InputStream is = ProbeSerializationTest.class.getResourceAsStream("/testProbePayload.xml")) {
+      probe = serializer.unmarshal(is);
+    }
+
+    assertTrue(probe.equals(serializer.unmarshal(testProbePayload)));
+
+  }
+
   @Test
   public void testMarshallingNakedProbe() throws ProbeParseException{
     ProbeWrapper probe = new ProbeWrapper("--ID--");
@@ -0,0 +1,325 @@
+package ws.argo.wireline.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ws.argo.wireline.response.JSONSerializer;
+import ws.argo.wireline.response.ResponseParseException;
+import ws.argo.wireline.response.ResponseStreamWriter;
+import ws.argo.wireline.response.ResponseTemplate;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+import ws.argo.wireline.response.XMLSerializer;
+
+/**
+ * This test class checks that the ResponseStreamWriter writes payloads the
+ * serializers can read back, and that the payloads built from prepared service
+ * fragments are the same as the ones written out in full.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ResponseStreamWriterTest {
+
+  private final ResponseStreamWriter writer = new ResponseStreamWriter();
+
+  private ResponseWrapper createResponse() {
+    ResponseWrapper response = new ResponseWrapper("--PROBE ID--");
+
+    for (int i = 0; i < 3; i++) {
+      ServiceWrapper service = new ServiceWrapper("--SERVICE ID " + i + "--");
+      service.setConsumability(ServiceWrapper.MACHINE_CONSUMABLE);
+      service.setServiceName("Caf\u00e9 <Service> & \"Friends\" " + i);
+      service.setDescription("some service description");
+      service.setServiceContractID("--CONTRACT ID--");
+      service.setContractDescription("some contract description");
+      service.setTtl(i);
+      service.addAccessPoint("internal", "some ip", "some port", "http://host/path?a=1&b=2", "basic 1", "some data");
+      service.addAccessPoint("external", "some ip 2", "some port 2", "some url 2", "basic 3", "some data 2");
+      response.addResponse(service);
+    }
+
+    response.setResponseID("urn:uuid:9c6bd8aa-bf9b-45aa-9348-24897d89e86f");
+    return response;
+  }
+
+  /**
+   * The response the golden files were written from. It has control
+   * characters and characters outside the BMP in it, where the streaming
+   * writer is most likely to part ways with the serializers.
+   */
+  private ResponseWrapper createGoldenResponse() {
+    ResponseWrapper response = new ResponseWrapper("urn:uuid:probe-\u00e9t\u00e9");
+    response.setResponseID("urn:uuid:9c6bd8aa-bf9b-45aa-9348-24897d89e86f");
+    for (int i = 0; i < 3; i++) {
+      ServiceWrapper service = new ServiceWrapper("urn:uuid:service-" + i);
+      service.setConsumability(i == 1 ? ServiceWrapper.HUMAN_CONSUMABLE : ServiceWrapper.MACHINE_CONSUMABLE);
+      service.setServiceName("Caf\u00e9 <Service> & \"Friends\" 'quoted' " + i);
+      service.setDescription("line one\r\nline two\ttabbed\rcarriage return only");
+      service.setServiceContractID("urn:uuid:contract-\u65e5\u672c");
+      service.setContractDescription("rocket \ud83d\ude80 \u00fcml\u00e4ut \u2603 > done");
+      service.setTtl(i * 100);
+      service.addAccessPoint("internal", "10.0.0." + i, "80" + i, "http://host/path?a=1&b=2", "text/plain", "data\r\nwith <markup> & \u00e9");
+      service.addAccessPoint("external", "example.com", "443", "https://example.com/\u00e9", null, null);
+      response.addResponse(service);
+    }
+    return response;
+  }
+
+  private static String golden(String name) throws IOException {
+    try (InputStream is = ResponseStreamWriterTest.class.getResourceAsStream("/" + name)) {
+      assertNotNull(name + " file missing", is);
+      return IOUtils.toString(is, "UTF-8");
+    }
+  }
+
+  private String write(ResponseWrapper response, String payloadType) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(response, payloadType, out);
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testXMLRoundTrip() throws IOException, ResponseParseException {
+    ResponseWrapper response = createResponse();
+
+    ResponseWrapper parsed = new XMLSerializer().unmarshal(write(response, ResponseStreamWriter.XML));
+
+    assertEquals(response.getResponseID(), parsed.getResponseID());
+    assertEquals(response.getProbeID(), parsed.getProbeID());
+    assertEquals(response.getServices(), parsed.getServices());
+    for (ServiceWrapper service : parsed.getServices()) {
+      assertTrue(response.getServices().contains(service));
+    }
+  }
+
+  @Test
+  public void testJSONRoundTrip() throws IOException, ResponseParseException {
+    ResponseWrapper response = createResponse();
+
+    ResponseWrapper parsed = new JSONSerializer().unmarshal(write(response, ResponseStreamWriter.JSON));
+
+    assertEquals(response.getResponseID(), parsed.getResponseID());
+    assertEquals(response.getProbeID(), parsed.getProbeID());
+    for (ServiceWrapper service : parsed.getServices()) {
+      assertTrue(response.getServices().contains(service));
+      assertEquals(response.getResponseID(), service.getResponseId());
+      assertEquals(response.getProbeID(), service.getProbeId());
+    }
+  }
+
+  @Test
+  public void testUnknownPayloadTypeIsJSON() throws IOException {
+    ResponseWrapper response = createResponse();
+
+    assertEquals(response.toJSON(), write(response, "SOMETHING"));
+  }
+
+  @Test
+  public void testServicesAreNotModified() throws IOException {
+    ResponseWrapper response = createResponse();
+
+    write(response, ResponseStreamWriter.JSON);
+    response.toJSON();
+
+    for (ServiceWrapper service : response.getServices()) {
+      assertNull(service.getResponseId());
+      assertNull(service.getProbeId());
+    }
+  }
+
+  private void prepare(ResponseWrapper response) {
+    for (ServiceWrapper service : response.getServices()) {
+      service.prepareFragments();
+    }
+  }
+
+  @Test
+  public void testPreparedXMLMatchesFullXML() throws IOException {
+    ResponseWrapper response = createResponse();
+
+    String unprepared = write(response, ResponseStreamWriter.XML);
+    prepare(response);
+
+    assertEquals(response.toXML(), unprepared);
+    assertEquals(response.toXML(), write(response, ResponseStreamWriter.XML));
+  }
+
+  @Test
+  public void testPreparedJSONMatchesFullJSON() throws IOException {
+    ResponseWrapper response = createResponse();
+
+    String unprepared = write(response, ResponseStreamWriter.JSON);
+    prepare(response);
+
+    assertEquals(response.toJSON(), unprepared);
+    assertEquals(response.toJSON(), write(response, ResponseStreamWriter.JSON));
+  }
+
+  @Test
+  public void testPreparedServiceInManyResponses() throws IOException {
+    ResponseWrapper first = createResponse();
+    prepare(first);
+
+    // the same prepared services going out for a different probe
+    ResponseWrapper second = new ResponseWrapper("--OTHER PROBE ID--");
+    second.setResponseID("urn:uuid:0b0bd8aa-bf9b-45aa-9348-24897d89e86f");
+    for (ServiceWrapper service : first.getServices()) {
+      second.addResponse(service);
+    }
+
+    assertEquals(first.toJSON(), write(first, ResponseStreamWriter.JSON));
+    assertEquals(second.toJSON(), write(second, ResponseStreamWriter.JSON));
+    assertEquals(second.toXML(), write(second, ResponseStreamWriter.XML));
+  }
+
+  @Test
+  public void testChangingServiceDropsFragments() throws IOException {
+    ResponseWrapper response = createResponse();
+    prepare(response);
+
+    for (ServiceWrapper service : response.getServices()) {
+      service.setDescription("a brand new description");
+      service.addAccessPoint("another", "some ip 3", "some port 3", "some url 3", "basic 4", null);
+    }
+
+    String xml = write(response, ResponseStreamWriter.XML);
+    String json = write(response, ResponseStreamWriter.JSON);
+
+    assertFalse(xml.contains("some service description"));
+    assertEquals(response.toXML(), xml);
+    assertEquals(response.toJSON(), json);
+  }
+
+  @Test
+  public void testEmptyResponse() throws IOException {
+    ResponseWrapper response = new ResponseWrapper("--PROBE ID--");
+    response.setResponseID("--RESPONSE ID--");
+
+    assertEquals(response.toXML(), write(response, ResponseStreamWriter.XML));
+    assertEquals(response.toJSON(), write(response, ResponseStreamWriter.JSON));
+  }
+
+  @Test
+  public void testTemplateMatchesFullPayload() throws IOException {
+    ResponseWrapper response = createResponse();
+    ResponseTemplate xml = writer.compile(response.getServices(), ResponseStreamWriter.XML);
+    ResponseTemplate json = writer.compile(response.getServices(), ResponseStreamWriter.JSON);
+
+    response.setResponseID("urn:uuid:<\"odd\"> & 'id' \u00e9");
+    for (ResponseTemplate template : new ResponseTemplate[] { xml, json }) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      template.write(response, out);
+      String expected = ResponseStreamWriter.XML.equals(template.getPayloadType()) ? response.toXML() : response.toJSON();
+      assertEquals(expected, out.toString("UTF-8"));
+    }
+  }
+
+  // The golden files were written by the JAXB and Gson serializers the
+  // Responder used before the streaming writer took over.
+
+  @Test
+  public void testXMLMatchesGolden() throws IOException {
+    String golden = golden("goldenResponse.xml");
+    ResponseWrapper response = createGoldenResponse();
+
+    assertEquals(golden, write(response, ResponseStreamWriter.XML));
+    prepare(response);
+    assertEquals(golden, write(response, ResponseStreamWriter.XML));
+    ResponseTemplate template = writer.compile(response.getServices(), ResponseStreamWriter.XML);
+    assertEquals(golden, writeTemplate(template, response));
+  }
+
+  @Test
+  public void testJSONMatchesGolden() throws IOException {
+    String golden = golden("goldenResponse.json");
+    ResponseWrapper response = createGoldenResponse();
+
+    assertEquals(golden, write(response, ResponseStreamWriter.JSON));
+    prepare(response);
+    assertEquals(golden, write(response, ResponseStreamWriter.JSON));
+    ResponseTemplate template = writer.compile(response.getServices(), ResponseStreamWriter.JSON);
+    assertEquals(golden, writeTemplate(template, response));
+  }
+
+  @Test
+  public void testEmptyResponseMatchesGolden() throws IOException {
+    ResponseWrapper response = new ResponseWrapper("urn:uuid:empty-probe");
+    response.setResponseID("urn:uuid:empty-response");
+
+    assertEquals(golden("goldenEmptyResponse.xml"), write(response, ResponseStreamWriter.XML));
+    assertEquals(golden("goldenEmptyResponse.json"), write(response, ResponseStreamWriter.JSON));
+    assertEquals(golden("goldenEmptyResponse.xml"), writeTemplate(writer.compile(response.getServices(), ResponseStreamWriter.XML), response));
+    assertEquals(golden("goldenEmptyResponse.json"), writeTemplate(writer.compile(response.getServices(), ResponseStreamWriter.JSON), response));
+  }
+
+  private static String writeTemplate(ResponseTemplate template, ResponseWrapper response) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    template.write(response, out);
+    return out.toString("UTF-8");
+  }
+
+  // the getters never return null themselves, but a subclass can
+  private static ResponseWrapper withoutIDs(ResponseWrapper response) {
+    ResponseWrapper noIDs = new ResponseWrapper(null) {
+      @Override
+      public String getResponseID() {
+        return null;
+      }
+
+      @Override
+      public String getProbeID() {
+        return null;
+      }
+    };
+    for (ServiceWrapper service : response.getServices()) {
+      noIDs.addResponse(service);
+    }
+    return noIDs;
+  }
+
+  @Test
+  public void testXMLTemplateHandlesNullIDs() throws IOException, ResponseParseException {
+    ResponseWrapper response = createResponse();
+    ResponseTemplate template = writer.compile(response.getServices(), ResponseStreamWriter.XML);
+
+    response.setResponseID(null);
+    String xml = writeTemplate(template, response);
+    assertEquals(write(response, ResponseStreamWriter.XML), xml);
+    assertEquals("", new XMLSerializer().unmarshal(xml).getResponseID());
+
+    ResponseWrapper noIDs = withoutIDs(response);
+    xml = writeTemplate(template, noIDs);
+    assertEquals(write(noIDs, ResponseStreamWriter.XML), xml);
+    assertTrue(xml.contains("<services>"));
+  }
+
+  @Test
+  public void testJSONTemplateHandlesNullIDs() throws IOException, ResponseParseException {
+    ResponseWrapper response = createResponse();
+    ResponseTemplate template = writer.compile(response.getServices(), ResponseStreamWriter.JSON);
+
+    response.setResponseID(null);
+    String json = writeTemplate(template, response);
+    assertEquals(write(response, ResponseStreamWriter.JSON), json);
+    assertFalse(json.contains("null"));
+    assertEquals("", new JSONSerializer().unmarshal(json).getResponseID());
+
+    ResponseWrapper noIDs = withoutIDs(response);
+    json = writeTemplate(template, noIDs);
+    assertEquals(write(noIDs, ResponseStreamWriter.JSON), json);
+    assertTrue(json.startsWith("{\"services\":["));
+    assertFalse(json.contains("null"));
+  }
+
+}
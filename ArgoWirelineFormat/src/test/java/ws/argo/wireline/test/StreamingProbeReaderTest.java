@@ -0,0 +1,161 @@
+package ws.argo.wireline.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.StreamingProbeReader;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * This test class checks that the StreamingProbeReader reads the same probes
+ * as the JAXB XMLSerializer and rejects payloads that don't match the probe
+ * schema.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class StreamingProbeReaderTest {
+
+  private static final String NAKED_PROBE = "<probe id=\"--ID--\"><respondToPayloadType>XML</respondToPayloadType>"
+      + "<ra><respondTo>http://1.1.1.1:8080/probeResponse</respondTo></ra>";
+
+  private final StreamingProbeReader reader     = new StreamingProbeReader();
+  private final XMLSerializer        serializer = new XMLSerializer();
+
+  private static String readResource(String name) throws IOException {
+    try (InputStream is = StreamingProbeReaderTest.class.getResourceAsStream(name)) {
+      return IOUtils.toString(is, "UTF-8");
+    }
+  }
+
+  @Test
+  public void testMatchesJAXB() throws IOException, ProbeParseException {
+    String[] resources = { "/testProbePayload.xml", "/testNakedProbePayload.xml", "/exemplarNakedProbePayload.xml", "/exemplarFullProbePayload.xml" };
+    for (String resource : resources) {
+      String payload = readResource(resource);
+      ProbeWrapper expected = serializer.unmarshal(payload);
+
+      // ProbeWrapper.equals doesn't cope with a missing client id so compare the XML
+      ProbeWrapper probe = reader.unmarshal(payload);
+      assertEquals(resource, expected.asXML(), probe.asXML());
+      assertEquals(resource, expected.isNaked(), probe.isNaked());
+
+      probe = reader.unmarshal(new ByteArrayInputStream(payload.getBytes(Charset.forName("UTF-8"))));
+      assertEquals(resource, expected.asXML(), probe.asXML());
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws ProbeParseException {
+    ProbeWrapper probe = new ProbeWrapper("--ID--");
+    probe.setClientId("yomama");
+    probe.setRespondToPayloadType(ProbeWrapper.JSON);
+    probe.addRespondToURL(null, "http://1.1.1.1:8080/probeResponse?a=1&b=2");
+    probe.addRespondToURL("external", "http://2.2.2.2:80/probeResponse");
+    probe.addServiceContractID("uuid:03d55093-a954-4667-b682-8116c417925a");
+    probe.addServiceInstanceID("uuid:03d55093-a954-4667-b682-8116c417925c");
+
+    ProbeWrapper parsed = reader.unmarshal(probe.asXML());
+    assertTrue(probe.equals(parsed));
+    assertNull(parsed.getRespondToURLs().get(0).label);
+    assertEquals("http://1.1.1.1:8080/probeResponse?a=1&b=2", parsed.getRespondToURLs().get(0).getUrl());
+  }
+
+  @Test
+  public void testNakedProbe() throws ProbeParseException {
+    ProbeWrapper probe = reader.unmarshal(NAKED_PROBE + "</probe>");
+    assertTrue(probe.isNaked());
+    assertNull(probe.getClientId());
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testPayloadWithTypos() throws IOException, ProbeParseException {
+    reader.unmarshal(readResource("/testProbePayloadWithTypos.txt"));
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testCorruptPayload() throws IOException, ProbeParseException {
+    reader.unmarshal(readResource("/corruptPayload1.txt"));
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testUnknownElement() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE + "<extra/></probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testElementsOutOfOrder() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE + "<siids/><scids/></probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testMissingRespondTo() throws ProbeParseException {
+    reader.unmarshal("<probe id=\"--ID--\"><respondToPayloadType>XML</respondToPayloadType><ra></ra></probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testUnknownAttribute() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE.replace("<probe ", "<probe bogus=\"1\" ") + "</probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testTextBetweenElements() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE + "junk</probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testNamespacedProbe() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE.replace("<probe ", "<probe xmlns=\"urn:other\" ") + "</probe>");
+  }
+
+  @Test
+  public void testEscapesAndComments() throws ProbeParseException {
+    String payload = "\uFEFF<?xml version='1.0' encoding='utf-8'?>\r\n<!-- a comment -->\r\n"
+        + "<probe id='a&amp;b' client=\"caf\u00e9\" xmlns:x=\"urn:other\">\r\n"
+        + "<respondToPayloadType><![CDATA[X]]><!-- inside -->ML</respondToPayloadType>"
+        + "<ra><respondTo label=\"one&#x20;two\">http://h/p?a=1&amp;b=&#50;</respondTo></ra>"
+        + "<scids><serviceContractID>line1\r\nline2</serviceContractID></scids><siids/>"
+        + "</probe>\n<!-- trailing -->\n";
+    ProbeWrapper probe = reader.unmarshal(payload);
+
+    assertEquals("a&b", probe.getProbeId());
+    assertEquals("caf\u00e9", probe.getClientId());
+    assertEquals("XML", probe.getRespondToPayloadType());
+    assertEquals("one two", probe.getRespondToURLs().get(0).getLabel());
+    assertEquals("http://h/p?a=1&b=2", probe.getRespondToURLs().get(0).getUrl());
+    assertEquals("line1\nline2", probe.getServiceContractIDs().get(0));
+    assertTrue(probe.getServiceInstanceIDs().isEmpty());
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testTruncatedPayload() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE);
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testUnsupportedEncoding() throws ProbeParseException {
+    reader.unmarshal("<?xml version=\"1.0\" encoding=\"UTF-16\"?>" + NAKED_PROBE + "</probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testUnknownEntity() throws ProbeParseException {
+    reader.unmarshal(NAKED_PROBE.replace("--ID--", "&x;") + "</probe>");
+  }
+
+  @Test(expected = ProbeParseException.class)
+  public void testDoctypeRejected() throws ProbeParseException {
+    reader.unmarshal("<?xml version=\"1.0\"?><!DOCTYPE probe [<!ENTITY x \"boom\">]>" + NAKED_PROBE.replace("--ID--", "&x;") + "</probe>");
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.CLClient.jfr;
+
+/**
+ * The ListenerEvents commit the client listener's Java Flight Recorder events.
+ * On JVMs without the jdk.jfr API, or with -Dargo.jfr=false, they do nothing.
+ * 
+ * @author jmsimpson
+ *
+ */
+public final class ListenerEvents {
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private ListenerEvents() {
+  }
+
+  private static boolean isAvailable() {
+    if (!Boolean.parseBoolean(System.getProperty("argo.jfr", "true"))) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * The listener took in a response.
+   *
+   * @param probeId the probe ID, null if the response couldn't be parsed
+   * @param responseId the response ID
+   * @param payloadType XML or JSON
+   * @param size the length of the payload
+   * @param services the number of services cached
+   * @param ingestTime nanoseconds to parse and cache the response
+   * @param succeeded false if the response couldn't be parsed
+   */
+  public static void responseIngested(String probeId, String responseId, String payloadType, int size, int services, long ingestTime, boolean succeeded) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ResponseIngestedEvent event = new ResponseIngestedEvent();
+    if (event.isEnabled()) {
+      event.probeId = probeId;
+      event.responseId = responseId;
+      event.payloadType = payloadType;
+      event.size = size;
+      event.services = services;
+      event.ingestTime = ingestTime;
+      event.succeeded = succeeded;
+      event.commit();
+    }
+  }
+
+}
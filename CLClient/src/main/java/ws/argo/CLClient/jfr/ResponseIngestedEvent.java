@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.CLClient.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The client listener took in a response from a Responder.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.ResponseIngested")
+@Label("Response Ingested")
+@Description("The client listener took in a response from a Responder")
+@Category({ "Argo", "Client Listener" })
+@StackTrace(false)
+public class ResponseIngestedEvent extends jdk.jfr.Event {
+
+  @Label("Probe ID")
+  String  probeId;
+
+  @Label("Response ID")
+  String  responseId;
+
+  @Label("Payload Type")
+  String  payloadType;
+
+  @Label("Size")
+  @Description("The length of the payload in characters")
+  int     size;
+
+  @Label("Services")
+  int     services;
+
+  @Label("Ingest Time")
+  @Description("Parsing the response and caching its services")
+  @Timespan(Timespan.NANOSECONDS)
+  long    ingestTime;
+
+  @Label("Succeeded")
+  boolean succeeded;
+
+}
@@ -24,6 +24,7 @@ import javax.ws.rs.Produces;
 
 import net.dharwin.common.tools.cli.api.console.Console;
 import ws.argo.CLClient.ArgoClient;
+import ws.argo.CLClient.jfr.ListenerEvents;
 import ws.argo.common.cache.ExpiringService;
 import ws.argo.common.cache.ResponseCache;
 import ws.argo.wireline.response.JSONSerializer;
@@ -71,12 +72,14 @@ public class ProbeResponseResource {
   @Consumes("application/json")
   public String handleJSONProbeResponse(String probeResponseJSON) {
 
+    long start = System.nanoTime();
     JSONSerializer serializer = new JSONSerializer();
 
     ResponseWrapper response;
     try {
       response = serializer.unmarshal(probeResponseJSON);
     } catch (ResponseParseException e) {
+      ListenerEvents.responseIngested(null, null, "JSON", probeResponseJSON.length(), 0, System.nanoTime() - start, false);
       String errorResponseString = "Incoming Response could not be parsed. Error message is: " + e.getMessage();
       Console.error(errorResponseString);
       Console.error("Wireline message that could no be parsed is:");
@@ -89,6 +92,7 @@ public class ProbeResponseResource {
       service.setProbeID(response.getProbeID());
       cache.cache(new ExpiringService(service));
     }
+    ListenerEvents.responseIngested(response.getProbeID(), response.getResponseID(), "JSON", probeResponseJSON.length(), response.getServices().size(), System.nanoTime() - start, true);
 
     String statusString = "Successfully cached " + response.getServices().size() + " services";
     updateCacheListener(statusString);
@@ -107,12 +111,14 @@ public class ProbeResponseResource {
   @Consumes("application/xml")
   public String handleXMLProbeResponse(String probeResponseXML) {
 
+    long start = System.nanoTime();
     XMLSerializer serializer = new XMLSerializer();
 
     ResponseWrapper response;
     try {
       response = serializer.unmarshal(probeResponseXML);
     } catch (ResponseParseException e) {
+      ListenerEvents.responseIngested(null, null, "XML", probeResponseXML.length(), 0, System.nanoTime() - start, false);
       String errorResponseString = "Incoming Response could not be parsed. Error message is: " + e.getMessage();
       Console.error(errorResponseString);
       Console.error("Wireline message that could no be parsed is:");
@@ -125,6 +131,7 @@ public class ProbeResponseResource {
       service.setProbeID(response.getProbeID());
       cache.cache(new ExpiringService(service));
     }
+    ListenerEvents.responseIngested(response.getProbeID(), response.getResponseID(), "XML", probeResponseXML.length(), response.getServices().size(), System.nanoTime() - start, true);
 
     String statusString = "Successfully cached " + response.getServices().size() + " services";
     updateCacheListener(statusString);
@@ -37,6 +37,8 @@ import ws.argo.wireline.response.ServiceWrapper;
  */
 public class ResponseCache {
 
+  private static final Gson GSON = new Gson();
+
   private ConcurrentHashMap<String, ExpiringService> cache = new ConcurrentHashMap<String, ExpiringService>();
 
   
@@ -74,8 +76,6 @@ public class ResponseCache {
    * @return the JSON string
    */
   public String asJSON() {
-    Gson gson = new Gson();
-
     clearExpired();
 
     Cache jsonCache = new Cache();
@@ -83,7 +83,7 @@ public class ResponseCache {
       jsonCache.cache.add(svc.getService());
     }
 
-    String json = gson.toJson(jsonCache);
+    String json = GSON.toJson(jsonCache);
 
     return json;
   }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.plugin.transport.responder;
+
+/**
+ * A ProbeProcessor can also be a DuplicateProbeFilter. Clients send each probe
+ * several times to make up for lost UDP datagrams, and a transport that can
+ * pick the probe ID out of the raw payload can ask the filter whether it's the
+ * first copy before going to the trouble of parsing it. Transports check for
+ * the filter with instanceof - a processor that isn't one just gets every
+ * copy.
+ * 
+ * @author jmsimpson
+ *
+ */
+public interface DuplicateProbeFilter {
+
+  /**
+   * Claim the probe ID for this copy of the probe. The check and the claim are
+   * one atomic step, so when copies arrive back to back only one of them gets
+   * through.
+   * 
+   * @param probeID the ID of the probe
+   * @return true if this is the first copy, false if another copy already
+   *         claimed the ID and this one should be thrown away
+   */
+  public boolean claimProbe(String probeID);
+
+  /**
+   * Give back the claim for a copy that the transport dropped before handing
+   * it to the processor (its queue was full or it didn't parse), so a later
+   * copy can still get through.
+   * 
+   * @param probeID the ID of the probe
+   */
+  public void releaseProbe(String probeID);
+
+}
@@ -30,10 +30,25 @@ public interface ProbeProcessor {
 
   public void processProbe(ProbeWrapper probe);
   
+  /**
+   * The rate that probes have been processed over the recent past (the last
+   * several seconds).
+   * 
+   * @return probes per second
+   */
   public float probesPerSecond();
   
+  /**
+   * The total number of probes processed since the processor started.
+   * 
+   * @return number of probes processed
+   */
   public int probesProcessed();
   
+  /**
+   * Tell the processor that a probe has been processed. This gets called once
+   * per probe so it needs to be cheap.
+   */
   public void probeProcessed();
   
   public String getRuntimeID();
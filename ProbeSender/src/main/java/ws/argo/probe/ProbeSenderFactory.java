@@ -19,6 +19,7 @@ package ws.argo.probe;
 import ws.argo.plugin.transport.sender.Transport;
 import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.transport.probe.standard.AmazonSNSTransport;
+import ws.argo.transport.probe.standard.LoopbackTransport;
 import ws.argo.transport.probe.standard.MulticastTransport;
 
 /**
@@ -126,5 +127,18 @@ public class ProbeSenderFactory {
     ProbeSender gen = new ProbeSender(snsTransport);
     return gen;
   }
+
+  /**
+   * Create a Loopback ProbeSender that sends the probes to the
+   * LoopbackTransport receivers on the named channel in this JVM.
+   * 
+   * @param channel the loopback channel name
+   * @return configured ProbeSender instance
+   */
+  public static ProbeSender createLoopbackProbeSender(String channel) {
+    Transport loopbackTransport = new LoopbackTransport(channel);
+    ProbeSender gen = new ProbeSender(loopbackTransport);
+    return gen;
+  }
   
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.probe.jfr;
+
+/**
+ * The ProbeSenderEvents commit the probe sender's Java Flight Recorder events.
+ * On JVMs without the jdk.jfr API, or with -Dargo.jfr=false, they do nothing.
+ * 
+ * @author jmsimpson
+ *
+ */
+public final class ProbeSenderEvents {
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private ProbeSenderEvents() {
+  }
+
+  private static boolean isAvailable() {
+    if (!Boolean.parseBoolean(System.getProperty("argo.jfr", "true"))) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * A probe went out on a transport.
+   *
+   * @param transport the transport
+   * @param probeId the probe ID
+   * @param size the size of the payload
+   * @param sendTime nanoseconds to serialize and send the probe
+   */
+  public static void probeSent(String transport, String probeId, int size, long sendTime) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ProbeSentEvent event = new ProbeSentEvent();
+    if (event.isEnabled()) {
+      event.transport = transport;
+      event.probeId = probeId;
+      event.size = size;
+      event.sendTime = sendTime;
+      event.commit();
+    }
+  }
+
+}
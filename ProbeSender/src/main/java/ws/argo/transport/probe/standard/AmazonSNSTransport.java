@@ -27,6 +27,7 @@ import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.exception.TransportException;
 import ws.argo.plugin.transport.sender.Transport;
 import ws.argo.probe.Probe;
+import ws.argo.probe.jfr.ProbeSenderEvents;
 
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -88,6 +89,7 @@ public class AmazonSNSTransport implements Transport {
 
   @Override
   public void sendProbe(Probe probe) throws TransportException {
+    long start = System.nanoTime();
     String msg;
     try {
       msg = probe.asXML();
@@ -96,6 +98,7 @@ public class AmazonSNSTransport implements Transport {
     }
     PublishRequest publishRequest = new PublishRequest(argoTopicName, msg);
     PublishResult publishResult = snsClient.publish(publishRequest);
+    ProbeSenderEvents.probeSent("sns", probe.getProbeID(), msg.length(), System.nanoTime() - start);
     // print MessageId of message published to SNS topic
     LOGGER.debug( "Send probe payload as message id [" + publishResult.getMessageId() + "]: " + msg);
 
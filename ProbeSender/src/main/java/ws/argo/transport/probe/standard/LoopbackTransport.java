@@ -0,0 +1,498 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.transport.probe.standard;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.plugin.transport.responder.DuplicateProbeFilter;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.probe.Probe;
+import ws.argo.probe.jfr.ProbeSenderEvents;
+import ws.argo.wireline.probe.ProbeIdScanner;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeReader;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.StreamingProbeReader;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * The LoopbackTransport moves probes around inside the JVM instead of over
+ * multicast, so the ProbeSender and the Responder can be run against each
+ * other in tests and benchmarks without depending on the host's network
+ * interfaces. It's both a sender and a Responder transport. The senders and
+ * receivers on the same named channel are connected - every probe sent on the
+ * channel goes to every receiver on it, like a multicast group.
+ *
+ * <p>The probes still go out as their XML payload and are scanned for
+ * duplicates and parsed on the way in, the same as the multicast transport.
+ * Each receiver can simulate a poor network: it can drop a share of the
+ * probes (lossRate), hold them up for a while (latency plus a random jitter,
+ * in microseconds) and swap a share of them with the probe that comes after
+ * (reorderRate). The randomness comes from a seeded Random, so a run with the
+ * same seed and the same probes loses and reorders the same probes. The
+ * receiver queue is bounded (queueSize) like a socket buffer and probes that
+ * don't fit are dropped.
+ *
+ * <p>The settings come from the Properties given to the sender, or from the
+ * properties file given to the Responder (which is optional - without one the
+ * defaults are used).
+ * 
+ * @author jmsimpson
+ *
+ */
+public class LoopbackTransport implements ws.argo.plugin.transport.sender.Transport, ws.argo.plugin.transport.responder.Transport {
+
+  private static final Logger LOGGER = LogManager.getLogger(LoopbackTransport.class.getName());
+
+  public static final String DEFAULT_CHANNEL = "argo";
+
+  // what the probes look like they came from
+  public static final String LOOPBACK_ADDRESS = "loopback";
+
+  private static final String STREAMING_PARSER = "streaming";
+
+  // the receivers on each channel
+  private static final ConcurrentHashMap<String, List<LoopbackTransport>> CHANNELS = new ConcurrentHashMap<String, List<LoopbackTransport>>();
+
+  private String channel        = DEFAULT_CHANNEL;
+  private int    maxPayloadSize = 600;
+  private double lossRate;
+  private long   latency;
+  private long   jitter;
+  private double reorderRate;
+  private long   seed;
+  private int    queueSize      = 10000;
+  private String probeParser    = "jaxb";
+
+  // receiver side
+  private ProbeProcessor        processor;
+  private ProbeReader           reader;
+  private Random                random;
+  private DelayQueue<Datagram>  queue;
+  // the probe being held back to swap with the next one
+  private Datagram              held;
+  private long                  sequence;
+  private volatile boolean      shouldRun = true;
+
+  // Stats
+  private final AtomicLong sent              = new AtomicLong();
+  private final AtomicLong received          = new AtomicLong();
+  private final AtomicLong lost              = new AtomicLong();
+  private final AtomicLong overflowed        = new AtomicLong();
+  private final AtomicLong reordered         = new AtomicLong();
+  private final AtomicLong duplicatesSkipped = new AtomicLong();
+  private final AtomicLong parseErrors       = new AtomicLong();
+
+  public LoopbackTransport() {
+  }
+
+  /**
+   * Create a transport on the named channel with the default settings.
+   * 
+   * @param channel the channel name
+   */
+  public LoopbackTransport(String channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * A probe payload on its way to a receiver.
+   */
+  private static final class Datagram implements Delayed {
+    final byte[] payload;
+    final long   sentAt;
+    final long   deliverAt;
+    final long   sequence;
+
+    Datagram(byte[] payload, long sentAt, long deliverAt, long sequence) {
+      this.payload = payload;
+      this.sentAt = sentAt;
+      this.deliverAt = deliverAt;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      Datagram other = (Datagram) o;
+      if (deliverAt != other.deliverAt) {
+        return deliverAt < other.deliverAt ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  // Sender transport
+
+  @Override
+  public void initialize(Properties p, String networkInterface) throws TransportConfigException {
+    configure(p);
+  }
+
+  @Override
+  public void sendProbe(Probe probe) throws TransportException {
+    long start = System.nanoTime();
+    byte[] payload;
+    try {
+      payload = probe.asXML().getBytes(StandardCharsets.UTF_8);
+    } catch (JAXBException e) {
+      throw new TransportException("Unable to send probe because it could not be serialized to XML", e);
+    }
+
+    send(payload);
+    ProbeSenderEvents.probeSent("loopback", probe.getProbeID(), payload.length, System.nanoTime() - start);
+  }
+
+  /**
+   * Send the raw payload to every receiver on the channel.
+   * 
+   * @param payload the probe payload
+   */
+  public void send(byte[] payload) {
+    sent.incrementAndGet();
+    long now = System.nanoTime();
+    for (LoopbackTransport receiver : receivers(channel)) {
+      receiver.deliver(payload, now);
+    }
+  }
+
+  @Override
+  public int maxPayloadSize() {
+    return maxPayloadSize;
+  }
+
+  @Override
+  public String getNetworkInterfaceName() {
+    return LOOPBACK_ADDRESS;
+  }
+
+  @Override
+  public void close() throws TransportException {
+    // Nothing to do
+  }
+
+  // Responder transport
+
+  @Override
+  public void initialize(ProbeProcessor p, String propertiesFilename) throws TransportConfigException {
+    configure(loadProperties(propertiesFilename));
+    start(p);
+  }
+
+  /**
+   * Start receiving the probes on the channel with the settings this transport
+   * already has. The probes wait in the queue until the transport is run.
+   * 
+   * @param p the processor to hand the probes to
+   */
+  public void start(ProbeProcessor p) {
+    this.processor = p;
+    this.reader = STREAMING_PARSER.equals(probeParser) ? new StreamingProbeReader() : new XMLSerializer();
+    this.random = new Random(seed);
+    this.queue = new DelayQueue<Datagram>();
+    receivers(channel).add(this);
+  }
+
+  @Override
+  public void run() {
+    LOGGER.debug("Starting LoopbackTransport listening loop on channel [" + channel + "]");
+    while (shouldRun) {
+      try {
+        Datagram datagram = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (datagram == null) {
+          // nothing came after the held probe - let it go
+          flushHeld();
+        } else {
+          receive(datagram);
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void shutdown() throws TransportException {
+    shouldRun = false;
+    receivers(channel).remove(this);
+    LOGGER.info("LoopbackTransport shutting down channel [" + channel + "]");
+  }
+
+  @Override
+  public String transportName() {
+    return this.getClass().getName();
+  }
+
+  /**
+   * Put the probe on this receiver's queue, unless the simulated network
+   * loses it.
+   */
+  private synchronized void deliver(byte[] payload, long sentAt) {
+    if (lossRate > 0 && random.nextDouble() < lossRate) {
+      lost.incrementAndGet();
+      return;
+    }
+    long delay = latency;
+    if (jitter > 0) {
+      delay += (long) (random.nextDouble() * jitter);
+    }
+    Datagram datagram = new Datagram(payload, sentAt, sentAt + TimeUnit.MICROSECONDS.toNanos(delay), sequence++);
+
+    if (held == null && reorderRate > 0 && random.nextDouble() < reorderRate) {
+      held = datagram;
+      reordered.incrementAndGet();
+      return;
+    }
+    enqueue(datagram);
+    if (held != null) {
+      // the held probe goes in right behind this one
+      enqueue(new Datagram(held.payload, held.sentAt, Math.max(held.deliverAt, datagram.deliverAt), sequence++));
+      held = null;
+    }
+  }
+
+  private synchronized void flushHeld() {
+    if (held != null) {
+      enqueue(held);
+      held = null;
+    }
+  }
+
+  private void enqueue(Datagram datagram) {
+    if (queue.size() >= queueSize) {
+      overflowed.incrementAndGet();
+      return;
+    }
+    queue.add(datagram);
+  }
+
+  private void receive(Datagram datagram) {
+    received.incrementAndGet();
+
+    // claim the ID before parsing so only the first copy gets through
+    String probeID = ProbeIdScanner.scanProbeId(datagram.payload, 0, datagram.payload.length);
+    DuplicateProbeFilter filter = (processor instanceof DuplicateProbeFilter) ? (DuplicateProbeFilter) processor : null;
+    if (probeID != null && filter != null && !filter.claimProbe(probeID)) {
+      duplicatesSkipped.incrementAndGet();
+      LOGGER.debug("Discarding duplicate probe with id: " + probeID);
+      return;
+    }
+
+    try {
+      ProbeWrapper probe = reader.unmarshal(new ByteArrayInputStream(datagram.payload));
+      probe.setSenderAddress(LOOPBACK_ADDRESS);
+      probe.setReceivedAt(datagram.sentAt);
+      processor.processProbe(probe);
+    } catch (ProbeParseException e) {
+      parseErrors.incrementAndGet();
+      LOGGER.error("Error parsing inbound probe payload.", e);
+      if (probeID != null && filter != null) {
+        filter.releaseProbe(probeID);
+      }
+    }
+  }
+
+  private static List<LoopbackTransport> receivers(String channel) {
+    List<LoopbackTransport> receivers = CHANNELS.get(channel);
+    if (receivers == null) {
+      List<LoopbackTransport> newReceivers = new CopyOnWriteArrayList<LoopbackTransport>();
+      receivers = CHANNELS.putIfAbsent(channel, newReceivers);
+      if (receivers == null) {
+        receivers = newReceivers;
+      }
+    }
+    return receivers;
+  }
+
+  private Properties loadProperties(String propertiesFilename) throws TransportConfigException {
+    Properties prop = new Properties();
+    if (propertiesFilename == null || propertiesFilename.isEmpty()) {
+      return prop;
+    }
+
+    try (InputStream is = LoopbackTransport.class.getResource(propertiesFilename) != null ? LoopbackTransport.class.getResourceAsStream(propertiesFilename) : new FileInputStream(propertiesFilename)) {
+      prop.load(is);
+    } catch (IOException e) {
+      throw new TransportConfigException(e.getLocalizedMessage(), e);
+    }
+    return prop;
+  }
+
+  private void configure(Properties p) {
+    channel = p.getProperty("channel", channel).trim();
+    maxPayloadSize = Math.max(1, (int) longProperty(p, "maxPayloadSize", maxPayloadSize));
+    lossRate = rateProperty(p, "lossRate", lossRate);
+    latency = Math.max(0, longProperty(p, "latency", latency));
+    jitter = Math.max(0, longProperty(p, "jitter", jitter));
+    reorderRate = rateProperty(p, "reorderRate", reorderRate);
+    seed = longProperty(p, "seed", seed);
+    queueSize = Math.max(1, (int) longProperty(p, "queueSize", queueSize));
+    probeParser = p.getProperty("probeParser", probeParser).trim().toLowerCase();
+  }
+
+  private long longProperty(Properties prop, String name, long defaultValue) {
+    String value = prop.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Error reading " + name + " number from properties.  Using default " + name + " of " + defaultValue + ".");
+      return defaultValue;
+    }
+  }
+
+  private double rateProperty(Properties prop, String name, double defaultValue) {
+    String value = prop.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      double rate = Double.parseDouble(value.trim());
+      if (rate < 0 || rate > 1) {
+        LOGGER.warn(name + " [" + value + "] is not between 0 and 1.  Using default " + name + " of " + defaultValue + ".");
+        return defaultValue;
+      }
+      return rate;
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Error reading " + name + " number from properties.  Using default " + name + " of " + defaultValue + ".");
+      return defaultValue;
+    }
+  }
+
+  public String getChannel() {
+    return channel;
+  }
+
+  /**
+   * The share of the probes (0 to 1) the receiver drops.
+   * 
+   * @param lossRate the loss rate
+   */
+  public void setLossRate(double lossRate) {
+    this.lossRate = lossRate;
+  }
+
+  /**
+   * How long the receiver holds up each probe.
+   * 
+   * @param latency the fixed latency in microseconds
+   * @param jitter the most (in microseconds) that is randomly added to it
+   */
+  public void setLatency(long latency, long jitter) {
+    this.latency = latency;
+    this.jitter = jitter;
+  }
+
+  /**
+   * The share of the probes (0 to 1) the receiver swaps with the next one.
+   * 
+   * @param reorderRate the reorder rate
+   */
+  public void setReorderRate(double reorderRate) {
+    this.reorderRate = reorderRate;
+  }
+
+  /**
+   * The seed for the simulated loss, jitter and reordering. It has to be set
+   * before the receiver is started.
+   * 
+   * @param seed the seed
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  public void setMaxPayloadSize(int maxPayloadSize) {
+    this.maxPayloadSize = maxPayloadSize;
+  }
+
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getReceived() {
+    return received.get();
+  }
+
+  public long getLost() {
+    return lost.get();
+  }
+
+  public long getOverflowed() {
+    return overflowed.get();
+  }
+
+  public long getReordered() {
+    return reordered.get();
+  }
+
+  public long getDuplicatesSkipped() {
+    return duplicatesSkipped.get();
+  }
+
+  public long getParseErrors() {
+    return parseErrors.get();
+  }
+
+  /**
+   * The number of probes waiting in the receiver's queue.
+   * 
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Return the description of this Transport.
+   */
+  public String toString() {
+    return "Loopback Transport - channel [" + channel + "]";
+  }
+
+}
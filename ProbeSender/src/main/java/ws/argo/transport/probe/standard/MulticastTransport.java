@@ -36,6 +36,7 @@ import ws.argo.plugin.transport.exception.TransportException;
 import ws.argo.plugin.transport.sender.Transport;
 import ws.argo.probe.Probe;
 import ws.argo.probe.ProbeSenderException;
+import ws.argo.probe.jfr.ProbeSenderEvents;
 
 /**
  * The MulticastTransport class encapsulates the mechanics of sending the probe
@@ -229,6 +230,7 @@ public class MulticastTransport implements Transport {
     LOGGER.info("Sending probe [" + probe.getProbeID() + "] on network inteface [" + networkInterface.getName() + "] at port [" + multicastAddress + ":" + multicastPort + "]");
     LOGGER.debug("Probe requesting TTL of [" + probe.getHopLimit() + "]");
 
+    long start = System.nanoTime();
     try {
       String msg = probe.asXML();
 
@@ -242,6 +244,7 @@ public class MulticastTransport implements Transport {
       DatagramPacket packet = new DatagramPacket(msgBytes, msgBytes.length, group, multicastPort);
       outboundSocket.setTimeToLive(probe.getHopLimit());
       outboundSocket.send(packet);
+      ProbeSenderEvents.probeSent("multicast", probe.getProbeID(), msgBytes.length, System.nanoTime() - start);
 
       LOGGER.debug("Probe sent on port [" + multicastAddress + ":" + multicastPort + "]");
 
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.probe.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.responder.DuplicateProbeFilter;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.probe.Probe;
+import ws.argo.probe.ProbeSender;
+import ws.argo.probe.ProbeSenderFactory;
+import ws.argo.transport.probe.standard.LoopbackTransport;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * Test the LoopbackTransport.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class LoopbackTransportTest {
+
+  private List<LoopbackTransport> receivers = new ArrayList<LoopbackTransport>();
+
+  /**
+   * Collects the probes the transport hands over.
+   */
+  private static class CollectingProcessor implements ProbeProcessor {
+    final List<ProbeWrapper> probes = Collections.synchronizedList(new ArrayList<ProbeWrapper>());
+
+    @Override
+    public void processProbe(ProbeWrapper probe) {
+      probes.add(probe);
+    }
+
+    @Override
+    public float probesPerSecond() {
+      return 0;
+    }
+
+    @Override
+    public int probesProcessed() {
+      return probes.size();
+    }
+
+    @Override
+    public void probeProcessed() {
+    }
+
+    @Override
+    public String getRuntimeID() {
+      return "loopback-test";
+    }
+
+    List<String> probeIds() {
+      List<String> ids = new ArrayList<String>();
+      synchronized (probes) {
+        for (ProbeWrapper probe : probes) {
+          ids.add(probe.getProbeId());
+        }
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * A processor that also filters out the duplicate copies of a probe.
+   */
+  private static class FilteringProcessor extends CollectingProcessor implements DuplicateProbeFilter {
+    final Set<String> claimed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public boolean claimProbe(String probeID) {
+      return claimed.add(probeID);
+    }
+
+    @Override
+    public void releaseProbe(String probeID) {
+      claimed.remove(probeID);
+    }
+  }
+
+  @After
+  public void shutdownReceivers() throws Exception {
+    for (LoopbackTransport receiver : receivers) {
+      receiver.shutdown();
+    }
+  }
+
+  private LoopbackTransport startReceiver(LoopbackTransport receiver, ProbeProcessor processor) {
+    receiver.start(processor);
+    receivers.add(receiver);
+    Thread thread = new Thread(receiver, "loopback-receiver");
+    thread.setDaemon(true);
+    thread.start();
+    return receiver;
+  }
+
+  private List<String> sendProbes(ProbeSender sender, int count) throws Exception {
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      Probe probe = new Probe(Probe.XML);
+      probe.addRespondToURL("internal", "http://localhost:9998/AsynchListener/api/responseHandler/probeResponse");
+      sender.sendProbe(probe);
+      ids.add(probe.getProbeID());
+    }
+    return ids;
+  }
+
+  private void waitFor(CollectingProcessor processor, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (processor.probes.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testProbesArriveInOrder() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    LoopbackTransport receiver = startReceiver(new LoopbackTransport("inOrder"), processor);
+
+    List<String> ids = sendProbes(ProbeSenderFactory.createLoopbackProbeSender("inOrder"), 20);
+    waitFor(processor, 20);
+
+    assertEquals(ids, processor.probeIds());
+    assertEquals(20, receiver.getReceived());
+    assertEquals(LoopbackTransport.LOOPBACK_ADDRESS, processor.probes.get(0).getSenderAddress());
+  }
+
+  @Test
+  public void testEveryReceiverOnTheChannelGetsTheProbes() throws Exception {
+    CollectingProcessor first = new CollectingProcessor();
+    CollectingProcessor second = new CollectingProcessor();
+    CollectingProcessor other = new CollectingProcessor();
+    startReceiver(new LoopbackTransport("shared"), first);
+    startReceiver(new LoopbackTransport("shared"), second);
+    startReceiver(new LoopbackTransport("other"), other);
+
+    sendProbes(ProbeSenderFactory.createLoopbackProbeSender("shared"), 5);
+    waitFor(first, 5);
+    waitFor(second, 5);
+
+    assertEquals(5, first.probes.size());
+    assertEquals(5, second.probes.size());
+    assertEquals(0, other.probes.size());
+  }
+
+  @Test
+  public void testSeededLossIsRepeatable() throws Exception {
+    List<List<String>> runs = new ArrayList<List<String>>();
+    for (int run = 0; run < 2; run++) {
+      String channel = "lossy" + run;
+      CollectingProcessor processor = new CollectingProcessor();
+      LoopbackTransport receiver = new LoopbackTransport(channel);
+      receiver.setLossRate(0.3);
+      receiver.setSeed(42);
+      startReceiver(receiver, processor);
+
+      List<String> ids = sendProbes(ProbeSenderFactory.createLoopbackProbeSender(channel), 50);
+      waitFor(processor, 50 - (int) receiver.getLost());
+
+      assertTrue(receiver.getLost() > 0);
+      assertEquals(50, receiver.getReceived() + receiver.getLost());
+
+      // record which positions got through
+      List<String> delivered = new ArrayList<String>();
+      for (String id : processor.probeIds()) {
+        delivered.add(Integer.toString(ids.indexOf(id)));
+      }
+      runs.add(delivered);
+    }
+    assertEquals(runs.get(0), runs.get(1));
+  }
+
+  @Test
+  public void testReorderedProbesAllArrive() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    LoopbackTransport receiver = new LoopbackTransport("reorder");
+    receiver.setReorderRate(0.5);
+    startReceiver(receiver, processor);
+
+    List<String> ids = sendProbes(ProbeSenderFactory.createLoopbackProbeSender("reorder"), 30);
+    waitFor(processor, 30);
+
+    assertTrue(receiver.getReordered() > 0);
+    assertEquals(30, processor.probes.size());
+    assertTrue(!ids.equals(processor.probeIds()));
+    List<String> sorted = new ArrayList<String>(processor.probeIds());
+    assertTrue(sorted.containsAll(ids));
+  }
+
+  @Test
+  public void testLatencyIsApplied() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    LoopbackTransport receiver = new LoopbackTransport("slow");
+    receiver.setLatency(200000, 0);
+    startReceiver(receiver, processor);
+
+    long start = System.nanoTime();
+    sendProbes(ProbeSenderFactory.createLoopbackProbeSender("slow"), 1);
+    waitFor(processor, 1);
+
+    assertEquals(1, processor.probes.size());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testDuplicatesAreSkipped() throws Exception {
+    FilteringProcessor processor = new FilteringProcessor();
+    LoopbackTransport receiver = startReceiver(new LoopbackTransport("dups"), processor);
+
+    Probe probe = new Probe(Probe.XML);
+    probe.addRespondToURL("internal", "http://localhost:9998/AsynchListener/api/responseHandler/probeResponse");
+    LoopbackTransport sender = new LoopbackTransport("dups");
+    sender.sendProbe(probe);
+    waitFor(processor, 1);
+    sender.sendProbe(probe);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (receiver.getDuplicatesSkipped() < 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, receiver.getDuplicatesSkipped());
+    assertEquals(1, processor.probes.size());
+  }
+
+  @Test
+  public void testBackToBackCopiesAreSkipped() throws Exception {
+    FilteringProcessor processor = new FilteringProcessor();
+    LoopbackTransport receiver = startReceiver(new LoopbackTransport("copies"), processor);
+
+    Probe probe = new Probe(Probe.XML);
+    probe.addRespondToURL("internal", "http://localhost:9998/AsynchListener/api/responseHandler/probeResponse");
+    LoopbackTransport sender = new LoopbackTransport("copies");
+    for (int i = 0; i < 5; i++) {
+      sender.sendProbe(probe);
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (receiver.getDuplicatesSkipped() < 4 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, receiver.getDuplicatesSkipped());
+    assertEquals(1, processor.probes.size());
+  }
+
+  @Test
+  public void testCopiesGetThroughWithoutAFilter() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    LoopbackTransport receiver = startReceiver(new LoopbackTransport("unfiltered"), processor);
+
+    Probe probe = new Probe(Probe.XML);
+    probe.addRespondToURL("internal", "http://localhost:9998/AsynchListener/api/responseHandler/probeResponse");
+    LoopbackTransport sender = new LoopbackTransport("unfiltered");
+    sender.sendProbe(probe);
+    sender.sendProbe(probe);
+    waitFor(processor, 2);
+
+    assertEquals(0, receiver.getDuplicatesSkipped());
+    assertEquals(2, processor.probes.size());
+  }
+
+  @Test
+  public void testPropertiesConfigureTheTransport() throws TransportConfigException {
+    Properties p = new Properties();
+    p.setProperty("channel", "configured");
+    p.setProperty("maxPayloadSize", "1200");
+    p.setProperty("lossRate", "2.0");
+
+    LoopbackTransport transport = new LoopbackTransport();
+    transport.initialize(p, null);
+
+    assertEquals("configured", transport.getChannel());
+    assertEquals(1200, transport.maxPayloadSize());
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BoundedExecutor puts a cap on the number of tasks running at once on an
+ * executor that doesn't have one of its own - a virtual thread per task
+ * executor will start as many threads as it's given tasks. Each task takes a
+ * permit from a semaphore to start and gives it back when it's done. If there
+ * are no permits left the task is counted and rejected with a
+ * RejectedExecutionException, so the caller can shed it the way the
+ * Responder's thread pool sheds a probe when its queue is full.
+ *
+ * <p>A ProbeHandlerThread gets its permit back just before its onFinished
+ * callback runs rather than after run() returns. The callback is how the
+ * ClientScheduler learns there's room for the next probe, and the next probe
+ * needs the permit.
+ *
+ * @author jmsimpson
+ *
+ */
+public class BoundedExecutor implements Executor {
+
+  private final ExecutorService _delegate;
+  private final Semaphore       _permits;
+  private final int             _maxConcurrent;
+
+  private final AtomicLong _submitted = new AtomicLong();
+  private final AtomicLong _completed = new AtomicLong();
+  private final AtomicLong _rejected  = new AtomicLong();
+
+  /**
+   * Wrap the executor.
+   *
+   * @param delegate the executor that runs the tasks
+   * @param maxConcurrent the most tasks running (or waiting to run) at once
+   */
+  public BoundedExecutor(ExecutorService delegate, int maxConcurrent) {
+    _delegate = delegate;
+    _maxConcurrent = maxConcurrent;
+    _permits = new Semaphore(maxConcurrent);
+  }
+
+  @Override
+  public void execute(final Runnable task) {
+    if (!_permits.tryAcquire()) {
+      // no logging here - this happens a lot when the Responder is saturated,
+      // so the count (which the monitor shows) and the shedder's debug line
+      // have to do
+      _rejected.incrementAndGet();
+      throw new RejectedExecutionException(_maxConcurrent + " tasks are already running");
+    }
+    _submitted.incrementAndGet();
+    final Permit permit = new Permit();
+    if (task instanceof ProbeHandlerThread) {
+      ((ProbeHandlerThread) task).setBeforeFinished(permit);
+    }
+    try {
+      _delegate.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            permit.run();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shut down
+      permit.giveBack();
+      _rejected.incrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Stop taking tasks and wait a little while for the running ones to finish.
+   */
+  public void shutdown() {
+    _delegate.shutdown();
+    try {
+      _delegate.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public ExecutorService getDelegate() {
+    return _delegate;
+  }
+
+  public int getMaxConcurrent() {
+    return _maxConcurrent;
+  }
+
+  /**
+   * The number of tasks running or waiting to run.
+   *
+   * @return number of active tasks
+   */
+  public int getActiveCount() {
+    return _maxConcurrent - _permits.availablePermits();
+  }
+
+  public long getSubmittedCount() {
+    return _submitted.get();
+  }
+
+  public long getCompletedCount() {
+    return _completed.get();
+  }
+
+  public long getRejectedCount() {
+    return _rejected.get();
+  }
+
+  /**
+   * The permit a task holds while it runs. Running it marks the task completed
+   * and gives the permit back - only the first time, whether that's from the
+   * task's completion hook or after run() returns.
+   */
+  private final class Permit implements Runnable {
+    private final AtomicBoolean _held = new AtomicBoolean(true);
+
+    @Override
+    public void run() {
+      if (_held.compareAndSet(true, false)) {
+        _completed.incrementAndGet();
+        _permits.release();
+      }
+    }
+
+    void giveBack() {
+      if (_held.compareAndSet(true, false)) {
+        _permits.release();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.responder.configuration.ClientPolicy;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * The ClientScheduler sits between the transports and the probe executor and
+ * shares the Responder out fairly between its clients. A client is the probe's
+ * client ID together with the address the probe came from (when the transport
+ * knows it), so one misbehaving client can't crowd out the others.
+ *
+ * <p>Clients send each probe more than once, so the redundant copies are
+ * thrown away by probe ID first - a copy doesn't cost its client a token or a
+ * place in the queue. Most transports already skip the copies of a probe they
+ * handed over, so this check is for the ones that don't. {@link #submit}
+ * says why a probe was dropped, so the Responder can let a later copy of a
+ * throttled or overflowed probe back in.
+ *
+ * <p>Each client has a token bucket. A probe takes a token to get in, and the
+ * tokens come back at the client's rate up to its burst. A probe that finds
+ * the bucket empty is dropped and counted against the client. The probes that
+ * get in wait in a small queue per client, and a dispatcher thread hands them
+ * to the executor round robin - a client gets up to its weight in probes in a
+ * row before the next client gets a turn. The dispatcher only keeps so many
+ * probes in flight, so when the Responder is busy the waiting happens here,
+ * where it's fair, rather than in the executor's queue.
+ *
+ * <p>The counts for each client (see {@link ClientStats}) say which clients
+ * are the noisy ones. A client that has gone quiet is forgotten after a few
+ * minutes.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ClientScheduler {
+
+  private static final Logger LOGGER = LogManager.getLogger(ClientScheduler.class.getName());
+
+  /**
+   * What became of a submitted probe.
+   */
+  public static enum Admission {
+    /** queued for its client. */
+    ADMITTED,
+    /** dropped as a copy of a probe already let in. */
+    DUPLICATE,
+    /** dropped because the client was over its rate. */
+    THROTTLED,
+    /** dropped because the client's queue was full. */
+    OVERFLOWED,
+    /** dropped because the scheduler has been shut down. */
+    SHUT_DOWN
+  }
+
+  public static final String  UNKNOWN_CLIENT  = "unknown";
+  public static final String  OTHER_CLIENTS   = "other";
+
+  // how long a quiet client is remembered
+  static final long           IDLE_TIMEOUT    = TimeUnit.MINUTES.toNanos(5);
+  private static final long   SWEEP_INTERVAL  = TimeUnit.SECONDS.toNanos(10);
+
+  private final Executor                  _executor;
+  private final ClientPolicy              _defaultPolicy;
+  private final Map<String, ClientPolicy> _policies       = new HashMap<String, ClientPolicy>();
+  private final int                       _queueSize;
+  private final int                       _maxInFlight;
+  private final int                       _maxClients;
+
+  private final ReentrantLock             _lock           = new ReentrantLock();
+  private final Condition                 _ready          = _lock.newCondition();
+  // guarded by the lock
+  private final Map<String, Client>       _clients        = new HashMap<String, Client>();
+  private final ArrayDeque<Client>        _waiting        = new ArrayDeque<Client>();
+  // the IDs of the probes already let in
+  private final HandledProbeCache         _admitted       = new HandledProbeCache();
+  private int                             _inFlight;
+  private long                            _lastSweep      = System.nanoTime();
+
+  private final Thread                    _dispatcher;
+  private volatile boolean                _shutdown;
+
+  private final Runnable _finished = new Runnable() {
+    @Override
+    public void run() {
+      finished();
+    }
+  };
+
+  /**
+   * Create the scheduler and start its dispatcher thread.
+   *
+   * @param executor where the probes are run
+   * @param defaultPolicy the limits for clients without a policy of their own
+   * @param policies the limits for particular clients, by client ID, source
+   *          address or both (clientID@address)
+   * @param queueSize the most probes from one client that can wait
+   * @param maxInFlight the most probes handed to the executor at once
+   * @param maxClients the most clients to keep track of
+   */
+  public ClientScheduler(Executor executor, ClientPolicy defaultPolicy, List<ClientPolicy> policies, int queueSize, int maxInFlight, int maxClients) {
+    _executor = executor;
+    _defaultPolicy = defaultPolicy;
+    for (ClientPolicy policy : policies) {
+      _policies.put(policy.getId(), policy);
+    }
+    _queueSize = queueSize;
+    _maxInFlight = maxInFlight;
+    _maxClients = maxClients;
+
+    _dispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, "client-scheduler");
+    _dispatcher.setDaemon(true);
+    _dispatcher.start();
+  }
+
+  /**
+   * Work out which client sent the probe.
+   *
+   * @param probe the probe
+   * @return the client key - clientID@address, or whichever of them is known
+   */
+  static String clientKey(ProbeWrapper probe) {
+    String clientId = probe.getClientId() != null ? probe.getClientId().trim() : "";
+    String sender = probe.getSenderAddress() != null ? probe.getSenderAddress() : "";
+    if (clientId.isEmpty()) {
+      return sender.isEmpty() ? UNKNOWN_CLIENT : sender;
+    }
+    return sender.isEmpty() ? clientId : clientId + "@" + sender;
+  }
+
+  /**
+   * Queue the probe for its client.
+   *
+   * @param task the probe to run
+   * @return ADMITTED if the probe was queued, otherwise why it was dropped
+   */
+  public Admission submit(ProbeHandlerThread task) {
+    if (_shutdown) {
+      return Admission.SHUT_DOWN;
+    }
+    String key = clientKey(task.probe);
+    long now = System.nanoTime();
+
+    _lock.lock();
+    try {
+      Client client = client(key, task.probe, now);
+      client.stats._received.incrementAndGet();
+      client.lastSeen = now;
+
+      String probeID = task.probe.getProbeId();
+      if (probeID != null && _admitted.isHandled(probeID)) {
+        client.stats._duplicates.incrementAndGet();
+        LOGGER.debug("Client [" + key + "] sent probe [" + probeID + "] again. Dropping the copy");
+        return Admission.DUPLICATE;
+      }
+      if (!client.takeToken(now)) {
+        client.stats._throttled.incrementAndGet();
+        LOGGER.debug("Client [" + key + "] is over its rate. Dropping probe [" + task.probe.getProbeId() + "]");
+        return Admission.THROTTLED;
+      }
+      if (client.queue.size() >= _queueSize) {
+        client.stats._overflowed.incrementAndGet();
+        LOGGER.debug("Client [" + key + "] has " + _queueSize + " probes waiting. Dropping probe [" + task.probe.getProbeId() + "]");
+        return Admission.OVERFLOWED;
+      }
+
+      if (probeID != null) {
+        _admitted.markIfAbsent(probeID);
+      }
+      client.queue.add(task);
+      if (client.queue.size() == 1) {
+        _waiting.add(client);
+        _ready.signal();
+      }
+      return Admission.ADMITTED;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Forget that the probe was let in, so a later copy can get in again. The
+   * Responder calls this for a probe that was shed after it was dispatched.
+   *
+   * @param probeID the ID of the probe
+   */
+  public void forget(String probeID) {
+    _lock.lock();
+    try {
+      _admitted.unmark(probeID);
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Find the client's entry, making one if it's new. Guarded by the lock.
+   */
+  private Client client(String key, ProbeWrapper probe, long now) {
+    Client client = _clients.get(key);
+    if (client == null) {
+      if (_clients.size() >= _maxClients) {
+        sweep(now);
+      }
+      if (_clients.size() >= _maxClients) {
+        client = _clients.get(OTHER_CLIENTS);
+        if (client == null) {
+          client = new Client(_defaultPolicy, now);
+          _clients.put(OTHER_CLIENTS, client);
+        }
+        return client;
+      }
+      client = new Client(policy(key, probe), now);
+      _clients.put(key, client);
+    }
+    return client;
+  }
+
+  private ClientPolicy policy(String key, ProbeWrapper probe) {
+    ClientPolicy policy = _policies.get(key);
+    if (policy == null && probe.getClientId() != null) {
+      policy = _policies.get(probe.getClientId().trim());
+    }
+    if (policy == null && probe.getSenderAddress() != null) {
+      policy = _policies.get(probe.getSenderAddress());
+    }
+    return policy != null ? policy : _defaultPolicy;
+  }
+
+  /**
+   * Forget the clients that have nothing waiting and haven't sent a probe in a
+   * while. Guarded by the lock.
+   */
+  private void sweep(long now) {
+    _lastSweep = now;
+    Iterator<Client> clients = _clients.values().iterator();
+    while (clients.hasNext()) {
+      Client client = clients.next();
+      if (client.queue.isEmpty() && now - client.lastSeen > IDLE_TIMEOUT) {
+        clients.remove();
+      }
+    }
+  }
+
+  /**
+   * The dispatcher loop. Hand the waiting probes to the executor, weighted
+   * round robin, as long as there's room in flight.
+   */
+  private void dispatch() {
+    while (!_shutdown) {
+      ProbeHandlerThread task;
+      _lock.lock();
+      try {
+        while (!_shutdown && (_waiting.isEmpty() || _inFlight >= _maxInFlight)) {
+          _ready.await(1, TimeUnit.SECONDS);
+          long now = System.nanoTime();
+          if (now - _lastSweep > SWEEP_INTERVAL) {
+            sweep(now);
+          }
+        }
+        if (_shutdown) {
+          break;
+        }
+
+        Client client = _waiting.peek();
+        task = client.queue.poll();
+        client.stats._dispatched.incrementAndGet();
+        client.turn++;
+        if (client.queue.isEmpty()) {
+          _waiting.poll();
+          client.turn = 0;
+        } else if (client.turn >= client.policy.getWeight()) {
+          // used up its turn - to the back of the line
+          _waiting.add(_waiting.poll());
+          client.turn = 0;
+        }
+        _inFlight++;
+      } catch (InterruptedException e) {
+        break;
+      } finally {
+        _lock.unlock();
+      }
+
+      task.setOnFinished(_finished);
+      try {
+        _executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // the executor is full or shutting down - shedding the probe gives
+        // back its place in flight
+        task.responder.getLoadShedder().shed(task);
+      }
+    }
+  }
+
+  /**
+   * Called when a dispatched probe is done with, handled or shed.
+   */
+  private void finished() {
+    _lock.lock();
+    try {
+      _inFlight--;
+      _ready.signal();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Stop the dispatcher. Probes still waiting are dropped.
+   */
+  public void shutdown() {
+    _shutdown = true;
+    _dispatcher.interrupt();
+  }
+
+  /**
+   * The counts for every client the scheduler knows about.
+   *
+   * @return the stats by client key
+   */
+  public Map<String, ClientStats> getClientStats() {
+    _lock.lock();
+    try {
+      Map<String, ClientStats> stats = new HashMap<String, ClientStats>();
+      for (Map.Entry<String, Client> entry : _clients.entrySet()) {
+        stats.put(entry.getKey(), entry.getValue().stats);
+      }
+      return Collections.unmodifiableMap(stats);
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * The number of probes waiting in all of the client queues.
+   *
+   * @return the waiting probes
+   */
+  public int getWaiting() {
+    _lock.lock();
+    try {
+      int waiting = 0;
+      for (Client client : _waiting) {
+        waiting += client.queue.size();
+      }
+      return waiting;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    _lock.lock();
+    try {
+      return _inFlight;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public int getMaxInFlight() {
+    return _maxInFlight;
+  }
+
+  /**
+   * One client's token bucket and queue. Guarded by the scheduler's lock.
+   */
+  private final class Client {
+    final ClientPolicy                    policy;
+    final ArrayDeque<ProbeHandlerThread> queue = new ArrayDeque<ProbeHandlerThread>();
+    final ClientStats                    stats = new ClientStats();
+    double                               tokens;
+    long                                 lastRefill;
+    long                                 lastSeen;
+    // probes dispatched in the client's current turn
+    int                                  turn;
+
+    Client(ClientPolicy policy, long now) {
+      this.policy = policy;
+      this.tokens = policy.getBurst();
+      this.lastRefill = now;
+      this.lastSeen = now;
+    }
+
+    boolean takeToken(long now) {
+      if (policy.getRate() <= 0) {
+        return true;
+      }
+      tokens = Math.min(policy.getBurst(), tokens + (now - lastRefill) * policy.getRate() / 1e9);
+      lastRefill = now;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+
+  /**
+   * The counts for one client.
+   */
+  public static class ClientStats {
+    private final AtomicLong _received   = new AtomicLong();
+    private final AtomicLong _dispatched = new AtomicLong();
+    private final AtomicLong _throttled  = new AtomicLong();
+    private final AtomicLong _overflowed = new AtomicLong();
+    private final AtomicLong _duplicates = new AtomicLong();
+
+    public long getReceived() {
+      return _received.get();
+    }
+
+    public long getDispatched() {
+      return _dispatched.get();
+    }
+
+    /**
+     * The number of probes dropped because the client was over its rate.
+     *
+     * @return the throttled probes
+     */
+    public long getThrottled() {
+      return _throttled.get();
+    }
+
+    /**
+     * The number of probes dropped because the client already had a full
+     * queue waiting.
+     *
+     * @return the overflowed probes
+     */
+    public long getOverflowed() {
+      return _overflowed.get();
+    }
+
+    /**
+     * The number of probes dropped because they were copies of a probe
+     * already let in.
+     *
+     * @return the duplicate probes
+     */
+    public long getDuplicates() {
+      return _duplicates.get();
+    }
+  }
+
+}
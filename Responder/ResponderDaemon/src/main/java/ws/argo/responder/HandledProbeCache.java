@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The HandledProbeCache remembers the IDs of the probes that the Responder has
+ * already handled so that the redundant UDP copies of a probe are only answered
+ * once.
+ *
+ * <p>The IDs are kept in a time wheel of buckets. Each bucket covers a slice of
+ * the cache timeout and when the wheel comes back around to a bucket the IDs in
+ * it have aged out and are dropped. On top of that there is a hard cap on the
+ * number of IDs held - if a probe storm pushes past it, the oldest IDs are
+ * evicted first. So the cache can never grow past its capacity no matter what
+ * the probe rate is.
+ *
+ * <p>The {@link #markIfAbsent(String)} method is an atomic check-and-mark. Only
+ * one thread can ever win the mark for a probe ID so two pool threads cannot
+ * both handle the same probe.
+ *
+ * @author jmsimpson
+ *
+ */
+public class HandledProbeCache {
+
+  // 5 minutes
+  public static final long DEFAULT_TIMEOUT  = 5 * 60 * 1000;
+  public static final int  DEFAULT_CAPACITY = 100000;
+
+  private static final int NUMBER_OF_BUCKETS = 60;
+
+  /**
+   * One slot in the wheel. The tick is the time slice the bucket is currently
+   * holding IDs for.
+   */
+  private static class Bucket {
+    volatile long                       tick = Long.MIN_VALUE;
+    final ConcurrentLinkedQueue<String> ids  = new ConcurrentLinkedQueue<String>();
+  }
+
+  private final long                              _bucketMillis;
+  private final int                               _capacity;
+  private final Bucket[]                          _wheel;
+  private final ConcurrentHashMap<String, Long>   _marks;
+  private final ReentrantLock                     _sweepLock = new ReentrantLock();
+  private volatile long                           _currentTick;
+
+  private final AtomicInteger _size      = new AtomicInteger();
+  private final AtomicLong    _hits      = new AtomicLong();
+  private final AtomicLong    _misses    = new AtomicLong();
+  private final AtomicLong    _evictions = new AtomicLong();
+
+  public HandledProbeCache() {
+    this(DEFAULT_TIMEOUT, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a new cache.
+   *
+   * @param timeoutMillis how long a probe ID is remembered
+   * @param capacity the maximum number of probe IDs held at any one time
+   */
+  public HandledProbeCache(long timeoutMillis, int capacity) {
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("The probe cache timeout must be positive: " + timeoutMillis);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The probe cache capacity must be positive: " + capacity);
+    }
+    _bucketMillis = Math.max(1, timeoutMillis / NUMBER_OF_BUCKETS);
+    _capacity = capacity;
+    _marks = new ConcurrentHashMap<String, Long>(Math.min(capacity, 1024));
+    _wheel = new Bucket[NUMBER_OF_BUCKETS];
+    for (int i = 0; i < _wheel.length; i++) {
+      _wheel[i] = new Bucket();
+    }
+    _currentTick = currentTick();
+  }
+
+  /**
+   * Atomically check whether the probe has been handled and, if not, mark it
+   * as handled.
+   *
+   * @param probeID the ID of the probe
+   * @return true if the caller won the mark and should handle the probe, false
+   *         if the probe was already handled (it's a duplicate)
+   */
+  public boolean markIfAbsent(String probeID) {
+    long tick = advance();
+
+    Long previous = _marks.putIfAbsent(probeID, tick);
+    if (previous == null) {
+      _size.incrementAndGet();
+      record(probeID, tick);
+      _misses.incrementAndGet();
+      enforceCapacity();
+      return true;
+    }
+
+    // The mark might be past the timeout but not yet swept out of the wheel.
+    // If so, it's like we never saw it before.
+    if (isExpired(previous.longValue(), tick) && _marks.replace(probeID, previous, tick)) {
+      record(probeID, tick);
+      _misses.incrementAndGet();
+      return true;
+    }
+
+    _hits.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Check if a probe has been handled without marking it.
+   *
+   * @param probeID the ID of the probe
+   * @return true if the probe has been handled within the timeout
+   */
+  public boolean isHandled(String probeID) {
+    Long mark = _marks.get(probeID);
+    return mark != null && !isExpired(mark.longValue(), advance());
+  }
+
+  /**
+   * Forget a probe ID, so the next copy of the probe is seen as the first.
+   *
+   * @param probeID the ID of the probe
+   */
+  public void unmark(String probeID) {
+    if (_marks.remove(probeID) != null) {
+      _size.decrementAndGet();
+    }
+  }
+
+  public int size() {
+    return _size.get();
+  }
+
+  public int getCapacity() {
+    return _capacity;
+  }
+
+  public long getTimeout() {
+    return _bucketMillis * NUMBER_OF_BUCKETS;
+  }
+
+  /**
+   * The number of probes that were found to be duplicates.
+   *
+   * @return hit count
+   */
+  public long getHits() {
+    return _hits.get();
+  }
+
+  /**
+   * The number of probes that were seen for the first time.
+   *
+   * @return miss count
+   */
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  /**
+   * The number of probe IDs dropped from the cache, either because they timed
+   * out or because the cache was at capacity.
+   *
+   * @return eviction count
+   */
+  public long getEvictions() {
+    return _evictions.get();
+  }
+
+  private boolean isExpired(long mark, long tick) {
+    return tick - mark >= NUMBER_OF_BUCKETS;
+  }
+
+  private long currentTick() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) / _bucketMillis;
+  }
+
+  private Bucket bucketFor(long tick) {
+    return _wheel[(int) (tick % NUMBER_OF_BUCKETS)];
+  }
+
+  /**
+   * Move the wheel forward to the current time slice. Only one thread does the
+   * sweep - everyone else just carries on with the tick they computed.
+   *
+   * @return the current tick
+   */
+  private long advance() {
+    long tick = currentTick();
+    if (tick > _currentTick && _sweepLock.tryLock()) {
+      try {
+        sweep(tick);
+      } finally {
+        _sweepLock.unlock();
+      }
+    }
+    return tick;
+  }
+
+  private void record(String probeID, long tick) {
+    Bucket bucket = bucketFor(tick);
+    if (bucket.tick != tick) {
+      // The bucket still belongs to an old slice, so it needs to be emptied
+      // before it can be reused
+      _sweepLock.lock();
+      try {
+        sweep(tick);
+        if (bucket.tick < tick) {
+          drain(bucket);
+          bucket.tick = tick;
+        }
+      } finally {
+        _sweepLock.unlock();
+      }
+    }
+    bucket.ids.add(probeID);
+  }
+
+  // must hold the sweep lock
+  private void sweep(long tick) {
+    if (tick <= _currentTick) {
+      return;
+    }
+    for (Bucket bucket : _wheel) {
+      if (bucket.tick != Long.MIN_VALUE && isExpired(bucket.tick, tick)) {
+        drain(bucket);
+        bucket.tick = Long.MIN_VALUE;
+      }
+    }
+    _currentTick = tick;
+  }
+
+  // must hold the sweep lock
+  private void drain(Bucket bucket) {
+    String probeID;
+    while ((probeID = bucket.ids.poll()) != null) {
+      evict(probeID, bucket.tick);
+    }
+  }
+
+  private void evict(String probeID, long tick) {
+    // only remove the mark if it's the one this bucket put there
+    if (_marks.remove(probeID, tick)) {
+      _size.decrementAndGet();
+      _evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * If the cache is over capacity then evict the oldest IDs until it's not.
+   */
+  private void enforceCapacity() {
+    if (_size.get() <= _capacity) {
+      return;
+    }
+    _sweepLock.lock();
+    try {
+      while (_size.get() > _capacity) {
+        Bucket oldest = null;
+        for (Bucket bucket : _wheel) {
+          if (bucket.tick != Long.MIN_VALUE && !bucket.ids.isEmpty() && (oldest == null || bucket.tick < oldest.tick)) {
+            oldest = bucket;
+          }
+        }
+        if (oldest == null) {
+          return;
+        }
+        String probeID = oldest.ids.poll();
+        if (probeID != null) {
+          evict(probeID, oldest.tick);
+        }
+      }
+    } finally {
+      _sweepLock.unlock();
+    }
+  }
+
+}
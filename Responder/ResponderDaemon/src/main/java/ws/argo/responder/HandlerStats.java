@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The running totals for one probe handler: how often it answered in time,
+ * missed the probe deadline or failed, and how long its answers took. The
+ * handlers that keep missing the deadline are the ones to look at when the
+ * responses are coming back short.
+ *
+ * @author jmsimpson
+ *
+ */
+public class HandlerStats {
+
+  private final AtomicLong _answered   = new AtomicLong();
+  private final AtomicLong _missed     = new AtomicLong();
+  private final AtomicLong _failed     = new AtomicLong();
+  private final AtomicLong _totalNanos = new AtomicLong();
+
+  void answered(long nanos) {
+    _answered.incrementAndGet();
+    _totalNanos.addAndGet(nanos);
+  }
+
+  void missed() {
+    _missed.incrementAndGet();
+  }
+
+  void failed() {
+    _failed.incrementAndGet();
+  }
+
+  /**
+   * The number of probes the handler answered (with or without services)
+   * before the deadline.
+   *
+   * @return number of answers
+   */
+  public long getAnswered() {
+    return _answered.get();
+  }
+
+  /**
+   * The number of probes the handler was still working on at the deadline.
+   *
+   * @return number of missed deadlines
+   */
+  public long getMissed() {
+    return _missed.get();
+  }
+
+  public long getFailed() {
+    return _failed.get();
+  }
+
+  /**
+   * The average time the handler took over the probes it answered in time.
+   *
+   * @return the average in milliseconds
+   */
+  public double getAverageLatencyMillis() {
+    long count = _answered.get();
+    return count == 0 ? 0 : _totalNanos.get() / (count * 1000000.0);
+  }
+
+}
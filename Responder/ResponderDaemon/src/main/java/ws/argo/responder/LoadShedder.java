@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.wireline.response.ResponseTemplate;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * The LoadShedder is the overload policy for the Responder's thread pool. It
+ * gets called when the pool is at its maximum size and its queue is full. With
+ * a {@link ProbeQueue} the probe still gets into the queue if there is an
+ * older probe of the same or lower priority to drop in its place - so naked
+ * probes are shed before targeted ones, and the oldest probes go first.
+ *
+ * <p>A shed naked probe can be answered anyway from the cached naked response
+ * (see {@link ResponseTemplateCache}) of the first handler that has one. That
+ * costs a copy of the bytes rather than a trip through the handlers. Only that
+ * handler's services are in the answer, and they're as of the last time the
+ * template was built, so it's off by default.
+ *
+ * <p>A shed probe that isn't answered from the cache gives back the ID it
+ * claimed at the transport, so shedding isn't final - the client's next copy
+ * of the probe gets its chance once the Responder has room.
+ *
+ * <p>The shedder also keeps track of how long probes wait in the queue before
+ * a thread picks them up, which together with the shed counts says whether
+ * the pool is the right size.
+ *
+ * @author jmsimpson
+ *
+ */
+public class LoadShedder implements RejectedExecutionHandler {
+
+  private static final Logger LOGGER = LogManager.getLogger(LoadShedder.class.getName());
+
+  private final Responder  _responder;
+  private volatile boolean _answerShedProbes;
+
+  private final AtomicLong _shedNaked         = new AtomicLong();
+  private final AtomicLong _shedTargeted      = new AtomicLong();
+  private final AtomicLong _answeredFromCache = new AtomicLong();
+
+  private final AtomicLong _queueWaits        = new AtomicLong();
+  private final AtomicLong _totalQueueWait    = new AtomicLong();
+  private final AtomicLong _maxQueueWait      = new AtomicLong();
+
+  /**
+   * Create the load shedder for the Responder.
+   *
+   * @param responder the Responder whose probes get shed
+   */
+  public LoadShedder(Responder responder) {
+    _responder = responder;
+  }
+
+  @Override
+  public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      return;
+    }
+    Runnable shed = task;
+    if (executor.getQueue() instanceof ProbeQueue) {
+      shed = ((ProbeQueue) executor.getQueue()).offerShedding(task);
+    }
+    if (shed != null) {
+      shed(shed);
+    }
+  }
+
+  /**
+   * Drop the task (counting it) and answer it from the cache if that's turned
+   * on. If it isn't answered, a later copy of the probe is let in.
+   *
+   * @param task the task being dropped
+   */
+  public void shed(Runnable task) {
+    boolean naked = ProbeQueue.isNaked(task);
+    if (naked) {
+      _shedNaked.incrementAndGet();
+    } else {
+      _shedTargeted.incrementAndGet();
+    }
+
+    if (!(task instanceof ProbeHandlerThread)) {
+      LOGGER.debug("Shedding " + task);
+      return;
+    }
+    ProbeHandlerThread probeThread = (ProbeHandlerThread) task;
+    probeThread.finished();
+    LOGGER.debug("Overloaded. Shedding " + (naked ? "naked" : "targeted") + " probe [" + probeThread.probe.getProbeId() + "]");
+    boolean answered = false;
+    if (naked && _answerShedProbes && !probeThread.noBrowser) {
+      answered = answerFromCache(probeThread);
+    }
+    if (!answered && probeThread.probe.getProbeId() != null) {
+      _responder.releaseProbe(probeThread.probe.getProbeId());
+    }
+  }
+
+  /**
+   * Answer the shed probe from the first cached naked response there is.
+   *
+   * @return true if the probe has been answered, by this or another copy
+   */
+  private boolean answerFromCache(ProbeHandlerThread probeThread) {
+    if (probeThread.probe.getRespondToURLs().isEmpty()) {
+      return false;
+    }
+    String payloadType = probeThread.probe.getRespondToPayloadType();
+    for (ProbeHandlerPlugin handler : _responder.getHandlers()) {
+      ResponseTemplate template = _responder.getResponseTemplateCache().latest(handler, payloadType);
+      if (template != null) {
+        // another copy of the probe may have been answered already
+        if (_responder.getHandledProbeCache().markIfAbsent(probeThread.probe.getProbeId())) {
+          if (probeThread.sendResponse(probeThread.respondToURLs(), payloadType, new ResponseWrapper(probeThread.probe.getProbeId()), template)) {
+            _answeredFromCache.incrementAndGet();
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Note how long a probe waited for a thread.
+   *
+   * @param nanos the wait in nanoseconds
+   */
+  void recordQueueWait(long nanos) {
+    _queueWaits.incrementAndGet();
+    _totalQueueWait.addAndGet(nanos);
+    long max = _maxQueueWait.get();
+    while (nanos > max && !_maxQueueWait.compareAndSet(max, nanos)) {
+      max = _maxQueueWait.get();
+    }
+  }
+
+  public void setAnswerShedProbes(boolean answerShedProbes) {
+    _answerShedProbes = answerShedProbes;
+  }
+
+  public boolean isAnswerShedProbes() {
+    return _answerShedProbes;
+  }
+
+  public long getShedNaked() {
+    return _shedNaked.get();
+  }
+
+  public long getShedTargeted() {
+    return _shedTargeted.get();
+  }
+
+  /**
+   * The number of shed naked probes that were answered from the cache.
+   *
+   * @return number of probes answered from the cache
+   */
+  public long getAnsweredFromCache() {
+    return _answeredFromCache.get();
+  }
+
+  /**
+   * The average time a probe waited in the queue for a thread.
+   *
+   * @return the average wait in milliseconds
+   */
+  public double getAverageQueueWaitMillis() {
+    long count = _queueWaits.get();
+    return count == 0 ? 0 : _totalQueueWait.get() / (count * 1000000.0);
+  }
+
+  public double getMaxQueueWaitMillis() {
+    return _maxQueueWait.get() / 1000000.0;
+  }
+
+}
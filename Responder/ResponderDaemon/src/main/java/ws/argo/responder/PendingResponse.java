@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.List;
+
+/**
+ * One response making its way through the {@link ResponseDelivery}, along with
+ * everything needed to try it again later (or after a restart, when it's been
+ * written to the {@link ResponseSpool}).
+ *
+ * @author jmsimpson
+ *
+ */
+final class PendingResponse {
+
+  final List<String> respondToURLs;
+  // try the URLs in order until one takes it, rather than just the one URL
+  final boolean      failover;
+  final String       mimeType;
+  final String       probeID;
+  // only the first length bytes are the payload
+  final byte[]       body;
+  final int          length;
+  // wall clock time, so it still means something after a restart
+  final long         expiresAt;
+
+  int                attempts;
+  // when the probe was received (System.nanoTime()), 0 if not known - not
+  // kept in the spool
+  long               receivedAt;
+  // set when a send in the current attempt failed in a way worth retrying
+  boolean            retryable;
+  // the spool segment it was drained from, until it's settled
+  ResponseSpool.Drained drainedFrom;
+  // written back to the spool when it was closed with this still in flight
+  volatile boolean   respooled;
+
+  PendingResponse(List<String> respondToURLs, boolean failover, String mimeType, String probeID, byte[] body, int length, long expiresAt, int attempts) {
+    this.respondToURLs = respondToURLs;
+    this.failover = failover;
+    this.mimeType = mimeType;
+    this.probeID = probeID;
+    this.body = body;
+    this.length = length;
+    this.expiresAt = expiresAt;
+    this.attempts = attempts;
+  }
+
+  boolean isExpired(long now) {
+    return now >= expiresAt;
+  }
+
+}
@@ -16,35 +16,43 @@
 
 package ws.argo.responder;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.responder.jfr.ResponderEvents;
+import ws.argo.responder.metrics.LatencyMetrics;
 import ws.argo.wireline.probe.ProbeWrapper;
 import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
+import ws.argo.wireline.response.ResponseStreamWriter;
+import ws.argo.wireline.response.ResponseTemplate;
 import ws.argo.wireline.response.ResponseWrapper;
 
 /**
  * The ProbeHandlerThread is the worker thread for the {@link Responder}. The
  * Responder will launch a new ProbeHandlerThread with it receives a probe off
  * the wire. It will run through all of the probe handlers and process any
- * positive hits that it gets. It then compiles the results (discovered
- * Services), packages them up in a response and sends the response back to the
- * list of respondTo addresses in the probe. If it fails on one respondTo
- * address, the it will just move to the next (if there is one).
+ * positive hits that it gets. It then merges the results (discovered
+ * Services) into one response (see {@link ResponseMerger}) and hands the
+ * response to the {@link ResponseDelivery} to be sent back to the respondTo
+ * addresses in the probe. The thread doesn't wait for the send.
+ *
+ * <p>The handlers all work on the probe at the same time, on the Responder's
+ * handler executor, so a slow handler (one that goes out over the network,
+ * say) doesn't add its time to the others. Whatever the handlers have come up
+ * with by the handler deadline is sent. A handler that's still working is left
+ * out of the response and counted against it (see {@link HandlerStats}).
  * 
  * @author jmsimpson
  *
@@ -53,17 +61,18 @@ public class ProbeHandlerThread implements Runnable {
 
   private static final Logger      LOGGER            = LogManager.getLogger(ProbeHandlerThread.class.getName());
 
-  // 5 minutes
-  private static final long        probeCacheTimeout = 5 * 60 * 1000;
-
-  private static Map<String, Long> handledProbes     = new ConcurrentHashMap<String, Long>();
-
-  protected CloseableHttpClient    httpClient;
+  private static final ResponseStreamWriter RESPONSE_WRITER = new ResponseStreamWriter();
 
   ArrayList<ProbeHandlerPlugin>    handlers;
   ProbeWrapper                     probe;
   boolean                          noBrowser;
   Responder                        responder;
+  // when the probe was handed to the executor
+  long                             created           = System.nanoTime();
+  // told when the probe is done with - see ClientScheduler
+  private Runnable                 onFinished;
+  // run just ahead of onFinished - see BoundedExecutor
+  private Runnable                 beforeFinished;
 
   /**
    * Create a new ProbeHandler thread that will process a probe in a
@@ -78,170 +87,301 @@ public class ProbeHandlerThread implements Runnable {
     this.responder = responder;
     this.handlers = responder.getHandlers();
     this.probe = probe;
-    this.httpClient = responder.httpClient;
     this.noBrowser = noBrowser;
   }
 
   /**
-   * If the probe yields responses from the handler, then send this method will
-   * send the responses to the given respondTo addresses.
+   * If the probe yields responses from the handler, then this method will
+   * encode the response and queue it to be sent to the given respondTo
+   * addresses (which ones depends on the delivery mode).
    * 
-   * @param respondToURL - address to send the response to
+   * @param respondToURLs - addresses to send the response to
    * @param payloadType - JSON or XML
    * @param payload - the actual service records to return
-   * @return true if the send was successful
+   * @param template - the cached encoding of the payload, or null to write the
+   *          payload out in full
+   * @return true if the response was queued
    */
-  private boolean sendResponse(String respondToURL, String payloadType, ResponseWrapper payload) {
-
-    // This method will likely need some thought and care in the error handling
-    // and error reporting
-    // It's a had job at the moment.
+  boolean sendResponse(List<String> respondToURLs, String payloadType, ResponseWrapper payload, ResponseTemplate template) {
 
-    String responseStr = null;
-    String contentType = null; // MIME type
-    boolean success = true;
+    // MIME type
+    String mimeType = ProbeWrapper.XML.equals(payloadType) ? "application/xml" : "application/json";
 
-    switch (payloadType) {
-      case "XML": {
-        responseStr = payload.toXML();
-        contentType = "application/xml";
-        break;
-      }
-      case "JSON": {
-        responseStr = payload.toJSON();
-        contentType = "application/json";
-        break;
+    // The payload is encoded here so the delivery's I/O threads only ever
+    // copy bytes
+    long start = System.nanoTime();
+    ResponseBody body = new ResponseBody(4096);
+    try {
+      if (template != null) {
+        template.write(payload, body);
+      } else {
+        RESPONSE_WRITER.write(payload, payloadType, body);
       }
-      default:
-        responseStr = payload.toJSON();
+    } catch (IOException e) {
+      LOGGER.error( "Unable to encode the response for probeID [" + payload.getProbeID() + "] - " + e.getLocalizedMessage());
+      return false;
     }
+    responder.getLatencyMetrics().record(LatencyMetrics.SERIALIZE, System.nanoTime() - start);
 
-    try {
-
-      HttpPost postRequest = new HttpPost(respondToURL);
-
-      StringEntity input = new StringEntity(responseStr);
-      input.setContentType(contentType);
-      postRequest.setEntity(input);
-
-      LOGGER.debug("Sending response");
+    LOGGER.debug("Sending response");
+    if (LOGGER.isDebugEnabled()) {
       LOGGER.debug("Response payload:");
-      LOGGER.debug(responseStr);
-      CloseableHttpResponse httpResponse = httpClient.execute(postRequest);
-      try {
+      LOGGER.debug(new String(body.buffer(), 0, body.size(), StandardCharsets.UTF_8));
+    }
 
-        int statusCode = httpResponse.getStatusLine().getStatusCode();
-        if (statusCode > 300) {
-          throw new RuntimeException("Failed : HTTP error code : " + httpResponse.getStatusLine().getStatusCode());
-        }
+    // the delivery keeps the buffer as it is rather than a copy of it
+    return responder.getResponseDelivery().deliver(respondToURLs, mimeType, body.buffer(), body.size(), payload.getProbeID(), probe != null ? probe.getReceivedAt() : 0);
 
-        if (statusCode != 204) {
-          BufferedReader br = new BufferedReader(new InputStreamReader((httpResponse.getEntity().getContent())));
+  }
 
-          LOGGER.debug("Successful response from response target - " + respondToURL);
-          String output;
-          LOGGER.debug("Output from Listener .... \n");
-          while ((output = br.readLine()) != null) {
-            LOGGER.debug(output);
-          }
-          br.close();
-        }
-      } finally {
-        httpResponse.close();
-      }
+  public ProbeWrapper getProbe() {
+    return probe;
+  }
 
-      LOGGER.info("Successfully handled probeID: " + probe.getProbeId() + " sending response to: " + respondToURL);
+  /**
+   * Point this handler at another probe so it can be run again. The ring
+   * buffer's consumers each keep one handler and reuse it for every probe.
+   *
+   * @param probe the next probe
+   * @param received when the probe was received (see
+   *          {@link System#nanoTime()})
+   */
+  void reuse(ProbeWrapper probe, long received) {
+    this.probe = probe;
+    this.created = received;
+  }
 
-    } catch (MalformedURLException e) {
-      success = false;
-      LOGGER.error( "MalformedURLException occured  for probeID [" + payload.getProbeID() + "]" + "\nThe respondTo URL was a no good.  respondTo URL is: " + respondToURL);
-    } catch (IOException e) {
-      success = false;
-      LOGGER.error( "An IOException occured for probeID [" + payload.getProbeID() + "]" + " - " + e.getLocalizedMessage());
-      LOGGER.debug( "Stack trace for IOException for probeID [" + payload.getProbeID() + "]", e);
-    } catch (Exception e) {
-      success = false;
-      LOGGER.error( "Some other error occured for probeID [" + payload.getProbeID() + "]" + ".  respondTo URL is: " + respondToURL + " - " + e.getLocalizedMessage());
-      LOGGER.debug( "Stack trace for probeID [" + payload.getProbeID() + "]", e);
-    }
+  /**
+   * Set what to run when the probe has been handled or shed.
+   *
+   * @param onFinished the callback
+   */
+  void setOnFinished(Runnable onFinished) {
+    this.onFinished = onFinished;
+  }
 
-    return success;
+  /**
+   * Set what to run when the probe is done with, ahead of the onFinished
+   * callback. The executor uses this to free up the room the probe took before
+   * the callback can hand it another one.
+   *
+   * @param beforeFinished the hook
+   */
+  void setBeforeFinished(Runnable beforeFinished) {
+    this.beforeFinished = beforeFinished;
+  }
 
+  /**
+   * The probe is done with, one way or the other.
+   */
+  void finished() {
+    Runnable hook = beforeFinished;
+    Runnable callback = onFinished;
+    beforeFinished = null;
+    onFinished = null;
+    if (hook != null) {
+      hook.run();
+    }
+    if (callback != null) {
+      callback.run();
+    }
   }
 
-  private void markProbeAsHandled(String probeID) {
-    handledProbes.put(probeID, Long.valueOf(System.currentTimeMillis()));
+  /**
+   * The respondTo URLs from the probe.
+   *
+   * @return the URLs (we are ignoring the labels for now)
+   */
+  List<String> respondToURLs() {
+    ArrayList<String> respondToURLs = new ArrayList<String>(probe.getRespondToURLs().size());
+    for (RespondToURL respondToURL : probe.getRespondToURLs()) {
+      respondToURLs.add(respondToURL.url);
+    }
+    return respondToURLs;
   }
 
-  private boolean isProbeHandled(String probeID) {
+  /**
+   * Get the cached encoding of the response if the handler said it can be
+   * cached. If the template can't be built then the response is just written
+   * out in full.
+   */
+  private ResponseTemplate lookupTemplate(ProbeHandlerPlugin handler, ResponseWrapper response) {
+    try {
+      return responder.getResponseTemplateCache().lookup(handler, probe.getRespondToPayloadType(), response);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to build the response template for probe [" + probe.getProbeId() + "] - " + e.getLocalizedMessage());
+      return null;
+    }
+  }
 
-    boolean isProbeHandled = false;
-    long now = System.currentTimeMillis();
+  /**
+   * Run all of the handlers on the probe and merge their responses. With a
+   * deadline the handlers run at the same time and this thread waits for them
+   * up to the deadline. Without one they just run one after the other on this
+   * thread.
+   */
+  private ResponseMerger collectResponses() {
+    ResponseMerger merger = new ResponseMerger(probe.getProbeId());
+
+    long deadline = responder.getHandlerDeadline();
+    LatencyMetrics metrics = responder.getLatencyMetrics();
+    if (deadline <= 0) {
+      for (ProbeHandlerPlugin handler : handlers) {
+        long start = System.nanoTime();
+        try {
+          ResponseWrapper response = handler.handleProbeEvent(probe);
+          long elapsed = System.nanoTime() - start;
+          merger.add(handler, response);
+          responder.getHandlerStats(handler).answered(elapsed);
+          metrics.record(LatencyMetrics.HANDLER, handler.pluginName(), elapsed);
+          ResponderEvents.handlerInvoked(probe.getProbeId(), handler.pluginName(), ResponderEvents.ANSWERED, numberOfServices(response), elapsed);
+        } catch (RuntimeException e) {
+          responder.getHandlerStats(handler).failed();
+          ResponderEvents.handlerInvoked(probe.getProbeId(), handler.pluginName(), ResponderEvents.FAILED, 0, System.nanoTime() - start);
+          LOGGER.error("Probe handler [" + handler.pluginName() + "] failed on probe [" + probe.getProbeId() + "]", e);
+        }
+      }
+      return merger;
+    }
 
-    Long lastTime = handledProbes.get(probeID);
+    final long start = System.nanoTime();
+    // written by the handler threads, read after the future says they're done
+    final long[] finished = new long[handlers.size()];
+    List<Future<ResponseWrapper>> results = new ArrayList<Future<ResponseWrapper>>(handlers.size());
+    for (int i = 0; i < handlers.size(); i++) {
+      final ProbeHandlerPlugin handler = handlers.get(i);
+      final int index = i;
+      results.add(responder.getHandlerExecutor().submit(new Callable<ResponseWrapper>() {
+        @Override
+        public ResponseWrapper call() {
+          ResponseWrapper response = handler.handleProbeEvent(probe);
+          finished[index] = System.nanoTime();
+          return response;
+        }
+      }));
+    }
 
-    if (lastTime != null) {
-      long delta = now - lastTime.longValue();
-      if (delta < probeCacheTimeout) {
-        isProbeHandled = true; // yup, I have handled this before. If past
-                               // timeout, then it's like I never saw it before
+    // collect in the configured order - it's the order of preference for the
+    // merge
+    long end = start + TimeUnit.MILLISECONDS.toNanos(deadline);
+    List<String> missed = null;
+    for (int i = 0; i < handlers.size(); i++) {
+      ProbeHandlerPlugin handler = handlers.get(i);
+      Future<ResponseWrapper> result = results.get(i);
+      try {
+        ResponseWrapper response = result.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+        responder.getHandlerStats(handler).answered(finished[i] - start);
+        metrics.record(LatencyMetrics.HANDLER, handler.pluginName(), finished[i] - start);
+        ResponderEvents.handlerInvoked(probe.getProbeId(), handler.pluginName(), ResponderEvents.ANSWERED, numberOfServices(response), finished[i] - start);
+        merger.add(handler, response);
+      } catch (TimeoutException e) {
+        result.cancel(true);
+        responder.getHandlerStats(handler).missed();
+        ResponderEvents.handlerInvoked(probe.getProbeId(), handler.pluginName(), ResponderEvents.MISSED, 0, System.nanoTime() - start);
+        if (missed == null) {
+          missed = new ArrayList<String>();
+        }
+        missed.add(handler.pluginName());
+      } catch (ExecutionException e) {
+        responder.getHandlerStats(handler).failed();
+        ResponderEvents.handlerInvoked(probe.getProbeId(), handler.pluginName(), ResponderEvents.FAILED, 0, System.nanoTime() - start);
+        LOGGER.error("Probe handler [" + handler.pluginName() + "] failed on probe [" + probe.getProbeId() + "]", e.getCause());
+      } catch (InterruptedException e) {
+        for (Future<ResponseWrapper> r : results) {
+          r.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        break;
       }
     }
 
-    return isProbeHandled;
+    if (missed != null) {
+      LOGGER.warn("Probe handlers " + missed + " missed the deadline of " + deadline + " ms on probe [" + probe.getProbeId() + "]. Leaving them out of the response.");
+    }
+    return merger;
+  }
+
+  private static int numberOfServices(ResponseWrapper response) {
+    return response != null ? response.numberOfServices() : 0;
   }
 
   /**
    * Handle the probe.
    */
   public void run() {
+    try {
+      handle();
+    } finally {
+      finished();
+    }
+  }
 
-    ResponseWrapper response = null;
+  private void handle() {
 
+    LatencyMetrics metrics = responder.getLatencyMetrics();
+    long queueWait = System.nanoTime() - created;
+    responder.getLoadShedder().recordQueueWait(queueWait);
+    metrics.record(LatencyMetrics.QUEUE, queueWait);
     LOGGER.info("Received probe id: " + probe.getProbeId());
 
     // Only handle probes that we haven't handled before
     // The Probe Generator needs to send a stream of identical UDP packets
     // to compensate for UDP reliability issues. Therefore, the Responder
     // will likely get more than 1 identical probe. We should ignore
-    // duplicates.
-    if (!isProbeHandled(probe.getProbeId())) {
+    // duplicates. The check and the mark happen in one atomic step so two
+    // threads can't both pick up copies of the same probe.
+    long dedupStart = System.nanoTime();
+    boolean firstCopy = responder.getHandledProbeCache().markIfAbsent(probe.getProbeId());
+    long dedupTime = System.nanoTime() - dedupStart;
+    metrics.record(LatencyMetrics.DEDUP, dedupTime);
+    ResponderEvents.probeDeduplicated(probe.getProbeId(), ResponderEvents.HANDLER, !firstCopy, dedupTime);
+    if (firstCopy) {
 
       if (this.noBrowser && probe.isNaked()) {
         LOGGER.warn("Responder set to noBrowser mode. Discarding naked probe with id [" + probe.getProbeId() + "]");
       } else {
 
-        for (ProbeHandlerPlugin handler : handlers) {
-          response = handler.handleProbeEvent(probe);
-          if (!response.isEmpty()) {
-            LOGGER.debug("Response to probe [" + probe.getProbeId() + "] includes " + response.numberOfServices());
-            Iterator<RespondToURL> respondToURLs = probe.getRespondToURLs().iterator();
-
-            if (probe.getRespondToURLs().isEmpty())
-              LOGGER.warn("Processed probe [" + probe.getProbeId() + "] with no respondTo address. That's odd.");
-
-            if (respondToURLs.hasNext()) {
-              RespondToURL respondToURL = respondToURLs.next();
-              // we are ignoring the label for now
-              boolean success = sendResponse(respondToURL.url, probe.getRespondToPayloadType(), response);
-              if (!success) {
-                LOGGER.warn("Issue sending probe [" + probe.getProbeId() + "] response to [" + respondToURL.url + "]");
-              }
-            }
-
+        ResponseMerger merger = collectResponses();
+        ResponseWrapper response = merger.getResponse();
+        if (!response.isEmpty()) {
+          LOGGER.debug("Response to probe [" + probe.getProbeId() + "] includes " + response.numberOfServices() + " from " + merger.getContributors() + " handlers");
+          if (probe.getRespondToURLs().isEmpty()) {
+            LOGGER.warn("Processed probe [" + probe.getProbeId() + "] with no respondTo address. That's odd.");
           } else {
-            LOGGER.error("Response to probe [" + probe.getProbeId() + "] is empty.  Not sending empty response.");
+            List<String> respondToURLs = respondToURLs();
+            ResponseTemplate template = merger.getSource() != null ? lookupTemplate(merger.getSource(), response) : null;
+            boolean success = sendResponse(respondToURLs, probe.getRespondToPayloadType(), response, template);
+            if (!success) {
+              LOGGER.warn("Issue sending probe [" + probe.getProbeId() + "] response to " + respondToURLs);
+            }
           }
+
+        } else {
+          LOGGER.error("Response to probe [" + probe.getProbeId() + "] is empty.  Not sending empty response.");
         }
 
       }
 
-      markProbeAsHandled(probe.getProbeId());
-
       responder.probeProcessed();
 
     } else {
       LOGGER.info("Discarding duplicate/handled probe with id: " + probe.getProbeId());
     }
   }
+
+  /**
+   * A ByteArrayOutputStream that lets its buffer go as it is, so the encoded
+   * response isn't copied on its way to the delivery.
+   */
+  private static final class ResponseBody extends ByteArrayOutputStream {
+
+    ResponseBody(int size) {
+      super(size);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ProbeQueue is the work queue for the Responder's thread pool. It has
+ * two lanes: probes that ask for particular services (targeted probes) and
+ * naked probes that ask for everything. Targeted probes are always taken
+ * first - a client looking for one service is usually waiting on the answer,
+ * while a naked probe is usually a browser refreshing its list.
+ *
+ * <p>The queue is bounded. A plain {@link #offer(Runnable)} to a full queue
+ * fails as usual, which lets the thread pool grow to its maximum size. When
+ * it can't grow any more the {@link LoadShedder} calls
+ * {@link #offerShedding(Runnable)}, which makes room by dropping the oldest
+ * naked probe, or the oldest targeted probe if a targeted probe is coming in
+ * and there are no naked ones. The oldest probe is the one whose client is
+ * most likely to have given up on it.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+  private final int                  _capacity;
+  private final ArrayDeque<Runnable> _targeted = new ArrayDeque<Runnable>();
+  private final ArrayDeque<Runnable> _naked    = new ArrayDeque<Runnable>();
+  private final ReentrantLock        _lock     = new ReentrantLock();
+  private final Condition            _notEmpty = _lock.newCondition();
+  private final Condition            _notFull  = _lock.newCondition();
+
+  /**
+   * Create the queue.
+   *
+   * @param capacity the most probes held in both lanes together
+   */
+  public ProbeQueue(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity has to be positive");
+    }
+    _capacity = capacity;
+  }
+
+  /**
+   * Return true if the task is a naked probe. Anything that isn't a probe goes
+   * in the targeted lane.
+   *
+   * @param task the task
+   * @return true if it's a naked probe
+   */
+  static boolean isNaked(Runnable task) {
+    return task instanceof ProbeHandlerThread && ((ProbeHandlerThread) task).probe.isNaked();
+  }
+
+  private int count() {
+    return _targeted.size() + _naked.size();
+  }
+
+  private void enqueue(Runnable task) {
+    (isNaked(task) ? _naked : _targeted).addLast(task);
+    _notEmpty.signal();
+  }
+
+  private Runnable dequeue() {
+    Runnable task = _targeted.pollFirst();
+    if (task == null) {
+      task = _naked.pollFirst();
+    }
+    if (task != null) {
+      _notFull.signal();
+    }
+    return task;
+  }
+
+  @Override
+  public boolean offer(Runnable task) {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    _lock.lock();
+    try {
+      if (count() >= _capacity) {
+        return false;
+      }
+      enqueue(task);
+      return true;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Add the task, dropping an older probe to make room if the queue is full.
+   *
+   * @param task the task to add
+   * @return the task that was dropped (which is the given task if there was
+   *         nothing it could take the place of), or null if nothing was
+   */
+  public Runnable offerShedding(Runnable task) {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    _lock.lock();
+    try {
+      Runnable shed = null;
+      if (count() >= _capacity) {
+        if (!_naked.isEmpty()) {
+          shed = _naked.pollFirst();
+        } else if (!isNaked(task)) {
+          shed = _targeted.pollFirst();
+        } else {
+          // a naked probe doesn't push out a targeted one
+          return task;
+        }
+      }
+      enqueue(task);
+      return shed;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    long nanos = unit.toNanos(timeout);
+    _lock.lockInterruptibly();
+    try {
+      while (count() >= _capacity) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = _notFull.awaitNanos(nanos);
+      }
+      enqueue(task);
+      return true;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Runnable task) throws InterruptedException {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    _lock.lockInterruptibly();
+    try {
+      while (count() >= _capacity) {
+        _notFull.await();
+      }
+      enqueue(task);
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable poll() {
+    _lock.lock();
+    try {
+      return dequeue();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    _lock.lockInterruptibly();
+    try {
+      while (count() == 0) {
+        _notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    _lock.lockInterruptibly();
+    try {
+      while (count() == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = _notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable peek() {
+    _lock.lock();
+    try {
+      Runnable task = _targeted.peekFirst();
+      return task != null ? task : _naked.peekFirst();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    _lock.lock();
+    try {
+      if (_targeted.remove(o) || _naked.remove(o)) {
+        _notFull.signal();
+        return true;
+      }
+      return false;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    _lock.lock();
+    try {
+      return count();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * The number of naked probes waiting.
+   *
+   * @return the size of the naked lane
+   */
+  public int nakedSize() {
+    _lock.lock();
+    try {
+      return _naked.size();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    _lock.lock();
+    try {
+      return _capacity - count();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException();
+    }
+    _lock.lock();
+    try {
+      int n = 0;
+      Runnable task;
+      while (n < maxElements && (task = dequeue()) != null) {
+        c.add(task);
+        n++;
+      }
+      if (n > 0) {
+        _notFull.signalAll();
+      }
+      return n;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Iterates over a copy of the queue, in the order the tasks would be taken.
+   */
+  @Override
+  public Iterator<Runnable> iterator() {
+    _lock.lock();
+    try {
+      List<Runnable> snapshot = new ArrayList<Runnable>(count());
+      snapshot.addAll(_targeted);
+      snapshot.addAll(_naked);
+      return Collections.unmodifiableList(snapshot).iterator();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+}
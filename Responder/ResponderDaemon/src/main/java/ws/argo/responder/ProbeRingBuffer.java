@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * The ProbeRingBuffer is a lock free hand off between the transports and a
+ * fixed set of consumer threads that handle the probes, in the style of the
+ * LMAX Disruptor. It's the ring execution mode of the Responder - the
+ * alternative to the thread pool for deployments that care about latency.
+ *
+ * <p>The slots are all created up front and reused, so handing off a probe
+ * doesn't allocate anything or take a lock. A transport claims the next
+ * sequence with a CAS on the cursor, fills in the slot and marks it
+ * published. The consumers share a work sequence - each one claims a batch of
+ * the published probes (up to the batch size) with a CAS and handles them one
+ * after the other, reusing one {@link ProbeHandlerThread} for all of them.
+ * How the consumers wait for probes is up to the {@link WaitStrategy}.
+ *
+ * <p>A transport never waits for room. If the slowest consumer is a whole ring
+ * behind, the probe is dropped and counted - the client will send it again.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeRingBuffer {
+
+  private static final Logger LOGGER = LogManager.getLogger(ProbeRingBuffer.class.getName());
+
+  public static final String  BLOCK  = "block";
+  public static final String  YIELD  = "yield";
+  public static final String  SPIN   = "spin";
+
+  private final Responder          _responder;
+  private final boolean            _noBrowser;
+  private final Slot[]             _slots;
+  private final int                _mask;
+  private final int                _indexShift;
+  // the round each slot was last published in
+  private final AtomicIntegerArray _available;
+  private final int                _batchSize;
+  private final WaitStrategy       _waitStrategy;
+
+  // the last sequence claimed by a transport
+  private final Sequence           _cursor       = new Sequence();
+  // the last sequence claimed by a consumer
+  private final Sequence           _workSequence = new Sequence();
+  // the lowest sequence the consumers might still be using, as of the last
+  // time a transport looked
+  private final Sequence           _gatingCache  = new Sequence();
+  private final Sequence[]         _consumed;
+  private final Thread[]           _consumers;
+  private volatile boolean         _halted;
+
+  private final AtomicLong         _published    = new AtomicLong();
+  private final AtomicLong         _rejected     = new AtomicLong();
+  private final AtomicLong         _handled      = new AtomicLong();
+  private final AtomicLong         _batches      = new AtomicLong();
+
+  /**
+   * One reusable entry in the ring.
+   */
+  private static final class Slot {
+    ProbeWrapper probe;
+    long         received;
+  }
+
+  /**
+   * A sequence number padded out so the hot sequences don't share a cache
+   * line.
+   */
+  @SuppressWarnings("serial")
+  static final class Sequence extends AtomicLong {
+    long p1, p2, p3, p4, p5, p6, p7;
+
+    Sequence() {
+      super(-1);
+    }
+  }
+
+  /**
+   * Create the ring buffer. The consumers aren't started until
+   * {@link #start()}.
+   *
+   * @param responder the Responder the probes are handled for
+   * @param size the number of slots - rounded up to a power of two
+   * @param consumers the number of consumer threads
+   * @param batchSize the most probes a consumer claims at once
+   * @param waitStrategy how the consumers wait for probes
+   * @param noBrowser true to discard naked probes
+   */
+  public ProbeRingBuffer(Responder responder, int size, int consumers, int batchSize, WaitStrategy waitStrategy, boolean noBrowser) {
+    if (size < 1 || consumers < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("The ring size, consumers and batch size have to be positive");
+    }
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity <<= 1;
+    }
+    _responder = responder;
+    _noBrowser = noBrowser;
+    _slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      _slots[i] = new Slot();
+    }
+    _mask = capacity - 1;
+    _indexShift = Integer.numberOfTrailingZeros(capacity);
+    _available = new AtomicIntegerArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      _available.set(i, -1);
+    }
+    _batchSize = batchSize;
+    _waitStrategy = waitStrategy;
+
+    _consumed = new Sequence[consumers];
+    _consumers = new Thread[consumers];
+    for (int i = 0; i < consumers; i++) {
+      _consumed[i] = new Sequence();
+      _consumers[i] = new Thread(new Consumer(_consumed[i]), "probe-ring-" + (i + 1));
+      _consumers[i].setDaemon(true);
+    }
+  }
+
+  /**
+   * Make the wait strategy for its configuration name.
+   *
+   * @param name block, yield or spin
+   * @return the wait strategy (blocking if the name is unknown)
+   */
+  public static WaitStrategy waitStrategy(String name) {
+    if (SPIN.equals(name)) {
+      return new WaitStrategy.BusySpin();
+    }
+    if (YIELD.equals(name)) {
+      return new WaitStrategy.Yielding();
+    }
+    return new WaitStrategy.Blocking();
+  }
+
+  /**
+   * Start the consumer threads.
+   */
+  public void start() {
+    for (Thread consumer : _consumers) {
+      consumer.start();
+    }
+  }
+
+  /**
+   * Stop the consumers. Probes still in the ring are dropped.
+   */
+  public void halt() {
+    _halted = true;
+    _waitStrategy.signalAllWhenBlocking();
+    for (Thread consumer : _consumers) {
+      consumer.interrupt();
+    }
+  }
+
+  /**
+   * Put the probe in the next slot.
+   *
+   * @param probe the probe
+   * @return false if the ring was full and the probe was dropped
+   */
+  public boolean publish(ProbeWrapper probe) {
+    if (_halted) {
+      return false;
+    }
+    long current;
+    long next;
+    do {
+      current = _cursor.get();
+      next = current + 1;
+      long wrapPoint = next - _slots.length;
+      if (wrapPoint > _gatingCache.get()) {
+        long gating = minimumSequence(current);
+        if (wrapPoint > gating) {
+          _rejected.incrementAndGet();
+          LOGGER.debug("The ring is full. Dropping probe [" + probe.getProbeId() + "]");
+          return false;
+        }
+        _gatingCache.set(gating);
+      }
+    } while (!_cursor.compareAndSet(current, next));
+
+    int index = (int) next & _mask;
+    Slot slot = _slots[index];
+    slot.probe = probe;
+    slot.received = System.nanoTime();
+    // the ordered write publishes the slot's fields along with it
+    _available.lazySet(index, (int) (next >>> _indexShift));
+    _published.incrementAndGet();
+    _waitStrategy.signalAllWhenBlocking();
+    return true;
+  }
+
+  private long minimumSequence(long minimum) {
+    minimum = Math.min(minimum, _workSequence.get());
+    for (Sequence consumed : _consumed) {
+      minimum = Math.min(minimum, consumed.get());
+    }
+    return minimum;
+  }
+
+  private boolean isAvailable(long sequence) {
+    return _available.get((int) sequence & _mask) == (int) (sequence >>> _indexShift);
+  }
+
+  /**
+   * The highest sequence from low up to high that's been published with no
+   * gaps before it.
+   */
+  private long highestPublished(long low, long high) {
+    for (long sequence = low; sequence <= high; sequence++) {
+      if (!isAvailable(sequence)) {
+        return sequence - 1;
+      }
+    }
+    return high;
+  }
+
+  /**
+   * A consumer thread. It keeps claiming batches of probes off the work
+   * sequence until the ring is halted.
+   */
+  private final class Consumer implements Runnable {
+    private final Sequence           _sequence;
+    private final ProbeHandlerThread _handler = new ProbeHandlerThread(_responder, null, _noBrowser);
+    private long                     _cachedAvailable = -1;
+
+    Consumer(Sequence sequence) {
+      _sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!_halted) {
+          long current = _workSequence.get();
+          long first = current + 1;
+          // everything up to the work sequence is done or someone else's
+          _sequence.set(current);
+
+          long available = _cachedAvailable;
+          if (available < first) {
+            long cursor = _waitStrategy.waitFor(first, ProbeRingBuffer.this);
+            if (cursor < first) {
+              break;
+            }
+            available = highestPublished(first, cursor);
+            if (available < first) {
+              // claimed but not filled in yet
+              Thread.yield();
+              continue;
+            }
+            _cachedAvailable = available;
+          }
+
+          long last = Math.min(available, current + _batchSize);
+          if (!_workSequence.compareAndSet(current, last)) {
+            continue;
+          }
+          _batches.incrementAndGet();
+          for (long sequence = first; sequence <= last; sequence++) {
+            Slot slot = _slots[(int) sequence & _mask];
+            ProbeWrapper probe = slot.probe;
+            long received = slot.received;
+            slot.probe = null;
+            handle(probe, received);
+          }
+        }
+      } catch (InterruptedException e) {
+        // halted
+      }
+      _sequence.set(Long.MAX_VALUE);
+    }
+
+    private void handle(ProbeWrapper probe, long received) {
+      _handler.reuse(probe, received);
+      try {
+        _handler.run();
+      } catch (RuntimeException e) {
+        LOGGER.error("Error handling probe [" + probe.getProbeId() + "]", e);
+      }
+      _handled.incrementAndGet();
+    }
+  }
+
+  public int getCapacity() {
+    return _slots.length;
+  }
+
+  public int getConsumerCount() {
+    return _consumers.length;
+  }
+
+  public boolean isHalted() {
+    return _halted;
+  }
+
+  /**
+   * The last sequence claimed by a transport. The wait strategies watch it.
+   *
+   * @return the cursor
+   */
+  public long getCursor() {
+    return _cursor.get();
+  }
+
+  /**
+   * The number of probes in the ring that no consumer has picked up yet.
+   *
+   * @return the backlog
+   */
+  public long getBacklog() {
+    return Math.max(0, _cursor.get() - _workSequence.get());
+  }
+
+  public long getPublished() {
+    return _published.get();
+  }
+
+  public long getHandled() {
+    return _handled.get();
+  }
+
+  /**
+   * The number of probes dropped because the ring was full.
+   *
+   * @return the rejected probes
+   */
+  public long getRejected() {
+    return _rejected.get();
+  }
+
+  /**
+   * The average number of probes a consumer picked up at once.
+   *
+   * @return the average batch size
+   */
+  public double getAverageBatchSize() {
+    long batches = _batches.get();
+    return batches == 0 ? 0 : (double) _handled.get() / batches;
+  }
+
+}
@@ -16,23 +16,30 @@
 
 package ws.argo.responder;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
@@ -45,31 +52,26 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.commons.configuration.ConfigurationException;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.joda.time.Instant;
+import org.glassfish.grizzly.http.server.HttpServer;
 
 import ws.argo.plugin.probehandler.ProbeHandlerConfigException;
 import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
 import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.plugin.transport.responder.DuplicateProbeFilter;
 import ws.argo.plugin.transport.responder.ProbeProcessor;
 import ws.argo.plugin.transport.responder.Transport;
+import ws.argo.responder.ResponseDelivery.RetryPolicy;
 import ws.argo.responder.configuration.PluginConfig;
 import ws.argo.responder.configuration.ResponderConfigException;
 import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.responder.metrics.LatencyMetrics;
+import ws.argo.responder.metrics.MetricsListener;
 import ws.argo.wireline.probe.ProbeWrapper;
 
 /**
@@ -81,7 +83,7 @@ import ws.argo.wireline.probe.ProbeWrapper;
  * @author jmsimpson
  *
  */
-public class Responder implements ProbeProcessor {
+public class Responder implements ProbeProcessor, DuplicateProbeFilter {
 
   private static final String           VERSION_PROPERTIES = "/version.properties";
 
@@ -95,7 +97,7 @@ public class Responder implements ProbeProcessor {
 
   protected InetAddress                 maddress;
 
-  protected CloseableHttpClient         httpClient;
+  private ResponseDelivery              _delivery;
 
   private ResponderConfiguration        _config;
 
@@ -104,10 +106,30 @@ public class Responder implements ProbeProcessor {
   // This id is for internal reporting and logging reasons
   private String                        _runtimeId;
 
+  // the probes run on the thread pool or on virtual threads
+  private Executor                      _probeExecutor;
   private ThreadPoolExecutor            _executorPool;
+  private BoundedExecutor               _virtualExecutor;
+  private ProbeRingBuffer               _ringBuffer;
+  private ExecutorService               _handlerExecutor;
+  private ClientScheduler               _clientScheduler;
   private ResponderMonitorThread        _monitor           = null;
 
-  ConcurrentLinkedQueue<Instant>        messages           = new ConcurrentLinkedQueue<Instant>();
+  private HandledProbeCache             _handledProbes;
+  // the probes claimed by a transport as they came off the wire
+  private HandledProbeCache             _receivedProbes;
+
+  private final ResponseTemplateCache   _responseTemplates = new ResponseTemplateCache();
+
+  private final ThroughputMeter         _throughput        = new ThroughputMeter();
+
+  private final LoadShedder             _loadShedder       = new LoadShedder(this);
+
+  private final LatencyMetrics          _latencyMetrics    = new LatencyMetrics();
+
+  private HttpServer                    _metricsServer;
+
+  private final ConcurrentHashMap<ProbeHandlerPlugin, HandlerStats> _handlerStats = new ConcurrentHashMap<ProbeHandlerPlugin, HandlerStats>();
 
   /**
    * Shutdown hook handler for the Responder. See
@@ -144,42 +166,44 @@ public class Responder implements ProbeProcessor {
     UUID uuid = UUID.randomUUID();
     _runtimeId = uuid.toString();
 
+    initializeHandledProbeCache();
     intializeThreadPool();
+    initializeClientScheduler();
   }
 
   /**
-   * Create HTTP Client.
+   * Create the response delivery stage and its HTTP client.
    */
   private void initializeHTTPClient() {
 
+    SSLContext sslContext = null;
     if (_config.isHTTPSConfigured()) {
       try {
         KeyStore trustKeystore = getClientTruststore();
-        SSLContext sslContext = SSLContexts.custom()
+        sslContext = SSLContexts.custom()
             .loadTrustMaterial(trustKeystore, new TrustSelfSignedStrategy())
             .build();
-
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
-
-        // Allow both HTTP and HTTPS connections
-        Registry<ConnectionSocketFactory> r = RegistryBuilder.<ConnectionSocketFactory> create()
-            .register("http", PlainConnectionSocketFactory.INSTANCE)
-            .register("https", sslsf)
-            .build();
-
-        HttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(r);
-
-        httpClient = HttpClients.custom()
-            .setConnectionManager(cm)
-            .build();
-
       } catch (Exception e) {
-        LOGGER.error( "Issue creating HTTP client using supplied configuration. Proceeding with default non-SSL client.", e);
-        httpClient = HttpClients.createDefault();
+        LOGGER.error( "Issue creating HTTP client using supplied configuration. Proceeding with default SSL settings.", e);
       }
-    } else {
+    }
 
-      httpClient = HttpClients.createDefault();
+    try {
+      _delivery = new ResponseDelivery(sslContext, _config.getDeliveryConnectTimeout(), _config.getDeliveryReadTimeout(), _config.getDeliveryMaxConnections(),
+          _config.getDeliveryMaxPerDestination(), _config.getDeliveryMaxPending(), _config.getDeliveryIOThreads());
+      _delivery.setDeliveryMode(_config.getDeliveryMode());
+      _delivery.setLatencyMetrics(_latencyMetrics);
+      _delivery.setRetryPolicy(new RetryPolicy(_config.getDeliveryRetries(), _config.getDeliveryRetryInitialDelay(), _config.getDeliveryRetryMaxDelay(),
+          _config.getDeliveryRetryMaxAge(), _config.getDeliveryRetryQueueSize()));
+      if (_config.getDeliverySpoolDirectory() != null) {
+        try {
+          _delivery.setSpool(new ResponseSpool(new File(_config.getDeliverySpoolDirectory()), _config.getDeliverySpoolSegmentSize(), _config.getDeliverySpoolMaxSegments()));
+        } catch (IOException e) {
+          LOGGER.error("Unable to open the response spool. Proceeding without it.", e);
+        }
+      }
+    } catch (IOReactorException e) {
+      throw new IllegalStateException("Unable to start the response delivery client", e);
     }
   }
 
@@ -223,23 +247,164 @@ public class Responder implements ProbeProcessor {
     return ks;
   }
 
+  private void initializeHandledProbeCache() {
+    long timeout = _config.getProbeCacheTimeout() > 0 ? TimeUnit.SECONDS.toMillis(_config.getProbeCacheTimeout()) : HandledProbeCache.DEFAULT_TIMEOUT;
+    int capacity = _config.getProbeCacheCapacity() > 0 ? _config.getProbeCacheCapacity() : HandledProbeCache.DEFAULT_CAPACITY;
+
+    _handledProbes = new HandledProbeCache(timeout, capacity);
+    _receivedProbes = new HandledProbeCache(timeout, capacity);
+  }
+
   private void intializeThreadPool() {
-    // RejectedExecutionHandler implementation
-    RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandlerImpl();
+    if (ResponderConfiguration.VIRTUAL.equals(_config.getExecutionMode())) {
+      if (VirtualThreads.isAvailable()) {
+        intializeVirtualThreads();
+        return;
+      }
+      LOGGER.warn("Virtual threads need Java 21 or later. Using the thread pool instead.");
+    }
+    if (ResponderConfiguration.RING.equals(_config.getExecutionMode())) {
+      intializeRingBuffer();
+      return;
+    }
+
+    _loadShedder.setAnswerShedProbes(_config.isAnswerShedProbes());
     // Get the ThreadFactory implementation to use
     ThreadFactory threadFactory = Executors.defaultThreadFactory();
-    // creating the ThreadPoolExecutor
+    // creating the ThreadPoolExecutor. When it's full the load shedder decides
+    // which probes to drop.
 
     _executorPool = new ThreadPoolExecutor(_config
-        .getThreadPoolSize(), _config.getThreadPoolSize() + 2, 4, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(_config.getThreadPoolSize() * 2), threadFactory, rejectionHandler);
+        .getThreadPoolSize(), _config.getThreadPoolSize() + 2, 4, TimeUnit.SECONDS, new ProbeQueue(_config.getThreadPoolSize() * 2), threadFactory, _loadShedder);
 
+    _handlerExecutor = newHandlerExecutor(_config.getThreadPoolSize() * 2);
+    _probeExecutor = _executorPool;
+    startMonitor();
+  }
+
+  /**
+   * The probe handlers run here when there is a handler deadline. There's
+   * room for every probe thread to fan out to every handler once the handlers
+   * are loaded. If stuck handlers have tied up all of the threads, the handler
+   * just runs on the probe's thread (without the deadline).
+   */
+  private ExecutorService newHandlerExecutor(int maxThreads) {
+    return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger _count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "probe-handler-" + _count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * The transports hand the probes to a fixed set of consumer threads through
+   * a preallocated ring buffer rather than the thread pool's queue.
+   */
+  private void intializeRingBuffer() {
+    int consumers = _config.getRingConsumers() > 0 ? _config.getRingConsumers() : _config.getThreadPoolSize();
+    _ringBuffer = new ProbeRingBuffer(this, _config.getRingSize(), consumers, _config.getRingBatchSize(), ProbeRingBuffer
+        .waitStrategy(_config.getRingWaitStrategy()), _config.isNoBrowser());
+    _handlerExecutor = newHandlerExecutor(consumers * 2);
+    _ringBuffer.start();
+    LOGGER.info("Handling probes on a ring buffer of " + _ringBuffer.getCapacity() + " slots with " + consumers + " consumers (" + _config
+        .getRingWaitStrategy() + ")");
+    startMonitor();
+  }
+
+  /**
+   * Each probe gets its own virtual thread, up to the maximum number of
+   * concurrent probes. Blocking in a handler only parks the virtual thread, so
+   * the limit can be much higher than a pool of platform threads. The
+   * handlers get virtual threads too - the probe limit bounds them.
+   */
+  private void intializeVirtualThreads() {
+    _virtualExecutor = new BoundedExecutor(VirtualThreads.newExecutor(), _config.getMaxConcurrentProbes());
+    _handlerExecutor = VirtualThreads.newExecutor();
+    _probeExecutor = _virtualExecutor;
+    LOGGER.info("Handling probes on virtual threads (at most " + _config.getMaxConcurrentProbes() + " at once)");
+    startMonitor();
+  }
+
+  /**
+   * Put the per client scheduler in front of the probe executor if it's
+   * turned on. It keeps at most as many probes in flight as there are threads
+   * (or virtual thread permits) unless it's told otherwise.
+   */
+  private void initializeClientScheduler() {
+    if (!_config.isClientScheduling()) {
+      return;
+    }
+    if (_ringBuffer != null) {
+      LOGGER.warn("Client scheduling doesn't apply to the ring execution mode. Probes go straight onto the ring.");
+      return;
+    }
+    int maxInFlight = _config.getClientMaxInFlight();
+    if (maxInFlight <= 0) {
+      maxInFlight = _virtualExecutor != null ? _config.getMaxConcurrentProbes() : _config.getThreadPoolSize();
+    }
+    _clientScheduler = new ClientScheduler(_probeExecutor, _config.getDefaultClientPolicy(), _config.getClientPolicies(), _config.getClientQueueSize(), maxInFlight, _config.getMaxClients());
+    LOGGER.info("Scheduling probes per client (" + maxInFlight + " in flight)");
+  }
+
+  private void startMonitor() {
     // start the monitoring thread
     if (_config.isRunMonitor()) {
       _monitor = new ResponderMonitorThread(this, _executorPool, _config.getMonitorInterval());
       Thread monitorThread = new Thread(_monitor);
       monitorThread.start();
     }
+  }
+
+  /**
+   * Return the overload policy for the thread pool, which also keeps the shed
+   * counts and queue wait times.
+   *
+   * @return the load shedder
+   */
+  public LoadShedder getLoadShedder() {
+    return _loadShedder;
+  }
+
+  /**
+   * Return the latency histograms for the stages a probe goes through.
+   *
+   * @return the latency metrics
+   */
+  public LatencyMetrics getLatencyMetrics() {
+    return _latencyMetrics;
+  }
+
+  /**
+   * Return the per client scheduler.
+   *
+   * @return the client scheduler or null if client scheduling is off
+   */
+  public ClientScheduler getClientScheduler() {
+    return _clientScheduler;
+  }
 
+  /**
+   * Return the ring buffer the probes go through in the ring execution mode.
+   *
+   * @return the ring buffer or null in the other execution modes
+   */
+  public ProbeRingBuffer getRingBuffer() {
+    return _ringBuffer;
+  }
+
+  /**
+   * Return the executor for the probes when they run on virtual threads.
+   *
+   * @return the virtual thread executor or null if the probes run on the
+   *         thread pool
+   */
+  public BoundedExecutor getVirtualExecutor() {
+    return _virtualExecutor;
   }
 
   @Override
@@ -247,6 +412,79 @@ public class Responder implements ProbeProcessor {
     return _runtimeId;
   }
 
+  /**
+   * Return the cache of probe IDs that this Responder has already handled.
+   *
+   * @return the handled probe cache
+   */
+  public HandledProbeCache getHandledProbeCache() {
+    return _handledProbes;
+  }
+
+  /**
+   * Return the cache of encoded responses for handlers that give the same
+   * answer to lots of probes.
+   *
+   * @return the response template cache
+   */
+  public ResponseTemplateCache getResponseTemplateCache() {
+    return _responseTemplates;
+  }
+
+  /**
+   * Return the transports the Responder is listening on.
+   *
+   * @return the transports
+   */
+  public List<Transport> getTransports() {
+    return Collections.unmodifiableList(_transports);
+  }
+
+  /**
+   * Return the stage that sends the responses back to the clients.
+   *
+   * @return the response delivery
+   */
+  public ResponseDelivery getResponseDelivery() {
+    return _delivery;
+  }
+
+  /**
+   * Return the executor the probe handlers run on.
+   *
+   * @return the handler executor
+   */
+  public ExecutorService getHandlerExecutor() {
+    return _handlerExecutor;
+  }
+
+  /**
+   * How long (in milliseconds) the probe handlers get to answer a probe.
+   *
+   * @return the handler deadline or 0 for no deadline
+   */
+  public long getHandlerDeadline() {
+    return _config.getHandlerDeadline();
+  }
+
+  /**
+   * Return the running totals for the handler.
+   *
+   * @param handler one of the probe handlers
+   * @return the handler's stats
+   */
+  public HandlerStats getHandlerStats(ProbeHandlerPlugin handler) {
+    HandlerStats stats = _handlerStats.get(handler);
+    if (stats == null) {
+      HandlerStats newStats = new HandlerStats();
+      stats = _handlerStats.putIfAbsent(handler, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
   public ArrayList<ProbeHandlerPlugin> getHandlers() {
     return _handlers;
   }
@@ -351,6 +589,23 @@ public class Responder implements ProbeProcessor {
         LOGGER.warn( "Error shutting down transport: [" + t.transportName() + "]", e);
       }
     }
+    if (_clientScheduler != null) {
+      _clientScheduler.shutdown();
+    }
+    if (_ringBuffer != null) {
+      _ringBuffer.halt();
+    }
+    if (_handlerExecutor != null) {
+      _handlerExecutor.shutdownNow();
+    }
+    if (_virtualExecutor != null) {
+      _virtualExecutor.shutdown();
+    }
+    _delivery.shutdown();
+    if (_metricsServer != null) {
+      _metricsServer.shutdownNow();
+    }
+    _latencyMetrics.unregisterMBeans();
   }
 
   public void setShutdownHook(ResponderShutdown shutdownHook) {
@@ -375,6 +630,8 @@ public class Responder implements ProbeProcessor {
     // That's the idea. The instances of the transports are supposed to be self
     // contained.
 
+    startMetrics();
+
     Thread transportThread;
     for (Transport t : _transports) {
 
@@ -386,61 +643,97 @@ public class Responder implements ProbeProcessor {
 
   }
 
+  /**
+   * Publish the latency histograms over JMX and start the /metrics endpoint
+   * if they're turned on. Neither one is worth failing the Responder over.
+   */
+  private void startMetrics() {
+    if (_config.isMetricsJMX()) {
+      _latencyMetrics.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+    if (_config.getMetricsPort() > 0) {
+      try {
+        _metricsServer = MetricsListener.startServer(_config.getMetricsAddress(), _config.getMetricsPort(), this);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error("Unable to start the metrics endpoint on port [" + _config.getMetricsPort() + "]. Proceeding without it.", e);
+      }
+    }
+  }
+
   @Override
   /**
    * This is where the rubber meets the road. The transport module has
    */
   public void processProbe(ProbeWrapper probe) {
-    _executorPool.execute(new ProbeHandlerThread(this, probe, _config.isNoBrowser()));
+    if (_ringBuffer != null) {
+      _ringBuffer.publish(probe);
+      return;
+    }
+    ProbeHandlerThread probeThread = new ProbeHandlerThread(this, probe, _config.isNoBrowser());
+    if (_clientScheduler != null) {
+      ClientScheduler.Admission admission = _clientScheduler.submit(probeThread);
+      if (admission == ClientScheduler.Admission.THROTTLED || admission == ClientScheduler.Admission.OVERFLOWED) {
+        // the probe never got in, so a later copy should get its chance
+        if (probe.getProbeId() != null) {
+          releaseProbe(probe.getProbeId());
+        }
+      }
+    } else {
+      try {
+        _probeExecutor.execute(probeThread);
+      } catch (RejectedExecutionException e) {
+        // the bounded executor is full
+        _loadShedder.shed(probeThread);
+      }
+    }
+  }
+
+  @Override
+  public boolean claimProbe(String probeID) {
+    return _receivedProbes.markIfAbsent(probeID);
+  }
+
+  @Override
+  public void releaseProbe(String probeID) {
+    _receivedProbes.unmark(probeID);
+    if (_clientScheduler != null) {
+      _clientScheduler.forget(probeID);
+    }
   }
 
   /**
-   * Calculates the number of probes per second over the last 1000 probes.
+   * Calculates the number of probes per second over the last 10 seconds.
    * 
    * @return probes per second
    */
-  public synchronized float probesPerSecond() {
-
-    Instant now = new Instant();
-
-    Instant event = null;
-    int events = 0;
-    boolean done = false;
-    long timeWindow = 0;
-    long oldestTime = 0;
-
-    do {
-      event = messages.poll();
-      if (event != null) {
-        events++;
-        if (events == 1)
-          oldestTime = event.getMillis();
-        done = event.getMillis() >= now.getMillis();
-      } else {
-        done = true;
-      }
-    } while (!done);
-
-    timeWindow = now.getMillis() - oldestTime;
-
-    float mps = (float) events / timeWindow;
-    mps = (float) (mps * 1000.0);
-
-    return mps;
-
+  public float probesPerSecond() {
+    return _throughput.tenSecondRate();
   }
 
+  /**
+   * The number of probes processed since the Responder started.
+   * 
+   * @return the number of probes processed
+   */
   public int probesProcessed() {
-    return messages.size();
+    return (int) Math.min(Integer.MAX_VALUE, _throughput.total());
   }
 
   /**
    * Tells the Responder that a message was responded to.
    */
   public void probeProcessed() {
-    if (_monitor != null) {
-      messages.add(new Instant());
-    }
+    _throughput.mark();
+  }
+
+  /**
+   * Return the meter that tracks the rate at which the Responder processes
+   * probes.
+   * 
+   * @return the throughput meter
+   */
+  public ThroughputMeter getThroughputMeter() {
+    return _throughput;
   }
 
   private void loadHandlerPlugins(ArrayList<PluginConfig> configs) throws ProbeHandlerConfigException {
@@ -460,6 +753,11 @@ public class Responder implements ProbeProcessor {
       throw new ProbeHandlerConfigException("No responders created successfully on initialization.");
     }
 
+    if (_handlerExecutor instanceof ThreadPoolExecutor) {
+      int probeThreads = _executorPool != null ? _executorPool.getMaximumPoolSize() : _ringBuffer.getConsumerCount();
+      ((ThreadPoolExecutor) _handlerExecutor).setMaximumPoolSize(Math.max(probeThreads, 1) * getHandlers().size());
+    }
+
   }
 
   private void loadTransportPlugins(ArrayList<PluginConfig> configs) throws ResponderConfigException {
@@ -16,8 +16,20 @@
 
 package ws.argo.responder;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.plugin.transport.responder.Transport;
+import ws.argo.responder.ClientScheduler.ClientStats;
+import ws.argo.responder.ResponseDelivery.EndpointStats;
+import ws.argo.responder.metrics.LatencyHistogram;
+import ws.argo.responder.transport.MulticastTransport;
+
 /**
  * The ResponderMonitorThread provides a basic way to check on the state of the
  * running responder thread system and also to check on how much load is being
@@ -27,6 +39,13 @@ import java.util.concurrent.ThreadPoolExecutor;
  *
  */
 public class ResponderMonitorThread implements Runnable {
+
+  // how many of the slowest respondTo URLs to show
+  private static final int SLOWEST_ENDPOINTS = 5;
+
+  // how many of the busiest clients to show
+  private static final int BUSIEST_CLIENTS   = 5;
+
   private ThreadPoolExecutor executor;
 
   private int seconds;
@@ -39,7 +58,8 @@ public class ResponderMonitorThread implements Runnable {
    * Creates a new ResponderMonitor thread.
    * 
    * @param responder - the responder to monitor
-   * @param executor - the executor to check
+   * @param executor - the executor to check (null when the probes run on
+   *          virtual threads or the ring buffer)
    * @param delay - how long to wait between checks
    */
   public ResponderMonitorThread(Responder responder, ThreadPoolExecutor executor, int delay) {
@@ -56,9 +76,66 @@ public class ResponderMonitorThread implements Runnable {
   public void run() {
     while (run) {
       //TODO: This looks like it should be logged rather then just pushed to Stdout.
+      ThroughputMeter meter = this.responder.getThroughputMeter();
+      if (this.executor != null) {
+        System.out.println(String
+            .format("[monitor] [%d/%d] [%.3f/%.3f/%.3f mps 1s/10s/60s] Processed: %d, Active: %d, Completed: %d, Task: %d", this.executor.getPoolSize(), this.executor.getCorePoolSize(), meter
+                .oneSecondRate(), meter.tenSecondRate(), meter.sixtySecondRate(), meter.total(), this.executor.getActiveCount(), this.executor.getCompletedTaskCount(), this.executor.getTaskCount()));
+      } else if (this.responder.getRingBuffer() != null) {
+        ProbeRingBuffer ring = this.responder.getRingBuffer();
+        System.out.println(String
+            .format("[monitor] [ring %d/%d] [%.3f/%.3f/%.3f mps 1s/10s/60s] Processed: %d, Published: %d, Handled: %d, Rejected: %d, Avg batch: %.1f", ring.getBacklog(), ring.getCapacity(), meter
+                .oneSecondRate(), meter.tenSecondRate(), meter.sixtySecondRate(), meter.total(), ring.getPublished(), ring.getHandled(), ring.getRejected(), ring.getAverageBatchSize()));
+      } else {
+        BoundedExecutor virtual = this.responder.getVirtualExecutor();
+        System.out.println(String
+            .format("[monitor] [virtual %d/%d] [%.3f/%.3f/%.3f mps 1s/10s/60s] Processed: %d, Completed: %d, Task: %d, Rejected: %d", virtual.getActiveCount(), virtual.getMaxConcurrent(), meter
+                .oneSecondRate(), meter.tenSecondRate(), meter.sixtySecondRate(), meter.total(), virtual.getCompletedCount(), virtual.getSubmittedCount(), virtual.getRejectedCount()));
+      }
+      LoadShedder shedder = this.responder.getLoadShedder();
+      System.out.println(String
+          .format("[monitor] [load] Queue wait avg: %.2f ms, max: %.2f ms, Shed naked: %d, Shed targeted: %d, Answered from cache: %d", shedder.getAverageQueueWaitMillis(), shedder.getMaxQueueWaitMillis(), shedder.getShedNaked(), shedder.getShedTargeted(), shedder.getAnsweredFromCache()));
+      ClientScheduler scheduler = this.responder.getClientScheduler();
+      if (scheduler != null) {
+        System.out.println(String
+            .format("[monitor] [clients] Clients: %d, Waiting: %d, In flight: %d/%d", scheduler.getClientStats().size(), scheduler.getWaiting(), scheduler.getInFlight(), scheduler.getMaxInFlight()));
+        for (Map.Entry<String, ClientStats> entry : busiestClients(scheduler)) {
+          ClientStats stats = entry.getValue();
+          System.out.println(String
+              .format("[monitor] [clients] [%s] Received: %d, Dispatched: %d, Duplicates: %d, Throttled: %d, Overflowed: %d", entry.getKey(), stats.getReceived(), stats.getDispatched(), stats.getDuplicates(), stats.getThrottled(), stats.getOverflowed()));
+        }
+      }
+      for (Transport transport : this.responder.getTransports()) {
+        if (transport instanceof MulticastTransport) {
+          MulticastTransport multicast = (MulticastTransport) transport;
+          System.out.println(String
+              .format("[monitor] [transport] [%s] Received: %d, Dropped: %d, Truncated: %d, Duplicates skipped: %d, Parse errors: %d, Parse queue: %d", multicast.getGroup(), multicast.getDatagramsReceived(), multicast
+                  .getDatagramsDropped(), multicast.getDatagramsTruncated(), multicast.getDuplicatesSkipped(), multicast.getParseErrors(), multicast.getParseQueueDepth()));
+        }
+      }
+      HandledProbeCache cache = this.responder.getHandledProbeCache();
+      System.out.println(String
+          .format("[monitor] [probe cache] Size: %d/%d, Hits: %d, Misses: %d, Evictions: %d", cache.size(), cache.getCapacity(), cache.getHits(), cache.getMisses(), cache.getEvictions()));
+      ResponseDelivery delivery = this.responder.getResponseDelivery();
+      System.out.println(String
+          .format("[monitor] [delivery] Pending: %d, Delivered: %d, Failed: %d, Rejected: %d", delivery.getPending(), delivery.getDelivered(), delivery.getFailed(), delivery.getRejected()));
       System.out.println(String
-          .format("[monitor] [%d/%d] [%.3f mps] Active: %d, Completed: %d, Task: %d", this.executor.getPoolSize(), this.executor.getCorePoolSize(), this.responder
-              .probesPerSecond(), this.executor.getActiveCount(), this.executor.getCompletedTaskCount(), this.executor.getTaskCount()));
+          .format("[monitor] [delivery] Retry queue: %d, Retried: %d, Expired: %d, Spooled: %d, Abandoned: %d", delivery.getRetryQueueSize(), delivery.getRetried(), delivery.getExpired(), delivery.getSpooled(), delivery.getAbandoned()));
+      for (ProbeHandlerPlugin handler : this.responder.getHandlers()) {
+        HandlerStats stats = this.responder.getHandlerStats(handler);
+        System.out.println(String
+            .format("[monitor] [handler] [%s] Avg: %.1f ms, Answered: %d, Missed deadline: %d, Failed: %d", handler.pluginName(), stats.getAverageLatencyMillis(), stats.getAnswered(), stats.getMissed(), stats.getFailed()));
+      }
+      for (Map.Entry<String, EndpointStats> entry : slowestEndpoints(delivery)) {
+        EndpointStats stats = entry.getValue();
+        System.out.println(String
+            .format("[monitor] [delivery] [%s] Avg: %.1f ms, Max: %.1f ms, Successes: %d, Failures: %d", entry.getKey(), stats.getAverageLatencyMillis(), stats.getMaxLatencyMillis(), stats.getSuccesses(), stats.getFailures()));
+      }
+      for (Map.Entry<String, LatencyHistogram> entry : this.responder.getLatencyMetrics().getHistograms().entrySet()) {
+        LatencyHistogram histogram = entry.getValue();
+        System.out.println(String
+            .format("[monitor] [latency] [%s] Count: %d, p50: %.1f us, p99: %.1f us, p99.9: %.1f us, Max: %.1f us", entry.getKey(), histogram.getCount(), histogram.getP50Micros(), histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+      }
       try {
         Thread.sleep(seconds * 1000);
       } catch (InterruptedException e) {
@@ -67,4 +144,26 @@ public class ResponderMonitorThread implements Runnable {
     }
 
   }
+
+  private List<Map.Entry<String, ClientStats>> busiestClients(ClientScheduler scheduler) {
+    List<Map.Entry<String, ClientStats>> clients = new ArrayList<Map.Entry<String, ClientStats>>(scheduler.getClientStats().entrySet());
+    Collections.sort(clients, new Comparator<Map.Entry<String, ClientStats>>() {
+      @Override
+      public int compare(Map.Entry<String, ClientStats> c1, Map.Entry<String, ClientStats> c2) {
+        return Long.compare(c2.getValue().getReceived(), c1.getValue().getReceived());
+      }
+    });
+    return clients.subList(0, Math.min(BUSIEST_CLIENTS, clients.size()));
+  }
+
+  private List<Map.Entry<String, EndpointStats>> slowestEndpoints(ResponseDelivery delivery) {
+    List<Map.Entry<String, EndpointStats>> endpoints = new ArrayList<Map.Entry<String, EndpointStats>>(delivery.getEndpointStats().entrySet());
+    Collections.sort(endpoints, new Comparator<Map.Entry<String, EndpointStats>>() {
+      @Override
+      public int compare(Map.Entry<String, EndpointStats> e1, Map.Entry<String, EndpointStats> e2) {
+        return Double.compare(e2.getValue().getAverageLatencyMillis(), e1.getValue().getAverageLatencyMillis());
+      }
+    });
+    return endpoints.subList(0, Math.min(SLOWEST_ENDPOINTS, endpoints.size()));
+  }
 }
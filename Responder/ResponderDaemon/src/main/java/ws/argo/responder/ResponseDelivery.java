@@ -0,0 +1,920 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.responder.jfr.ResponderEvents;
+import ws.argo.responder.metrics.LatencyMetrics;
+
+/**
+ * The ResponseDelivery is the stage of the Responder that sends the responses
+ * back to the clients. The probe handling threads encode the response and hand
+ * it over, and the delivery sends it with a non-blocking HTTP client. So a slow
+ * or dead listener only ties up a connection, never a probe handling thread.
+ *
+ * <p>The number of connections is limited in total and per destination
+ * (scheme, host and port), so one busy listener can't take all of them.
+ * Responses for a destination that is at its limit wait for a connection. The
+ * number of responses waiting or in flight is capped as well - once the cap is
+ * hit new responses are dropped (and counted) rather than piling up in memory.
+ *
+ * <p>A probe can carry more than one respondTo URL (the client sends one per
+ * network interface). The delivery mode says what to do with them:
+ * <ul>
+ * <li>first - send to the first URL only (the default)</li>
+ * <li>all - send to all of the URLs at the same time</li>
+ * <li>firstSuccess - try the URLs in order and stop at the first one that
+ * takes the response</li>
+ * </ul>
+ *
+ * <p>The listener's reply is thrown away. Only the status code is looked at.
+ * The outcome and latency of every send is kept per URL (see
+ * {@link #getEndpointStats()}) so the slow listeners can be picked out.
+ *
+ * <p>A response that fails in a way that might go away (the listener can't be
+ * reached, times out or answers 5xx, 408 or 429) can be tried again - see
+ * {@link RetryPolicy}. The retries wait in a bounded queue with an exponential
+ * backoff plus some jitter, so a crowd of responses to a listener that just
+ * restarted don't all land on it at once. When the queue is full the response
+ * goes to the {@link ResponseSpool} on disk (if there is one), which is
+ * replayed when the queue has room again and when the Responder starts up.
+ * Every response has an expiry time, and one that's too old is never sent -
+ * the client will have moved on to another probe by then.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseDelivery {
+
+  private static final Logger LOGGER = LogManager.getLogger(ResponseDelivery.class.getName());
+
+  public static final int DEFAULT_CONNECT_TIMEOUT     = 5000;
+  public static final int DEFAULT_READ_TIMEOUT        = 10000;
+  public static final int DEFAULT_MAX_CONNECTIONS     = 100;
+  public static final int DEFAULT_MAX_PER_DESTINATION = 4;
+  public static final int DEFAULT_MAX_PENDING         = 1000;
+  public static final int DEFAULT_IO_THREADS          = 2;
+
+  public static final String FIRST         = "first";
+  public static final String ALL           = "all";
+  public static final String FIRST_SUCCESS = "firstSuccess";
+
+  // Probes come from anywhere, so don't let the per URL stats grow forever
+  public static final int MAX_TRACKED_ENDPOINTS = 1024;
+
+  // How often to look for spooled responses to replay
+  public static final long SPOOL_REPLAY_INTERVAL = 1000;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final CloseableHttpAsyncClient _httpClient;
+  private final Semaphore                _pending;
+  private final int                      _maxPending;
+  private volatile String                _mode = FIRST;
+  private volatile LatencyMetrics        _latencyMetrics;
+
+  private final ConcurrentHashMap<String, EndpointStats> _endpoints = new ConcurrentHashMap<String, EndpointStats>();
+
+  private final AtomicLong _delivered = new AtomicLong();
+  private final AtomicLong _failed    = new AtomicLong();
+  private final AtomicLong _rejected  = new AtomicLong();
+
+  private volatile RetryPolicy              _retryPolicy = RetryPolicy.NONE;
+  private volatile ResponseSpool            _spool;
+  private volatile boolean                  _shutdown;
+  private final ScheduledThreadPoolExecutor _retryExecutor;
+  private final Set<PendingResponse>        _retryQueue  = Collections.newSetFromMap(new ConcurrentHashMap<PendingResponse, Boolean>());
+  private final AtomicInteger               _queued      = new AtomicInteger();
+
+  private final AtomicLong _retried   = new AtomicLong();
+  private final AtomicLong _expired   = new AtomicLong();
+  private final AtomicLong _spooled   = new AtomicLong();
+  private final AtomicLong _abandoned = new AtomicLong();
+
+  /**
+   * Create the delivery stage with the default limits and timeouts.
+   *
+   * @param sslContext the context for HTTPS connections or null to use the
+   *          JVM defaults
+   * @throws IOReactorException if the I/O reactor can't be created
+   */
+  public ResponseDelivery(SSLContext sslContext) throws IOReactorException {
+    this(sslContext, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PER_DESTINATION, DEFAULT_MAX_PENDING, DEFAULT_IO_THREADS);
+  }
+
+  /**
+   * Create the delivery stage. The client is started right away.
+   *
+   * @param sslContext the context for HTTPS connections or null to use the
+   *          JVM defaults
+   * @param connectTimeout how long (in milliseconds) to wait for a connection
+   *          to a listener
+   * @param readTimeout how long (in milliseconds) to wait for the listener to
+   *          send something back (and for a free connection)
+   * @param maxConnections the most connections open at once
+   * @param maxPerDestination the most connections open to one destination
+   * @param maxPending the most responses waiting or in flight
+   * @param ioThreads the number of I/O dispatch threads
+   * @throws IOReactorException if the I/O reactor can't be created
+   */
+  public ResponseDelivery(SSLContext sslContext, int connectTimeout, int readTimeout, int maxConnections, int maxPerDestination, int maxPending, int ioThreads)
+      throws IOReactorException {
+
+    IOReactorConfig ioConfig = IOReactorConfig.custom()
+        .setIoThreadCount(ioThreads)
+        .setConnectTimeout(connectTimeout)
+        .setSoTimeout(readTimeout)
+        .build();
+
+    SSLIOSessionStrategy sslStrategy = sslContext != null
+        ? new SSLIOSessionStrategy(sslContext, NoopHostnameVerifier.INSTANCE)
+        : SSLIOSessionStrategy.getDefaultStrategy();
+
+    Registry<SchemeIOSessionStrategy> strategies = RegistryBuilder.<SchemeIOSessionStrategy> create()
+        .register("http", NoopIOSessionStrategy.INSTANCE)
+        .register("https", sslStrategy)
+        .build();
+
+    PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig), strategies);
+    cm.setMaxTotal(maxConnections);
+    cm.setDefaultMaxPerRoute(maxPerDestination);
+
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setSocketTimeout(readTimeout)
+        .setConnectionRequestTimeout(readTimeout)
+        .build();
+
+    _httpClient = HttpAsyncClients.custom()
+        .setConnectionManager(cm)
+        .setDefaultRequestConfig(requestConfig)
+        .build();
+    _httpClient.start();
+
+    _maxPending = maxPending;
+    _pending = new Semaphore(maxPending);
+
+    _retryExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "response-retry");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Set how failed responses are retried. The default is not to retry them.
+   *
+   * @param retryPolicy the retry policy
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    _retryPolicy = retryPolicy;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return _retryPolicy;
+  }
+
+  /**
+   * Set the spool for the responses that don't fit in the retry queue. Any
+   * responses already in the spool (from before a restart) are replayed right
+   * away.
+   *
+   * @param spool the spool
+   */
+  public void setSpool(ResponseSpool spool) {
+    _spool = spool;
+    _retryExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          replaySpool();
+        } catch (RuntimeException e) {
+          LOGGER.error("Error replaying the response spool", e);
+        }
+      }
+    }, 0, SPOOL_REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set where the send and end to end latencies are recorded.
+   *
+   * @param latencyMetrics the Responder's latency metrics
+   */
+  public void setLatencyMetrics(LatencyMetrics latencyMetrics) {
+    _latencyMetrics = latencyMetrics;
+  }
+
+  public ResponseSpool getSpool() {
+    return _spool;
+  }
+
+  /**
+   * Set what to do with a probe that has more than one respondTo URL.
+   *
+   * @param mode first, all or firstSuccess
+   */
+  public void setDeliveryMode(String mode) {
+    if (!FIRST.equals(mode) && !ALL.equals(mode) && !FIRST_SUCCESS.equals(mode)) {
+      throw new IllegalArgumentException("Unknown delivery mode [" + mode + "]");
+    }
+    _mode = mode;
+  }
+
+  public String getDeliveryMode() {
+    return _mode;
+  }
+
+  /**
+   * Queue the response to be sent to the respondTo URLs according to the
+   * delivery mode. This never blocks - the outcome is logged when the sends
+   * finish.
+   *
+   * @param respondToURLs where the response can go
+   * @param mimeType the MIME type of the payload
+   * @param body the encoded (UTF-8) response payload
+   * @param probeID the probe being answered (for the logs)
+   * @return true if the response was queued for at least one URL (for
+   *         firstSuccess, once the chain of attempts has been started)
+   */
+  public boolean deliver(List<String> respondToURLs, String mimeType, byte[] body, String probeID) {
+    return deliver(respondToURLs, mimeType, body, probeID, 0);
+  }
+
+  /**
+   * Queue the response to be sent to the respondTo URLs according to the
+   * delivery mode, noting when the probe was received so the end to end
+   * latency can be recorded.
+   *
+   * @param respondToURLs where the response can go
+   * @param mimeType the MIME type of the payload
+   * @param body the encoded (UTF-8) response payload
+   * @param probeID the probe being answered (for the logs)
+   * @param receivedAt when the probe was received (see
+   *          {@link System#nanoTime()}), 0 if that's not known
+   * @return true if the response was queued for at least one URL
+   */
+  public boolean deliver(List<String> respondToURLs, String mimeType, byte[] body, String probeID, long receivedAt) {
+    return deliver(respondToURLs, mimeType, body, body.length, probeID, receivedAt);
+  }
+
+  /**
+   * Queue the first length bytes of the buffer as the response. The buffer is
+   * kept as it is (not copied), so it mustn't be changed afterwards.
+   *
+   * @param respondToURLs where the response can go
+   * @param mimeType the MIME type of the payload
+   * @param body the buffer holding the encoded (UTF-8) response payload
+   * @param length the length of the payload in the buffer
+   * @param probeID the probe being answered (for the logs)
+   * @param receivedAt when the probe was received (see
+   *          {@link System#nanoTime()}), 0 if that's not known
+   * @return true if the response was queued for at least one URL
+   */
+  public boolean deliver(List<String> respondToURLs, String mimeType, byte[] body, int length, String probeID, long receivedAt) {
+    if (respondToURLs.isEmpty()) {
+      return false;
+    }
+
+    long expiresAt = expiresAt(receivedAt);
+    String mode = _mode;
+    if (ALL.equals(mode)) {
+      boolean queued = false;
+      for (String respondToURL : respondToURLs) {
+        queued |= start(new PendingResponse(Collections.singletonList(respondToURL), false, mimeType, probeID, body, length, expiresAt, 0), receivedAt);
+      }
+      return queued;
+    } else if (FIRST_SUCCESS.equals(mode)) {
+      return start(new PendingResponse(new ArrayList<String>(respondToURLs), true, mimeType, probeID, body, length, expiresAt, 0), receivedAt);
+    } else {
+      return start(new PendingResponse(Collections.singletonList(respondToURLs.get(0)), false, mimeType, probeID, body, length, expiresAt, 0), receivedAt);
+    }
+  }
+
+  /**
+   * Queue the response to be sent. This never blocks - the outcome is logged
+   * when the send finishes.
+   *
+   * @param respondToURL where the response goes
+   * @param mimeType the MIME type of the payload
+   * @param body the encoded (UTF-8) response payload
+   * @param probeID the probe being answered (for the logs)
+   * @return true if the response was queued, false if it was dropped because
+   *         the URL was no good or there are too many responses pending
+   */
+  public boolean deliver(String respondToURL, String mimeType, byte[] body, String probeID) {
+    long expiresAt = expiresAt(0);
+    return start(new PendingResponse(Collections.singletonList(respondToURL), false, mimeType, probeID, body, body.length, expiresAt, 0), 0);
+  }
+
+  /**
+   * Work out when a response stops being worth sending. The max age counts
+   * from when the probe was received, so the time it spent waiting and being
+   * handled comes out of it.
+   *
+   * @param receivedAt when the probe was received (see
+   *          {@link System#nanoTime()}), 0 if that's not known
+   * @return the wall clock time the response expires
+   */
+  private long expiresAt(long receivedAt) {
+    long age = receivedAt != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receivedAt) : 0;
+    return System.currentTimeMillis() - Math.max(age, 0) + _retryPolicy.maxAgeMillis;
+  }
+
+  /**
+   * Take a pending slot and make the first attempt. For firstSuccess one slot
+   * covers the whole chain of URLs.
+   */
+  private boolean start(PendingResponse response, long receivedAt) {
+    response.receivedAt = receivedAt;
+    if (!_pending.tryAcquire()) {
+      _rejected.incrementAndGet();
+      LOGGER.warn("Too many responses pending. Dropping the response for probeID [" + response.probeID + "] to: " + response.respondToURLs.get(0));
+      return false;
+    }
+    response.retryable = false;
+    return attempt(response, 0) || response.failover;
+  }
+
+  /**
+   * Send to the URL at the index. With failover, a failure moves on to the
+   * next URL. The pending slot is released at the end of the attempt, and if
+   * the attempt failed in a way that's worth trying again the response goes
+   * to the retry queue.
+   */
+  private boolean attempt(final PendingResponse response, final int index) {
+    return send(response.respondToURLs.get(index), response.mimeType, response.body, response.length, response.probeID, new Outcome() {
+      @Override
+      public void done(boolean success, boolean retryable) {
+        if (success) {
+          LatencyMetrics metrics = _latencyMetrics;
+          if (metrics != null && response.receivedAt != 0) {
+            metrics.record(LatencyMetrics.TOTAL, System.nanoTime() - response.receivedAt);
+          }
+          _pending.release();
+          ResponseSpool.settle(response);
+          return;
+        }
+        response.retryable |= retryable;
+        if (response.failover) {
+          if (index + 1 < response.respondToURLs.size()) {
+            attempt(response, index + 1);
+            return;
+          }
+          LOGGER.warn("None of the " + response.respondToURLs.size() + " respondTo URLs took the response for probeID [" + response.probeID + "]");
+        }
+        _pending.release();
+        if (response.retryable) {
+          scheduleRetry(response);
+        } else {
+          ResponseSpool.settle(response);
+        }
+      }
+    });
+  }
+
+  /**
+   * Called when a send is finished one way or the other. It can be called on
+   * the caller's thread if the send fails right away.
+   */
+  private interface Outcome {
+    /**
+     * @param success true if the listener took the response
+     * @param retryable true if the failure might go away (the listener
+     *          couldn't be reached, timed out or was too busy)
+     */
+    void done(boolean success, boolean retryable);
+  }
+
+  /**
+   * Put the failed response on the retry queue after its backoff delay. It's
+   * given up on if it's out of retries or would be too old by the time it was
+   * tried again. If the queue is full it goes to the spool.
+   */
+  private void scheduleRetry(PendingResponse response) {
+    RetryPolicy policy = _retryPolicy;
+    response.attempts++;
+    if (response.attempts > policy.maxRetries) {
+      if (policy.maxRetries > 0) {
+        _abandoned.incrementAndGet();
+        LOGGER.warn("Giving up on the response for probeID [" + response.probeID + "] after " + policy.maxRetries + " retries");
+      }
+      ResponseSpool.settle(response);
+      return;
+    }
+
+    long delay = policy.backoff(response.attempts);
+    if (response.isExpired(System.currentTimeMillis() + delay)) {
+      _expired.incrementAndGet();
+      LOGGER.warn("The response for probeID [" + response.probeID + "] is too old to retry");
+      ResponseSpool.settle(response);
+      return;
+    }
+    enqueue(response, delay);
+  }
+
+  private void enqueue(final PendingResponse response, long delay) {
+    if (_shutdown || _queued.incrementAndGet() > _retryPolicy.queueSize) {
+      if (!_shutdown) {
+        _queued.decrementAndGet();
+      }
+      overflow(response);
+      return;
+    }
+
+    _retryQueue.add(response);
+    try {
+      _retryExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          retry(response);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shut down in the meantime
+      if (_retryQueue.remove(response)) {
+        _queued.decrementAndGet();
+        overflow(response);
+      }
+    }
+  }
+
+  private void retry(PendingResponse response) {
+    // shutdown may have already taken it for the spool
+    if (!_retryQueue.remove(response)) {
+      return;
+    }
+    _queued.decrementAndGet();
+
+    if (response.isExpired(System.currentTimeMillis())) {
+      _expired.incrementAndGet();
+      LOGGER.warn("The response for probeID [" + response.probeID + "] expired waiting to be retried");
+      ResponseSpool.settle(response);
+      return;
+    }
+    if (!_pending.tryAcquire()) {
+      overflow(response);
+      return;
+    }
+    _retried.incrementAndGet();
+    LOGGER.debug("Retrying the response for probeID [" + response.probeID + "] (attempt " + (response.attempts + 1) + ")");
+    response.retryable = false;
+    attempt(response, 0);
+  }
+
+  /**
+   * The retry queue has no room for the response, so write it to the spool
+   * if there is one.
+   */
+  private void overflow(PendingResponse response) {
+    ResponseSpool spool = _spool;
+    if (spool != null && spool.append(response)) {
+      _spooled.incrementAndGet();
+    } else {
+      _abandoned.incrementAndGet();
+      LOGGER.warn("The retry queue is full. Dropping the response for probeID [" + response.probeID + "]");
+    }
+    ResponseSpool.settle(response);
+  }
+
+  /**
+   * Move the spooled responses onto the retry queue once the queue has room.
+   * Anything that doesn't fit goes back into the spool. The segments they came
+   * from stay on disk until they're all settled.
+   */
+  private void replaySpool() {
+    ResponseSpool spool = _spool;
+    if (spool == null || _shutdown || spool.isEmpty() || _queued.get() > _retryPolicy.queueSize / 2) {
+      return;
+    }
+
+    List<PendingResponse> responses = spool.drain();
+    LOGGER.info("Replaying " + responses.size() + " responses from the spool");
+    long now = System.currentTimeMillis();
+    for (PendingResponse response : responses) {
+      if (response.isExpired(now)) {
+        _expired.incrementAndGet();
+        ResponseSpool.settle(response);
+      } else {
+        enqueue(response, 0);
+      }
+    }
+  }
+
+  /**
+   * Start the send.
+   *
+   * @return false if the send failed before it got going
+   */
+  private boolean send(final String respondToURL, String mimeType, byte[] body, final int length, final String probeID, final Outcome outcome) {
+
+    final HttpPost postRequest;
+    try {
+      postRequest = new HttpPost(respondToURL);
+    } catch (IllegalArgumentException e) {
+      _failed.incrementAndGet();
+      LOGGER.error("The respondTo URL was a no good for probeID [" + probeID + "].  respondTo URL is: " + respondToURL);
+      outcome.done(false, false);
+      return false;
+    }
+    postRequest.setEntity(new NByteArrayEntity(body, 0, length, ContentType.create(mimeType, UTF8)));
+
+    final long start = System.nanoTime();
+    try {
+      _httpClient.execute(HttpAsyncMethods.create(postRequest), new StatusConsumer(), new FutureCallback<Integer>() {
+
+        @Override
+        public void completed(Integer statusCode) {
+          long latency = System.nanoTime() - start;
+          boolean success = statusCode >= 200 && statusCode < 300;
+          record(respondToURL, success, latency);
+          LatencyMetrics metrics = _latencyMetrics;
+          if (metrics != null) {
+            metrics.record(LatencyMetrics.SEND, latency);
+          }
+          ResponderEvents.responseSent(probeID, respondToURL, length, statusCode, success, latency);
+          if (success) {
+            _delivered.incrementAndGet();
+            LOGGER.info("Successfully handled probeID: " + probeID + " sending response to: " + respondToURL + " in " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms");
+          } else {
+            _failed.incrementAndGet();
+            LOGGER.error("Failed sending the response for probeID [" + probeID + "] to: " + respondToURL + " : HTTP error code : " + statusCode);
+          }
+          outcome.done(success, isRetryable(statusCode));
+        }
+
+        @Override
+        public void failed(Exception e) {
+          long latency = System.nanoTime() - start;
+          record(respondToURL, false, latency);
+          ResponderEvents.responseSent(probeID, respondToURL, length, 0, false, latency);
+          _failed.incrementAndGet();
+          LOGGER.error("An error occured sending the response for probeID [" + probeID + "] to: " + respondToURL + " - " + e);
+          LOGGER.debug("Stack trace for probeID [" + probeID + "]", e);
+          outcome.done(false, true);
+        }
+
+        @Override
+        public void cancelled() {
+          _failed.incrementAndGet();
+          LOGGER.warn("Sending the response for probeID [" + probeID + "] to: " + respondToURL + " was cancelled");
+          outcome.done(false, true);
+        }
+      });
+    } catch (RuntimeException e) {
+      // the client has been shut down
+      _failed.incrementAndGet();
+      LOGGER.error("Unable to send the response for probeID [" + probeID + "] to: " + respondToURL + " - " + e.getLocalizedMessage());
+      outcome.done(false, true);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * The listener is having trouble (5xx), timed out reading the request (408)
+   * or asked to slow down (429). Any other error won't get better by asking
+   * again.
+   */
+  private static boolean isRetryable(int statusCode) {
+    return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+  }
+
+  private void record(String respondToURL, boolean success, long latency) {
+    EndpointStats stats = _endpoints.get(respondToURL);
+    if (stats == null) {
+      if (_endpoints.size() >= MAX_TRACKED_ENDPOINTS) {
+        return;
+      }
+      EndpointStats newStats = new EndpointStats();
+      stats = _endpoints.putIfAbsent(respondToURL, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.record(success, latency);
+  }
+
+  /**
+   * Return the outcome and latency stats for each respondTo URL that
+   * responses have been sent to.
+   *
+   * @return an unmodifiable copy of the stats by URL
+   */
+  public Map<String, EndpointStats> getEndpointStats() {
+    return Collections.unmodifiableMap(new HashMap<String, EndpointStats>(_endpoints));
+  }
+
+  /**
+   * Close the client. Responses still in flight are abandoned. If there is a
+   * spool, the responses waiting to be retried (and the ones drained from the
+   * spool that are still in flight) are written to it so they can be sent
+   * after a restart.
+   */
+  public void shutdown() {
+    _shutdown = true;
+    _retryExecutor.shutdownNow();
+    try {
+      _httpClient.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing the response delivery client", e);
+    }
+
+    ResponseSpool spool = _spool;
+    if (spool != null) {
+      for (PendingResponse response : _retryQueue) {
+        if (_retryQueue.remove(response)) {
+          _queued.decrementAndGet();
+          overflow(response);
+        }
+      }
+      spool.close();
+    }
+  }
+
+  public long getDelivered() {
+    return _delivered.get();
+  }
+
+  public long getFailed() {
+    return _failed.get();
+  }
+
+  public long getRejected() {
+    return _rejected.get();
+  }
+
+  /**
+   * The number of retries made, including responses replayed from the spool.
+   *
+   * @return number of retries
+   */
+  public long getRetried() {
+    return _retried.get();
+  }
+
+  /**
+   * The number of responses that were too old to retry.
+   *
+   * @return number of expired responses
+   */
+  public long getExpired() {
+    return _expired.get();
+  }
+
+  public long getSpooled() {
+    return _spooled.get();
+  }
+
+  /**
+   * The number of responses given up on because they ran out of retries or
+   * there was nowhere to put them.
+   *
+   * @return number of abandoned responses
+   */
+  public long getAbandoned() {
+    return _abandoned.get();
+  }
+
+  /**
+   * The number of responses waiting to be retried.
+   *
+   * @return the size of the retry queue
+   */
+  public int getRetryQueueSize() {
+    return _queued.get();
+  }
+
+  /**
+   * The number of responses waiting for a connection or in flight.
+   *
+   * @return number of pending responses
+   */
+  public int getPending() {
+    return _maxPending - _pending.availablePermits();
+  }
+
+  /**
+   * How many times to retry a failed response and how long to wait between
+   * tries. The wait doubles after each try up to the maximum, and then a
+   * random amount of up to half of it is taken off.
+   */
+  public static class RetryPolicy {
+
+    public static final int  DEFAULT_MAX_RETRIES   = 5;
+    public static final long DEFAULT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY     = 30000;
+    public static final long DEFAULT_MAX_AGE       = 60000;
+    public static final int  DEFAULT_QUEUE_SIZE    = 1000;
+
+    // Don't retry at all
+    public static final RetryPolicy NONE = new RetryPolicy(0, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_AGE, DEFAULT_QUEUE_SIZE);
+
+    final int  maxRetries;
+    final long initialDelayMillis;
+    final long maxDelayMillis;
+    final long maxAgeMillis;
+    final int  queueSize;
+
+    /**
+     * Create the retry policy.
+     *
+     * @param maxRetries the most times to retry a response (0 turns retries
+     *          off)
+     * @param initialDelayMillis the wait before the first retry
+     * @param maxDelayMillis the longest wait between retries
+     * @param maxAgeMillis how long after the probe was received the response
+     *          is still worth sending
+     * @param queueSize the most responses waiting to be retried
+     */
+    public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis, long maxAgeMillis, int queueSize) {
+      this.maxRetries = maxRetries;
+      this.initialDelayMillis = initialDelayMillis;
+      this.maxDelayMillis = maxDelayMillis;
+      this.maxAgeMillis = maxAgeMillis;
+      this.queueSize = queueSize;
+    }
+
+    /**
+     * The wait before the retry.
+     *
+     * @param retry which retry (starting at 1)
+     * @return the delay in milliseconds
+     */
+    long backoff(int retry) {
+      long delay = initialDelayMillis << Math.min(retry - 1, 30);
+      if (delay <= 0 || delay > maxDelayMillis) {
+        delay = maxDelayMillis;
+      }
+      long half = delay / 2;
+      return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    public int getMaxRetries() {
+      return maxRetries;
+    }
+
+    public long getInitialDelayMillis() {
+      return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+      return maxDelayMillis;
+    }
+
+    public long getMaxAgeMillis() {
+      return maxAgeMillis;
+    }
+
+    public int getQueueSize() {
+      return queueSize;
+    }
+  }
+
+  /**
+   * The running totals for one respondTo URL. The latency is from the start of
+   * the send to the listener's answer, including any wait for a connection.
+   */
+  public static class EndpointStats {
+    private final AtomicLong _successes    = new AtomicLong();
+    private final AtomicLong _failures     = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency   = new AtomicLong();
+
+    void record(boolean success, long latency) {
+      if (success) {
+        _successes.incrementAndGet();
+      } else {
+        _failures.incrementAndGet();
+      }
+      _totalLatency.addAndGet(latency);
+      long max = _maxLatency.get();
+      while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+        max = _maxLatency.get();
+      }
+    }
+
+    public long getSuccesses() {
+      return _successes.get();
+    }
+
+    public long getFailures() {
+      return _failures.get();
+    }
+
+    /**
+     * The average latency over all of the sends, successful or not.
+     *
+     * @return the average latency in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+      long count = _successes.get() + _failures.get();
+      return count == 0 ? 0 : _totalLatency.get() / (count * 1000000.0);
+    }
+
+    public double getMaxLatencyMillis() {
+      return _maxLatency.get() / 1000000.0;
+    }
+  }
+
+  /**
+   * Hangs on to the status code and throws the reply body away as it arrives.
+   */
+  private static class StatusConsumer extends AbstractAsyncResponseConsumer<Integer> {
+
+    private final ByteBuffer _discard = ByteBuffer.allocate(1024);
+    private int              _statusCode;
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+      _statusCode = response.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+      while (decoder.read(_discard) > 0) {
+        _discard.clear();
+      }
+      _discard.clear();
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+    }
+
+    @Override
+    protected Integer buildResult(HttpContext context) {
+      return _statusCode;
+    }
+
+    @Override
+    protected void releaseResources() {
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.HashSet;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * The ResponseMerger folds the responses from all of the probe handlers into
+ * the one response that goes back to the client for a probe. Before this the
+ * Responder sent a response per handler, so a Responder running two handlers
+ * made two POSTs (and two parses on the listener side) for every probe.
+ *
+ * <p>Services are matched on their ID. If more than one handler knows about the
+ * same service, the first handler's version is kept. The handlers are added in
+ * the order they are configured, so that's the order of preference.
+ *
+ * <p>When only one handler has anything to say, its response is used as is and
+ * {@link #getSource()} names the handler - so the handler's cached encoding can
+ * still be used (see {@link ResponseTemplateCache}).
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseMerger {
+
+  private final String          _probeID;
+  private final HashSet<String> _serviceIDs = new HashSet<String>();
+  private ResponseWrapper       _merged;
+  private ProbeHandlerPlugin    _source;
+  private int                   _contributors;
+  private int                   _duplicates;
+
+  /**
+   * Start a merge for the probe.
+   *
+   * @param probeID the ID of the probe being answered
+   */
+  public ResponseMerger(String probeID) {
+    _probeID = probeID;
+  }
+
+  /**
+   * Add a handler's response. Empty responses are ignored.
+   *
+   * @param handler the handler that made the response
+   * @param response the handler's response
+   */
+  public void add(ProbeHandlerPlugin handler, ResponseWrapper response) {
+    if (response == null || response.isEmpty()) {
+      return;
+    }
+    _contributors++;
+
+    if (_merged == null) {
+      _merged = response;
+      _source = handler;
+      for (ServiceWrapper service : response.getServices()) {
+        _serviceIDs.add(service.getId());
+      }
+      return;
+    }
+
+    if (_contributors == 2) {
+      // the first handler's response becomes the merged response, so it can't
+      // be cached under that handler any more
+      _merged.setCacheKey(null);
+      _source = null;
+    }
+    for (ServiceWrapper service : response.getServices()) {
+      if (_serviceIDs.add(service.getId())) {
+        _merged.addResponse(service);
+      } else {
+        _duplicates++;
+      }
+    }
+  }
+
+  /**
+   * Return the merged response.
+   *
+   * @return the response with all of the services, or an empty response if
+   *         none of the handlers had anything
+   */
+  public ResponseWrapper getResponse() {
+    return _merged != null ? _merged : new ResponseWrapper(_probeID);
+  }
+
+  /**
+   * Return the handler the response came from, if only one handler had
+   * anything.
+   *
+   * @return the only handler with services or null
+   */
+  public ProbeHandlerPlugin getSource() {
+    return _source;
+  }
+
+  /**
+   * The number of handlers that had services for the probe.
+   *
+   * @return number of non empty handler responses
+   */
+  public int getContributors() {
+    return _contributors;
+  }
+
+  /**
+   * The number of services left out because an earlier handler already had
+   * one with the same ID.
+   *
+   * @return number of duplicate services
+   */
+  public int getDuplicates() {
+    return _duplicates;
+  }
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The ResponseSpool is an append-only store on disk for the responses that
+ * the {@link ResponseDelivery} couldn't keep in its retry queue. It's what
+ * lets a response survive a Responder restart (or a listener that's down for
+ * a while) - the delivery replays the spool when it starts up and whenever its
+ * retry queue has room again.
+ *
+ * <p>The spool is a directory of fixed size segment files. The segment being
+ * written is memory mapped, so appending a response is just a copy into the
+ * mapping. Each record is written body first and its length last, and the
+ * file starts out zeroed, so a record that was only half written when the
+ * process died reads as the end of the segment. When there are more than the
+ * maximum number of segments, the oldest one is deleted.
+ *
+ * <p>Draining a segment doesn't delete it. The file stays until every
+ * response read out of it has been settled - delivered, given up on or
+ * written back to the spool - so a crash while the drained responses are
+ * still being sent replays them on the next start rather than losing them.
+ * Closing the spool writes whatever is still unsettled back to the spool and
+ * deletes the drained segments.
+ *
+ * <p>The records are only forced to the disk when a segment is finished or
+ * the spool is closed. The OS page cache survives the process going down, so
+ * this only loses records if the whole machine does.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseSpool {
+
+  private static final Logger LOGGER = LogManager.getLogger(ResponseSpool.class.getName());
+
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+  public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+  private static final String SEGMENT_PREFIX = "responses-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+
+  private final File             _directory;
+  private final int              _segmentSize;
+  private final int              _maxSegments;
+  private final LinkedList<File> _segments = new LinkedList<File>();
+  // drained, but with responses still out for delivery
+  private final List<Drained>    _drained  = new ArrayList<Drained>();
+  private long                   _nextSequence;
+
+  private MappedByteBuffer _current;
+
+  private final AtomicLong _droppedRecords = new AtomicLong();
+
+  /**
+   * Open the spool in the directory. Any segments left by a previous run are
+   * kept to be drained.
+   *
+   * @param directory where the segment files go (it's created if it doesn't
+   *          exist)
+   * @param segmentSize the size of each segment file in bytes
+   * @param maxSegments the most segment files to keep
+   * @throws IOException if the directory can't be used
+   */
+  public ResponseSpool(File directory, int segmentSize, int maxSegments) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create the response spool directory [" + directory + "]");
+    }
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _maxSegments = maxSegments;
+
+    File[] existing = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    // the names sort in the order they were written
+    Arrays.sort(existing);
+    for (File segment : existing) {
+      _segments.add(segment);
+      _nextSequence = Math.max(_nextSequence, sequenceOf(segment) + 1);
+    }
+    if (!_segments.isEmpty()) {
+      LOGGER.info("Found " + _segments.size() + " response spool segments in [" + directory + "]");
+    }
+  }
+
+  private static long sequenceOf(File segment) {
+    String name = segment.getName();
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Write the response to the end of the spool.
+   *
+   * @param response the response to keep
+   * @return false if the response is too big for a segment (or couldn't be
+   *         written)
+   */
+  synchronized boolean append(PendingResponse response) {
+    if (response.respooled) {
+      // close() already wrote it back while it was still in flight
+      return true;
+    }
+    byte[] record;
+    try {
+      record = encode(response);
+    } catch (IOException e) {
+      // one of the strings is too long for writeUTF
+      LOGGER.warn("Unable to spool the response for probeID [" + response.probeID + "] - " + e.getLocalizedMessage());
+      return false;
+    }
+    if (record.length + 8 > _segmentSize) {
+      LOGGER.warn("The response for probeID [" + response.probeID + "] is too big to spool (" + record.length + " bytes)");
+      return false;
+    }
+
+    try {
+      if (_current == null || _current.remaining() < record.length + 8) {
+        startSegment();
+      }
+    } catch (IOException e) {
+      LOGGER.error("Unable to start a new response spool segment in [" + _directory + "]", e);
+      return false;
+    }
+
+    int start = _current.position();
+    _current.position(start + 4);
+    _current.put(record);
+    // the length goes in last so a torn record reads as the end of the segment
+    _current.putInt(start, record.length);
+    return true;
+  }
+
+  private void startSegment() throws IOException {
+    finishSegment();
+
+    while (_segments.size() >= _maxSegments) {
+      File oldest = _segments.removeFirst();
+      _droppedRecords.addAndGet(countRecords(oldest));
+      LOGGER.warn("The response spool is full. Dropping the oldest segment [" + oldest + "]");
+      delete(oldest);
+    }
+
+    File segment = new File(_directory, String.format("%s%016d%s", SEGMENT_PREFIX, _nextSequence++, SEGMENT_SUFFIX));
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      _current = file.getChannel().map(MapMode.READ_WRITE, 0, _segmentSize);
+    } finally {
+      // the mapping stays valid after the channel is closed
+      file.close();
+    }
+    _segments.add(segment);
+  }
+
+  private void finishSegment() {
+    if (_current != null) {
+      _current.force();
+      _current = null;
+    }
+  }
+
+  /**
+   * Take everything out of the spool. Each segment file is deleted once all of
+   * the responses read from it have been settled (see
+   * {@link #settle(PendingResponse)}).
+   *
+   * @return the spooled responses, oldest first
+   */
+  synchronized List<PendingResponse> drain() {
+    finishSegment();
+
+    List<PendingResponse> responses = new ArrayList<PendingResponse>();
+    while (!_segments.isEmpty()) {
+      File segment = _segments.removeFirst();
+      List<PendingResponse> records = new ArrayList<PendingResponse>();
+      try {
+        readSegment(segment, records);
+      } catch (IOException e) {
+        LOGGER.error("Unable to read the response spool segment [" + segment + "]", e);
+      }
+      if (records.isEmpty()) {
+        delete(segment);
+        continue;
+      }
+      Drained drained = new Drained(segment);
+      for (PendingResponse response : records) {
+        response.drainedFrom = drained;
+        drained.unsettled.add(response);
+      }
+      _drained.add(drained);
+      responses.addAll(records);
+    }
+    return responses;
+  }
+
+  /**
+   * Called when a response is done with. If it was drained from the spool and
+   * it's the last one from its segment still out, the segment is deleted. A
+   * response being written back to the spool has to be appended before it's
+   * settled.
+   *
+   * @param response the response
+   */
+  static void settle(PendingResponse response) {
+    Drained drained = response.drainedFrom;
+    if (drained != null) {
+      response.drainedFrom = null;
+      drained.settle(response);
+    }
+  }
+
+  private static MappedByteBuffer map(File segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      return file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      file.close();
+    }
+  }
+
+  private void readSegment(File segment, List<PendingResponse> responses) throws IOException {
+    MappedByteBuffer buffer = map(segment);
+    while (buffer.remaining() >= 4) {
+      int length = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+      byte[] record = new byte[length];
+      buffer.get(record);
+      try {
+        responses.add(decode(record));
+      } catch (IOException | BufferUnderflowException e) {
+        LOGGER.warn("Skipping a corrupt record in the response spool segment [" + segment + "]");
+      }
+    }
+  }
+
+  private long countRecords(File segment) {
+    try {
+      MappedByteBuffer buffer = map(segment);
+      long count = 0;
+      while (buffer.remaining() >= 4) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+          break;
+        }
+        buffer.position(buffer.position() + length);
+        count++;
+      }
+      return count;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static void delete(File segment) {
+    if (!segment.delete() && segment.exists()) {
+      LOGGER.warn("Unable to delete the response spool segment [" + segment + "]");
+    }
+  }
+
+  /**
+   * Return true if there is nothing in the spool waiting to be drained.
+   *
+   * @return true if the spool is empty
+   */
+  public synchronized boolean isEmpty() {
+    return _segments.isEmpty();
+  }
+
+  /**
+   * The number of responses lost because the oldest segment was dropped to
+   * make room.
+   *
+   * @return number of dropped responses
+   */
+  public long getDroppedRecords() {
+    return _droppedRecords.get();
+  }
+
+  /**
+   * Write the drained responses that haven't been settled back to the spool,
+   * delete the segments they came from and force the segment being written to
+   * the disk. The spool can still be drained after it's closed.
+   */
+  public synchronized void close() {
+    for (Drained drained : new ArrayList<Drained>(_drained)) {
+      for (PendingResponse response : new ArrayList<PendingResponse>(drained.unsettled)) {
+        if (!append(response)) {
+          _droppedRecords.incrementAndGet();
+        }
+        response.drainedFrom = null;
+        response.respooled = true;
+      }
+      drained.unsettled.clear();
+      delete(drained.file);
+    }
+    _drained.clear();
+    finishSegment();
+  }
+
+  /**
+   * A segment that has been drained, with the responses from it that are
+   * still out for delivery.
+   */
+  final class Drained {
+    final File                 file;
+    final Set<PendingResponse> unsettled = new HashSet<PendingResponse>();
+
+    Drained(File file) {
+      this.file = file;
+    }
+
+    void settle(PendingResponse response) {
+      synchronized (ResponseSpool.this) {
+        if (unsettled.remove(response) && unsettled.isEmpty()) {
+          _drained.remove(this);
+          delete(file);
+        }
+      }
+    }
+  }
+
+  private static byte[] encode(PendingResponse response) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.length + 256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(response.expiresAt);
+    out.writeInt(response.attempts);
+    out.writeBoolean(response.failover);
+    out.writeShort(response.respondToURLs.size());
+    for (String url : response.respondToURLs) {
+      out.writeUTF(url);
+    }
+    out.writeUTF(response.mimeType);
+    out.writeUTF(response.probeID);
+    out.writeInt(response.length);
+    out.write(response.body, 0, response.length);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static PendingResponse decode(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    long expiresAt = in.readLong();
+    int attempts = in.readInt();
+    boolean failover = in.readBoolean();
+    int urlCount = in.readUnsignedShort();
+    List<String> urls = new ArrayList<String>(urlCount);
+    for (int i = 0; i < urlCount; i++) {
+      urls.add(in.readUTF());
+    }
+    String mimeType = in.readUTF();
+    String probeID = in.readUTF();
+    byte[] body = new byte[in.readInt()];
+    in.readFully(body);
+    return new PendingResponse(urls, failover, mimeType, probeID, body, body.length, expiresAt, attempts);
+  }
+
+}
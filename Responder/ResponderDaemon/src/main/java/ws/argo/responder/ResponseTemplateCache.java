@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.wireline.response.ResponseStreamWriter;
+import ws.argo.wireline.response.ResponseTemplate;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * The ResponseTemplateCache holds the encoded response bodies for handlers
+ * that give the same answer to lots of probes. The config file handler, for
+ * example, answers every naked probe with the whole catalog, so the catalog is
+ * encoded once and every naked probe after that only costs a copy of the bytes
+ * plus the response and probe IDs.
+ *
+ * <p>A handler opts in by setting a cache key on its response (see
+ * {@link ResponseWrapper#setCacheKey(Object)}). The templates are held per
+ * handler and payload type, along with the key they were built for. When the
+ * handler hands back a different key (because its services have changed) the
+ * old template is simply replaced, so the cache never holds more than one
+ * template per handler and payload type.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseTemplateCache {
+
+  private static final ResponseStreamWriter RESPONSE_WRITER = new ResponseStreamWriter();
+
+  /**
+   * The handler is compared by identity - two instances of the same plugin
+   * class are two different handlers.
+   */
+  private static final class Slot {
+    final ProbeHandlerPlugin handler;
+    final String             payloadType;
+
+    Slot(ProbeHandlerPlugin handler, String payloadType) {
+      this.handler = handler;
+      this.payloadType = payloadType;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(handler) * 31 + payloadType.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Slot))
+        return false;
+      Slot slot = (Slot) obj;
+      return slot.handler == handler && slot.payloadType.equals(payloadType);
+    }
+  }
+
+  private static final class Entry {
+    final Object           cacheKey;
+    final ResponseTemplate template;
+
+    Entry(Object cacheKey, ResponseTemplate template) {
+      this.cacheKey = cacheKey;
+      this.template = template;
+    }
+  }
+
+  private final ConcurrentHashMap<Slot, Entry> _templates = new ConcurrentHashMap<Slot, Entry>();
+
+  private final AtomicLong _hits   = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+
+  /**
+   * Return the template for the handler's response, building it if the cache
+   * doesn't have one for the response's key yet.
+   *
+   * @param handler the handler that produced the response
+   * @param payloadType XML or JSON (anything else is JSON)
+   * @param response the handler's response
+   * @return the template or null if the response can't be cached
+   * @throws IOException if the template couldn't be built
+   */
+  public ResponseTemplate lookup(ProbeHandlerPlugin handler, String payloadType, ResponseWrapper response) throws IOException {
+    Object cacheKey = response.getCacheKey();
+    if (cacheKey == null || response.isEmpty()) {
+      return null;
+    }
+
+    Slot slot = new Slot(handler, ResponseStreamWriter.XML.equals(payloadType) ? ResponseStreamWriter.XML : ResponseStreamWriter.JSON);
+    Entry entry = _templates.get(slot);
+    if (entry != null && entry.cacheKey.equals(cacheKey)) {
+      _hits.incrementAndGet();
+      return entry.template;
+    }
+
+    // Two threads can both miss and both build the template. That's cheaper
+    // than locking and the last one in wins.
+    _misses.incrementAndGet();
+    ResponseTemplate template = RESPONSE_WRITER.compile(response.getServices(), slot.payloadType);
+    _templates.put(slot, new Entry(cacheKey, template));
+    return template;
+  }
+
+  /**
+   * Return the last template built for the handler's responses, whatever key
+   * it was built for. It's out of date if the handler's services have changed
+   * since - it's for when an answer right now matters more than an up to date
+   * one (see {@link LoadShedder}).
+   *
+   * @param handler the handler
+   * @param payloadType XML or JSON (anything else is JSON)
+   * @return the template or null if there isn't one
+   */
+  public ResponseTemplate latest(ProbeHandlerPlugin handler, String payloadType) {
+    Entry entry = _templates.get(new Slot(handler, ResponseStreamWriter.XML.equals(payloadType) ? ResponseStreamWriter.XML : ResponseStreamWriter.JSON));
+    return entry != null ? entry.template : null;
+  }
+
+  /**
+   * Drop all of the templates.
+   */
+  public void clear() {
+    _templates.clear();
+  }
+
+  public int size() {
+    return _templates.size();
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public long getMisses() {
+    return _misses.get();
+  }
+
+}
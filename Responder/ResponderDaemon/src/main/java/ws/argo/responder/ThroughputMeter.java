@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The ThroughputMeter counts events (processed probes) and reports the rate
+ * over a sliding window of the last 1, 10 or 60 seconds along with the
+ * lifetime total.
+ *
+ * <p>The meter is a fixed ring of per-second buckets. Each bucket is split into
+ * stripes so that threads recording at the same time don't all fight over the
+ * same counter. Recording an event is a couple of atomic increments - there is
+ * no locking and no allocation. Reading the rate just sums the buckets in the
+ * window.
+ *
+ * <p>The lifetime total is exact. The windowed rates are very close but not
+ * exact - a thread that records right as a bucket is recycled for a new second
+ * could have its event land in the new second.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ThroughputMeter {
+
+  // must be a power of 2 and more than the largest window
+  private static final int  NUMBER_OF_BUCKETS = 64;
+  private static final int  BUCKET_MASK       = NUMBER_OF_BUCKETS - 1;
+
+  // spread the stripes out to their own cache line (8 longs = 64 bytes)
+  private static final int  PADDING           = 8;
+
+  private static final long RESETTING         = Long.MIN_VALUE;
+
+  private final int             _stripes;
+  private final long            _startNanos;
+  private final AtomicLongArray _stamps;
+  private final AtomicLongArray _counts;
+  private final AtomicLongArray _totals;
+
+  /**
+   * Create a new meter with a stripe per available processor (up to 16).
+   */
+  public ThroughputMeter() {
+    _stripes = stripesFor(Runtime.getRuntime().availableProcessors());
+    _startNanos = System.nanoTime();
+    _stamps = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    _counts = new AtomicLongArray(NUMBER_OF_BUCKETS * _stripes * PADDING);
+    _totals = new AtomicLongArray(_stripes * PADDING);
+    for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+      _stamps.set(i, -1);
+    }
+  }
+
+  private static int stripesFor(int processors) {
+    int stripes = 1;
+    while (stripes < processors && stripes < 16) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /**
+   * Record a single event.
+   */
+  public void mark() {
+    int stripe = (int) Thread.currentThread().getId() & (_stripes - 1);
+
+    _totals.incrementAndGet(stripe * PADDING);
+
+    long second = currentSecond();
+    int bucket = (int) (second & BUCKET_MASK);
+
+    long stamp = _stamps.get(bucket);
+    while (stamp != second) {
+      if (stamp == RESETTING) {
+        // someone else is recycling the bucket - it only takes a moment
+        Thread.yield();
+      } else if (stamp > second) {
+        // this thread was so slow the bucket moved on without it - only the
+        // total gets the event
+        return;
+      } else if (_stamps.compareAndSet(bucket, stamp, RESETTING)) {
+        int base = bucket * _stripes;
+        for (int i = 0; i < _stripes; i++) {
+          _counts.set((base + i) * PADDING, 0);
+        }
+        _stamps.set(bucket, second);
+        break;
+      }
+      stamp = _stamps.get(bucket);
+    }
+
+    _counts.incrementAndGet((bucket * _stripes + stripe) * PADDING);
+  }
+
+  /**
+   * The average number of events per second over the last full seconds.
+   *
+   * @param seconds the size of the window (1 to 60)
+   * @return events per second
+   */
+  public float rate(int seconds) {
+    if (seconds < 1 || seconds >= NUMBER_OF_BUCKETS) {
+      throw new IllegalArgumentException("The window must be between 1 and " + (NUMBER_OF_BUCKETS - 1) + " seconds: " + seconds);
+    }
+
+    long now = currentSecond();
+    long events = 0;
+
+    for (long second = now - seconds; second < now; second++) {
+      if (second < 0) {
+        continue;
+      }
+      int bucket = (int) (second & BUCKET_MASK);
+      if (_stamps.get(bucket) == second) {
+        int base = bucket * _stripes;
+        for (int i = 0; i < _stripes; i++) {
+          events += _counts.get((base + i) * PADDING);
+        }
+      }
+    }
+
+    // Don't average over time the meter wasn't running
+    long window = Math.max(1, Math.min(seconds, now));
+
+    return (float) events / window;
+  }
+
+  public float oneSecondRate() {
+    return rate(1);
+  }
+
+  public float tenSecondRate() {
+    return rate(10);
+  }
+
+  public float sixtySecondRate() {
+    return rate(60);
+  }
+
+  /**
+   * The number of events recorded since the meter was created.
+   *
+   * @return the lifetime total
+   */
+  public long total() {
+    long total = 0;
+    for (int i = 0; i < _stripes; i++) {
+      total += _totals.get(i * PADDING);
+    }
+    return total;
+  }
+
+  /**
+   * The number of whole seconds since the meter was created.
+   *
+   * @return current second
+   */
+  protected long currentSecond() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - _startNanos);
+  }
+
+}
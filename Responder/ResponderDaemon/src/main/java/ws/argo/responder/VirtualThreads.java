@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Access to the virtual thread executor on JVMs that have one (Java 21 on).
+ * The Responder is built for Java 7, so the executor is looked up by
+ * reflection and everything here copes with it not being there.
+ *
+ * @author jmsimpson
+ *
+ */
+public final class VirtualThreads {
+
+  private static final Logger LOGGER = LogManager.getLogger(VirtualThreads.class.getName());
+
+  private static final Method NEW_EXECUTOR = findFactory();
+
+  private VirtualThreads() {
+  }
+
+  private static Method findFactory() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Return true if this JVM has virtual threads.
+   *
+   * @return true if {@link #newExecutor()} will work
+   */
+  public static boolean isAvailable() {
+    return NEW_EXECUTOR != null;
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task.
+   *
+   * @return the executor or null if this JVM doesn't have virtual threads
+   */
+  public static ExecutorService newExecutor() {
+    if (NEW_EXECUTOR == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      LOGGER.warn("Unable to create a virtual thread executor", e);
+      return null;
+    }
+  }
+
+}
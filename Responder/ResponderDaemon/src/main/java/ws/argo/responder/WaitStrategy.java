@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How the consumers of the {@link ProbeRingBuffer} wait for the next probe.
+ * Busy spinning gets the lowest latency but burns a core per consumer the
+ * whole time. Yielding is nearly as quick and gives the core up to other
+ * threads. Blocking parks the consumers, which is the right choice unless
+ * the Responder has cores to spare.
+ *
+ * @author jmsimpson
+ *
+ */
+public interface WaitStrategy {
+
+  /**
+   * Wait until a producer has claimed the sequence.
+   *
+   * @param sequence the sequence the consumer wants
+   * @param ring the ring buffer
+   * @return the ring's cursor - less than the sequence if the ring was halted
+   * @throws InterruptedException if the consumer was interrupted
+   */
+  long waitFor(long sequence, ProbeRingBuffer ring) throws InterruptedException;
+
+  /**
+   * Wake up any consumers that are blocked. Called after every publish.
+   */
+  void signalAllWhenBlocking();
+
+  /**
+   * Spin on the cursor.
+   */
+  public static class BusySpin implements WaitStrategy {
+
+    @Override
+    public long waitFor(long sequence, ProbeRingBuffer ring) {
+      long cursor;
+      while ((cursor = ring.getCursor()) < sequence) {
+        if (ring.isHalted()) {
+          return cursor;
+        }
+      }
+      return cursor;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+    }
+  }
+
+  /**
+   * Spin on the cursor for a while and then yield the thread between checks.
+   */
+  public static class Yielding implements WaitStrategy {
+
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public long waitFor(long sequence, ProbeRingBuffer ring) {
+      long cursor;
+      int counter = SPIN_TRIES;
+      while ((cursor = ring.getCursor()) < sequence) {
+        if (ring.isHalted()) {
+          return cursor;
+        }
+        if (counter > 0) {
+          counter--;
+        } else {
+          Thread.yield();
+        }
+      }
+      return cursor;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+    }
+  }
+
+  /**
+   * Park on a condition until a producer signals. The producers only take the
+   * lock when a consumer has said it's waiting.
+   */
+  public static class Blocking implements WaitStrategy {
+
+    private final ReentrantLock _lock         = new ReentrantLock();
+    private final Condition     _published    = _lock.newCondition();
+    private final AtomicBoolean _signalNeeded = new AtomicBoolean();
+
+    @Override
+    public long waitFor(long sequence, ProbeRingBuffer ring) throws InterruptedException {
+      long cursor = ring.getCursor();
+      if (cursor < sequence) {
+        _lock.lock();
+        try {
+          while (true) {
+            _signalNeeded.set(true);
+            cursor = ring.getCursor();
+            if (cursor >= sequence || ring.isHalted()) {
+              break;
+            }
+            _published.await();
+          }
+        } finally {
+          _lock.unlock();
+        }
+      }
+      return cursor;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+      if (_signalNeeded.getAndSet(false)) {
+        _lock.lock();
+        try {
+          _published.signalAll();
+        } finally {
+          _lock.unlock();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.configuration;
+
+/**
+ * The scheduling limits for one client of the Responder (see the
+ * clientScheduling section of the responder configuration). The rate and
+ * burst make up the client's token bucket and the weight is its share of the
+ * Responder's threads when more than one client is waiting.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ClientPolicy {
+
+  private final String _id;
+  private final int    _rate;
+  private final int    _burst;
+  private final int    _weight;
+
+  /**
+   * Create a client policy.
+   * 
+   * @param id the client ID or source address the policy is for (null for
+   *          the default policy)
+   * @param rate probes per second (0 for no limit)
+   * @param burst the most probes the client can send at once
+   * @param weight how many probes the client gets in a row in its turn
+   */
+  public ClientPolicy(String id, int rate, int burst, int weight) {
+    _id = id;
+    _rate = rate;
+    _burst = burst;
+    _weight = weight;
+  }
+
+  public String getId() {
+    return _id;
+  }
+
+  public int getRate() {
+    return _rate;
+  }
+
+  public int getBurst() {
+    return _burst;
+  }
+
+  public int getWeight() {
+    return _weight;
+  }
+
+}
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.ConversionException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -31,12 +32,52 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
 
   private static final Logger     LOGGER = LogManager.getLogger(ResponderConfiguration.class.getName());
 
+  public static final String      POOL    = "pool";
+  public static final String      VIRTUAL = "virtual";
+  public static final String      RING    = "ring";
+
   private boolean                 _noBrowser;
   private ArrayList<PluginConfig> _probeHandlerConfigs;
   private ArrayList<PluginConfig> _transportConfigs;
   private boolean                 _runMonitor;
   private int                     _monitorInterval;
+  private int                     _metricsPort;
+  private String                  _metricsAddress            = "0.0.0.0";
+  private boolean                 _metricsJMX                = true;
   private int                     _threadPoolSize;
+  private int                     _probeCacheTimeout;
+  private int                     _probeCacheCapacity;
+
+  // the defaults are here too for a blank configuration
+  private int                     _handlerDeadline           = 2000;
+  private String                  _executionMode             = POOL;
+  private int                     _maxConcurrentProbes       = 1000;
+  private int                     _ringSize                  = 1024;
+  private int                     _ringConsumers;
+  private int                     _ringBatchSize             = 16;
+  private String                  _ringWaitStrategy          = "block";
+  private boolean                 _answerShedProbes;
+  private boolean                 _clientScheduling;
+  private ClientPolicy            _defaultClientPolicy       = new ClientPolicy(null, 20, 40, 1);
+  private ArrayList<ClientPolicy> _clientPolicies            = new ArrayList<ClientPolicy>();
+  private int                     _clientQueueSize           = 100;
+  private int                     _clientMaxInFlight;
+  private int                     _maxClients                = 10000;
+  private int                     _deliveryConnectTimeout    = 5000;
+  private int                     _deliveryReadTimeout       = 10000;
+  private int                     _deliveryMaxConnections    = 100;
+  private int                     _deliveryMaxPerDestination = 4;
+  private int                     _deliveryMaxPending        = 1000;
+  private int                     _deliveryIOThreads         = 2;
+  private String                  _deliveryMode              = "first";
+  private int                     _deliveryRetries           = 5;
+  private int                     _deliveryRetryInitialDelay = 500;
+  private int                     _deliveryRetryMaxDelay     = 30000;
+  private int                     _deliveryRetryMaxAge       = 60000;
+  private int                     _deliveryRetryQueueSize    = 1000;
+  private String                  _deliverySpoolDirectory;
+  private int                     _deliverySpoolSegmentSize  = 4 * 1024 * 1024;
+  private int                     _deliverySpoolMaxSegments  = 16;
 
   private boolean                 _allowHTTPS;
   private String                  _truststoreType;
@@ -54,6 +95,9 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
   protected void initializeConfiguration() {
     initializeMonitorValues();
     initializeThreadPoolValues();
+    initializeClientSchedulingValues();
+    initializeProbeCacheValues();
+    initializeDeliveryValues();
     initializeProbeHandlers();
     intializeTransports();
     initializeSecurity();
@@ -113,6 +157,121 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
       LOGGER.warn("Error reading threadPoolSize number from properties file.  Using default threadPoolSize of 10.");
       _threadPoolSize = 10;
     }
+
+    _handlerDeadline = readInt("handlerDeadline", 2000, 0);
+
+    _executionMode = _config.getString("executionMode", POOL);
+    if (!POOL.equals(_executionMode) && !VIRTUAL.equals(_executionMode) && !RING.equals(_executionMode)) {
+      warn("Unknown executionMode [" + _executionMode + "] in the properties file.  Using the default of pool.");
+      _executionMode = POOL;
+    }
+    _maxConcurrentProbes = readPositiveInt("maxConcurrentProbes", 1000);
+
+    _ringSize = readPositiveInt("ringSize", 1024);
+    _ringConsumers = readInt("ringConsumers", 0, 0);
+    _ringBatchSize = readPositiveInt("ringBatchSize", 16);
+    _ringWaitStrategy = _config.getString("ringWaitStrategy", "block");
+    if (!"block".equals(_ringWaitStrategy) && !"yield".equals(_ringWaitStrategy) && !"spin".equals(_ringWaitStrategy)) {
+      warn("Unknown ringWaitStrategy [" + _ringWaitStrategy + "] in the properties file.  Using the default of block.");
+      _ringWaitStrategy = "block";
+    }
+    _answerShedProbes = Boolean.parseBoolean(_config.getString("answerShedProbes", "false"));
+  }
+
+  private void initializeClientSchedulingValues() {
+    _clientScheduling = Boolean.parseBoolean(_config.getString("clientScheduling.enabled", "false"));
+    int rate = readInt("clientScheduling.rate", 20, 0);
+    int burst = readPositiveInt("clientScheduling.burst", 40);
+    int weight = readPositiveInt("clientScheduling.weight", 1);
+    _defaultClientPolicy = new ClientPolicy(null, rate, burst, weight);
+    _clientQueueSize = readPositiveInt("clientScheduling.queueSize", 100);
+    _clientMaxInFlight = readInt("clientScheduling.maxInFlight", 0, 0);
+    _maxClients = readPositiveInt("clientScheduling.maxClients", 10000);
+
+    _clientPolicies = new ArrayList<ClientPolicy>();
+
+    List<HierarchicalConfiguration> clients = _config.configurationsAt("clientScheduling.client");
+
+    for (HierarchicalConfiguration c : clients) {
+      String id = c.getString("id");
+      if (id == null || id.trim().isEmpty()) {
+        warn("Encountered a client in the clientScheduling section without an id.  Ignoring it.");
+        continue;
+      }
+      try {
+        int clientRate = c.getInt("rate", rate);
+        int clientBurst = c.getInt("burst", burst);
+        int clientWeight = c.getInt("weight", weight);
+        if (clientRate < 0 || clientBurst < 1 || clientWeight < 1) {
+          warn("The limits for client [" + id + "] in the clientScheduling section are out of range.  Using the defaults.");
+          _clientPolicies.add(new ClientPolicy(id.trim(), rate, burst, weight));
+        } else {
+          _clientPolicies.add(new ClientPolicy(id.trim(), clientRate, clientBurst, clientWeight));
+        }
+      } catch (ConversionException e) {
+        warn("Error reading the limits for client [" + id + "] in the clientScheduling section.  Using the defaults.");
+        _clientPolicies.add(new ClientPolicy(id.trim(), rate, burst, weight));
+      }
+    }
+  }
+
+  private void initializeProbeCacheValues() {
+    try {
+      _probeCacheTimeout = Integer.parseInt(_config.getString("probeCacheTimeout", "300"));
+    } catch (NumberFormatException e) {
+      warn("Error reading probeCacheTimeout number from properties file.  Using default timeout of 300 seconds.");
+      _probeCacheTimeout = 300;
+    }
+
+    try {
+      _probeCacheCapacity = Integer.parseInt(_config.getString("probeCacheCapacity", "100000"));
+    } catch (NumberFormatException e) {
+      warn("Error reading probeCacheCapacity number from properties file.  Using default capacity of 100000.");
+      _probeCacheCapacity = 100000;
+    }
+  }
+
+  private void initializeDeliveryValues() {
+    _deliveryConnectTimeout = readPositiveInt("deliveryConnectTimeout", 5000);
+    _deliveryReadTimeout = readPositiveInt("deliveryReadTimeout", 10000);
+    _deliveryMaxConnections = readPositiveInt("deliveryMaxConnections", 100);
+    _deliveryMaxPerDestination = readPositiveInt("deliveryMaxPerDestination", 4);
+    _deliveryMaxPending = readPositiveInt("deliveryMaxPending", 1000);
+    _deliveryIOThreads = readPositiveInt("deliveryIOThreads", 2);
+
+    _deliveryMode = _config.getString("deliveryMode", "first");
+    if (!"first".equals(_deliveryMode) && !"all".equals(_deliveryMode) && !"firstSuccess".equals(_deliveryMode)) {
+      warn("Unknown deliveryMode [" + _deliveryMode + "] in the properties file.  Using the default of first.");
+      _deliveryMode = "first";
+    }
+
+    _deliveryRetries = readInt("deliveryRetries", 5, 0);
+    _deliveryRetryInitialDelay = readPositiveInt("deliveryRetryInitialDelay", 500);
+    _deliveryRetryMaxDelay = readPositiveInt("deliveryRetryMaxDelay", 30000);
+    _deliveryRetryMaxAge = readPositiveInt("deliveryRetryMaxAge", 60000);
+    _deliveryRetryQueueSize = readPositiveInt("deliveryRetryQueueSize", 1000);
+
+    String spoolDirectory = _config.getString("deliverySpoolDirectory", "").trim();
+    _deliverySpoolDirectory = spoolDirectory.isEmpty() ? null : spoolDirectory;
+    _deliverySpoolSegmentSize = readPositiveInt("deliverySpoolSegmentSize", 4 * 1024 * 1024);
+    _deliverySpoolMaxSegments = readPositiveInt("deliverySpoolMaxSegments", 16);
+  }
+
+  private int readPositiveInt(String key, int defaultValue) {
+    return readInt(key, defaultValue, 1);
+  }
+
+  private int readInt(String key, int defaultValue, int minimum) {
+    try {
+      int value = Integer.parseInt(_config.getString(key, Integer.toString(defaultValue)));
+      if (value >= minimum) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // fall through to the warning
+    }
+    warn("Error reading " + key + " number from properties file.  Using default of " + defaultValue + ".");
+    return defaultValue;
   }
 
   private void initializeMonitorValues() {
@@ -125,6 +284,10 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
       warn("Error reading monitorInterval number from properties file.  Using default port of 5.");
       _monitorInterval = 5;
     }
+
+    _metricsPort = readInt("metricsPort", 0, 0);
+    _metricsAddress = _config.getString("metricsAddress", "0.0.0.0");
+    _metricsJMX = Boolean.parseBoolean(_config.getString("metricsJMX", "true"));
   }
   
   /**
@@ -194,6 +357,40 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
     this._monitorInterval = monitorInterval;
   }
 
+  /**
+   * The port for the /metrics endpoint.
+   * 
+   * @return the port, 0 if the endpoint is off
+   */
+  public int getMetricsPort() {
+    return _metricsPort;
+  }
+
+  public void setMetricsPort(int metricsPort) {
+    this._metricsPort = metricsPort;
+  }
+
+  public String getMetricsAddress() {
+    return _metricsAddress;
+  }
+
+  public void setMetricsAddress(String metricsAddress) {
+    this._metricsAddress = metricsAddress;
+  }
+
+  /**
+   * Whether the stage latency histograms are registered as MXBeans.
+   * 
+   * @return true to register them
+   */
+  public boolean isMetricsJMX() {
+    return _metricsJMX;
+  }
+
+  public void setMetricsJMX(boolean metricsJMX) {
+    this._metricsJMX = metricsJMX;
+  }
+
   public int getThreadPoolSize() {
     return _threadPoolSize;
   }
@@ -202,6 +399,367 @@ public class ResponderConfiguration extends ResolvingXMLConfiguration {
     this._threadPoolSize = threadPoolSize;
   }
 
+  /**
+   * How long (in milliseconds) the probe handlers get to answer a probe. 0
+   * means the handlers run one after the other and can take as long as they
+   * like.
+   *
+   * @return the handler deadline in milliseconds
+   */
+  public int getHandlerDeadline() {
+    return _handlerDeadline;
+  }
+
+  public void setHandlerDeadline(int handlerDeadline) {
+    this._handlerDeadline = handlerDeadline;
+  }
+
+  /**
+   * Where the probes run - pool (the thread pool) or virtual (a virtual thread
+   * per probe).
+   *
+   * @return the execution mode
+   */
+  public String getExecutionMode() {
+    return _executionMode;
+  }
+
+  public void setExecutionMode(String executionMode) {
+    this._executionMode = executionMode;
+  }
+
+  /**
+   * The most probes handled at once in the virtual execution mode.
+   *
+   * @return the maximum number of concurrent probes
+   */
+  public int getMaxConcurrentProbes() {
+    return _maxConcurrentProbes;
+  }
+
+  public void setMaxConcurrentProbes(int maxConcurrentProbes) {
+    this._maxConcurrentProbes = maxConcurrentProbes;
+  }
+
+  /**
+   * The number of slots in the ring buffer in the ring execution mode.
+   *
+   * @return the ring size
+   */
+  public int getRingSize() {
+    return _ringSize;
+  }
+
+  public void setRingSize(int ringSize) {
+    this._ringSize = ringSize;
+  }
+
+  /**
+   * The number of threads taking probes off the ring buffer. 0 means the
+   * thread pool size.
+   *
+   * @return the number of ring consumers
+   */
+  public int getRingConsumers() {
+    return _ringConsumers;
+  }
+
+  public void setRingConsumers(int ringConsumers) {
+    this._ringConsumers = ringConsumers;
+  }
+
+  /**
+   * The most probes a ring consumer takes at once.
+   *
+   * @return the batch size
+   */
+  public int getRingBatchSize() {
+    return _ringBatchSize;
+  }
+
+  public void setRingBatchSize(int ringBatchSize) {
+    this._ringBatchSize = ringBatchSize;
+  }
+
+  /**
+   * How the ring consumers wait for probes - block, yield or spin.
+   *
+   * @return the wait strategy name
+   */
+  public String getRingWaitStrategy() {
+    return _ringWaitStrategy;
+  }
+
+  public void setRingWaitStrategy(String ringWaitStrategy) {
+    this._ringWaitStrategy = ringWaitStrategy;
+  }
+
+  /**
+   * Whether a naked probe dropped because the Responder is overloaded is
+   * answered from the cached naked response.
+   *
+   * @return true if shed probes are answered from the cache
+   */
+  public boolean isAnswerShedProbes() {
+    return _answerShedProbes;
+  }
+
+  public void setAnswerShedProbes(boolean answerShedProbes) {
+    this._answerShedProbes = answerShedProbes;
+  }
+
+  /**
+   * Whether probes go through the per client scheduler (see the
+   * clientScheduling section) on their way to the threads.
+   *
+   * @return true if client scheduling is on
+   */
+  public boolean isClientScheduling() {
+    return _clientScheduling;
+  }
+
+  public void setClientScheduling(boolean clientScheduling) {
+    this._clientScheduling = clientScheduling;
+  }
+
+  /**
+   * The limits for clients that don't have a policy of their own.
+   *
+   * @return the default client policy
+   */
+  public ClientPolicy getDefaultClientPolicy() {
+    return _defaultClientPolicy;
+  }
+
+  public void setDefaultClientPolicy(ClientPolicy defaultClientPolicy) {
+    this._defaultClientPolicy = defaultClientPolicy;
+  }
+
+  public ArrayList<ClientPolicy> getClientPolicies() {
+    return _clientPolicies;
+  }
+
+  public void setClientPolicies(ArrayList<ClientPolicy> clientPolicies) {
+    this._clientPolicies = clientPolicies;
+  }
+
+  /**
+   * The most probes from one client that can wait for a thread.
+   *
+   * @return the per client queue size
+   */
+  public int getClientQueueSize() {
+    return _clientQueueSize;
+  }
+
+  public void setClientQueueSize(int clientQueueSize) {
+    this._clientQueueSize = clientQueueSize;
+  }
+
+  /**
+   * The most scheduled probes being handled at once. 0 means the thread pool
+   * size (or maxConcurrentProbes in virtual mode).
+   *
+   * @return the in flight limit
+   */
+  public int getClientMaxInFlight() {
+    return _clientMaxInFlight;
+  }
+
+  public void setClientMaxInFlight(int clientMaxInFlight) {
+    this._clientMaxInFlight = clientMaxInFlight;
+  }
+
+  /**
+   * The most clients the scheduler keeps track of. Past that, probes from new
+   * clients share one entry.
+   *
+   * @return the client limit
+   */
+  public int getMaxClients() {
+    return _maxClients;
+  }
+
+  public void setMaxClients(int maxClients) {
+    this._maxClients = maxClients;
+  }
+
+  /**
+   * How long (in seconds) the Responder remembers that it handled a probe.
+   *
+   * @return the probe cache timeout in seconds
+   */
+  public int getProbeCacheTimeout() {
+    return _probeCacheTimeout;
+  }
+
+  public void setProbeCacheTimeout(int probeCacheTimeout) {
+    this._probeCacheTimeout = probeCacheTimeout;
+  }
+
+  public int getProbeCacheCapacity() {
+    return _probeCacheCapacity;
+  }
+
+  public void setProbeCacheCapacity(int probeCacheCapacity) {
+    this._probeCacheCapacity = probeCacheCapacity;
+  }
+
+  /**
+   * How long (in milliseconds) the Responder waits to connect to a listener
+   * when sending a response.
+   *
+   * @return the connect timeout in milliseconds
+   */
+  public int getDeliveryConnectTimeout() {
+    return _deliveryConnectTimeout;
+  }
+
+  public void setDeliveryConnectTimeout(int deliveryConnectTimeout) {
+    this._deliveryConnectTimeout = deliveryConnectTimeout;
+  }
+
+  /**
+   * How long (in milliseconds) the Responder waits for a listener to answer
+   * when sending a response.
+   *
+   * @return the read timeout in milliseconds
+   */
+  public int getDeliveryReadTimeout() {
+    return _deliveryReadTimeout;
+  }
+
+  public void setDeliveryReadTimeout(int deliveryReadTimeout) {
+    this._deliveryReadTimeout = deliveryReadTimeout;
+  }
+
+  public int getDeliveryMaxConnections() {
+    return _deliveryMaxConnections;
+  }
+
+  public void setDeliveryMaxConnections(int deliveryMaxConnections) {
+    this._deliveryMaxConnections = deliveryMaxConnections;
+  }
+
+  public int getDeliveryMaxPerDestination() {
+    return _deliveryMaxPerDestination;
+  }
+
+  public void setDeliveryMaxPerDestination(int deliveryMaxPerDestination) {
+    this._deliveryMaxPerDestination = deliveryMaxPerDestination;
+  }
+
+  public int getDeliveryMaxPending() {
+    return _deliveryMaxPending;
+  }
+
+  public void setDeliveryMaxPending(int deliveryMaxPending) {
+    this._deliveryMaxPending = deliveryMaxPending;
+  }
+
+  public int getDeliveryIOThreads() {
+    return _deliveryIOThreads;
+  }
+
+  public void setDeliveryIOThreads(int deliveryIOThreads) {
+    this._deliveryIOThreads = deliveryIOThreads;
+  }
+
+  /**
+   * What to do with a probe that has more than one respondTo URL - first, all
+   * or firstSuccess.
+   *
+   * @return the delivery mode
+   */
+  public String getDeliveryMode() {
+    return _deliveryMode;
+  }
+
+  public void setDeliveryMode(String deliveryMode) {
+    this._deliveryMode = deliveryMode;
+  }
+
+  /**
+   * The most times a failed response is retried. 0 means responses aren't
+   * retried.
+   *
+   * @return the number of retries
+   */
+  public int getDeliveryRetries() {
+    return _deliveryRetries;
+  }
+
+  public void setDeliveryRetries(int deliveryRetries) {
+    this._deliveryRetries = deliveryRetries;
+  }
+
+  public int getDeliveryRetryInitialDelay() {
+    return _deliveryRetryInitialDelay;
+  }
+
+  public void setDeliveryRetryInitialDelay(int deliveryRetryInitialDelay) {
+    this._deliveryRetryInitialDelay = deliveryRetryInitialDelay;
+  }
+
+  public int getDeliveryRetryMaxDelay() {
+    return _deliveryRetryMaxDelay;
+  }
+
+  public void setDeliveryRetryMaxDelay(int deliveryRetryMaxDelay) {
+    this._deliveryRetryMaxDelay = deliveryRetryMaxDelay;
+  }
+
+  /**
+   * How long (in milliseconds) after the probe was handled its response is
+   * still worth sending.
+   *
+   * @return the maximum age of a response in milliseconds
+   */
+  public int getDeliveryRetryMaxAge() {
+    return _deliveryRetryMaxAge;
+  }
+
+  public void setDeliveryRetryMaxAge(int deliveryRetryMaxAge) {
+    this._deliveryRetryMaxAge = deliveryRetryMaxAge;
+  }
+
+  public int getDeliveryRetryQueueSize() {
+    return _deliveryRetryQueueSize;
+  }
+
+  public void setDeliveryRetryQueueSize(int deliveryRetryQueueSize) {
+    this._deliveryRetryQueueSize = deliveryRetryQueueSize;
+  }
+
+  /**
+   * Where the responses that don't fit in the retry queue are spooled.
+   *
+   * @return the spool directory or null if there is no spool
+   */
+  public String getDeliverySpoolDirectory() {
+    return _deliverySpoolDirectory;
+  }
+
+  public void setDeliverySpoolDirectory(String deliverySpoolDirectory) {
+    this._deliverySpoolDirectory = deliverySpoolDirectory;
+  }
+
+  public int getDeliverySpoolSegmentSize() {
+    return _deliverySpoolSegmentSize;
+  }
+
+  public void setDeliverySpoolSegmentSize(int deliverySpoolSegmentSize) {
+    this._deliverySpoolSegmentSize = deliverySpoolSegmentSize;
+  }
+
+  public int getDeliverySpoolMaxSegments() {
+    return _deliverySpoolMaxSegments;
+  }
+
+  public void setDeliverySpoolMaxSegments(int deliverySpoolMaxSegments) {
+    this._deliverySpoolMaxSegments = deliverySpoolMaxSegments;
+  }
+
   public boolean isAllowHTTPS() {
     return _allowHTTPS;
   }
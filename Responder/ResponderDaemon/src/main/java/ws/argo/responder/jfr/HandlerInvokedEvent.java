@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A probe handler worked on a probe.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.HandlerInvoked")
+@Label("Handler Invoked")
+@Description("A probe handler worked on a probe")
+@Category({ "Argo", "Responder" })
+@StackTrace(false)
+public class HandlerInvokedEvent extends jdk.jfr.Event {
+
+  @Label("Probe ID")
+  String probeId;
+
+  @Label("Handler")
+  String handler;
+
+  @Label("Outcome")
+  @Description("answered, missed (the deadline) or failed")
+  String outcome;
+
+  @Label("Services")
+  @Description("The number of services in the handler's response")
+  int    services;
+
+  @Label("Handler Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long   handlerTime;
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Responder checked whether it had already handled a probe.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.ProbeDeduplicated")
+@Label("Probe Deduplicated")
+@Description("The Responder checked whether it had already handled a probe")
+@Category({ "Argo", "Responder" })
+@StackTrace(false)
+public class ProbeDeduplicatedEvent extends jdk.jfr.Event {
+
+  @Label("Probe ID")
+  String  probeId;
+
+  @Label("Stage")
+  @Description("Where the check was made - the transport (before the parse) or the handler thread")
+  String  stage;
+
+  @Label("Duplicate")
+  boolean duplicate;
+
+  @Label("Check Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long    checkTime;
+
+}
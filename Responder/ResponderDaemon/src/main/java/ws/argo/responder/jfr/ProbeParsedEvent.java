@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A transport parsed a probe.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.ProbeParsed")
+@Label("Probe Parsed")
+@Description("A transport parsed a probe")
+@Category({ "Argo", "Responder" })
+@StackTrace(false)
+public class ProbeParsedEvent extends jdk.jfr.Event {
+
+  @Label("Transport")
+  String  transport;
+
+  @Label("Probe ID")
+  String  probeId;
+
+  @Label("Size")
+  @DataAmount(DataAmount.BYTES)
+  int     size;
+
+  @Label("Parse Queue Time")
+  @Description("From the receive until the parse started")
+  @Timespan(Timespan.NANOSECONDS)
+  long    queueTime;
+
+  @Label("Parse Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long    parseTime;
+
+  @Label("Succeeded")
+  boolean succeeded;
+
+}
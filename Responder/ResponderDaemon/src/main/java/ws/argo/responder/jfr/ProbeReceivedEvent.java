@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A datagram (or message) carrying a probe came in on a transport.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.ProbeReceived")
+@Label("Probe Received")
+@Description("A probe came in on a transport")
+@Category({ "Argo", "Responder" })
+@StackTrace(false)
+public class ProbeReceivedEvent extends jdk.jfr.Event {
+
+  @Label("Transport")
+  String transport;
+
+  @Label("Probe ID")
+  @Description("The probe ID if it could be read before the parse")
+  String probeId;
+
+  @Label("Sender")
+  String sender;
+
+  @Label("Size")
+  @DataAmount(DataAmount.BYTES)
+  int    size;
+
+}
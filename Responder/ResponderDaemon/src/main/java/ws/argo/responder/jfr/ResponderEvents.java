@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import java.net.InetAddress;
+
+/**
+ * The ResponderEvents commit the Responder's Java Flight Recorder events for
+ * each stage of handling a probe. They cost next to nothing unless a recording
+ * is running, so they're always on.
+ *
+ * <p>The Responder still runs on JVMs without the jdk.jfr API (before Java 8u262
+ * or 11). The event classes are only touched once the API has been found, so
+ * on those JVMs every method here just returns. The events can also be turned
+ * off with -Dargo.jfr=false.
+ * 
+ * @author jmsimpson
+ *
+ */
+public final class ResponderEvents {
+
+  public static final String  ANSWERED  = "answered";
+  public static final String  MISSED    = "missed";
+  public static final String  FAILED    = "failed";
+
+  public static final String  TRANSPORT = "transport";
+  public static final String  HANDLER   = "handler";
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private ResponderEvents() {
+  }
+
+  private static boolean isAvailable() {
+    if (!Boolean.parseBoolean(System.getProperty("argo.jfr", "true"))) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Whether the events are committed at all.
+   *
+   * @return true if the jdk.jfr API is there and the events aren't turned off
+   */
+  public static boolean isEnabled() {
+    return AVAILABLE;
+  }
+
+  /**
+   * A probe came in on a transport.
+   *
+   * @param transport the transport
+   * @param probeId the probe ID, if it's known before the parse
+   * @param sender where the probe came from (may be null)
+   * @param size the size of the payload
+   */
+  public static void probeReceived(String transport, String probeId, InetAddress sender, int size) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ProbeReceivedEvent event = new ProbeReceivedEvent();
+    if (event.isEnabled()) {
+      event.transport = transport;
+      event.probeId = probeId;
+      event.sender = sender != null ? sender.getHostAddress() : null;
+      event.size = size;
+      event.commit();
+    }
+  }
+
+  /**
+   * A transport parsed a probe.
+   *
+   * @param transport the transport
+   * @param probeId the probe ID, null if the parse failed
+   * @param size the size of the payload
+   * @param queueTime nanoseconds from the receive to the start of the parse
+   * @param parseTime nanoseconds the parse took
+   * @param succeeded false if the payload wasn't a probe
+   */
+  public static void probeParsed(String transport, String probeId, int size, long queueTime, long parseTime, boolean succeeded) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ProbeParsedEvent event = new ProbeParsedEvent();
+    if (event.isEnabled()) {
+      event.transport = transport;
+      event.probeId = probeId;
+      event.size = size;
+      event.queueTime = queueTime;
+      event.parseTime = parseTime;
+      event.succeeded = succeeded;
+      event.commit();
+    }
+  }
+
+  /**
+   * The Responder checked whether it had handled a probe before.
+   *
+   * @param probeId the probe ID
+   * @param stage {@link #TRANSPORT} or {@link #HANDLER}
+   * @param duplicate true if it had, and the probe was dropped
+   * @param checkTime nanoseconds the check took
+   */
+  public static void probeDeduplicated(String probeId, String stage, boolean duplicate, long checkTime) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ProbeDeduplicatedEvent event = new ProbeDeduplicatedEvent();
+    if (event.isEnabled()) {
+      event.probeId = probeId;
+      event.stage = stage;
+      event.duplicate = duplicate;
+      event.checkTime = checkTime;
+      event.commit();
+    }
+  }
+
+  /**
+   * A probe handler worked on a probe.
+   *
+   * @param probeId the probe ID
+   * @param handler the handler's name
+   * @param outcome {@link #ANSWERED}, {@link #MISSED} or {@link #FAILED}
+   * @param services the number of services the handler came back with
+   * @param handlerTime nanoseconds the handler took
+   */
+  public static void handlerInvoked(String probeId, String handler, String outcome, int services, long handlerTime) {
+    if (!AVAILABLE) {
+      return;
+    }
+    HandlerInvokedEvent event = new HandlerInvokedEvent();
+    if (event.isEnabled()) {
+      event.probeId = probeId;
+      event.handler = handler;
+      event.outcome = outcome;
+      event.services = services;
+      event.handlerTime = handlerTime;
+      event.commit();
+    }
+  }
+
+  /**
+   * A response was sent to a respondTo URL.
+   *
+   * @param probeId the probe ID
+   * @param url the respondTo URL
+   * @param size the size of the response body
+   * @param statusCode the HTTP status code, 0 if there wasn't an answer
+   * @param succeeded true if the listener took the response
+   * @param sendTime nanoseconds the send took
+   */
+  public static void responseSent(String probeId, String url, int size, int statusCode, boolean succeeded, long sendTime) {
+    if (!AVAILABLE) {
+      return;
+    }
+    ResponseSentEvent event = new ResponseSentEvent();
+    if (event.isEnabled()) {
+      event.probeId = probeId;
+      event.url = url;
+      event.size = size;
+      event.statusCode = statusCode;
+      event.succeeded = succeeded;
+      event.sendTime = sendTime;
+      event.commit();
+    }
+  }
+
+}
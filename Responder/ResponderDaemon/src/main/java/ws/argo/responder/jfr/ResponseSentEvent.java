@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A response was sent to a respondTo URL, successfully or not.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Name("ws.argo.ResponseSent")
+@Label("Response Sent")
+@Description("A response was sent to a respondTo URL")
+@Category({ "Argo", "Responder" })
+@StackTrace(false)
+public class ResponseSentEvent extends jdk.jfr.Event {
+
+  @Label("Probe ID")
+  String  probeId;
+
+  @Label("respondTo URL")
+  String  url;
+
+  @Label("Size")
+  @DataAmount(DataAmount.BYTES)
+  int     size;
+
+  @Label("Status Code")
+  @Description("The HTTP status code, 0 if the request didn't get an answer")
+  int     statusCode;
+
+  @Label("Succeeded")
+  boolean succeeded;
+
+  @Label("Send Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long    sendTime;
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in the style of HdrHistogram. The
+ * buckets are log linear - each power of two range is split into 32 equal
+ * buckets - so any latency from a nanosecond up to about 18 minutes is
+ * recorded to within about 3% in a little over a thousand counters. Recording
+ * is lock free and doesn't allocate, so it's cheap enough to do for every
+ * probe.
+ *
+ * <p>The percentiles are read off the counts while the recording goes on, so
+ * they're a close approximation rather than an exact snapshot.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+  private static final int  SUB_BUCKET_BITS = 5;
+  private static final int  SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  // anything longer is counted as this long
+  private static final long MAX_VALUE       = (1L << 40) - 1;
+  private static final int  BUCKETS         = index(MAX_VALUE) + 1;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong      _count  = new AtomicLong();
+  private final AtomicLong      _total  = new AtomicLong();
+  private final AtomicLong      _max    = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    _counts.incrementAndGet(index(value));
+    _count.incrementAndGet();
+    _total.addAndGet(value);
+    long max = _max.get();
+    while (value > max && !_max.compareAndSet(max, value)) {
+      max = _max.get();
+    }
+  }
+
+  static int index(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    // shift the value down until it's in the top half of the sub buckets
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (magnitude + 1) * SUB_BUCKETS + (int) (value >>> magnitude) - SUB_BUCKETS;
+  }
+
+  /**
+   * The highest value that is counted in the bucket.
+   */
+  static long highestValue(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+
+  /**
+   * The latency that the given percentage of the recorded latencies are at or
+   * under.
+   *
+   * @param percentile the percentile (0 to 100)
+   * @return the latency in nanoseconds (0 if nothing has been recorded)
+   */
+  public long percentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += _counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += _counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValue(i), _max.get());
+      }
+    }
+    return _max.get();
+  }
+
+  @Override
+  public long getCount() {
+    return _count.get();
+  }
+
+  /**
+   * The sum of the recorded latencies.
+   *
+   * @return the total in nanoseconds
+   */
+  public long getTotal() {
+    return _total.get();
+  }
+
+  public long getMax() {
+    return _max.get();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long count = _count.get();
+    return count == 0 ? 0 : _total.get() / (count * 1000.0);
+  }
+
+  @Override
+  public double getP50Micros() {
+    return percentile(50) / 1000.0;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return percentile(99) / 1000.0;
+  }
+
+  @Override
+  public double getP999Micros() {
+    return percentile(99.9) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return _max.get() / 1000.0;
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      _counts.set(i, 0);
+    }
+    _count.set(0);
+    _total.set(0);
+    _max.set(0);
+  }
+
+}
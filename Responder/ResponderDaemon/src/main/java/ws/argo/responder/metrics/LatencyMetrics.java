@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The LatencyMetrics hold a {@link LatencyHistogram} for each stage a probe
+ * goes through in the Responder, some of them split out by transport or
+ * handler. The stages are:
+ *
+ * <ul>
+ * <li>receive - off the wire to the start of the parse (the parse queue), by
+ * transport</li>
+ * <li>parse - the parse, by transport</li>
+ * <li>queue - waiting for a thread to handle the probe</li>
+ * <li>dedup - checking the probe hasn't been handled already</li>
+ * <li>handler - each probe handler, by handler</li>
+ * <li>serialize - encoding the response</li>
+ * <li>send - the HTTP request to the listener until it answers</li>
+ * <li>total - off the wire until the listener answered</li>
+ * </ul>
+ *
+ * <p>The histograms can be registered as MXBeans and are written out in the
+ * Prometheus text format by {@link #write(StringBuilder)} for the /metrics
+ * endpoint (see {@link MetricsListener}).
+ * 
+ * @author jmsimpson
+ *
+ */
+public class LatencyMetrics {
+
+  private static final Logger LOGGER = LogManager.getLogger(LatencyMetrics.class.getName());
+
+  public static final String  RECEIVE   = "receive";
+  public static final String  PARSE     = "parse";
+  public static final String  QUEUE     = "queue";
+  public static final String  DEDUP     = "dedup";
+  public static final String  HANDLER   = "handler";
+  public static final String  SERIALIZE = "serialize";
+  public static final String  SEND      = "send";
+  public static final String  TOTAL     = "total";
+
+  public static final String  DOMAIN    = "ws.argo.responder";
+
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private final ConcurrentHashMap<Key, LatencyHistogram> _histograms = new ConcurrentHashMap<Key, LatencyHistogram>();
+
+  private volatile MBeanServer _mbeanServer;
+
+  /**
+   * A histogram's stage and (for the split stages) the transport or handler
+   * name.
+   */
+  private static final class Key implements Comparable<Key> {
+    final String stage;
+    final String name;
+
+    Key(String stage, String name) {
+      this.stage = stage;
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      return stage.hashCode() * 31 + (name == null ? 0 : name.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) obj;
+      return stage.equals(key.stage) && (name == null ? key.name == null : name.equals(key.name));
+    }
+
+    @Override
+    public int compareTo(Key o) {
+      int result = stage.compareTo(o.stage);
+      if (result != 0) {
+        return result;
+      }
+      return (name == null ? "" : name).compareTo(o.name == null ? "" : o.name);
+    }
+
+    @Override
+    public String toString() {
+      return name == null ? stage : stage + "." + name;
+    }
+  }
+
+  /**
+   * Record the latency of a stage.
+   *
+   * @param stage the stage
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(String stage, long nanos) {
+    histogram(stage, null).record(nanos);
+  }
+
+  /**
+   * Record the latency of a stage for a transport or handler.
+   *
+   * @param stage the stage
+   * @param name the transport or handler name
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(String stage, String name, long nanos) {
+    histogram(stage, name).record(nanos);
+  }
+
+  /**
+   * Get the histogram for the stage, making it if it's new.
+   *
+   * @param stage the stage
+   * @param name the transport or handler name, or null for the stage as a
+   *          whole
+   * @return the histogram
+   */
+  public LatencyHistogram histogram(String stage, String name) {
+    Key key = new Key(stage, name);
+    LatencyHistogram histogram = _histograms.get(key);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = _histograms.putIfAbsent(key, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+        MBeanServer server = _mbeanServer;
+        if (server != null) {
+          register(server, key, histogram);
+        }
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * All of the histograms by stage (and name).
+   *
+   * @return a sorted copy of the histograms
+   */
+  public Map<String, LatencyHistogram> getHistograms() {
+    Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+    for (Map.Entry<Key, LatencyHistogram> entry : _histograms.entrySet()) {
+      histograms.put(entry.getKey().toString(), entry.getValue());
+    }
+    return histograms;
+  }
+
+  /**
+   * Register the histograms (including the ones made later) as MXBeans named
+   * ws.argo.responder:type=Latency,stage=...,name=...
+   *
+   * @param server the MBean server
+   */
+  public void registerMBeans(MBeanServer server) {
+    _mbeanServer = server;
+    for (Map.Entry<Key, LatencyHistogram> entry : _histograms.entrySet()) {
+      register(server, entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Take the MXBeans back out of the server.
+   */
+  public void unregisterMBeans() {
+    MBeanServer server = _mbeanServer;
+    _mbeanServer = null;
+    if (server == null) {
+      return;
+    }
+    for (Key key : _histograms.keySet()) {
+      try {
+        ObjectName name = objectName(key);
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister the latency MXBean for [" + key + "]", e);
+      }
+    }
+  }
+
+  private void register(MBeanServer server, Key key, LatencyHistogram histogram) {
+    try {
+      ObjectName name = objectName(key);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(histogram, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the latency MXBean for [" + key + "] - " + e.getLocalizedMessage());
+    }
+  }
+
+  private static ObjectName objectName(Key key) throws JMException {
+    String name = DOMAIN + ":type=Latency,stage=" + key.stage;
+    if (key.name != null) {
+      name += ",name=" + ObjectName.quote(key.name);
+    }
+    return new ObjectName(name);
+  }
+
+  /**
+   * Write the histograms out as Prometheus summaries - a line per quantile
+   * plus the count and sum, in seconds.
+   *
+   * @param out where the text goes
+   */
+  public void write(StringBuilder out) {
+    Map<Key, LatencyHistogram> histograms = new TreeMap<Key, LatencyHistogram>(_histograms);
+    out.append("# HELP argo_responder_latency_seconds Latency of each stage of handling a probe\n");
+    out.append("# TYPE argo_responder_latency_seconds summary\n");
+    for (Map.Entry<Key, LatencyHistogram> entry : histograms.entrySet()) {
+      String labels = labels(entry.getKey());
+      LatencyHistogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        out.append("argo_responder_latency_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ");
+        out.append(seconds(histogram.percentile(quantile * 100))).append('\n');
+      }
+      out.append("argo_responder_latency_seconds_sum{").append(labels).append("} ").append(seconds(histogram.getTotal())).append('\n');
+      out.append("argo_responder_latency_seconds_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+  }
+
+  private static String labels(Key key) {
+    StringBuilder labels = new StringBuilder("stage=\"").append(key.stage).append('"');
+    if (key.name != null) {
+      labels.append(",name=\"").append(key.name.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return labels.toString();
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+  }
+
+}
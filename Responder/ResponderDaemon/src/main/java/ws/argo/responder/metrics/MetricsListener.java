@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.metrics;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import ws.argo.responder.Responder;
+
+/**
+ * Serves the /metrics endpoint (see {@link MetricsResource}) from a small
+ * Grizzly server.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class MetricsListener {
+
+  private static final Logger LOGGER = LogManager.getLogger(MetricsListener.class.getName());
+
+  private MetricsListener() {
+  }
+
+  /**
+   * Start the metrics server.
+   * 
+   * @param address the address to listen on
+   * @param port the port to listen on
+   * @param responder the Responder to report on
+   * @return the running HttpServer
+   * @throws IOException if something goes wrong creating the http server
+   */
+  public static HttpServer startServer(String address, int port, Responder responder) throws IOException {
+    URI uri = UriBuilder.fromUri("http://" + address + "/").port(port).build();
+
+    ResourceConfig resourceConfig = new ResourceConfig();
+    resourceConfig.registerInstances(new MetricsResource(responder));
+    resourceConfig.setApplicationName("Argo Responder Metrics");
+
+    HttpServer httpServer = GrizzlyHttpServerFactory.createHttpServer(uri, resourceConfig, false);
+    httpServer.getServerConfiguration().setName("Metrics Listener");
+    httpServer.start();
+    LOGGER.info("Serving metrics at " + uri + "metrics");
+
+    return httpServer;
+  }
+
+}
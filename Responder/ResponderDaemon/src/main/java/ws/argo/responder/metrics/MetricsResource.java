@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import ws.argo.plugin.transport.responder.Transport;
+import ws.argo.responder.Responder;
+import ws.argo.responder.ResponseDelivery;
+import ws.argo.responder.transport.MulticastTransport;
+
+/**
+ * The /metrics resource for the JAX-RS container. It returns the Responder's
+ * stage latencies and main counters (including the multicast transports' receive
+ * and parse counts) in the Prometheus text format.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+  private final Responder responder;
+
+  public MetricsResource(Responder responder) {
+    this.responder = responder;
+  }
+
+  /**
+   * Write out the metrics.
+   * 
+   * @return the metrics text
+   */
+  @GET
+  @Produces("text/plain; version=0.0.4")
+  public String getMetrics() {
+    StringBuilder out = new StringBuilder(8192);
+    responder.getLatencyMetrics().write(out);
+
+    counter(out, "argo_responder_probes_processed_total", "Probes handled (not counting duplicates)", responder.getThroughputMeter().total());
+    ResponseDelivery delivery = responder.getResponseDelivery();
+    counter(out, "argo_responder_responses_delivered_total", "Responses the listeners took", delivery.getDelivered());
+    counter(out, "argo_responder_responses_failed_total", "Response sends that failed", delivery.getFailed());
+    counter(out, "argo_responder_responses_rejected_total", "Responses dropped with too many pending", delivery.getRejected());
+
+    List<MulticastTransport> multicast = new ArrayList<MulticastTransport>();
+    for (Transport transport : responder.getTransports()) {
+      if (transport instanceof MulticastTransport) {
+        multicast.add((MulticastTransport) transport);
+      }
+    }
+    if (!multicast.isEmpty()) {
+      multicastCounters(out, multicast);
+    }
+    return out.toString();
+  }
+
+  private static void multicastCounters(StringBuilder out, List<MulticastTransport> transports) {
+    String[] names = { "argo_multicast_datagrams_received_total", "argo_multicast_datagrams_dropped_total", "argo_multicast_datagrams_truncated_total",
+        "argo_multicast_duplicates_skipped_total", "argo_multicast_parse_errors_total" };
+    String[] helps = { "Datagrams taken off the wire", "Datagrams dropped with the parse queue full", "Datagrams that filled the receive buffer",
+        "Copies of handled probes thrown away unparsed", "Datagrams that couldn't be parsed" };
+    for (int i = 0; i < names.length; i++) {
+      out.append("# HELP ").append(names[i]).append(' ').append(helps[i]).append('\n');
+      out.append("# TYPE ").append(names[i]).append(" counter\n");
+      for (MulticastTransport transport : transports) {
+        long[] values = { transport.getDatagramsReceived(), transport.getDatagramsDropped(), transport.getDatagramsTruncated(), transport.getDuplicatesSkipped(),
+            transport.getParseErrors() };
+        out.append(names[i]).append("{group=\"").append(transport.getGroup()).append("\"} ").append(values[i]).append('\n');
+      }
+    }
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+}
@@ -102,10 +102,10 @@ public class ConfigFileMonitorTask extends TimerTask {
 
   /**
    * actually load the xml configuration file. If anything goes wrong throws an
-   * exception. This created a list of service records. When done, set the
-   * service record list in the plugin. The plugin set function should be
-   * synchronized so that it won't squash any concurrent access to the old set
-   * of services.
+   * exception. This created a list of service records. When done, the list is
+   * indexed into an immutable {@link ServiceRegistry} which is handed to the
+   * plugin. All the expensive work happens here on the timer thread so the
+   * plugin only has to swap a reference to publish the new services.
    * 
    * @throws JAXBException if there is some issue with the XML
    * @throws FileNotFoundException if the file name does not exist
@@ -125,8 +125,10 @@ public class ConfigFileMonitorTask extends TimerTask {
 
     ArrayList<ServiceWrapper> serviceList = _config.getServiceList();
 
-    LOGGER.debug("Setting the service list in the plugin");
-    _plugin.setServiceList(serviceList);
+    ServiceRegistry registry = new ServiceRegistry(serviceList);
+
+    LOGGER.debug("Setting the service registry in the plugin");
+    _plugin.setServiceRegistry(registry);
 
   }
 
@@ -23,9 +23,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Timer;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
@@ -55,16 +52,12 @@ public class ConfigFileProbeHandlerPlugin implements ProbeHandlerPlugin {
 
   Properties                  config        = new Properties();
 
-  // This really needs to be better than an O(n^2) lookup - like an O(n log n)
-  // with a HashMap with a list value. But I'm lazy at the moment
-  ArrayList<ServiceWrapper>   serviceList   = new ArrayList<ServiceWrapper>();
+  // The registry is immutable and swapped out wholesale when the config file
+  // changes, so the probe handling threads never need to take a lock to read it
+  private volatile ServiceRegistry registry = ServiceRegistry.EMPTY;
 
   private Timer               configFileScan;
 
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-  private final Lock          readLock      = readWriteLock.readLock();
-  private final Lock          writeLock     = readWriteLock.writeLock();
-
   @Override
   public String pluginName() {
     return "Configuration File Service List";
@@ -75,80 +68,81 @@ public class ConfigFileProbeHandlerPlugin implements ProbeHandlerPlugin {
   }
 
   /**
-   * As the Responder is multi-threaded, make sure that the access to the
-   * services list which might change out if the user changes it, is
-   * synchronized to make sure nothing weird happens.
-   * 
-   * <p>There is lock on this that will always allow a read unless another thread
-   * is updating the service list.
+   * Replace the list of services that this handler responds with. The list is
+   * indexed into a new {@link ServiceRegistry} which is then published to the
+   * probe handling threads in one shot.
    * 
    * @param services - the ArrayList of ServiceInfoBeans
    */
   public void setServiceList(ArrayList<ServiceWrapper> services) {
-    writeLock.lock();
-    try {
-      LOGGER.info("Updating service list by " + Thread.currentThread().getName());
-      this.serviceList = services;
-    } finally {
-      writeLock.unlock();
-    }
+    setServiceRegistry(new ServiceRegistry(services));
   }
 
   /**
-   * Get the list of services that the handler, well, uh, handles.
+   * As the Responder is multi-threaded, the registry is published with a single
+   * volatile reference swap. Any probe that is already being handled keeps
+   * using the snapshot it started with and every probe after that sees the new
+   * one. There is no window where a reader can see a half-updated list.
    * 
-   * <p>There is lock on this that will always allow a read unless another thread
-   * is updating the service list.
+   * @param newRegistry - the new immutable service registry
+   */
+  public void setServiceRegistry(ServiceRegistry newRegistry) {
+    LOGGER.info("Updating service list by " + Thread.currentThread().getName() + " with " + newRegistry.size() + " services");
+    this.registry = newRegistry;
+  }
+
+  public ServiceRegistry getServiceRegistry() {
+    return this.registry;
+  }
+
+  /**
+   * Get the list of services that the handler, well, uh, handles.
    * 
    * @return list of services
    */
   public ArrayList<ServiceWrapper> getServiceList() {
-    readLock.lock();
-    try {
-      return this.serviceList;
-    } finally {
-      readLock.unlock();
-    }
+    return new ArrayList<ServiceWrapper>(this.registry.getServices());
   }
 
   /**
-   * Handle the probe event.
+   * Handle the probe event. The lookups go against the hash indexes in the
+   * current {@link ServiceRegistry} so the cost is proportional to the number
+   * of IDs in the probe and not the number of configured services.
    */
   @Override
   public ResponseWrapper handleProbeEvent(ProbeWrapper probe) {
 
     ResponseWrapper response = new ResponseWrapper(probe.getProbeId());
 
-    LOGGER.debug("ConfigFileProbeHandlerPlugin handling probe: " + probe.asXML());
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("ConfigFileProbeHandlerPlugin handling probe: " + probe.asXML());
+    }
 
-    // do the actual lookup here
-    // and create and return the ResponderPayload
-    // Can you say O(n^2) lookup? Very bad - we can fix later
+    // grab the snapshot once so the whole probe is answered from the same list
+    ServiceRegistry services = this.registry;
 
     if (probe.isNaked()) {
       LOGGER.debug("Query all detected - no service contract IDs in probe");
-      for (ServiceWrapper entry : serviceList) {
+      for (ServiceWrapper entry : services.getServices()) {
         // If the set of contract IDs is empty, get all of them
         response.addResponse(entry);
       }
+      // every naked probe gets the same answer until the registry is replaced
+      response.setCacheKey(services.getGeneration());
 
     } else {
       for (String serviceContractID : probe.getServiceContractIDs()) {
         LOGGER.debug("Looking to detect " + serviceContractID + " in entry list.");
-        for (ServiceWrapper entry : serviceList) {
-          if (entry.getServiceContractID().equals(serviceContractID)) {
-            // Boom Baby - we got one!!!
-            response.addResponse(entry);
-          }
+        for (ServiceWrapper entry : services.findByContractID(serviceContractID)) {
+          // Boom Baby - we got one!!!
+          response.addResponse(entry);
         }
       }
       for (String serviceInstanceID : probe.getServiceInstanceIDs()) {
         LOGGER.debug("Looking to detect " + serviceInstanceID + " in entry list.");
-        for (ServiceWrapper entry : serviceList) {
-          if (entry.getId().equals(serviceInstanceID)) {
-            // Boom Baby - we got one!!!
-            response.addResponse(entry);
-          }
+        for (ServiceWrapper entry : services.findByInstanceID(serviceInstanceID)) {
+          // Boom Baby - we got one!!!
+          response.addResponse(entry);
         }
       }
     }
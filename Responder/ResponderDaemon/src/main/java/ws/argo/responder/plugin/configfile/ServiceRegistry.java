@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.plugin.configfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * The ServiceRegistry is an immutable snapshot of the services that the
+ * {@link ConfigFileProbeHandlerPlugin} advertises. It holds the list of
+ * services along with hash indexes by service contract ID and by service
+ * instance ID so that a probe lookup only costs as much as the number of IDs
+ * in the probe rather than the size of the service list.
+ *
+ * <p>Because the registry never changes after it's built, the plugin can swap
+ * in a new one (when the config file changes) with a single volatile write and
+ * the probe handling threads can read it without any locking.
+ *
+ * <p>Building the registry also prepares the wireline fragments of each service
+ * (see {@link ServiceWrapper#prepareFragments()}), so the services are only
+ * serialized once per config file load rather than once per response. A reload
+ * builds a new registry from new services, which is what throws the old
+ * fragments away.
+ *
+ * @see ConfigFileMonitorTask
+ * @author jmsimpson
+ *
+ */
+public final class ServiceRegistry {
+
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+
+  public static final ServiceRegistry EMPTY = new ServiceRegistry(new ArrayList<ServiceWrapper>());
+
+  private final long                              _generation = GENERATIONS.incrementAndGet();
+  private final List<ServiceWrapper>              _services;
+  private final Map<String, List<ServiceWrapper>> _byContractID;
+  private final Map<String, List<ServiceWrapper>> _byInstanceID;
+
+  /**
+   * Build a new registry from the list of services. The list is copied so
+   * changes to the list after the registry is built are not reflected in the
+   * registry.
+   *
+   * @param services the list of services to index
+   */
+  public ServiceRegistry(List<ServiceWrapper> services) {
+    _services = Collections.unmodifiableList(new ArrayList<ServiceWrapper>(services));
+    for (ServiceWrapper service : _services) {
+      service.prepareFragments();
+    }
+    _byContractID = buildIndex(_services, true);
+    _byInstanceID = buildIndex(_services, false);
+  }
+
+  private static Map<String, List<ServiceWrapper>> buildIndex(List<ServiceWrapper> services, boolean byContract) {
+    HashMap<String, List<ServiceWrapper>> index = new HashMap<String, List<ServiceWrapper>>();
+
+    for (ServiceWrapper service : services) {
+      String key = byContract ? service.getServiceContractID() : service.getId();
+      List<ServiceWrapper> entries = index.get(key);
+      if (entries == null) {
+        entries = new ArrayList<ServiceWrapper>(1);
+        index.put(key, entries);
+      }
+      entries.add(service);
+    }
+
+    // freeze the value lists so nothing leaks out that can change the snapshot
+    for (Map.Entry<String, List<ServiceWrapper>> entry : index.entrySet()) {
+      entry.setValue(Collections.unmodifiableList(entry.getValue()));
+    }
+
+    return index;
+  }
+
+  /**
+   * Return all of the services in the registry (in the order they were
+   * configured).
+   *
+   * @return the unmodifiable list of services
+   */
+  public List<ServiceWrapper> getServices() {
+    return _services;
+  }
+
+  /**
+   * Return the services that implement the given service contract ID.
+   *
+   * @param serviceContractID the contract ID to look up
+   * @return the matching services or an empty list if there are none
+   */
+  public List<ServiceWrapper> findByContractID(String serviceContractID) {
+    return lookup(_byContractID, serviceContractID);
+  }
+
+  /**
+   * Return the services with the given service instance ID. There should only
+   * be one, but nothing stops the config file from having duplicates.
+   *
+   * @param serviceInstanceID the instance ID to look up
+   * @return the matching services or an empty list if there are none
+   */
+  public List<ServiceWrapper> findByInstanceID(String serviceInstanceID) {
+    return lookup(_byInstanceID, serviceInstanceID);
+  }
+
+  public int size() {
+    return _services.size();
+  }
+
+  /**
+   * Return the generation of the registry. Every registry gets a new one when
+   * it's built, so anything derived from a registry (like a cached response)
+   * can be keyed by the generation and goes stale when the registry is
+   * replaced.
+   *
+   * @return the generation number
+   */
+  public long getGeneration() {
+    return _generation;
+  }
+
+  private static List<ServiceWrapper> lookup(Map<String, List<ServiceWrapper>> index, String key) {
+    if (key == null) {
+      return Collections.emptyList();
+    }
+    List<ServiceWrapper> entries = index.get(key);
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+    return entries;
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.transport;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads the remaining bytes of a ByteBuffer. The stream
+ * can be pointed at a new buffer with {@link #setBuffer(ByteBuffer)} so one
+ * instance can be reused for every datagram that comes in off the wire.
+ *
+ * <p>This is not thread safe - each receive loop should have its own.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private ByteBuffer buffer;
+
+  public ByteBufferInputStream() {
+  }
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Point the stream at a new buffer. The stream will read from the buffer's
+   * current position up to its limit.
+   *
+   * @param buffer the buffer to read
+   */
+  public void setBuffer(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    if (buffer == null || !buffer.hasRemaining()) {
+      return -1;
+    }
+    return buffer.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (buffer == null || !buffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(len, buffer.remaining());
+    buffer.get(bytes, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (buffer == null || n <= 0) {
+      return 0;
+    }
+    int count = (int) Math.min(n, buffer.remaining());
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return buffer == null ? 0 : buffer.remaining();
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of ByteBuffers for the receive loops. The transports take
+ * buffers from the pool and give them back rather than allocating a buffer per
+ * packet. Direct buffers are expensive to create, and the kernel can copy
+ * datagrams into them without an extra copy through the heap, so they are the
+ * default.
+ *
+ * <p>If the pool is empty then a new buffer is created (and counted) so the
+ * receive loop never blocks on the pool. Buffers returned to a full pool are
+ * simply dropped.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ByteBufferPool {
+
+  private final ArrayBlockingQueue<ByteBuffer> _buffers;
+  private final int                            _bufferSize;
+  private final boolean                        _direct;
+  private final AtomicLong                     _overflowAllocations = new AtomicLong();
+
+  /**
+   * Create a pool and fill it with buffers.
+   *
+   * @param poolSize the number of buffers held in the pool
+   * @param bufferSize the size of each buffer in bytes
+   */
+  public ByteBufferPool(int poolSize, int bufferSize) {
+    this(poolSize, bufferSize, true);
+  }
+
+  /**
+   * Create a pool and fill it with buffers. Heap buffers are for the
+   * MulticastSocket which needs a byte array to receive into.
+   *
+   * @param poolSize the number of buffers held in the pool
+   * @param bufferSize the size of each buffer in bytes
+   * @param direct true for direct buffers, false for heap buffers
+   */
+  public ByteBufferPool(int poolSize, int bufferSize, boolean direct) {
+    _buffers = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+    _bufferSize = bufferSize;
+    _direct = direct;
+    for (int i = 0; i < poolSize; i++) {
+      _buffers.offer(allocate());
+    }
+  }
+
+  private ByteBuffer allocate() {
+    return _direct ? ByteBuffer.allocateDirect(_bufferSize) : ByteBuffer.allocate(_bufferSize);
+  }
+
+  /**
+   * Take a cleared buffer out of the pool.
+   *
+   * @return a buffer ready to be written into
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = _buffers.poll();
+    if (buffer == null) {
+      _overflowAllocations.incrementAndGet();
+      buffer = allocate();
+    }
+    return buffer;
+  }
+
+  /**
+   * Give a buffer back to the pool.
+   *
+   * @param buffer the buffer to return
+   */
+  public void release(ByteBuffer buffer) {
+    buffer.clear();
+    _buffers.offer(buffer);
+  }
+
+  public int getBufferSize() {
+    return _bufferSize;
+  }
+
+  public int available() {
+    return _buffers.size();
+  }
+
+  /**
+   * The number of times the pool was empty and a new buffer had to be created.
+   *
+   * @return number of buffers created outside the pool
+   */
+  public long getOverflowAllocations() {
+    return _overflowAllocations.get();
+  }
+
+}
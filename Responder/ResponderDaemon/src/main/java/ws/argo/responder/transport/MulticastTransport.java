@@ -21,13 +21,27 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.DatagramPacket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.ProtocolFamily;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,14 +50,34 @@ import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.responder.ProbeProcessor;
 import ws.argo.plugin.transport.responder.Transport;
 import ws.argo.responder.Responder;
-import ws.argo.wireline.probe.ProbeParseException;
-import ws.argo.wireline.probe.ProbeWrapper;
-import ws.argo.wireline.probe.XMLSerializer;
 
 /**
  * The MulticastTransport is a transport that uses Multicast as the pub/sub
  * mechanism to move probes around.
  * 
+ * <p>
+ * There are two receive modes. The default "socket" mode uses a plain
+ * MulticastSocket. The "channel" mode uses a NIO DatagramChannel that receives
+ * straight into pooled direct buffers, and the probe is parsed right out of the
+ * buffer. Neither mode allocates a new receive buffer per packet, but the
+ * channel mode also avoids the copy into the Java heap.
+ * 
+ * <p>
+ * Receiving and parsing are split into two stages so a burst of probes doesn't
+ * back up into the kernel socket buffer while the XML is being parsed. One or
+ * more receiver threads pull datagrams off the socket (or channel) and hand the
+ * filled buffers to the {@link ProbePipeline}, which queues them for its parser
+ * threads. If the parse queue is full the datagram is dropped and counted.
+ * Setting parserThreads to 0 has the receiver threads parse inline.
+ * 
+ * <p>
+ * Note that the JDK lets only one thread at a time sit in a receive call on a
+ * socket or channel, so extra receiver threads just keep a thread ready to
+ * receive the moment the last one returns. The big win is that the receivers
+ * don't do any parsing. Separate sockets with SO_REUSEPORT aren't an option -
+ * Java 7 doesn't have it, and for multicast every socket would get its own
+ * copy of each datagram rather than a share of them.
+ * 
  * @author jmsimpson
  *
  */
@@ -51,17 +85,39 @@ public class MulticastTransport implements Transport {
 
   private static final Logger LOGGER = LogManager.getLogger(MulticastTransport.class.getName());
 
+  public static final String SOCKET_MODE  = "socket";
+  public static final String CHANNEL_MODE = "channel";
 
-  private boolean           shouldRun     = true;
-  private NetworkInterface  ni            = null;
-  protected MulticastSocket inboundSocket = null;
+  public static final String JAXB_PARSER      = ProbePipeline.JAXB_PARSER;
+  public static final String STREAMING_PARSER = ProbePipeline.STREAMING_PARSER;
+
+  // what the transport's latencies are recorded under
+  private static final String METRICS_NAME = "multicast";
+
+  private volatile boolean  shouldRun      = true;
+  private NetworkInterface  ni             = null;
+  protected MulticastSocket inboundSocket  = null;
+  protected DatagramChannel inboundChannel = null;
   protected InetAddress     maddress;
+  private MembershipKey     membershipKey;
+  private ByteBufferPool    bufferPool;
+
+  private ProbePipeline                pipeline;
+  private ArrayList<Thread>            workers = new ArrayList<Thread>();
+  private ScheduledExecutorService     statsReporter;
 
   // Configuration items
   private String networkInterface;
   private String multicastAddress;
   private int    multicastPort;
-  private int    bufferSize = 2 * 1024; // default to 2k block
+  private int    bufferSize        = 2; // default to 2k block
+  private String receiveMode       = SOCKET_MODE;
+  private String probeParser       = JAXB_PARSER;
+  private int    receiverThreads   = 1;
+  private int    parserThreads     = 1;
+  private int    parseQueueSize    = 1024;
+  private int    receiveBufferSize = 0; // 0 means leave the OS default
+  private int    statsInterval     = 0; // in seconds, 0 means don't log
 
   ProbeProcessor processor;
 
@@ -70,53 +126,138 @@ public class MulticastTransport implements Transport {
 
   @Override
   public void run() {
-    DatagramPacket packet;
-
     LOGGER.debug("Starting MulticastTransport listening loop - infinite until thread terminated");
-    // infinite loop until the responder is terminated
-    while (shouldRun) {
 
-      byte[] buf = new byte[bufferSize * 1024];
-      packet = new DatagramPacket(buf, buf.length);
-      LOGGER.debug("Waiting to recieve packet...");
-      try {
-        inboundSocket.receive(packet);
+    String name = Thread.currentThread().getName();
+
+    pipeline.start(name);
 
-        LOGGER.debug("Received packet");
-        LOGGER.debug("Packet contents:");
+    if (statsInterval > 0) {
+      startStatsReporter(name);
+    }
 
-        // Get the actual wireline payload
-        String probeStr = new String(packet.getData(), 0, packet.getLength());
-        LOGGER.debug(probeStr);
+    // the transport thread is the first receiver
+    for (int i = 1; i < receiverThreads; i++) {
+      startWorker(new Receiver(), name + "-receiver-" + i);
+    }
+    new Receiver().run();
 
-        try {
-          XMLSerializer serializer = new XMLSerializer();
+    LOGGER.info("MulticastTransport was terminated by flag.");
+  }
+
+  private void startWorker(Runnable worker, String name) {
+    Thread thread = new Thread(worker, name);
+    thread.setDaemon(true);
+    workers.add(thread);
+    thread.start();
+  }
 
-          ProbeWrapper probe = serializer.unmarshal(probeStr);
+  private void startStatsReporter(final String name) {
+    statsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name + "-stats");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    statsReporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        LOGGER.info("MulticastTransport [" + multicastAddress + ":" + multicastPort + "] received: " + getDatagramsReceived() + ", dropped: " + getDatagramsDropped() + ", truncated: "
+            + getDatagramsTruncated() + ", duplicates skipped: " + getDuplicatesSkipped() + ", parse errors: " + getParseErrors() + ", parse queue depth: " + getParseQueueDepth());
+      }
+    }, statsInterval, statsInterval, TimeUnit.SECONDS);
+  }
 
-          processor.processProbe(probe);
+  /**
+   * A receiver pulls datagrams off the wire into pooled buffers. Several can
+   * run against the same socket (or channel) at once.
+   */
+  private class Receiver implements Runnable {
 
-        } catch (ProbeParseException e) {
-          LOGGER.error( "Error parsing inbound probe payload.", e);
+    @Override
+    public void run() {
+      if (inboundChannel != null) {
+        runChannelLoop();
+      } else {
+        runSocketLoop();
+      }
+    }
+
+    private void runSocketLoop() {
+      // The packet is reused for every probe, only the buffer changes
+      DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+
+      // infinite loop until the responder is terminated
+      while (shouldRun) {
+
+        ByteBuffer buffer = bufferPool.acquire();
+        packet.setData(buffer.array(), 0, buffer.capacity());
+        LOGGER.debug("Waiting to recieve packet...");
+        try {
+          inboundSocket.receive(packet);
+          long received = System.nanoTime();
+
+          buffer.limit(packet.getLength());
+          pipeline.dispatch(buffer, packet.getAddress(), received);
+
+        } catch (SocketTimeoutException toe) {
+          LOGGER.debug("MulticastTransport loop timeout fired.");
+          bufferPool.release(buffer);
+        } catch (IOException e1) {
+          bufferPool.release(buffer);
+          if (shouldRun) {
+            LOGGER.error("Error during MulticastTransport wireline read loop." + e1.getMessage());
+          }
         }
-      } catch (SocketTimeoutException toe) {
-        LOGGER.debug("MulticastTransport loop timeout fired.");
-      } catch (IOException e1) {
-        if (shouldRun) {
-          LOGGER.error("Error during MulticastTransport wireline read loop." + e1.getMessage());
+      }
+    }
+
+    private void runChannelLoop() {
+      // infinite loop until the responder is terminated
+      while (shouldRun) {
+
+        ByteBuffer buffer = bufferPool.acquire();
+        LOGGER.debug("Waiting to recieve packet...");
+        try {
+          SocketAddress sender = inboundChannel.receive(buffer);
+          long received = System.nanoTime();
+
+          buffer.flip();
+          pipeline.dispatch(buffer, sender instanceof InetSocketAddress ? ((InetSocketAddress) sender).getAddress() : null, received);
+
+        } catch (ClosedChannelException e) {
+          bufferPool.release(buffer);
+          // the channel was closed out from under the receive by shutdown()
+          if (shouldRun) {
+            LOGGER.error("MulticastTransport channel closed unexpectedly.");
+          }
+          break;
+        } catch (IOException e1) {
+          bufferPool.release(buffer);
+          if (shouldRun) {
+            LOGGER.error("Error during MulticastTransport wireline read loop." + e1.getMessage());
+          }
         }
       }
     }
-       
-    LOGGER.info("MulticastTransport was terminated by flag.");
   }
 
   @Override
   public void initialize(ProbeProcessor p, String propertiesFilename) throws TransportConfigException {
     this.processor = p;
     processPropertiesFile(propertiesFilename);
-    
-    joinGroup();   
+
+    joinGroup();
+
+    // enough buffers for a full parse queue plus one in every thread's hands
+    int poolSize = parseQueueSize + receiverThreads + parserThreads;
+    if (parserThreads == 0) {
+      poolSize = receiverThreads;
+    }
+    bufferPool = new ByteBufferPool(poolSize, bufferSize * 1024, inboundChannel != null);
+    pipeline = new ProbePipeline(p, METRICS_NAME, probeParser, parserThreads, parseQueueSize, bufferPool);
   }
 
   @Override
@@ -136,6 +277,81 @@ public class MulticastTransport implements Transport {
       }
       inboundSocket.close();
     }
+    if (inboundChannel != null) {
+      if (membershipKey != null) {
+        membershipKey.drop();
+      }
+      try {
+        inboundChannel.close();
+      } catch (IOException e) {
+        LOGGER.error("Error closing multicast channel", e);
+      }
+    }
+    if (statsReporter != null) {
+      statsReporter.shutdownNow();
+    }
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * The multicast group this transport listens on.
+   * 
+   * @return address:port
+   */
+  public String getGroup() {
+    return multicastAddress + ":" + multicastPort;
+  }
+
+  /**
+   * The number of datagrams taken off the wire.
+   * 
+   * @return number received
+   */
+  public long getDatagramsReceived() {
+    return pipeline == null ? 0 : pipeline.getDatagramsReceived();
+  }
+
+  /**
+   * The number of datagrams that were received but thrown away because the
+   * parse queue was full.
+   * 
+   * @return number dropped
+   */
+  public long getDatagramsDropped() {
+    return pipeline == null ? 0 : pipeline.getDatagramsDropped();
+  }
+
+  /**
+   * The number of datagrams that filled the whole receive buffer and so were
+   * most likely cut off. If this isn't 0 then the bufferSize is too small.
+   * 
+   * @return number truncated
+   */
+  public long getDatagramsTruncated() {
+    return pipeline == null ? 0 : pipeline.getDatagramsTruncated();
+  }
+
+  public long getParseErrors() {
+    return pipeline == null ? 0 : pipeline.getParseErrors();
+  }
+
+  /**
+   * The number of datagrams thrown away without parsing because they were
+   * copies of probes that had already been handled.
+   * 
+   * @return number of duplicates skipped
+   */
+  public long getDuplicatesSkipped() {
+    return pipeline == null ? 0 : pipeline.getDuplicatesSkipped();
+  }
+
+  public int getParseQueueDepth() {
+    return pipeline == null ? 0 : pipeline.getParseQueueDepth();
   }
 
   /**
@@ -172,7 +388,21 @@ public class MulticastTransport implements Transport {
       }
 
       LOGGER.info("Starting Responder:  Receiving mulitcast @ [" + multicastAddress + ":" + multicastPort + "]");
+
+      if (CHANNEL_MODE.equals(receiveMode)) {
+        if (ni != null) {
+          openChannel();
+          LOGGER.info(ni.getName() + " joined group " + socketAddress.toString() + " using a datagram channel");
+          return;
+        }
+        LOGGER.warn("The channel receive mode needs a network interface to join the group on.  Falling back to the socket receive mode.");
+      }
+
       this.inboundSocket = new MulticastSocket(multicastPort);
+      if (receiveBufferSize > 0) {
+        this.inboundSocket.setReceiveBufferSize(receiveBufferSize);
+        LOGGER.info("Requested a receive buffer of [" + receiveBufferSize + "] bytes and got [" + this.inboundSocket.getReceiveBufferSize() + "]");
+      }
 
       if (ni == null) { // for some reason NI is still NULL. Not sure why
         // this happens.
@@ -215,6 +445,19 @@ public class MulticastTransport implements Transport {
     }
   }
 
+  private void openChannel() throws IOException {
+    ProtocolFamily family = (maddress instanceof Inet6Address) ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+
+    inboundChannel = DatagramChannel.open(family);
+    inboundChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    if (receiveBufferSize > 0) {
+      inboundChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+      LOGGER.info("Requested a receive buffer of [" + receiveBufferSize + "] bytes and got [" + inboundChannel.getOption(StandardSocketOptions.SO_RCVBUF) + "]");
+    }
+    inboundChannel.bind(new InetSocketAddress(multicastPort));
+    membershipKey = inboundChannel.join(maddress, ni);
+  }
+
   private Properties processPropertiesFile(String propertiesFilename) throws TransportConfigException {
     Properties prop = new Properties();
 
@@ -255,12 +498,43 @@ public class MulticastTransport implements Transport {
       int size = Integer.parseInt(prop.getProperty("bufferSize", "2"));
       bufferSize = size;
     } catch (NumberFormatException e) {
-      LOGGER.warn("Error reading bufferSize number from properties file.  Using bufferSize port of 2.");
-      multicastPort = 2;
+      LOGGER.warn("Error reading bufferSize number from properties file.  Using bufferSize of 2.");
+      bufferSize = 2;
     }
 
+    receiveMode = prop.getProperty("receiveMode", SOCKET_MODE).trim().toLowerCase();
+    if (!SOCKET_MODE.equals(receiveMode) && !CHANNEL_MODE.equals(receiveMode)) {
+      LOGGER.warn("Unknown receiveMode [" + receiveMode + "] in properties file.  Using the socket receive mode.");
+      receiveMode = SOCKET_MODE;
+    }
+
+    probeParser = prop.getProperty("probeParser", JAXB_PARSER).trim().toLowerCase();
+    if (!JAXB_PARSER.equals(probeParser) && !STREAMING_PARSER.equals(probeParser)) {
+      LOGGER.warn("Unknown probeParser [" + probeParser + "] in properties file.  Using the jaxb probe parser.");
+      probeParser = JAXB_PARSER;
+    }
+
+    receiverThreads = Math.max(1, intProperty(prop, "receiverThreads", 1));
+    parserThreads = Math.max(0, intProperty(prop, "parserThreads", 1));
+    parseQueueSize = Math.max(1, intProperty(prop, "parseQueueSize", 1024));
+    receiveBufferSize = Math.max(0, intProperty(prop, "receiveBufferSize", 0));
+    statsInterval = Math.max(0, intProperty(prop, "statsInterval", 0));
+
     return prop;
 
   }
 
+  private int intProperty(Properties prop, String name, int defaultValue) {
+    String value = prop.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Error reading " + name + " number from properties file.  Using default " + name + " of " + defaultValue + ".");
+      return defaultValue;
+    }
+  }
+
 }
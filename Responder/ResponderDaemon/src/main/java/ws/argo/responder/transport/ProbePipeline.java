@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.transport;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ws.argo.plugin.transport.responder.DuplicateProbeFilter;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.responder.Responder;
+import ws.argo.responder.jfr.ResponderEvents;
+import ws.argo.responder.metrics.LatencyMetrics;
+import ws.argo.wireline.probe.ProbeIdScanner;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeReader;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.StreamingProbeReader;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * The ProbePipeline is the parse stage behind a datagram transport's receivers.
+ * The receivers hand it the filled buffers and it puts them on a bounded parse
+ * queue. Parser threads take them off the queue, parse them and hand the
+ * probes to the processor. If the parse queue is full the datagram is dropped
+ * and counted. With no parser threads the buffers are parsed right away on
+ * the receiver's thread.
+ *
+ * <p>
+ * Copies of probes that have already been handled are thrown away before they
+ * get to the queue - the probe ID is scanned out of the raw bytes and checked
+ * with the processor, so they are never parsed.
+ *
+ * <p>
+ * Whoever ends up with a buffer gives it back to the pool.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbePipeline {
+
+  private static final Logger LOGGER = LogManager.getLogger(ProbePipeline.class.getName());
+
+  public static final String JAXB_PARSER      = "jaxb";
+  public static final String STREAMING_PARSER = "streaming";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ProbeProcessor                 _processor;
+  // the processor's duplicate filter, null if it doesn't have one
+  private final DuplicateProbeFilter           _filter;
+  private final String                         _name;
+  private final String                         _probeParser;
+  private final int                            _parserThreads;
+  private final ByteBufferPool                 _bufferPool;
+  private final ArrayBlockingQueue<Datagram>   _parseQueue;
+  private final ArrayList<Thread>              _parsers = new ArrayList<Thread>();
+  // the Responder's latency metrics, null if the processor isn't a Responder
+  private final LatencyMetrics                 _latencyMetrics;
+  private volatile boolean                     _shouldRun = true;
+
+  // used when the receivers parse inline
+  private final ThreadLocal<Parser> _inlineParsers = new ThreadLocal<Parser>() {
+    @Override
+    protected Parser initialValue() {
+      return new Parser();
+    }
+  };
+
+  // Stats
+  private final AtomicLong _datagramsReceived  = new AtomicLong();
+  private final AtomicLong _datagramsDropped   = new AtomicLong();
+  private final AtomicLong _datagramsTruncated = new AtomicLong();
+  private final AtomicLong _parseErrors        = new AtomicLong();
+  private final AtomicLong _duplicatesSkipped  = new AtomicLong();
+
+  /**
+   * Create the pipeline. The parser threads don't run until it's started.
+   *
+   * @param processor where the parsed probes go
+   * @param name what the latencies and events are recorded under (e.g.
+   *          multicast)
+   * @param probeParser jaxb or streaming
+   * @param parserThreads the number of parser threads - 0 parses inline
+   * @param parseQueueSize the most datagrams waiting to be parsed
+   * @param bufferPool where the buffers go back to
+   */
+  public ProbePipeline(ProbeProcessor processor, String name, String probeParser, int parserThreads, int parseQueueSize, ByteBufferPool bufferPool) {
+    _processor = processor;
+    _filter = (processor instanceof DuplicateProbeFilter) ? (DuplicateProbeFilter) processor : null;
+    _name = name;
+    _probeParser = probeParser;
+    _parserThreads = parserThreads;
+    _bufferPool = bufferPool;
+    _parseQueue = parserThreads > 0 ? new ArrayBlockingQueue<Datagram>(parseQueueSize) : null;
+    _latencyMetrics = (processor instanceof Responder) ? ((Responder) processor).getLatencyMetrics() : null;
+  }
+
+  /**
+   * Start the parser threads.
+   *
+   * @param threadName the prefix for the parser thread names
+   */
+  public void start(String threadName) {
+    for (int i = 0; i < _parserThreads; i++) {
+      Thread thread = new Thread(new Parser(), threadName + "-parser-" + i);
+      thread.setDaemon(true);
+      _parsers.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stop the parser threads. Datagrams still on the queue are not parsed.
+   */
+  public void shutdown() {
+    _shouldRun = false;
+    for (Thread parser : _parsers) {
+      parser.interrupt();
+    }
+  }
+
+  /**
+   * Hand a filled buffer (from its position to its limit) to the parse stage.
+   *
+   * @param buffer the buffer holding the datagram
+   * @param sender where the datagram came from (null if not known)
+   * @param received when the datagram came off the wire (nanoTime)
+   */
+  public void dispatch(ByteBuffer buffer, InetAddress sender, long received) {
+    _datagramsReceived.incrementAndGet();
+    if (buffer.limit() == buffer.capacity()) {
+      // the datagram filled the buffer so it was most likely cut off
+      _datagramsTruncated.incrementAndGet();
+    }
+
+    // Throw away redundant copies of a probe without parsing them. The first
+    // copy claims the ID as it comes off the wire so copies that arrive back
+    // to back don't all slip through before the first is handled. If the scan
+    // can't find the ID, the probe gets the full parse and the handler sorts
+    // out whether it's a duplicate.
+    String probeID = ProbeIdScanner.scanProbeId(buffer);
+    ResponderEvents.probeReceived(_name, probeID, sender, buffer.remaining());
+    String claimedID = null;
+    if (probeID != null && _filter != null) {
+      long checkStart = System.nanoTime();
+      if (!_filter.claimProbe(probeID)) {
+        ResponderEvents.probeDeduplicated(probeID, ResponderEvents.TRANSPORT, true, System.nanoTime() - checkStart);
+        _duplicatesSkipped.incrementAndGet();
+        LOGGER.debug("Discarding duplicate probe with id: " + probeID);
+        _bufferPool.release(buffer);
+        return;
+      }
+      claimedID = probeID;
+    }
+
+    if (_parseQueue == null) {
+      _inlineParsers.get().parse(buffer, sender, received, claimedID);
+    } else if (!_parseQueue.offer(new Datagram(buffer, sender, received, claimedID))) {
+      _datagramsDropped.incrementAndGet();
+      _bufferPool.release(buffer);
+      // this copy never got to the processor, so let the next one through
+      release(claimedID);
+    }
+  }
+
+  /**
+   * The number of datagrams taken off the wire.
+   *
+   * @return number received
+   */
+  public long getDatagramsReceived() {
+    return _datagramsReceived.get();
+  }
+
+  /**
+   * The number of datagrams that were received but thrown away because the
+   * parse queue was full.
+   *
+   * @return number dropped
+   */
+  public long getDatagramsDropped() {
+    return _datagramsDropped.get();
+  }
+
+  /**
+   * The number of datagrams that filled the whole receive buffer and so were
+   * most likely cut off. If this isn't 0 then the bufferSize is too small.
+   *
+   * @return number truncated
+   */
+  public long getDatagramsTruncated() {
+    return _datagramsTruncated.get();
+  }
+
+  public long getParseErrors() {
+    return _parseErrors.get();
+  }
+
+  /**
+   * The number of datagrams thrown away without parsing because they were
+   * copies of probes that had already been handled.
+   *
+   * @return number of duplicates skipped
+   */
+  public long getDuplicatesSkipped() {
+    return _duplicatesSkipped.get();
+  }
+
+  public int getParseQueueDepth() {
+    return _parseQueue == null ? 0 : _parseQueue.size();
+  }
+
+  private void release(String claimedID) {
+    if (claimedID != null) {
+      _filter.releaseProbe(claimedID);
+    }
+  }
+
+  /**
+   * A received datagram on its way through the parse queue.
+   */
+  private static final class Datagram {
+    final ByteBuffer  buffer;
+    final InetAddress sender;
+    final long        received;
+    final String      claimedID;
+
+    Datagram(ByteBuffer buffer, InetAddress sender, long received, String claimedID) {
+      this.buffer = buffer;
+      this.sender = sender;
+      this.received = received;
+      this.claimedID = claimedID;
+    }
+  }
+
+  /**
+   * A parser takes the buffers off the parse queue and turns them into probes.
+   * Each parser has its own probe reader and stream so they don't share any
+   * state. The probeParser setting picks between the JAXB serializer and the
+   * streaming reader.
+   */
+  private class Parser implements Runnable {
+
+    private final ProbeReader           reader      = STREAMING_PARSER.equals(_probeParser) ? new StreamingProbeReader() : new XMLSerializer();
+    private final ByteBufferInputStream inputStream = new ByteBufferInputStream();
+
+    @Override
+    public void run() {
+      while (_shouldRun) {
+        try {
+          Datagram datagram = _parseQueue.poll(1, TimeUnit.SECONDS);
+          if (datagram != null) {
+            parse(datagram.buffer, datagram.sender, datagram.received, datagram.claimedID);
+          }
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+
+    /**
+     * Parse the probe out of the buffer (from its position to its limit), hand
+     * it off to the processor and then give the buffer back to the pool.
+     *
+     * @param payload the buffer holding the datagram
+     * @param sender where the datagram came from
+     * @param received when the datagram came off the wire (nanoTime)
+     * @param claimedID the probe ID claimed from the filter, null if none
+     */
+    void parse(ByteBuffer payload, InetAddress sender, long received, String claimedID) {
+      long start = System.nanoTime();
+      int size = payload.remaining();
+      LOGGER.debug("Received packet");
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Packet contents:");
+        LOGGER.debug(UTF8.decode(payload.duplicate()).toString());
+      }
+
+      try {
+        inputStream.setBuffer(payload);
+
+        ProbeWrapper probe = reader.unmarshal(inputStream);
+        if (sender != null) {
+          probe.setSenderAddress(sender.getHostAddress());
+        }
+        probe.setReceivedAt(received);
+
+        long parseTime = System.nanoTime() - start;
+        if (_latencyMetrics != null) {
+          // receive is the time the datagram spent between the socket and the
+          // parser, which is mostly the parse queue
+          _latencyMetrics.record(LatencyMetrics.RECEIVE, _name, start - received);
+          _latencyMetrics.record(LatencyMetrics.PARSE, _name, parseTime);
+        }
+        ResponderEvents.probeParsed(_name, probe.getProbeId(), size, start - received, parseTime, true);
+
+        _processor.processProbe(probe);
+
+      } catch (ProbeParseException e) {
+        _parseErrors.incrementAndGet();
+        ResponderEvents.probeParsed(_name, null, size, start - received, System.nanoTime() - start, false);
+        LOGGER.error("Error parsing inbound probe payload.", e);
+        release(claimedID);
+      } finally {
+        inputStream.setBuffer(null);
+        _bufferPool.release(payload);
+      }
+    }
+  }
+
+}
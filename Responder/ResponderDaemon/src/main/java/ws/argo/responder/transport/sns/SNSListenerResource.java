@@ -26,6 +26,10 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.responder.Responder;
+import ws.argo.responder.jfr.ResponderEvents;
+import ws.argo.responder.metrics.LatencyMetrics;
 import ws.argo.responder.transport.AmazonSNSTransport;
 import ws.argo.wireline.probe.ProbeParseException;
 import ws.argo.wireline.probe.ProbeWrapper;
@@ -48,6 +52,9 @@ public class SNSListenerResource {
 
   private static final Logger LOGGER = LogManager.getLogger(SNSListenerResource.class.getName());
 
+  private static final Gson          GSON       = new Gson();
+  private static final XMLSerializer SERIALIZER = new XMLSerializer();
+
   private AmazonSNSTransport snsTransport;
 
   public SNSListenerResource(AmazonSNSTransport snsTransport) {
@@ -74,8 +81,7 @@ public class SNSListenerResource {
 
     LOGGER.info("Processing JSON message");
 
-    Gson gson = new Gson();
-    JsonObject jsonMsg = gson.fromJson(message, JsonObject.class);
+    JsonObject jsonMsg = GSON.fromJson(message, JsonObject.class);
     JsonElement type = jsonMsg.get("Type");
 
     JsonElement token;
@@ -104,12 +110,22 @@ public class SNSListenerResource {
   private void handleProbeMessage(String probeMessage) {
     LOGGER.info("Processing XML Probe message");
   
+    long received = System.nanoTime();
+    ResponderEvents.probeReceived("sns", null, null, probeMessage.length());
     try {
-      XMLSerializer serializer = new XMLSerializer();
-      ProbeWrapper probe = serializer.unmarshal(probeMessage);
-      snsTransport.getProcessor().processProbe(probe);
+      ProbeWrapper probe = SERIALIZER.unmarshal(probeMessage);
+      probe.setReceivedAt(received);
+
+      long parseTime = System.nanoTime() - received;
+      ProbeProcessor processor = snsTransport.getProcessor();
+      if (processor instanceof Responder) {
+        ((Responder) processor).getLatencyMetrics().record(LatencyMetrics.PARSE, "sns", parseTime);
+      }
+      ResponderEvents.probeParsed("sns", probe.getProbeId(), probeMessage.length(), 0, parseTime, true);
+      processor.processProbe(probe);
   
     } catch (ProbeParseException e) {
+      ResponderEvents.probeParsed("sns", null, probeMessage.length(), 0, System.nanoTime() - received, false);
       LOGGER.error( "Error parsing inbound probe payload.", e);
     }
   }
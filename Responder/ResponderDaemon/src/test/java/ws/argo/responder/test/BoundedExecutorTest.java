@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ws.argo.responder.BoundedExecutor;
+import ws.argo.responder.VirtualThreads;
+
+/**
+ * Check that the BoundedExecutor caps the number of tasks running at once
+ * and gives the permits back when the tasks are done.
+ *
+ * @author jmsimpson
+ *
+ */
+public class BoundedExecutorTest {
+
+  private BoundedExecutor executor;
+
+  @After
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTasksPastTheLimitAreRejected() throws Exception {
+    executor = new BoundedExecutor(Executors.newCachedThreadPool(), 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(2);
+    final AtomicInteger ran = new AtomicInteger();
+
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        ran.incrementAndGet();
+        done.countDown();
+      }
+    };
+    executor.execute(task);
+    executor.execute(task);
+    try {
+      executor.execute(task);
+      fail("the third task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    assertEquals(2, executor.getActiveCount());
+    assertEquals(1, executor.getRejectedCount());
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, ran.get());
+    assertEquals(0, executor.getActiveCount());
+    assertEquals(2, executor.getCompletedCount());
+  }
+
+  @Test
+  public void testPermitIsReturnedWhenTheTaskFails() throws Exception {
+    executor = new BoundedExecutor(Executors.newCachedThreadPool(), 1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("oops");
+      }
+    });
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, executor.getActiveCount());
+  }
+
+  @Test
+  public void testTasksAreRejectedOnceTheDelegateIsShutDown() {
+    ExecutorService delegate = Executors.newCachedThreadPool();
+    executor = new BoundedExecutor(delegate, 2);
+    delegate.shutdown();
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      fail("the task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(1, executor.getRejectedCount());
+    // the permit isn't held by the task that never ran
+    assertEquals(0, executor.getActiveCount());
+  }
+
+  @Test
+  public void testVirtualThreadsMatchTheJVM() {
+    // the factory is there from Java 21 on
+    boolean expected = !System.getProperty("java.specification.version").startsWith("1.") && Integer.parseInt(System.getProperty("java.specification.version")) >= 21;
+    assertEquals(expected, VirtualThreads.isAvailable());
+    assertEquals(expected, VirtualThreads.newExecutor() != null);
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import ws.argo.responder.transport.ByteBufferInputStream;
+import ws.argo.responder.transport.ByteBufferPool;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * Check that probes can be parsed straight out of pooled direct buffers the way
+ * the channel receive mode of the MulticastTransport does it.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ByteBufferInputStreamTest {
+
+  @Test
+  public void testParseFromPooledBuffers() throws ProbeParseException {
+    ByteBufferPool pool = new ByteBufferPool(1, 2048);
+    ByteBufferInputStream stream = new ByteBufferInputStream();
+    XMLSerializer serializer = new XMLSerializer();
+
+    for (int i = 0; i < 3; i++) {
+      ProbeWrapper probe = new ProbeWrapper("urn:uuid:buffer-test-" + i);
+      probe.setClientId("buffer-test");
+      probe.addRespondToURL("internal", "http://localhost:9998/listener/probeResponse");
+      probe.addServiceContractID("scid-" + i);
+
+      ByteBuffer buffer = pool.acquire();
+      assertTrue(buffer.isDirect());
+      buffer.put(serializer.marshal(probe).getBytes(Charset.forName("UTF-8")));
+      buffer.flip();
+
+      stream.setBuffer(buffer);
+      ProbeWrapper parsed = serializer.unmarshal(stream);
+      assertTrue(parsed.equals(probe));
+      assertEquals(-1, stream.read());
+
+      pool.release(buffer);
+    }
+
+    assertEquals(0, pool.getOverflowAllocations());
+    assertEquals(1, pool.available());
+  }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.probe.Probe;
+import ws.argo.responder.BoundedExecutor;
+import ws.argo.responder.ClientScheduler;
+import ws.argo.responder.ClientScheduler.Admission;
+import ws.argo.responder.ClientScheduler.ClientStats;
+import ws.argo.responder.ProbeHandlerThread;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ClientPolicy;
+import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.transport.probe.standard.LoopbackTransport;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * Check the per client rate limits and the weighted round robin.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ClientSchedulerTest {
+
+  private Responder                                     responder;
+  private ClientScheduler                               scheduler;
+  private final LinkedBlockingQueue<ProbeHandlerThread> dispatched = new LinkedBlockingQueue<ProbeHandlerThread>();
+  private int                                           probeCount;
+
+  // the executor just collects the probes so the test can run them in turn
+  private final Executor executor = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      dispatched.add((ProbeHandlerThread) task);
+    }
+  };
+
+  @Before
+  public void setup() {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    responder = new Responder(config);
+  }
+
+  @After
+  public void teardown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+    responder.shutdown();
+  }
+
+  private ProbeHandlerThread probe(String clientId, String sender) {
+    ProbeWrapper probe = new ProbeWrapper("probe-" + probeCount++);
+    probe.setClientId(clientId);
+    probe.setSenderAddress(sender);
+    return new ProbeHandlerThread(responder, probe, false);
+  }
+
+  @Test
+  public void testClientsOverTheirRateAreThrottled() throws Exception {
+    List<ClientPolicy> policies = Collections.singletonList(new ClientPolicy("10.0.0.3", 0, 1, 1));
+    scheduler = new ClientScheduler(executor, new ClientPolicy(null, 1, 2, 1), policies, 100, 100, 100);
+
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("noisy", "10.0.0.1")));
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("noisy", "10.0.0.1")));
+    assertEquals(Admission.THROTTLED, scheduler.submit(probe("noisy", "10.0.0.1")));
+    // a different client has a bucket of its own
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("quiet", "10.0.0.2")));
+    // and one with no limit isn't throttled at all
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Admission.ADMITTED, scheduler.submit(probe("unlimited", "10.0.0.3")));
+    }
+
+    ClientStats noisy = scheduler.getClientStats().get("noisy@10.0.0.1");
+    assertNotNull(noisy);
+    assertEquals(3, noisy.getReceived());
+    assertEquals(1, noisy.getThrottled());
+    assertEquals(1, scheduler.getClientStats().get("quiet@10.0.0.2").getReceived());
+    assertEquals(0, scheduler.getClientStats().get("unlimited@10.0.0.3").getThrottled());
+  }
+
+  @Test
+  public void testCopiesDontCostATokenOrAPlace() throws Exception {
+    scheduler = new ClientScheduler(executor, new ClientPolicy(null, 1, 2, 1), Collections.<ClientPolicy> emptyList(), 100, 100, 100);
+
+    ProbeWrapper probe = new ProbeWrapper("probe-copied");
+    probe.setClientId("noisy");
+    assertEquals(Admission.ADMITTED, scheduler.submit(new ProbeHandlerThread(responder, probe, false)));
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Admission.DUPLICATE, scheduler.submit(new ProbeHandlerThread(responder, probe, false)));
+    }
+    // the copies left the second token in the bucket
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("noisy", null)));
+
+    ClientStats noisy = scheduler.getClientStats().get("noisy");
+    assertEquals(5, noisy.getReceived());
+    assertEquals(3, noisy.getDuplicates());
+    assertEquals(0, noisy.getThrottled());
+    assertEquals(0, noisy.getOverflowed());
+  }
+
+  @Test
+  public void testClientsTakeTurnsByWeight() throws Exception {
+    List<ClientPolicy> policies = Arrays.asList(new ClientPolicy("heavy", 0, 1, 2), new ClientPolicy("light", 0, 1, 1));
+    scheduler = new ClientScheduler(executor, new ClientPolicy(null, 0, 1, 1), policies, 100, 1, 100);
+
+    // hold the one place in flight so every probe is waiting before the turns
+    // start
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("blocker", null)));
+    ProbeHandlerThread blocker = dispatched.poll(5, TimeUnit.SECONDS);
+    assertNotNull(blocker);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Admission.ADMITTED, scheduler.submit(probe("heavy", null)));
+    }
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("light", null)));
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe("light", null)));
+    blocker.run();
+
+    // only one at a time is in flight, so the next one doesn't go until this
+    // one is done
+    List<String> order = new ArrayList<String>();
+    for (int i = 0; i < 6; i++) {
+      ProbeHandlerThread task = dispatched.poll(5, TimeUnit.SECONDS);
+      assertNotNull(task);
+      assertTrue(dispatched.isEmpty());
+      order.add(task.getProbe().getClientId());
+      task.run();
+    }
+    assertEquals(Arrays.asList("heavy", "heavy", "light", "heavy", "heavy", "light"), order);
+    assertEquals(4, scheduler.getClientStats().get("heavy").getDispatched());
+  }
+
+  @Test
+  public void testSaturatedBoundedExecutorKeepsDispatching() throws Exception {
+    // as many permits as probes in flight, so each dispatch needs the permit
+    // the last probe to finish gave back
+    BoundedExecutor bounded = new BoundedExecutor(Executors.newCachedThreadPool(), 2);
+    scheduler = new ClientScheduler(bounded, new ClientPolicy(null, 0, 1, 1), Collections.<ClientPolicy> emptyList(), 3000, 2, 100);
+    try {
+      for (int i = 0; i < 3000; i++) {
+        assertEquals(Admission.ADMITTED, scheduler.submit(probe("client-" + (i % 5), null)));
+      }
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while ((scheduler.getWaiting() > 0 || scheduler.getInFlight() > 0) && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, scheduler.getWaiting());
+      assertEquals(0, scheduler.getInFlight());
+      assertEquals(0, bounded.getRejectedCount());
+      assertEquals(3000, bounded.getCompletedCount());
+    } finally {
+      bounded.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectedDispatchGivesBackItsPlace() throws Exception {
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        throw new RejectedExecutionException("full");
+      }
+    };
+    scheduler = new ClientScheduler(rejecting, new ClientPolicy(null, 0, 1, 1), Collections.<ClientPolicy> emptyList(), 100, 1, 100);
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(Admission.ADMITTED, scheduler.submit(probe("client", null)));
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while ((scheduler.getWaiting() > 0 || scheduler.getInFlight() > 0) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, scheduler.getWaiting());
+    assertEquals(0, scheduler.getInFlight());
+    assertEquals(5, responder.getLoadShedder().getShedNaked() + responder.getLoadShedder().getShedTargeted());
+  }
+
+  @Test
+  public void testThrottledProbesGetInOnALaterCopy() throws Exception {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    config.setClientScheduling(true);
+    config.setDefaultClientPolicy(new ClientPolicy(null, 1, 1, 1));
+    Responder scheduled = new Responder(config);
+
+    // the transport skips the copies of the probes it has handed over
+    LoopbackTransport receiver = new LoopbackTransport("clientSchedulerTest");
+    receiver.start(scheduled);
+    Thread receiving = new Thread(receiver, "clientSchedulerTest");
+    receiving.start();
+    LoopbackTransport sender = new LoopbackTransport("clientSchedulerTest");
+    try {
+      Probe first = new Probe(Probe.XML);
+      first.setClientID("noisy");
+      Probe second = new Probe(Probe.XML);
+      second.setClientID("noisy");
+
+      sender.sendProbe(first);
+      // over the rate, and so is its next copy - which still gets as far as
+      // the scheduler
+      sender.sendProbe(second);
+      sender.sendProbe(second);
+      // the first one got in, so its copy doesn't
+      sender.sendProbe(first);
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (receiver.getReceived() < 4 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      ClientStats noisy = scheduled.getClientScheduler().getClientStats().get("noisy@" + LoopbackTransport.LOOPBACK_ADDRESS);
+      assertEquals(3, noisy.getReceived());
+      assertEquals(2, noisy.getThrottled());
+      assertEquals(1, receiver.getDuplicatesSkipped());
+
+      // once the client has a token again the next copy gets in
+      Thread.sleep(1100);
+      sender.sendProbe(second);
+      deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (noisy.getDispatched() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(2, noisy.getDispatched());
+      assertEquals(2, noisy.getThrottled());
+    } finally {
+      receiver.shutdown();
+      receiving.join(5000);
+      scheduled.shutdown();
+    }
+  }
+
+  @Test
+  public void testShedProbesAreForgotten() throws Exception {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    config.setClientScheduling(true);
+    config.setDefaultClientPolicy(new ClientPolicy(null, 0, 1, 1));
+    Responder scheduled = new Responder(config);
+    try {
+      ProbeWrapper probe = new ProbeWrapper("probe-shed");
+      probe.setClientId("client");
+      ClientScheduler clientScheduler = scheduled.getClientScheduler();
+
+      assertEquals(Admission.ADMITTED, clientScheduler.submit(new ProbeHandlerThread(scheduled, probe, false)));
+      assertEquals(Admission.DUPLICATE, clientScheduler.submit(new ProbeHandlerThread(scheduled, probe, false)));
+      // shed by the thread pool after the scheduler let it in
+      scheduled.getLoadShedder().shed(new ProbeHandlerThread(scheduled, probe, false));
+      assertEquals(Admission.ADMITTED, clientScheduler.submit(new ProbeHandlerThread(scheduled, probe, false)));
+    } finally {
+      scheduled.shutdown();
+    }
+  }
+
+  @Test
+  public void testFullClientQueueOverflows() throws Exception {
+    scheduler = new ClientScheduler(executor, new ClientPolicy(null, 0, 1, 1), Collections.<ClientPolicy> emptyList(), 2, 1, 100);
+
+    // the first goes straight out, the next two wait and the last has no room
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe(null, "10.0.0.1")));
+    dispatched.poll(5, TimeUnit.SECONDS);
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe(null, "10.0.0.1")));
+    assertEquals(Admission.ADMITTED, scheduler.submit(probe(null, "10.0.0.1")));
+    assertEquals(Admission.OVERFLOWED, scheduler.submit(probe(null, "10.0.0.1")));
+
+    ClientStats stats = scheduler.getClientStats().get("10.0.0.1");
+    assertEquals(1, stats.getOverflowed());
+    assertEquals(2, scheduler.getWaiting());
+    assertEquals(1, scheduler.getInFlight());
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ws.argo.responder.HandledProbeCache;
+
+/**
+ * Check the duplicate probe filtering, expiry and capacity limits of the
+ * HandledProbeCache.
+ *
+ * @author jmsimpson
+ *
+ */
+public class HandledProbeCacheTest {
+
+  @Test
+  public void testMarkIfAbsent() {
+    HandledProbeCache cache = new HandledProbeCache();
+
+    assertTrue(cache.markIfAbsent("urn:uuid:probe-1"));
+    assertFalse(cache.markIfAbsent("urn:uuid:probe-1"));
+    assertFalse(cache.markIfAbsent("urn:uuid:probe-1"));
+    assertTrue(cache.markIfAbsent("urn:uuid:probe-2"));
+
+    assertTrue(cache.isHandled("urn:uuid:probe-1"));
+    assertFalse(cache.isHandled("urn:uuid:probe-3"));
+
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  @Test
+  public void testProbesExpire() throws InterruptedException {
+    HandledProbeCache cache = new HandledProbeCache(120, 1000);
+
+    assertTrue(cache.markIfAbsent("urn:uuid:probe-1"));
+    Thread.sleep(300);
+
+    assertFalse(cache.isHandled("urn:uuid:probe-1"));
+    assertTrue(cache.markIfAbsent("urn:uuid:probe-2"));
+    assertTrue(cache.markIfAbsent("urn:uuid:probe-1"));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void testCapacityEvictsOldest() {
+    HandledProbeCache cache = new HandledProbeCache(60000, 100);
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(cache.markIfAbsent("urn:uuid:probe-" + i));
+    }
+
+    assertEquals(100, cache.size());
+    assertEquals(900, cache.getEvictions());
+    assertFalse(cache.isHandled("urn:uuid:probe-0"));
+    assertTrue(cache.isHandled("urn:uuid:probe-999"));
+  }
+
+  @Test
+  public void testOnlyOneThreadWinsTheMark() throws InterruptedException {
+    final HandledProbeCache cache = new HandledProbeCache();
+    final AtomicInteger winners = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    int threads = 8;
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int p = 0; p < 500; p++) {
+            if (cache.markIfAbsent("urn:uuid:probe-" + p)) {
+              winners.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(500, winners.get());
+    assertEquals(500, cache.getMisses());
+    assertEquals(500 * (threads - 1), cache.getHits());
+  }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import ws.argo.responder.metrics.LatencyHistogram;
+import ws.argo.responder.metrics.LatencyMetrics;
+
+/**
+ * Check the percentiles of the LatencyHistogram and how the LatencyMetrics
+ * are published.
+ *
+ * @author jmsimpson
+ *
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testPercentilesAreWithinThreePercent() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 1 us to 100 ms
+    for (long micros = 1; micros <= 100000; micros++) {
+      histogram.record(micros * 1000);
+    }
+
+    assertEquals(100000, histogram.getCount());
+    assertEquals(100000000L, histogram.getMax());
+    assertClose(50000000L, histogram.percentile(50));
+    assertClose(99000000L, histogram.percentile(99));
+    assertClose(99900000L, histogram.percentile(99.9));
+    assertEquals(100000000L, histogram.percentile(100));
+    assertEquals(50000.5, histogram.getMeanMicros(), 0.001);
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 0; nanos < 64; nanos++) {
+      histogram.record(nanos);
+    }
+    assertEquals(31, histogram.percentile(50));
+    assertEquals(63, histogram.percentile(100));
+  }
+
+  @Test
+  public void testReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(5000);
+    histogram.record(-1);
+    assertEquals(2, histogram.getCount());
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.percentile(99));
+  }
+
+  @Test
+  public void testPrometheusText() {
+    LatencyMetrics metrics = new LatencyMetrics();
+    metrics.record(LatencyMetrics.PARSE, "multicast", 2000000);
+    metrics.record(LatencyMetrics.TOTAL, 4000000);
+
+    StringBuilder out = new StringBuilder();
+    metrics.write(out);
+    String text = out.toString();
+
+    assertTrue(text.contains("# TYPE argo_responder_latency_seconds summary"));
+    assertTrue(text.contains("argo_responder_latency_seconds_count{stage=\"parse\",name=\"multicast\"} 1"));
+    assertTrue(text.contains("argo_responder_latency_seconds_count{stage=\"total\"} 1"));
+    assertTrue(text.contains("argo_responder_latency_seconds{stage=\"total\",quantile=\"0.99\"} 0.004"));
+  }
+
+  @Test
+  public void testMXBeans() throws Exception {
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    LatencyMetrics metrics = new LatencyMetrics();
+    metrics.record(LatencyMetrics.QUEUE, 1000);
+    metrics.registerMBeans(server);
+    // made after the registration
+    metrics.record(LatencyMetrics.HANDLER, "ConfigFileProbeHandlerPlugin", 3000);
+
+    ObjectName queue = new ObjectName(LatencyMetrics.DOMAIN + ":type=Latency,stage=queue");
+    ObjectName handler = new ObjectName(LatencyMetrics.DOMAIN + ":type=Latency,stage=handler,name=" + ObjectName.quote("ConfigFileProbeHandlerPlugin"));
+    assertEquals(1L, server.getAttribute(queue, "Count"));
+    assertEquals(3.0, (Double) server.getAttribute(handler, "MaxMicros"), 0.001);
+
+    metrics.unregisterMBeans();
+    assertFalse(server.isRegistered(queue));
+    assertFalse(server.isRegistered(handler));
+  }
+
+  private static void assertClose(long expected, long actual) {
+    assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * 0.03);
+  }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.responder.LoadShedder;
+import ws.argo.responder.ProbeHandlerThread;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Check that the probe handlers run at the same time and that the ones that
+ * miss the deadline are left out of the one response that gets sent.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeHandlerThreadTest {
+
+  private HttpServer                        listener;
+  private String                            listenerURL;
+  private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+  private Responder                         responder;
+
+  /**
+   * A handler that answers with one service after a while (or throws).
+   */
+  private static class TestHandler implements ProbeHandlerPlugin {
+    private final String serviceID;
+    private final long   delay;
+
+    TestHandler(String serviceID, long delay) {
+      this.serviceID = serviceID;
+      this.delay = delay;
+    }
+
+    @Override
+    public ResponseWrapper handleProbeEvent(ProbeWrapper payload) {
+      if (serviceID == null) {
+        throw new IllegalStateException("broken handler");
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ResponseWrapper response = new ResponseWrapper(payload.getProbeId());
+      ServiceWrapper service = new ServiceWrapper(serviceID);
+      service.setServiceName(serviceID);
+      response.addResponse(service);
+      return response;
+    }
+
+    @Override
+    public void initializeWithPropertiesFilename(String filename) {
+    }
+
+    @Override
+    public String pluginName() {
+      return "Test " + serviceID;
+    }
+  }
+
+  /**
+   * Start a listener and a Responder (without any transports) to send to it.
+   *
+   * @throws IOException if the listener can't start
+   */
+  @Before
+  public void setup() throws IOException {
+    listener = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    listener.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buf = new byte[256];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          body.write(buf, 0, n);
+        }
+        received.add(body.toString("UTF-8"));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    listener.start();
+    listenerURL = "http://127.0.0.1:" + listener.getAddress().getPort() + "/";
+
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    config.setHandlerDeadline(300);
+    responder = new Responder(config);
+  }
+
+  /**
+   * Shut everything down.
+   */
+  @After
+  public void teardown() {
+    responder.shutdown();
+    listener.stop(0);
+  }
+
+  private ProbeWrapper probe(String id) {
+    ProbeWrapper probe = new ProbeWrapper(id);
+    probe.setRespondToPayloadType(ProbeWrapper.JSON);
+    probe.addRespondToURL("test", listenerURL);
+    return probe;
+  }
+
+  @Test
+  public void testHandlersRunTogetherUnderTheDeadline() throws Exception {
+    ProbeHandlerPlugin fast = new TestHandler("fast", 0);
+    ProbeHandlerPlugin steady = new TestHandler("steady", 150);
+    ProbeHandlerPlugin also = new TestHandler("also-steady", 150);
+    ProbeHandlerPlugin slow = new TestHandler("slow", 5000);
+    ProbeHandlerPlugin broken = new TestHandler(null, 0);
+    responder.getHandlers().add(fast);
+    responder.getHandlers().add(steady);
+    responder.getHandlers().add(also);
+    responder.getHandlers().add(slow);
+    responder.getHandlers().add(broken);
+
+    long start = System.nanoTime();
+    new ProbeHandlerThread(responder, probe("probe-1"), false).run();
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    // the steady handlers overlapped and nobody waited for the slow one
+    assertTrue("took " + elapsed + " ms", elapsed < 1000);
+
+    String response = received.poll(5, TimeUnit.SECONDS);
+    assertTrue(response.contains("\"fast\""));
+    assertTrue(response.contains("\"steady\""));
+    assertTrue(response.contains("\"also-steady\""));
+    assertFalse(response.contains("\"slow\""));
+    // just the one response
+    assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+    assertEquals(1, responder.getHandlerStats(fast).getAnswered());
+    assertEquals(1, responder.getHandlerStats(slow).getMissed());
+    assertEquals(0, responder.getHandlerStats(slow).getAnswered());
+    assertEquals(1, responder.getHandlerStats(broken).getFailed());
+  }
+
+  @Test
+  public void testNoDeadlineRunsInOrder() throws Exception {
+    responder.shutdown();
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    config.setHandlerDeadline(0);
+    responder = new Responder(config);
+
+    ProbeHandlerPlugin first = new TestHandler("first", 100);
+    ProbeHandlerPlugin second = new TestHandler("second", 100);
+    responder.getHandlers().add(first);
+    responder.getHandlers().add(second);
+
+    long start = System.nanoTime();
+    new ProbeHandlerThread(responder, probe("probe-2"), false).run();
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+
+    String response = received.poll(5, TimeUnit.SECONDS);
+    assertTrue(response.contains("\"first\""));
+    assertTrue(response.contains("\"second\""));
+    assertEquals(1, responder.getHandlerStats(second).getAnswered());
+  }
+
+  @Test
+  public void testShedNakedProbeIsAnsweredFromTheCache() throws Exception {
+    ConfigFileProbeHandlerPlugin handler = new ConfigFileProbeHandlerPlugin();
+    ArrayList<ServiceWrapper> services = new ArrayList<ServiceWrapper>();
+    ServiceWrapper service = new ServiceWrapper("cached-service");
+    service.setServiceName("cached");
+    services.add(service);
+    handler.setServiceList(services);
+    responder.getHandlers().add(handler);
+
+    // the first naked probe builds the template
+    new ProbeHandlerThread(responder, probe("naked-1"), false).run();
+    assertTrue(received.poll(5, TimeUnit.SECONDS).contains("\"cached-service\""));
+
+    LoadShedder shedder = responder.getLoadShedder();
+    shedder.shed(new ProbeHandlerThread(responder, probe("naked-2"), false));
+    assertEquals(1, shedder.getShedNaked());
+    assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+    shedder.setAnswerShedProbes(true);
+    shedder.shed(new ProbeHandlerThread(responder, probe("naked-3"), false));
+    String response = received.poll(5, TimeUnit.SECONDS);
+    assertTrue(response.contains("\"cached-service\""));
+    assertTrue(response.contains("naked-3"));
+    assertEquals(1, shedder.getAnsweredFromCache());
+    assertTrue(responder.getHandledProbeCache().isHandled("naked-3"));
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ws.argo.plugin.transport.responder.DuplicateProbeFilter;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.responder.transport.ByteBufferPool;
+import ws.argo.responder.transport.ProbePipeline;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.XMLSerializer;
+
+/**
+ * Drive the multicast transport's receive to parse hand-off without a socket.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbePipelineTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ProbePipeline pipeline;
+
+  /**
+   * Collects the probes the pipeline hands over and filters out the copies.
+   */
+  static class CollectingProcessor implements ProbeProcessor, DuplicateProbeFilter {
+    final List<ProbeWrapper> probes  = Collections.synchronizedList(new ArrayList<ProbeWrapper>());
+    final Set<String>        claimed = Collections.synchronizedSet(new HashSet<String>());
+
+    @Override
+    public void processProbe(ProbeWrapper probe) {
+      probes.add(probe);
+    }
+
+    @Override
+    public boolean claimProbe(String probeID) {
+      return claimed.add(probeID);
+    }
+
+    @Override
+    public void releaseProbe(String probeID) {
+      claimed.remove(probeID);
+    }
+
+    @Override
+    public float probesPerSecond() {
+      return 0;
+    }
+
+    @Override
+    public int probesProcessed() {
+      return probes.size();
+    }
+
+    @Override
+    public void probeProcessed() {
+    }
+
+    @Override
+    public String getRuntimeID() {
+      return "pipeline-test";
+    }
+  }
+
+  @After
+  public void shutdownPipeline() {
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+  }
+
+  static ByteBuffer datagram(ByteBufferPool pool, String payload) {
+    ByteBuffer buffer = pool.acquire();
+    buffer.put(payload.getBytes(UTF8));
+    buffer.flip();
+    return buffer;
+  }
+
+  static String probeXML(String probeID) {
+    ProbeWrapper probe = new ProbeWrapper(probeID);
+    probe.setClientId("pipeline-test");
+    probe.addRespondToURL("internal", "http://localhost:9998/listener/probeResponse");
+    probe.addServiceContractID("urn:uuid:pipeline-contract");
+    return new XMLSerializer().marshal(probe);
+  }
+
+  private static void waitFor(CollectingProcessor processor, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (processor.probes.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testParserThreadsHandTheProbesOn() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(8, 2048);
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 2, 16, pool);
+    pipeline.start("pipeline-test");
+
+    InetAddress sender = InetAddress.getByName("127.0.0.1");
+    for (int i = 0; i < 5; i++) {
+      pipeline.dispatch(datagram(pool, probeXML("urn:uuid:pipeline-" + i)), sender, System.nanoTime());
+    }
+    waitFor(processor, 5);
+
+    assertEquals(5, processor.probes.size());
+    assertEquals("127.0.0.1", processor.probes.get(0).getSenderAddress());
+    assertTrue(processor.probes.get(0).getReceivedAt() > 0);
+    assertEquals(5, pipeline.getDatagramsReceived());
+    assertEquals(0, pipeline.getDatagramsDropped());
+    assertEquals(0, pipeline.getParseErrors());
+    // every buffer went back to the pool
+    assertEquals(8, pool.available());
+  }
+
+  @Test
+  public void testStreamingParserReadsWhatJAXBReads() throws Exception {
+    String payload = probeXML("urn:uuid:parsers");
+    ProbeWrapper[] parsed = new ProbeWrapper[2];
+    String[] parsers = { ProbePipeline.JAXB_PARSER, ProbePipeline.STREAMING_PARSER };
+    for (int i = 0; i < parsers.length; i++) {
+      CollectingProcessor processor = new CollectingProcessor();
+      ByteBufferPool pool = new ByteBufferPool(2, 2048);
+      pipeline = new ProbePipeline(processor, "test", parsers[i], 1, 4, pool);
+      pipeline.start("pipeline-test");
+      pipeline.dispatch(datagram(pool, payload), InetAddress.getByName("127.0.0.1"), System.nanoTime());
+      waitFor(processor, 1);
+      pipeline.shutdown();
+
+      assertEquals(parsers[i], 1, processor.probes.size());
+      assertEquals(parsers[i], 0, pipeline.getParseErrors());
+      parsed[i] = processor.probes.get(0);
+    }
+
+    ProbeWrapper jaxb = parsed[0];
+    ProbeWrapper streaming = parsed[1];
+    assertEquals(jaxb.getProbeId(), streaming.getProbeId());
+    assertEquals(jaxb.getClientId(), streaming.getClientId());
+    assertEquals(jaxb.getDESVersion(), streaming.getDESVersion());
+    assertEquals(jaxb.getRespondToPayloadType(), streaming.getRespondToPayloadType());
+    assertEquals(jaxb.getRespondToURLs(), streaming.getRespondToURLs());
+    assertEquals(jaxb.getServiceContractIDs(), streaming.getServiceContractIDs());
+    assertEquals(jaxb.getServiceInstanceIDs(), streaming.getServiceInstanceIDs());
+    assertEquals(jaxb.getSenderAddress(), streaming.getSenderAddress());
+  }
+
+  @Test
+  public void testFullParseQueueDropsDatagrams() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(8, 2048);
+    // not started, so nothing takes the datagrams off the queue
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 1, 2, pool);
+
+    for (int i = 0; i < 5; i++) {
+      pipeline.dispatch(datagram(pool, probeXML("urn:uuid:dropped-" + i)), null, System.nanoTime());
+    }
+
+    assertEquals(5, pipeline.getDatagramsReceived());
+    assertEquals(3, pipeline.getDatagramsDropped());
+    assertEquals(2, pipeline.getParseQueueDepth());
+    // the dropped buffers went back to the pool, the queued ones didn't yet
+    assertEquals(6, pool.available());
+
+    pipeline.start("pipeline-test");
+    waitFor(processor, 2);
+    assertEquals(2, processor.probes.size());
+    assertEquals(0, pipeline.getParseQueueDepth());
+  }
+
+  @Test
+  public void testParseErrorsAreCounted() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(2, 2048);
+    // no parser threads - the datagrams are parsed inline
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.STREAMING_PARSER, 0, 1, pool);
+
+    pipeline.dispatch(datagram(pool, "this is not a probe"), null, System.nanoTime());
+    pipeline.dispatch(datagram(pool, probeXML("urn:uuid:good")), null, System.nanoTime());
+
+    assertEquals(1, pipeline.getParseErrors());
+    assertEquals(1, processor.probes.size());
+    assertEquals("urn:uuid:good", processor.probes.get(0).getProbeId());
+    assertEquals(2, pool.available());
+  }
+
+  @Test
+  public void testFullBuffersAreCountedAsTruncated() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(1, 64);
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 0, 1, pool);
+
+    ByteBuffer buffer = pool.acquire();
+    buffer.put(probeXML("urn:uuid:too-big").getBytes(UTF8), 0, buffer.capacity());
+    buffer.flip();
+    pipeline.dispatch(buffer, null, System.nanoTime());
+
+    assertEquals(1, pipeline.getDatagramsTruncated());
+    assertEquals(1, pipeline.getParseErrors());
+  }
+
+  @Test
+  public void testClaimedProbesAreSkippedUnparsed() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    processor.claimed.add("urn:uuid:seen");
+    ByteBufferPool pool = new ByteBufferPool(2, 2048);
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 0, 1, pool);
+
+    pipeline.dispatch(datagram(pool, probeXML("urn:uuid:seen")), null, System.nanoTime());
+
+    assertEquals(1, pipeline.getDuplicatesSkipped());
+    assertEquals(0, processor.probes.size());
+    assertEquals(2, pool.available());
+  }
+
+  @Test
+  public void testBackToBackCopiesAreSkippedBeforeParsing() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(4, 2048);
+    // not started, so the first copy is still waiting to be parsed when the
+    // others arrive
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 1, 4, pool);
+
+    for (int i = 0; i < 3; i++) {
+      pipeline.dispatch(datagram(pool, probeXML("urn:uuid:copies")), null, System.nanoTime());
+    }
+
+    assertEquals(2, pipeline.getDuplicatesSkipped());
+    assertEquals(1, pipeline.getParseQueueDepth());
+
+    pipeline.start("pipeline-test");
+    waitFor(processor, 1);
+    assertEquals(1, processor.probes.size());
+  }
+
+  @Test
+  public void testDroppedCopiesGiveTheirClaimBack() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(4, 2048);
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 1, 1, pool);
+
+    pipeline.dispatch(datagram(pool, probeXML("urn:uuid:queued")), null, System.nanoTime());
+    pipeline.dispatch(datagram(pool, probeXML("urn:uuid:dropped")), null, System.nanoTime());
+    assertEquals(1, pipeline.getDatagramsDropped());
+    assertTrue(!processor.claimed.contains("urn:uuid:dropped"));
+
+    pipeline.start("pipeline-test");
+    waitFor(processor, 1);
+    // the next copy of the dropped probe gets through
+    pipeline.dispatch(datagram(pool, probeXML("urn:uuid:dropped")), null, System.nanoTime());
+    waitFor(processor, 2);
+
+    assertEquals(0, pipeline.getDuplicatesSkipped());
+    assertEquals("urn:uuid:dropped", processor.probes.get(1).getProbeId());
+  }
+
+  @Test
+  public void testUnparsableCopiesGiveTheirClaimBack() throws Exception {
+    CollectingProcessor processor = new CollectingProcessor();
+    ByteBufferPool pool = new ByteBufferPool(2, 2048);
+    pipeline = new ProbePipeline(processor, "test", ProbePipeline.JAXB_PARSER, 0, 1, pool);
+
+    String xml = probeXML("urn:uuid:mangled");
+    pipeline.dispatch(datagram(pool, xml.substring(0, xml.length() / 2)), null, System.nanoTime());
+    pipeline.dispatch(datagram(pool, xml), null, System.nanoTime());
+
+    assertEquals(1, pipeline.getParseErrors());
+    assertEquals(0, pipeline.getDuplicatesSkipped());
+    assertEquals(1, processor.probes.size());
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.responder.LoadShedder;
+import ws.argo.responder.ProbeHandlerThread;
+import ws.argo.responder.ProbeQueue;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * Check that the probe queue takes targeted probes first and that the load
+ * shedder drops the oldest naked probes first.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeQueueTest {
+
+  private Responder responder;
+
+  /**
+   * Create a Responder (without any transports or handlers) for the probes.
+   */
+  @Before
+  public void setup() {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    responder = new Responder(config);
+  }
+
+  @After
+  public void teardown() {
+    responder.shutdown();
+  }
+
+  private ProbeHandlerThread probe(String id, boolean naked) {
+    ProbeWrapper probe = new ProbeWrapper(id);
+    if (!naked) {
+      probe.addServiceContractID("urn:uuid:some-contract");
+    }
+    return new ProbeHandlerThread(responder, probe, false);
+  }
+
+  @Test
+  public void testTargetedProbesGoFirst() throws Exception {
+    ProbeQueue queue = new ProbeQueue(10);
+    ProbeHandlerThread naked1 = probe("n1", true);
+    ProbeHandlerThread targeted1 = probe("t1", false);
+    ProbeHandlerThread naked2 = probe("n2", true);
+    ProbeHandlerThread targeted2 = probe("t2", false);
+    assertTrue(queue.offer(naked1));
+    assertTrue(queue.offer(targeted1));
+    assertTrue(queue.offer(naked2));
+    assertTrue(queue.offer(targeted2));
+    assertEquals(4, queue.size());
+    assertEquals(2, queue.nakedSize());
+
+    assertSame(targeted1, queue.peek());
+    assertSame(targeted1, queue.poll());
+    assertSame(targeted2, queue.take());
+    assertSame(naked1, queue.poll(1, TimeUnit.SECONDS));
+    assertSame(naked2, queue.poll());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testSheddingDropsTheOldestNakedProbe() {
+    ProbeQueue queue = new ProbeQueue(3);
+    ProbeHandlerThread naked1 = probe("n1", true);
+    ProbeHandlerThread naked2 = probe("n2", true);
+    ProbeHandlerThread targeted1 = probe("t1", false);
+    queue.offer(naked1);
+    queue.offer(targeted1);
+    queue.offer(naked2);
+    assertEquals(0, queue.remainingCapacity());
+
+    ProbeHandlerThread targeted2 = probe("t2", false);
+    assertFalse(queue.offer(targeted2));
+    assertSame(naked1, queue.offerShedding(targeted2));
+    ProbeHandlerThread naked3 = probe("n3", true);
+    assertSame(naked2, queue.offerShedding(naked3));
+
+    // nothing but targeted probes left to push out
+    queue.clear();
+    queue.offer(probe("t3", false));
+    queue.offer(probe("t4", false));
+    queue.offer(probe("t5", false));
+    ProbeHandlerThread naked4 = probe("n4", true);
+    assertSame(naked4, queue.offerShedding(naked4));
+
+    ArrayList<Runnable> drained = new ArrayList<Runnable>();
+    assertEquals(3, queue.drainTo(drained));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testLoadShedderCountsShedProbes() {
+    ProbeQueue queue = new ProbeQueue(1);
+    LoadShedder shedder = responder.getLoadShedder();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, queue, shedder);
+    try {
+      queue.offer(probe("n1", true));
+
+      shedder.rejectedExecution(probe("t1", false), executor);
+      shedder.rejectedExecution(probe("n2", true), executor);
+      assertEquals(2, shedder.getShedNaked());
+      assertEquals(0, shedder.getShedTargeted());
+      assertEquals(1, queue.size());
+      assertEquals(0, queue.nakedSize());
+
+      shedder.rejectedExecution(probe("t2", false), executor);
+      assertEquals(1, shedder.getShedTargeted());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testShedProbesGiveBackTheirClaim() {
+    ProbeQueue queue = new ProbeQueue(1);
+    LoadShedder shedder = responder.getLoadShedder();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, queue, shedder);
+    try {
+      // as the transport would have
+      assertTrue(responder.claimProbe("n1"));
+      assertTrue(responder.claimProbe("t1"));
+      queue.offer(probe("n1", true));
+
+      // t1 takes n1's place, so the next copy of n1 can get in
+      shedder.rejectedExecution(probe("t1", false), executor);
+      assertEquals(1, shedder.getShedNaked());
+      assertTrue(responder.claimProbe("n1"));
+      assertFalse(responder.claimProbe("t1"));
+
+      // even with answerShedProbes on, as long as there's nothing cached to
+      // answer it with
+      shedder.setAnswerShedProbes(true);
+      assertTrue(responder.claimProbe("n2"));
+      shedder.shed(probe("n2", true));
+      assertEquals(0, shedder.getAnsweredFromCache());
+      assertTrue(responder.claimProbe("n2"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.responder.ProbeRingBuffer;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * Check that every probe put on the ring is handled exactly once with each of
+ * the wait strategies, and that a full ring drops probes.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeRingBufferTest {
+
+  private Responder       responder;
+  private ProbeRingBuffer ring;
+  private Set<String>     handled;
+  private CountDownLatch  release;
+
+  /**
+   * Counts the probes it sees. It holds them up until the release latch opens.
+   */
+  private class CountingHandler implements ProbeHandlerPlugin {
+
+    @Override
+    public ResponseWrapper handleProbeEvent(ProbeWrapper payload) {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!handled.add(payload.getProbeId())) {
+        throw new IllegalStateException("probe [" + payload.getProbeId() + "] was handled twice");
+      }
+      return new ResponseWrapper(payload.getProbeId());
+    }
+
+    @Override
+    public void initializeWithPropertiesFilename(String filename) {
+    }
+
+    @Override
+    public String pluginName() {
+      return "Counting";
+    }
+  }
+
+  @Before
+  public void setup() {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    // run the handler on the consumer's thread
+    config.setHandlerDeadline(0);
+    responder = new Responder(config);
+    responder.getHandlers().add(new CountingHandler());
+    handled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    release = new CountDownLatch(0);
+  }
+
+  @After
+  public void teardown() {
+    if (ring != null) {
+      ring.halt();
+    }
+    responder.shutdown();
+  }
+
+  private void publishAndWait(String waitStrategy) throws InterruptedException {
+    ring = new ProbeRingBuffer(responder, 64, 3, 8, ProbeRingBuffer.waitStrategy(waitStrategy), false);
+    ring.start();
+
+    int count = 5000;
+    int published = 0;
+    for (int i = 0; i < count; i++) {
+      // the consumers may fall a ring behind - just try again
+      while (!ring.publish(new ProbeWrapper(waitStrategy + "-" + i))) {
+        Thread.yield();
+      }
+      published++;
+    }
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (ring.getHandled() < published && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(published, ring.getHandled());
+    assertEquals(count, handled.size());
+    assertEquals(0, ring.getBacklog());
+    assertTrue(ring.getAverageBatchSize() >= 1);
+  }
+
+  @Test
+  public void testBlockingConsumers() throws Exception {
+    publishAndWait(ProbeRingBuffer.BLOCK);
+  }
+
+  @Test
+  public void testYieldingConsumers() throws Exception {
+    publishAndWait(ProbeRingBuffer.YIELD);
+  }
+
+  @Test
+  public void testSpinningConsumers() throws Exception {
+    publishAndWait(ProbeRingBuffer.SPIN);
+  }
+
+  @Test
+  public void testFullRingDropsProbes() throws Exception {
+    release = new CountDownLatch(1);
+    ring = new ProbeRingBuffer(responder, 4, 1, 1, ProbeRingBuffer.waitStrategy(ProbeRingBuffer.BLOCK), false);
+    ring.start();
+
+    // the consumer is stuck on the first probe, which still holds its slot
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.publish(new ProbeWrapper("full-" + i)));
+    }
+    assertFalse(ring.publish(new ProbeWrapper("full-4")));
+    assertEquals(1, ring.getRejected());
+
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (ring.getHandled() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, ring.getHandled());
+    assertTrue(ring.publish(new ProbeWrapper("full-5")));
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.responder.jfr.ResponderEvents;
+
+/**
+ * Check that the Responder's flight recorder events get into a recording with
+ * their fields filled in. Skipped on JVMs without JFR.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponderEventsTest {
+
+  @Before
+  public void checkJFR() {
+    Assume.assumeTrue(ResponderEvents.isEnabled());
+  }
+
+  @Test
+  public void testEventsAreRecorded() throws Exception {
+    List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+    File file = File.createTempFile("argo", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.disable("ws.argo.ProbeReceived");
+      recording.start();
+
+      ResponderEvents.probeParsed("multicast", "urn:uuid:1234", 512, 1000, 2000, true);
+      ResponderEvents.handlerInvoked("urn:uuid:1234", "ConfigFileProbeHandlerPlugin", ResponderEvents.MISSED, 0, 3000);
+      // turned off in this recording
+      ResponderEvents.probeReceived("multicast", "urn:uuid:1234", null, 512);
+
+      recording.stop();
+      recording.dump(file.toPath());
+      events.addAll(RecordingFile.readAllEvents(file.toPath()));
+    } finally {
+      file.delete();
+    }
+
+    RecordedEvent parsed = null;
+    RecordedEvent handler = null;
+    for (RecordedEvent event : events) {
+      String name = event.getEventType().getName();
+      assertTrue(name, !name.equals("ws.argo.ProbeReceived"));
+      if (name.equals("ws.argo.ProbeParsed")) {
+        parsed = event;
+      } else if (name.equals("ws.argo.HandlerInvoked")) {
+        handler = event;
+      }
+    }
+
+    assertEquals("urn:uuid:1234", parsed.getString("probeId"));
+    assertEquals(512, parsed.getInt("size"));
+    assertEquals(2000, parsed.getDuration("parseTime").toNanos());
+    assertTrue(parsed.getBoolean("succeeded"));
+
+    assertEquals("ConfigFileProbeHandlerPlugin", handler.getString("handler"));
+    assertEquals(ResponderEvents.MISSED, handler.getString("outcome"));
+    assertEquals(3000, handler.getDuration("handlerTime").toNanos());
+  }
+
+}
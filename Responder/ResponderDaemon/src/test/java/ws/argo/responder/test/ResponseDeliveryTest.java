@@ -0,0 +1,500 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ws.argo.responder.ResponseDelivery;
+import ws.argo.responder.ResponseDelivery.RetryPolicy;
+import ws.argo.responder.ResponseSpool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Check that the ResponseDelivery sends responses without blocking the caller
+ * and keeps count of what happened to them.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseDeliveryTest {
+
+  private HttpServer                          listener;
+  private String                              listenerURL;
+  private final ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<String>();
+  private final CountDownLatch                release  = new CountDownLatch(1);
+  private ResponseDelivery                    delivery;
+
+  private final ConcurrentLinkedQueue<String> receivedBy = new ConcurrentLinkedQueue<String>();
+
+  // /flaky answers 503 this many times and then takes the response
+  private final AtomicInteger flakyFailures = new AtomicInteger();
+  // /down answers 503 until it's brought up
+  private final AtomicBoolean up            = new AtomicBoolean();
+  // and hangs like /slow while this is set
+  private final AtomicBoolean hang          = new AtomicBoolean();
+
+  @Rule
+  public TemporaryFolder      spoolFolder   = new TemporaryFolder();
+
+  /**
+   * Start a listener with a normal endpoint and one that hangs until the test
+   * lets it go.
+   *
+   * @throws IOException if the listener can't start
+   */
+  @Before
+  public void startListener() throws IOException {
+    listener = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    // anything under /ok (e.g. /ok/eth0) takes the response
+    listener.createContext("/ok", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        received.add(readBody(exchange.getRequestBody()) + " " + exchange.getRequestHeaders().getFirst("Content-Type"));
+        receivedBy.add(exchange.getRequestURI().getPath());
+        exchange.sendResponseHeaders(200, 2);
+        exchange.getResponseBody().write("ok".getBytes("UTF-8"));
+        exchange.close();
+      }
+    });
+    listener.createContext("/missing", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        readBody(exchange.getRequestBody());
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+      }
+    });
+    listener.createContext("/slow", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        readBody(exchange.getRequestBody());
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    listener.createContext("/flaky", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        readBody(exchange.getRequestBody());
+        exchange.sendResponseHeaders(flakyFailures.getAndDecrement() > 0 ? 503 : 200, -1);
+        exchange.close();
+      }
+    });
+    listener.createContext("/down", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        received.add(readBody(exchange.getRequestBody()));
+        if (hang.get()) {
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        exchange.sendResponseHeaders(up.get() ? 200 : 503, -1);
+        exchange.close();
+      }
+    });
+    listener.setExecutor(Executors.newCachedThreadPool());
+    listener.start();
+    listenerURL = "http://127.0.0.1:" + listener.getAddress().getPort();
+  }
+
+  /**
+   * Shut everything down.
+   */
+  @After
+  public void stopListener() {
+    release.countDown();
+    if (delivery != null) {
+      delivery.shutdown();
+    }
+    listener.stop(0);
+  }
+
+  private static String readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[256];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private void waitFor(long expectedDone) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((delivery.getDelivered() + delivery.getFailed() < expectedDone || delivery.getPending() > 0) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  // the failed responses are queued or spooled just after the send is counted
+  private void waitForSpooled(long expectedSpooled) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (delivery.getSpooled() < expectedSpooled && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testDeliverAndCount() throws Exception {
+    delivery = new ResponseDelivery(null);
+
+    assertTrue(delivery.deliver(listenerURL + "/ok", "application/json", "{\"probeID\":\"1\"}".getBytes("UTF-8"), "1"));
+    assertTrue(delivery.deliver(listenerURL + "/missing", "application/json", "{}".getBytes("UTF-8"), "2"));
+    waitFor(2);
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals(1, delivery.getFailed());
+    assertEquals(0, delivery.getPending());
+    assertEquals("{\"probeID\":\"1\"} application/json; charset=UTF-8", received.peek());
+  }
+
+  @Test
+  public void testSlowListenerTimesOutWithoutBlocking() throws Exception {
+    delivery = new ResponseDelivery(null, 1000, 200, 10, 2, 10, 1);
+
+    long start = System.currentTimeMillis();
+    assertTrue(delivery.deliver(listenerURL + "/slow", "application/xml", "<services/>".getBytes("UTF-8"), "1"));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+
+    waitFor(1);
+    assertEquals(1, delivery.getFailed());
+    assertEquals(0, delivery.getPending());
+  }
+
+  @Test
+  public void testTooManyPending() throws Exception {
+    delivery = new ResponseDelivery(null, 1000, 5000, 10, 1, 2, 1);
+
+    assertTrue(delivery.deliver(listenerURL + "/slow", "application/xml", "<services/>".getBytes("UTF-8"), "1"));
+    assertTrue(delivery.deliver(listenerURL + "/slow", "application/xml", "<services/>".getBytes("UTF-8"), "2"));
+    assertFalse(delivery.deliver(listenerURL + "/ok", "application/xml", "<services/>".getBytes("UTF-8"), "3"));
+    assertEquals(1, delivery.getRejected());
+    assertEquals(2, delivery.getPending());
+
+    release.countDown();
+    waitFor(2);
+    assertEquals(2, delivery.getDelivered());
+    assertEquals(0, delivery.getPending());
+  }
+
+  @Test
+  public void testBadURL() throws Exception {
+    delivery = new ResponseDelivery(null);
+
+    assertFalse(delivery.deliver("not a url at all", "application/xml", new byte[0], "1"));
+    assertEquals(1, delivery.getFailed());
+  }
+
+  @Test
+  public void testAllMode() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setDeliveryMode(ResponseDelivery.ALL);
+
+    assertTrue(delivery.deliver(Arrays.asList(listenerURL + "/ok/eth0", listenerURL + "/missing", listenerURL + "/ok/eth1"), "application/json", "{}".getBytes("UTF-8"), "1"));
+    waitFor(3);
+
+    assertEquals(2, delivery.getDelivered());
+    assertEquals(1, delivery.getFailed());
+    assertTrue(receivedBy.contains("/ok/eth0"));
+    assertTrue(receivedBy.contains("/ok/eth1"));
+  }
+
+  @Test
+  public void testFirstMode() throws Exception {
+    delivery = new ResponseDelivery(null);
+
+    assertTrue(delivery.deliver(Arrays.asList(listenerURL + "/ok/eth0", listenerURL + "/ok/eth1"), "application/json", "{}".getBytes("UTF-8"), "1"));
+    waitFor(1);
+    Thread.sleep(100);
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals(Arrays.asList("/ok/eth0"), Arrays.asList(receivedBy.toArray()));
+  }
+
+  @Test
+  public void testFirstSuccessFailsOver() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setDeliveryMode(ResponseDelivery.FIRST_SUCCESS);
+
+    assertTrue(delivery.deliver(Arrays.asList("not a url at all", listenerURL + "/missing", listenerURL + "/ok/eth1", listenerURL + "/ok/eth2"), "application/json", "{}".getBytes("UTF-8"), "1"));
+    waitFor(3);
+    Thread.sleep(100);
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals(2, delivery.getFailed());
+    assertEquals(0, delivery.getPending());
+    assertEquals(Arrays.asList("/ok/eth1"), Arrays.asList(receivedBy.toArray()));
+
+    assertEquals(1, delivery.getEndpointStats().get(listenerURL + "/missing").getFailures());
+    assertEquals(1, delivery.getEndpointStats().get(listenerURL + "/ok/eth1").getSuccesses());
+    assertFalse(delivery.getEndpointStats().containsKey(listenerURL + "/ok/eth2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMode() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setDeliveryMode("sometimes");
+  }
+
+  @Test
+  public void testRetryUntilDelivered() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 20, 100, 10000, 10));
+    flakyFailures.set(2);
+
+    assertTrue(delivery.deliver(listenerURL + "/flaky", "application/json", "{}".getBytes("UTF-8"), "1"));
+    waitFor(3);
+    Thread.sleep(100);
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals(2, delivery.getFailed());
+    assertEquals(2, delivery.getRetried());
+    assertEquals(0, delivery.getRetryQueueSize());
+  }
+
+  @Test
+  public void testClientErrorsAreNotRetried() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 20, 100, 10000, 10));
+
+    assertTrue(delivery.deliver(listenerURL + "/missing", "application/json", "{}".getBytes("UTF-8"), "1"));
+    waitFor(1);
+    Thread.sleep(200);
+
+    assertEquals(1, delivery.getFailed());
+    assertEquals(0, delivery.getRetried());
+  }
+
+  // the drained segments are deleted just after the last response is settled
+  private static void waitForDeleted(File spoolDirectory) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (spoolDirectory.list().length > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testOldResponsesExpire() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(100, 100, 100, 400, 10));
+
+    assertTrue(delivery.deliver(listenerURL + "/down", "application/json", "{}".getBytes("UTF-8"), "1"));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (delivery.getExpired() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(1, delivery.getExpired());
+    assertEquals(0, delivery.getDelivered());
+    // the jittered delay is at least 50 ms, so no more than 8 fit in the max age
+    assertTrue(delivery.getRetried() <= 8);
+  }
+
+  @Test
+  public void testMaxAgeCountsFromWhenTheProbeWasReceived() throws Exception {
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 100, 100, 1000, 10));
+
+    // the probe sat around for two seconds before it was answered
+    long receivedAt = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+    assertTrue(delivery.deliver(Collections.singletonList(listenerURL + "/down"), "application/json", "{}".getBytes("UTF-8"), "1", receivedAt));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (delivery.getExpired() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(1, delivery.getExpired());
+    assertEquals(0, delivery.getRetried());
+  }
+
+  @Test
+  public void testOverflowIsSpooledAndReplayed() throws Exception {
+    File spoolDirectory = spoolFolder.newFolder("spool");
+
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 60000, 60000, 120000, 1));
+    delivery.setSpool(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS));
+
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(delivery.deliver(listenerURL + "/down", "application/json", ("{\"probeID\":\"" + i + "\"}").getBytes("UTF-8"), Integer.toString(i)));
+    }
+    waitFor(3);
+    waitForSpooled(2);
+    assertEquals(1, delivery.getRetryQueueSize());
+    assertEquals(2, delivery.getSpooled());
+
+    // the one waiting in the retry queue is spooled on the way down
+    delivery.shutdown();
+    assertEquals(3, delivery.getSpooled());
+
+    // the restarted Responder picks them up
+    up.set(true);
+    received.clear();
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 20, 100, 120000, 10));
+    ResponseSpool spool = new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS);
+    assertFalse(spool.isEmpty());
+    delivery.setSpool(spool);
+    waitFor(3);
+
+    assertEquals(3, delivery.getDelivered());
+    assertTrue(received.contains("{\"probeID\":\"1\"}"));
+    assertTrue(received.contains("{\"probeID\":\"2\"}"));
+    assertTrue(received.contains("{\"probeID\":\"3\"}"));
+    assertTrue(spool.isEmpty());
+    waitForDeleted(spoolDirectory);
+    assertEquals(0, spoolDirectory.list().length);
+  }
+
+  @Test
+  public void testOnlyThePayloadPartOfTheBufferIsSent() throws Exception {
+    File spoolDirectory = spoolFolder.newFolder("spool");
+    byte[] payload = "{\"probeID\":\"1\"}".getBytes("UTF-8");
+    byte[] buffer = Arrays.copyOf(payload, payload.length + 64);
+    Arrays.fill(buffer, payload.length, buffer.length, (byte) 'x');
+
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 60000, 60000, 120000, 10));
+    delivery.setSpool(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS));
+
+    assertTrue(delivery.deliver(Collections.singletonList(listenerURL + "/ok"), "application/json", buffer, payload.length, "1", 0));
+    assertTrue(delivery.deliver(Collections.singletonList(listenerURL + "/down"), "application/json", buffer, payload.length, "1", 0));
+    waitFor(2);
+    assertEquals(2, received.size());
+    assertTrue(received.contains("{\"probeID\":\"1\"} application/json; charset=UTF-8"));
+    assertTrue(received.contains("{\"probeID\":\"1\"}"));
+
+    // and the spool keeps just the payload too
+    delivery.shutdown();
+    assertEquals(1, delivery.getSpooled());
+    up.set(true);
+    received.clear();
+    delivery = new ResponseDelivery(null);
+    delivery.setSpool(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS));
+    waitFor(1);
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals("{\"probeID\":\"1\"}", received.poll());
+  }
+
+  @Test
+  public void testDrainedResponsesStaySpooledUntilSettled() throws Exception {
+    File spoolDirectory = spoolFolder.newFolder("spool");
+
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 60000, 60000, 120000, 0));
+    delivery.setSpool(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS));
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(delivery.deliver(listenerURL + "/down", "application/json", ("{\"probeID\":\"" + i + "\"}").getBytes("UTF-8"), Integer.toString(i)));
+    }
+    waitFor(3);
+    waitForSpooled(3);
+    delivery.shutdown();
+
+    // the restarted Responder drains the spool, but the sends hang
+    hang.set(true);
+    received.clear();
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 20, 100, 120000, 10));
+    delivery.setSpool(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (received.size() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, received.size());
+    // if the Responder died now the next one would still find the responses
+    assertFalse(new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS).isEmpty());
+
+    // shutting down writes the ones still in flight back to the spool
+    delivery.shutdown();
+    up.set(true);
+    hang.set(false);
+    release.countDown();
+
+    received.clear();
+    delivery = new ResponseDelivery(null);
+    delivery.setRetryPolicy(new RetryPolicy(5, 20, 100, 120000, 10));
+    ResponseSpool spool = new ResponseSpool(spoolDirectory, ResponseSpool.DEFAULT_SEGMENT_SIZE, ResponseSpool.DEFAULT_MAX_SEGMENTS);
+    delivery.setSpool(spool);
+    waitFor(3);
+
+    assertEquals(3, delivery.getDelivered());
+    assertTrue(received.contains("{\"probeID\":\"1\"}"));
+    assertTrue(received.contains("{\"probeID\":\"2\"}"));
+    assertTrue(received.contains("{\"probeID\":\"3\"}"));
+    waitForDeleted(spoolDirectory);
+    assertEquals(0, spoolDirectory.list().length);
+  }
+
+  @Test
+  public void testFullSpoolDropsOldestSegment() throws Exception {
+    File spoolDirectory = spoolFolder.newFolder("spool");
+
+    delivery = new ResponseDelivery(null);
+    // no retry queue to speak of, and one response per segment
+    delivery.setRetryPolicy(new RetryPolicy(5, 60000, 60000, 120000, 1));
+    ResponseSpool spool = new ResponseSpool(spoolDirectory, 512, 2);
+    delivery.setSpool(spool);
+
+    byte[] body = new byte[300];
+    Arrays.fill(body, (byte) 'x');
+    for (int i = 1; i <= 4; i++) {
+      assertTrue(delivery.deliver(listenerURL + "/down", "application/json", body, Integer.toString(i)));
+    }
+    waitFor(4);
+    waitForSpooled(3);
+
+    assertEquals(3, delivery.getSpooled());
+    assertEquals(1, spool.getDroppedRecords());
+    assertEquals(2, spoolDirectory.list().length);
+  }
+
+}
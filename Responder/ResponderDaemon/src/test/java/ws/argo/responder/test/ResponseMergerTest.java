@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.responder.ResponseMerger;
+import ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * Check that the responses from several handlers come out as one response
+ * with each service only once.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseMergerTest {
+
+  private final ProbeHandlerPlugin first  = new ConfigFileProbeHandlerPlugin();
+  private final ProbeHandlerPlugin second = new ConfigFileProbeHandlerPlugin();
+
+  private static ResponseWrapper response(String... serviceIDs) {
+    ResponseWrapper response = new ResponseWrapper("probe-1");
+    for (String id : serviceIDs) {
+      ServiceWrapper service = new ServiceWrapper(id);
+      service.setServiceName(id + " from " + response.getResponseID());
+      response.addResponse(service);
+    }
+    return response;
+  }
+
+  private static HashSet<String> ids(ResponseWrapper response) {
+    HashSet<String> ids = new HashSet<String>();
+    for (ServiceWrapper service : response.getServices()) {
+      ids.add(service.getId());
+    }
+    return ids;
+  }
+
+  @Test
+  public void testMergeDropsDuplicateServices() {
+    ResponseWrapper firstResponse = response("a", "b");
+    ServiceWrapper firstB = null;
+    for (ServiceWrapper service : firstResponse.getServices()) {
+      if (service.getId().equals("b")) {
+        firstB = service;
+      }
+    }
+
+    ResponseMerger merger = new ResponseMerger("probe-1");
+    merger.add(first, firstResponse);
+    merger.add(second, response("b", "c"));
+
+    ResponseWrapper merged = merger.getResponse();
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), ids(merged));
+    assertEquals(2, merger.getContributors());
+    assertEquals(1, merger.getDuplicates());
+    // the first handler's copy wins
+    for (ServiceWrapper service : merged.getServices()) {
+      if (service.getId().equals("b")) {
+        assertSame(firstB, service);
+      }
+    }
+  }
+
+  @Test
+  public void testSingleHandlerKeepsItsResponse() {
+    ResponseWrapper firstResponse = response("a");
+    firstResponse.setCacheKey(1L);
+
+    ResponseMerger merger = new ResponseMerger("probe-1");
+    merger.add(first, firstResponse);
+    merger.add(second, response());
+    merger.add(second, null);
+
+    assertSame(firstResponse, merger.getResponse());
+    assertSame(first, merger.getSource());
+    assertEquals(1L, merger.getResponse().getCacheKey());
+    assertEquals(1, merger.getContributors());
+  }
+
+  @Test
+  public void testMergedResponseIsNotCached() {
+    ResponseWrapper firstResponse = response("a");
+    firstResponse.setCacheKey(1L);
+
+    ResponseMerger merger = new ResponseMerger("probe-1");
+    merger.add(first, firstResponse);
+    merger.add(second, response("c"));
+
+    assertNull(merger.getSource());
+    assertNull(merger.getResponse().getCacheKey());
+  }
+
+  @Test
+  public void testNothingToMerge() {
+    ResponseMerger merger = new ResponseMerger("probe-1");
+    merger.add(first, response());
+
+    assertTrue(merger.getResponse().isEmpty());
+    assertEquals("probe-1", merger.getResponse().getProbeID());
+    assertNull(merger.getSource());
+  }
+
+}
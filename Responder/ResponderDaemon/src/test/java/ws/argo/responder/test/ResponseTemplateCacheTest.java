@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.responder.ResponseTemplateCache;
+import ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseStreamWriter;
+import ws.argo.wireline.response.ResponseTemplate;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * Check that the config file handler's naked probe responses are cached and
+ * that the cache goes stale when the service list is replaced.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ResponseTemplateCacheTest {
+
+  private ConfigFileProbeHandlerPlugin handler;
+  private ResponseTemplateCache        cache;
+
+  /**
+   * Set up a handler with a few services.
+   */
+  @Before
+  public void createHandler() {
+    handler = new ConfigFileProbeHandlerPlugin();
+    handler.setServiceList(createServices(3));
+    cache = new ResponseTemplateCache();
+  }
+
+  private ArrayList<ServiceWrapper> createServices(int count) {
+    ArrayList<ServiceWrapper> services = new ArrayList<ServiceWrapper>();
+    for (int i = 0; i < count; i++) {
+      ServiceWrapper service = new ServiceWrapper("siid-" + i);
+      service.setServiceContractID("scid-A");
+      service.setServiceName("Service " + i);
+      service.addAccessPoint("Internal", "127.0.0.1", "80", "http://localhost/" + i, "", "");
+      services.add(service);
+    }
+    return services;
+  }
+
+  private String write(ResponseTemplate template, ResponseWrapper response) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    template.write(response, out);
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testNakedProbesShareATemplate() throws IOException {
+    ResponseWrapper first = handler.handleProbeEvent(new ProbeWrapper("urn:uuid:naked-1"));
+    ResponseWrapper second = handler.handleProbeEvent(new ProbeWrapper("urn:uuid:naked-2"));
+
+    ResponseTemplate template = cache.lookup(handler, ResponseStreamWriter.XML, first);
+    assertNotNull(template);
+    assertSame(template, cache.lookup(handler, ResponseStreamWriter.XML, second));
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+
+    assertEquals(first.toXML(), write(template, first));
+    assertEquals(second.toXML(), write(template, second));
+
+    ResponseTemplate json = cache.lookup(handler, ResponseStreamWriter.JSON, second);
+    assertEquals(second.toJSON(), write(json, second));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testNewServiceListReplacesTemplate() throws IOException {
+    ResponseWrapper before = handler.handleProbeEvent(new ProbeWrapper("urn:uuid:naked-1"));
+    ResponseTemplate template = cache.lookup(handler, ResponseStreamWriter.JSON, before);
+
+    handler.setServiceList(createServices(5));
+
+    ResponseWrapper after = handler.handleProbeEvent(new ProbeWrapper("urn:uuid:naked-2"));
+    ResponseTemplate newTemplate = cache.lookup(handler, ResponseStreamWriter.JSON, after);
+    assertNotSame(template, newTemplate);
+    assertEquals(5, newTemplate.numberOfServices());
+    assertEquals(after.toJSON(), write(newTemplate, after));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testTargetedProbesAreNotCached() throws IOException {
+    ProbeWrapper probe = new ProbeWrapper("urn:uuid:targeted");
+    probe.addServiceContractID("scid-A");
+
+    assertNull(cache.lookup(handler, ResponseStreamWriter.XML, handler.handleProbeEvent(probe)));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testIDsAreEscaped() throws IOException {
+    ResponseWrapper response = handler.handleProbeEvent(new ProbeWrapper("urn:uuid:<\"odd\" & 'id'>"));
+
+    assertEquals(response.toXML(), write(cache.lookup(handler, ResponseStreamWriter.XML, response), response));
+    assertEquals(response.toJSON(), write(cache.lookup(handler, ResponseStreamWriter.JSON, response), response));
+  }
+
+}
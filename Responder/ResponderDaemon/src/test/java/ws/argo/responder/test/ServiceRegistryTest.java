@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin;
+import ws.argo.responder.plugin.configfile.ServiceRegistry;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * Check the indexed lookups in the ServiceRegistry and that the config file
+ * handler answers probes out of it.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ServiceRegistryTest {
+
+  private ArrayList<ServiceWrapper> services;
+
+  /**
+   * Build a list of services where two share a contract ID.
+   */
+  @Before
+  public void createServices() {
+    services = new ArrayList<ServiceWrapper>();
+    services.add(createService("siid-1", "scid-A"));
+    services.add(createService("siid-2", "scid-A"));
+    services.add(createService("siid-3", "scid-B"));
+  }
+
+  private ServiceWrapper createService(String id, String contractID) {
+    ServiceWrapper service = new ServiceWrapper(id);
+    service.setServiceContractID(contractID);
+    service.setServiceName("Service " + id);
+    service.addAccessPoint("Internal", "127.0.0.1", "80", "http://localhost/" + id, "", "");
+    return service;
+  }
+
+  @Test
+  public void testIndexedLookups() {
+    ServiceRegistry registry = new ServiceRegistry(services);
+
+    assertEquals(3, registry.size());
+    assertEquals(2, registry.findByContractID("scid-A").size());
+    assertEquals(1, registry.findByContractID("scid-B").size());
+    assertEquals(1, registry.findByInstanceID("siid-3").size());
+    assertTrue(registry.findByContractID("scid-missing").isEmpty());
+    assertTrue(registry.findByInstanceID(null).isEmpty());
+  }
+
+  @Test
+  public void testRegistryIsASnapshot() {
+    ServiceRegistry registry = new ServiceRegistry(services);
+    services.add(createService("siid-4", "scid-B"));
+
+    assertEquals(3, registry.size());
+    assertEquals(1, registry.findByContractID("scid-B").size());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testRegistryIsImmutable() {
+    ServiceRegistry registry = new ServiceRegistry(services);
+    registry.findByContractID("scid-A").clear();
+  }
+
+  @Test
+  public void testHandlerAnswersFromRegistry() {
+    ConfigFileProbeHandlerPlugin handler = new ConfigFileProbeHandlerPlugin();
+    handler.setServiceList(services);
+
+    ProbeWrapper probe = new ProbeWrapper("urn:uuid:registry-test");
+    probe.addServiceContractID("scid-A");
+    probe.addServiceInstanceID("siid-3");
+    probe.addServiceInstanceID("siid-1"); // already matched by the contract ID
+
+    ResponseWrapper response = handler.handleProbeEvent(probe);
+    assertEquals(3, response.numberOfServices());
+
+    ProbeWrapper nakedProbe = new ProbeWrapper("urn:uuid:registry-naked-test");
+    assertEquals(3, handler.handleProbeEvent(nakedProbe).numberOfServices());
+
+    handler.setServiceRegistry(ServiceRegistry.EMPTY);
+    assertTrue(handler.handleProbeEvent(probe).isEmpty());
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.responder.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ws.argo.responder.ThroughputMeter;
+
+/**
+ * Check the sliding window rates and totals of the ThroughputMeter.
+ *
+ * @author jmsimpson
+ *
+ */
+public class ThroughputMeterTest {
+
+  /**
+   * A meter where the test controls the clock.
+   */
+  private static class SteppedMeter extends ThroughputMeter {
+    long second = 0;
+
+    @Override
+    protected long currentSecond() {
+      return second;
+    }
+  }
+
+  private static void mark(ThroughputMeter meter, int events) {
+    for (int i = 0; i < events; i++) {
+      meter.mark();
+    }
+  }
+
+  @Test
+  public void testWindowedRates() {
+    SteppedMeter meter = new SteppedMeter();
+
+    // 10 events a second for 60 seconds, then 100 in one second
+    for (int s = 0; s < 60; s++) {
+      meter.second = s;
+      mark(meter, 10);
+    }
+    meter.second = 60;
+    mark(meter, 100);
+    meter.second = 61;
+
+    assertEquals(100.0f, meter.oneSecondRate(), 0.001f);
+    assertEquals(19.0f, meter.tenSecondRate(), 0.001f);
+    assertEquals(11.5f, meter.sixtySecondRate(), 0.001f);
+    assertEquals(700, meter.total());
+  }
+
+  @Test
+  public void testOldBucketsAreRecycled() {
+    SteppedMeter meter = new SteppedMeter();
+
+    meter.second = 5;
+    mark(meter, 50);
+
+    // the same bucket comes back around 64 seconds later
+    meter.second = 69;
+    mark(meter, 3);
+    meter.second = 70;
+
+    assertEquals(3.0f, meter.oneSecondRate(), 0.001f);
+    assertEquals(0.05f, meter.sixtySecondRate(), 0.001f);
+    assertEquals(53, meter.total());
+  }
+
+  @Test
+  public void testQuietMeter() {
+    SteppedMeter meter = new SteppedMeter();
+    assertEquals(0.0f, meter.tenSecondRate(), 0.0f);
+
+    meter.second = 1000;
+    assertEquals(0.0f, meter.sixtySecondRate(), 0.0f);
+    assertEquals(0, meter.total());
+  }
+
+  @Test
+  public void testConcurrentTotals() throws InterruptedException {
+    final ThroughputMeter meter = new ThroughputMeter();
+    int threads = 8;
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          mark(meter, 10000);
+        }
+      });
+    }
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(80000, meter.total());
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.ArrayList;
+
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * Builds the service catalogs and probes the benchmarks work on, so the
+ * catalog size and probe ID count mean the same thing in every suite. Every
+ * service has its own contract ID and instance ID. Half of the IDs in a probe
+ * match a service in the catalog and half don't.
+ *
+ * @author jmsimpson
+ *
+ */
+final class Catalog {
+
+  static final String PROBE_ID = "urn:uuid:6a3b0f4e-2a55-4c1e-9f0e-5b1f2f7c9d10";
+
+  private Catalog() {
+  }
+
+  static String contractID(int i) {
+    return "uuid:contract-" + i + "-03d55093-a954-4667-b682-8116c417925d";
+  }
+
+  static String instanceID(int i) {
+    return "urn:uuid:service-" + i + "-7c1c4e4e-8a8c-4d7b-bf0c-1d8e5a6b3f21";
+  }
+
+  /**
+   * A catalog of services.
+   *
+   * @param size the number of services
+   * @return the services
+   */
+  static ArrayList<ServiceWrapper> services(int size) {
+    ArrayList<ServiceWrapper> services = new ArrayList<ServiceWrapper>(size);
+    for (int i = 0; i < size; i++) {
+      ServiceWrapper service = new ServiceWrapper(instanceID(i));
+      service.setServiceContractID(contractID(i));
+      service.setServiceName("Benchmark Service " + i);
+      service.setDescription("A service used to benchmark the hot paths");
+      service.setContractDescription("The benchmark contract");
+      service.setConsumability(ServiceWrapper.MACHINE_CONSUMABLE);
+      service.setTtl(300);
+      service.addAccessPoint("Main", "10.0." + (i / 256) % 256 + "." + i % 256, "8080", "http://10.0." + (i / 256) % 256 + "." + i % 256 + ":8080/service", "text", "");
+      services.add(service);
+    }
+    return services;
+  }
+
+  /**
+   * A response carrying the whole catalog.
+   *
+   * @param size the number of services
+   * @return the response
+   */
+  static ResponseWrapper response(int size) {
+    ResponseWrapper response = new ResponseWrapper(PROBE_ID);
+    response.setResponseID("urn:uuid:0b2d8d2e-5f3c-4b7a-9b55-2b8c1c9e7f00");
+    for (ServiceWrapper service : services(size)) {
+      response.addResponse(service);
+    }
+    return response;
+  }
+
+  /**
+   * A probe asking for some contract IDs.
+   *
+   * @param ids the number of contract IDs in the probe
+   * @param catalogSize the size of the catalog the hits are picked from
+   * @return the probe
+   */
+  static ProbeWrapper probe(int ids, int catalogSize) {
+    ProbeWrapper probe = new ProbeWrapper(PROBE_ID);
+    probe.setClientId("benchmark");
+    probe.setDESVersion("1.0");
+    probe.setRespondToPayloadType(ProbeWrapper.XML);
+    probe.addRespondToURL("internal", "http://1.1.1.1:8080/AsynchListener/api/responseHandler/probeResponse");
+    for (int i = 0; i < ids; i++) {
+      if (i % 2 == 0) {
+        probe.addServiceContractID(contractID((i * 7) % catalogSize));
+      } else {
+        probe.addServiceContractID(contractID(catalogSize + i));
+      }
+    }
+    return probe;
+  }
+
+}
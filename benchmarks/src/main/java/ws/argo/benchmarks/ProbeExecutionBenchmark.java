@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.responder.BoundedExecutor;
+import ws.argo.responder.VirtualThreads;
+
+/**
+ * Compares the Responder's execution modes when the probe handlers block -
+ * a repeater or mDNS handler waiting on the network, or a handler talking to
+ * a listener with a long round trip. Each operation is a burst of probes whose
+ * handlers each block for the latency, and it ends when they're all done.
+ *
+ * <p>
+ * The pool is shaped like the Responder's (core threadPoolSize, max + 2) with
+ * the queue made big enough to hold the burst, since the real one would drop
+ * most of it. The virtual mode is a {@link BoundedExecutor} over a virtual
+ * thread per task executor, so it needs Java 21 to run.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar ProbeExecutionBenchmark
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeExecutionBenchmark {
+
+  private static final int THREAD_POOL_SIZE = 10;
+  private static final int BURST            = 200;
+
+  @Param({ "pool", "virtual" })
+  private String mode;
+
+  // how long each handler blocks, in milliseconds
+  @Param({ "1", "20" })
+  private int latency;
+
+  private ThreadPoolExecutor pool;
+  private BoundedExecutor    virtual;
+  private Executor           executor;
+
+  /**
+   * Create the executor for the mode.
+   */
+  @Setup
+  public void setup() {
+    if ("virtual".equals(mode)) {
+      if (!VirtualThreads.isAvailable()) {
+        throw new IllegalStateException("The virtual mode needs Java 21 or later");
+      }
+      virtual = new BoundedExecutor(VirtualThreads.newExecutor(), 1000);
+      executor = virtual;
+    } else {
+      pool = new ThreadPoolExecutor(THREAD_POOL_SIZE, THREAD_POOL_SIZE + 2, 4, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(BURST), Executors.defaultThreadFactory());
+      executor = pool;
+    }
+  }
+
+  /**
+   * Shut the executor down.
+   */
+  @TearDown
+  public void teardown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+    if (virtual != null) {
+      virtual.shutdown();
+    }
+  }
+
+  /**
+   * Handle a burst of probes with blocking handlers.
+   *
+   * @throws InterruptedException if interrupted waiting for the burst
+   */
+  @Benchmark
+  public void probeBurst() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(BURST);
+    Runnable probe = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(latency);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    };
+    for (int i = 0; i < BURST; i++) {
+      executor.execute(probe);
+    }
+    done.await();
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * Runs probes through the config file probe handler. The lookups go against
+ * the registry's indexes, so the contract ID probe should cost about the same
+ * whatever the catalog size and grow with the number of IDs. The naked probe
+ * answers with the whole catalog.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar ProbeHandlerBenchmark -prof gc
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeHandlerBenchmark {
+
+  @Param({ "10", "1000", "10000" })
+  int catalogSize;
+
+  @Param({ "1", "10", "100" })
+  int probeIds;
+
+  private ConfigFileProbeHandlerPlugin handler;
+  private ProbeWrapper                 probe;
+  private ProbeWrapper                 nakedProbe;
+
+  /**
+   * Load the catalog into the handler.
+   */
+  @Setup
+  public void setup() {
+    handler = new ConfigFileProbeHandlerPlugin();
+    handler.setServiceList(Catalog.services(catalogSize));
+    probe = Catalog.probe(probeIds, catalogSize);
+    nakedProbe = Catalog.probe(0, catalogSize);
+  }
+
+  @Benchmark
+  public ResponseWrapper handleProbe() {
+    return handler.handleProbeEvent(probe);
+  }
+
+  @Benchmark
+  public ResponseWrapper handleNakedProbe() {
+    return handler.handleProbeEvent(nakedProbe);
+  }
+
+}
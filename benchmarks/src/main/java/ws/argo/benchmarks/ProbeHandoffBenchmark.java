@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ResponderConfiguration;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * Measures the hand off from a transport to the thread that handles the probe
+ * - the thread pool against the ring buffer with each of its wait strategies.
+ * Each operation hands one probe to the Responder and waits for a handler
+ * that does nothing to see it, so the time is the round trip through the
+ * execution mode.
+ *
+ * <p>
+ * The spin strategy needs a spare core per consumer to be worth anything.
+ * On a machine without them it will look much worse than it is.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar ProbeHandoffBenchmark
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeHandoffBenchmark {
+
+  @Param({ "pool", "block", "yield", "spin" })
+  private String mode;
+
+  private Responder        responder;
+  private final AtomicLong handled = new AtomicLong();
+  private long             sent;
+
+  /**
+   * Start a Responder in the mode with a handler that only counts the probes.
+   */
+  @Setup
+  public void setup() {
+    ResponderConfiguration config = new ResponderConfiguration();
+    config.setThreadPoolSize(2);
+    config.setHandlerDeadline(0);
+    if (!"pool".equals(mode)) {
+      config.setExecutionMode(ResponderConfiguration.RING);
+      config.setRingWaitStrategy(mode);
+    }
+    responder = new Responder(config);
+    responder.getHandlers().add(new ProbeHandlerPlugin() {
+      @Override
+      public ResponseWrapper handleProbeEvent(ProbeWrapper payload) {
+        handled.incrementAndGet();
+        return new ResponseWrapper(payload.getProbeId());
+      }
+
+      @Override
+      public void initializeWithPropertiesFilename(String filename) {
+      }
+
+      @Override
+      public String pluginName() {
+        return "Counting";
+      }
+    });
+  }
+
+  @TearDown
+  public void teardown() {
+    responder.shutdown();
+  }
+
+  /**
+   * Hand off one probe and wait for it to be handled.
+   */
+  @Benchmark
+  public void handoff() {
+    ProbeWrapper probe = new ProbeWrapper("probe-" + sent);
+    sent++;
+    responder.processProbe(probe);
+    while (handled.get() < sent) {
+      Thread.yield();
+    }
+  }
+
+}
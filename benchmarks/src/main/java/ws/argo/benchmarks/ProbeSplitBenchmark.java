@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.plugin.transport.sender.Transport;
+import ws.argo.probe.Probe;
+import ws.argo.probe.ProbeSender;
+import ws.argo.probe.ProbeSenderException;
+
+/**
+ * Splits probes with more and more IDs into multicast sized probes. splitProbe
+ * is private so this goes through ProbeSender.sendProbe with a transport that
+ * throws the probes away - what's left is the split.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar ProbeSplitBenchmark -prof gc
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeSplitBenchmark {
+
+  // the multicast transport's limit
+  private static final int MAX_PAYLOAD_SIZE = 600;
+
+  @Param({ "1", "10", "100" })
+  int probeIds;
+
+  private ProbeSender sender;
+  private Probe       probe;
+
+  /**
+   * A transport that only reports its payload size.
+   */
+  private static class NullTransport implements Transport {
+
+    @Override
+    public void initialize(Properties p, String networkInterface) {
+    }
+
+    @Override
+    public void sendProbe(Probe probe) {
+    }
+
+    @Override
+    public int maxPayloadSize() {
+      return MAX_PAYLOAD_SIZE;
+    }
+
+    @Override
+    public String getNetworkInterfaceName() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Build the probe.
+   *
+   * @throws Exception if the probe can't be built
+   */
+  @Setup
+  public void setup() throws Exception {
+    sender = new ProbeSender(new NullTransport());
+    probe = new Probe(Probe.XML);
+    probe.setClientID("benchmark");
+    probe.addRespondToURL("internal", "http://1.1.1.1:8080/AsynchListener/api/responseHandler/probeResponse");
+    for (int i = 0; i < probeIds; i++) {
+      probe.addServiceContractID(Catalog.contractID(i));
+    }
+  }
+
+  @Benchmark
+  public List<Probe> splitProbe() throws ProbeSenderException {
+    return sender.sendProbe(probe);
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.common.cache.ExpiringService;
+import ws.argo.common.cache.ResponseCache;
+import ws.argo.wireline.response.ServiceWrapper;
+
+/**
+ * Writes out the client's response cache as JSON, which the clients do every
+ * time they're asked for the services they've found.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar ResponseCacheBenchmark -prof gc
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCacheBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  int catalogSize;
+
+  private ResponseCache cache;
+
+  /**
+   * Fill the cache with the catalog.
+   */
+  @Setup
+  public void setup() {
+    cache = new ResponseCache();
+    for (ServiceWrapper service : Catalog.services(catalogSize)) {
+      cache.cache(new ExpiringService(service));
+    }
+  }
+
+  @Benchmark
+  public String asJSON() {
+    return cache.asJSON();
+  }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.StreamingProbeReader;
+import ws.argo.wireline.probe.XMLSerializer;
+import ws.argo.wireline.probe.xml.Probe;
+import ws.argo.wireline.response.ResponseStreamWriter;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.ServiceWrapper;
+import ws.argo.wireline.response.xml.Services;
+
+/**
+ * Compares the wireline serializers (which share their JAXBContexts and keep
+ * their Marshallers and Unmarshallers per thread) against the old way of
+ * creating a new JAXBContext for every call, and the JAXB probe unmarshal
+ * against the streaming probe reader. The response stream benchmarks compare
+ * writing the services out in full against copying in their prepared
+ * fragments.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar SerializerBenchmark
+ *
+ * @author jmsimpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+  private XMLSerializer        probeSerializer;
+  private StreamingProbeReader probeReader;
+
+  private ProbeWrapper    probe;
+  private String          probeXML;
+  private Probe           xmlProbe;
+  private ResponseWrapper response;
+  private ResponseWrapper preparedResponse;
+  private Services        xmlServices;
+
+  private ResponseStreamWriter responseWriter;
+
+  /**
+   * Build a typical probe and a response with a handful of services.
+   *
+   * @throws Exception if the setup fails
+   */
+  @Setup
+  public void setup() throws Exception {
+    probeSerializer = new XMLSerializer();
+    probeReader = new StreamingProbeReader();
+    responseWriter = new ResponseStreamWriter();
+
+    probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID().toString());
+    probe.setClientId("benchmark");
+    probe.setRespondToPayloadType(ProbeWrapper.XML);
+    probe.addRespondToURL("internal", "http://1.1.1.1:8080/AsynchListener/api/responseHandler/probeResponse");
+    probe.addRespondToURL("external", "http://2.2.2.2:80/AsynchListener/api/responseHandler/probeResponse");
+    probe.addServiceContractID("uuid:03d55093-a954-4667-b682-8116c417925d");
+    probeXML = probe.asXML();
+
+    xmlProbe = (Probe) JAXBContext.newInstance(Probe.class).createUnmarshaller().unmarshal(new StringReader(probeXML));
+
+    response = createResponse(false);
+    preparedResponse = createResponse(true);
+
+    xmlServices = (Services) JAXBContext.newInstance(Services.class).createUnmarshaller().unmarshal(new StringReader(response.toXML()));
+  }
+
+  private ResponseWrapper createResponse(boolean prepared) {
+    ResponseWrapper newResponse = new ResponseWrapper(probe.getProbeId());
+    newResponse.setResponseID("urn:uuid:" + UUID.randomUUID().toString());
+    for (int i = 0; i < 5; i++) {
+      ServiceWrapper service = new ServiceWrapper("urn:uuid:service-" + i);
+      service.setServiceContractID("uuid:03d55093-a954-4667-b682-8116c417925d");
+      service.setServiceName("Benchmark Service " + i);
+      service.setDescription("A service used to benchmark the serializers");
+      service.setConsumability(ServiceWrapper.MACHINE_CONSUMABLE);
+      service.setTtl(300);
+      service.addAccessPoint("Main", "10.0.0." + i, "8080", "http://10.0.0." + i + ":8080/service", "text", "");
+      if (prepared) {
+        service.prepareFragments();
+      }
+      newResponse.addResponse(service);
+    }
+    return newResponse;
+  }
+
+  @Benchmark
+  public String probeMarshalCached() {
+    return probeSerializer.marshal(probe);
+  }
+
+  /**
+   * The way the serializer used to marshal a probe.
+   *
+   * @return the XML
+   * @throws JAXBException if JAXB fails
+   */
+  @Benchmark
+  public String probeMarshalNewContext() throws JAXBException {
+    StringWriter sw = new StringWriter();
+    Marshaller marshaller = JAXBContext.newInstance(Probe.class).createMarshaller();
+    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+    marshaller.marshal(xmlProbe, sw);
+    return sw.toString();
+  }
+
+  @Benchmark
+  public ProbeWrapper probeUnmarshalCached() throws ProbeParseException {
+    return probeSerializer.unmarshal(probeXML);
+  }
+
+  @Benchmark
+  public ProbeWrapper probeUnmarshalStreaming() throws ProbeParseException {
+    return probeReader.unmarshal(probeXML);
+  }
+
+  /**
+   * The way the serializer used to unmarshal a probe.
+   *
+   * @return the JAXB probe
+   * @throws JAXBException if JAXB fails
+   */
+  @Benchmark
+  public Object probeUnmarshalNewContext() throws JAXBException {
+    return JAXBContext.newInstance(Probe.class).createUnmarshaller().unmarshal(new StringReader(probeXML));
+  }
+
+  @Benchmark
+  public String responseMarshalCached() {
+    return response.toXML();
+  }
+
+  /**
+   * The way the serializer used to marshal a response.
+   *
+   * @return the XML
+   * @throws JAXBException if JAXB fails
+   */
+  @Benchmark
+  public String responseMarshalNewContext() throws JAXBException {
+    StringWriter sw = new StringWriter();
+    Marshaller marshaller = JAXBContext.newInstance(Services.class).createMarshaller();
+    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+    marshaller.marshal(xmlServices, sw);
+    return sw.toString();
+  }
+
+  @Benchmark
+  public String responseJSONCached() {
+    return response.toJSON();
+  }
+
+  @Benchmark
+  public int responseStreamXML() throws IOException {
+    return stream(response, ResponseStreamWriter.XML);
+  }
+
+  @Benchmark
+  public int responseStreamXMLPrepared() throws IOException {
+    return stream(preparedResponse, ResponseStreamWriter.XML);
+  }
+
+  @Benchmark
+  public int responseStreamJSON() throws IOException {
+    return stream(response, ResponseStreamWriter.JSON);
+  }
+
+  @Benchmark
+  public int responseStreamJSONPrepared() throws IOException {
+    return stream(preparedResponse, ResponseStreamWriter.JSON);
+  }
+
+  private int stream(ResponseWrapper payload, String payloadType) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+    responseWriter.write(payload, payloadType, out);
+    return out.size();
+  }
+
+}
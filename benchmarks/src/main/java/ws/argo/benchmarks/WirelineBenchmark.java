@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.StreamingProbeReader;
+import ws.argo.wireline.response.JSONSerializer;
+import ws.argo.wireline.response.ResponseParseException;
+import ws.argo.wireline.response.ResponseWrapper;
+
+/**
+ * Marshals and unmarshals probes and responses through the wireline
+ * serializers as the probes carry more IDs and the responses carry more of the
+ * catalog. The probe benchmarks only depend on the probe ID count and the
+ * response benchmarks only on the catalog size, so each only runs over its own
+ * parameter.
+ *
+ * <p>
+ * Run with java -jar benchmarks/target/benchmarks.jar WirelineBenchmark -prof gc
+ *
+ * @author jmsimpson
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WirelineBenchmark {
+
+  /**
+   * A probe with probeIds contract IDs and its XML.
+   */
+  @State(Scope.Thread)
+  public static class ProbeState {
+
+    @Param({ "1", "10", "100" })
+    int probeIds;
+
+    ws.argo.wireline.probe.XMLSerializer serializer;
+    StreamingProbeReader                 reader;
+    ProbeWrapper                         probe;
+    String                               xml;
+
+    @Setup
+    public void setup() {
+      serializer = new ws.argo.wireline.probe.XMLSerializer();
+      reader = new StreamingProbeReader();
+      probe = Catalog.probe(probeIds, 1000);
+      xml = serializer.marshal(probe);
+    }
+  }
+
+  /**
+   * A response with catalogSize services and its XML and JSON.
+   */
+  @State(Scope.Thread)
+  public static class ResponseState {
+
+    @Param({ "1", "10", "100" })
+    int catalogSize;
+
+    ws.argo.wireline.response.XMLSerializer xmlSerializer;
+    JSONSerializer                          jsonSerializer;
+    ResponseWrapper                         response;
+    String                                  xml;
+    String                                  json;
+
+    @Setup
+    public void setup() {
+      xmlSerializer = new ws.argo.wireline.response.XMLSerializer();
+      jsonSerializer = new JSONSerializer();
+      response = Catalog.response(catalogSize);
+      xml = response.toXML();
+      json = response.toJSON();
+    }
+  }
+
+  @Benchmark
+  public String probeMarshalXML(ProbeState state) {
+    return state.serializer.marshal(state.probe);
+  }
+
+  @Benchmark
+  public ProbeWrapper probeUnmarshalXML(ProbeState state) throws ProbeParseException {
+    return state.serializer.unmarshal(state.xml);
+  }
+
+  @Benchmark
+  public ProbeWrapper probeUnmarshalStreaming(ProbeState state) throws ProbeParseException {
+    return state.reader.unmarshal(state.xml);
+  }
+
+  @Benchmark
+  public String responseMarshalXML(ResponseState state) {
+    return state.xmlSerializer.marshal(state.response);
+  }
+
+  @Benchmark
+  public String responseMarshalJSON(ResponseState state) {
+    return state.jsonSerializer.marshal(state.response);
+  }
+
+  @Benchmark
+  public ResponseWrapper responseUnmarshalXML(ResponseState state) throws ResponseParseException {
+    return state.xmlSerializer.unmarshal(state.xml);
+  }
+
+  @Benchmark
+  public ResponseWrapper responseUnmarshalJSON(ResponseState state) throws ResponseParseException {
+    return state.jsonSerializer.unmarshal(state.json);
+  }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks.storm;
+
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.grizzly.http.server.HttpServer;
+
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.Probe;
+import ws.argo.probe.ProbeSender;
+import ws.argo.probe.ProbeSenderException;
+import ws.argo.probe.ProbeSenderFactory;
+import ws.argo.probe.UnsupportedPayloadType;
+import ws.argo.responder.Responder;
+import ws.argo.responder.configuration.ResponderConfigException;
+import ws.argo.responder.metrics.LatencyHistogram;
+import ws.argo.transport.probe.standard.MulticastTransport;
+
+/**
+ * The ProbeStorm is a load generator for finding out how many probes a
+ * Responder (or a set of them) can take before it stops keeping up. It sends
+ * probes through a {@link ProbeSender} at a target rate, listens for the
+ * responses itself and reports the rate it actually managed, how many of the
+ * probes were answered and the round trip latency percentiles.
+ *
+ * <p>
+ * The probes are a mix of naked probes and probes targeted at service
+ * contract IDs and service instance IDs picked at random from the given lists
+ * (up to maxIds of them per probe). Each probe goes out copies times with the
+ * same probe ID, the way clients send probes over UDP to make up for lost
+ * datagrams, so the Responder's duplicate check gets its share of the load. A
+ * probe counts as answered when the first response for its ID arrives - the
+ * round trip is from the first copy going out to that response. Probes too
+ * big for the transport are split by the ProbeSender and each part is tracked
+ * (and answered) on its own. A Responder doesn't answer a probe it has no
+ * services for, so targeted probes only all get answered if every ID they
+ * could pick is one the Responders know about.
+ *
+ * <p>
+ * The probes go out over multicast by default. With -transport loopback they
+ * go to the LoopbackTransport channel in this JVM instead, which only makes
+ * sense with -responder, which runs a Responder in the same JVM from the
+ * given configuration file (with the LoopbackTransport listed as one of its
+ * transports).
+ *
+ * <p>
+ * Run with java -cp benchmarks/target/benchmarks.jar
+ * ws.argo.benchmarks.storm.ProbeStorm [options] (-h lists them).
+ *
+ * @author jmsimpson
+ *
+ */
+public class ProbeStorm {
+
+  private static final Logger LOGGER = LogManager.getLogger(ProbeStorm.class.getName());
+
+  private static final String CLIENT_ID_PREFIX = "probeStorm-";
+
+  // settings
+  private double   rate        = 100;
+  private int      duration    = 30;
+  private int      copies      = 3;
+  private double   nakedShare  = 0.25;
+  private String[] scids       = { "urn:uuid:storm-contract-1", "urn:uuid:storm-contract-2", "urn:uuid:storm-contract-3" };
+  private String[] siids       = new String[0];
+  private int      maxIds      = 5;
+  private int      clients     = 1;
+  private int      threads     = 1;
+  private String   payloadType = Probe.JSON;
+  private String   transport   = "multicast";
+  private String   group       = MulticastTransport.DEFAULT_ARGO_GROUP;
+  private int      port        = MulticastTransport.DEFAULT_ARGO_PORT;
+  private String   niName      = "";
+  private String   channel     = "argo";
+  private String   listenHost  = "localhost";
+  private int      listenPort  = 4010;
+  private int      drain       = 5;
+  private long     seed        = 0;
+  private String   responderConfig;
+
+  private final ResponseTracker tracker   = new ResponseTracker();
+  private final AtomicLong      probes    = new AtomicLong();
+  private final AtomicLong      datagrams = new AtomicLong();
+  private final AtomicLong      failures  = new AtomicLong();
+
+  /**
+   * Run the storm.
+   *
+   * @param args the command line options
+   * @throws Exception if the storm can't be started
+   */
+  public static void main(String[] args) throws Exception {
+    ProbeStorm storm = new ProbeStorm();
+    if (storm.parseCommandLine(args)) {
+      storm.run(System.out);
+    }
+  }
+
+  /**
+   * Send the probes, wait for the stragglers and print the report.
+   *
+   * @param out where the progress and report go
+   * @throws Exception if the listener, the Responder or the senders can't be
+   *           started
+   */
+  public void run(PrintStream out) throws Exception {
+    HttpServer listener = StormListener.startServer(listenPort, tracker);
+    Responder responder = startResponder();
+    try {
+      String respondTo = "http://" + listenHost + ":" + listenPort + "/storm/probeResponse";
+      out.println("Probe storm: " + rate + " probes/s for " + duration + "s, " + copies + " copies each, responses to " + respondTo);
+
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(duration);
+      CountDownLatch done = new CountDownLatch(threads);
+      for (int i = 0; i < threads; i++) {
+        Thread sender = new Thread(new StormSender(i, createSender(), respondTo, start, end, done), "probeStorm-" + i);
+        sender.setDaemon(true);
+        sender.start();
+      }
+
+      while (!done.await(1, TimeUnit.SECONDS)) {
+        progress(out, start);
+      }
+      long sendTime = System.nanoTime() - start;
+
+      // give the responses time to come in
+      long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+      while (tracker.getAnswered() < tracker.getSent() && System.nanoTime() < drainEnd) {
+        Thread.sleep(100);
+      }
+
+      report(out, sendTime);
+    } finally {
+      if (responder != null) {
+        responder.stopResponder();
+      }
+      listener.shutdownNow();
+    }
+  }
+
+  /**
+   * Sends its share of the probes at its share of the rate. The send times
+   * are worked out from the start so that a slow send doesn't push all of the
+   * later ones back - the sender catches up instead.
+   */
+  private class StormSender implements Runnable {
+
+    private final int            index;
+    private final ProbeSender    sender;
+    private final String         respondTo;
+    private final long           start;
+    private final long           end;
+    private final CountDownLatch done;
+    private final Random         random;
+
+    StormSender(int index, ProbeSender sender, String respondTo, long start, long end, CountDownLatch done) {
+      this.index = index;
+      this.sender = sender;
+      this.respondTo = respondTo;
+      this.start = start;
+      this.end = end;
+      this.done = done;
+      this.random = new Random(seed + index);
+    }
+
+    @Override
+    public void run() {
+      try {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate);
+        long next = start + index * (interval / threads);
+        for (long n = 0; next < end; n++) {
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          send(n);
+          next += interval;
+        }
+      } finally {
+        try {
+          sender.close();
+        } catch (TransportException e) {
+          LOGGER.warn("Error closing the probe sender", e);
+        }
+        done.countDown();
+      }
+    }
+
+    private void send(long n) {
+      try {
+        Probe probe = composeProbe(n);
+        boolean naked = probe.getCombinedIdentifierList().isEmpty();
+
+        long sentAt = System.nanoTime();
+        List<Probe> segments = sender.sendProbe(probe);
+        for (Probe segment : segments) {
+          tracker.sent(segment.getProbeID(), naked, sentAt);
+        }
+        // the segments already fit, so sending them again keeps their IDs
+        for (int copy = 1; copy < copies; copy++) {
+          for (Probe segment : segments) {
+            sender.sendProbe(segment);
+          }
+        }
+        probes.incrementAndGet();
+        datagrams.addAndGet(segments.size() * copies);
+      } catch (ProbeSenderException | UnsupportedPayloadType | MalformedURLException e) {
+        failures.incrementAndGet();
+        LOGGER.warn("Unable to send probe", e);
+      }
+    }
+
+    private Probe composeProbe(long n) throws UnsupportedPayloadType, MalformedURLException {
+      Probe probe = new Probe(payloadType);
+      probe.setClientID(CLIENT_ID_PREFIX + ((index + n * threads) % clients));
+      probe.addRespondToURL("storm", respondTo);
+
+      if (random.nextDouble() >= nakedShare && (scids.length > 0 || siids.length > 0)) {
+        int ids = 1 + random.nextInt(maxIds);
+        for (int i = 0; i < ids; i++) {
+          int pick = random.nextInt(scids.length + siids.length);
+          if (pick < scids.length) {
+            probe.addServiceContractID(scids[pick]);
+          } else {
+            probe.addServiceInstanceID(siids[pick - scids.length]);
+          }
+        }
+      }
+      return probe;
+    }
+  }
+
+  /**
+   * The probes sent and the responses that came back for them.
+   *
+   * @return the tracker
+   */
+  public ResponseTracker getTracker() {
+    return tracker;
+  }
+
+  /**
+   * The number of probes that couldn't be sent.
+   *
+   * @return the failures
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  private ProbeSender createSender() throws TransportConfigException {
+    if ("loopback".equals(transport)) {
+      return ProbeSenderFactory.createLoopbackProbeSender(channel);
+    }
+    return ProbeSenderFactory.createMulticastProbeSender(group, port, niName);
+  }
+
+  private Responder startResponder() throws ResponderConfigException {
+    if (responderConfig == null) {
+      return null;
+    }
+    Responder responder = Responder.initialize(new String[] { "-pf", responderConfig });
+    if (responder == null) {
+      throw new ResponderConfigException("Unable to start the Responder from [" + responderConfig + "]");
+    }
+    responder.run();
+    return responder;
+  }
+
+  private void progress(PrintStream out, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    out.printf("  %5.0fs  sent %8d  answered %8d  %8.1f probes/s%n", seconds, probes.get(), tracker.getAnswered(), probes.get() / seconds);
+  }
+
+  private void report(PrintStream out, long sendTime) {
+    double seconds = sendTime / 1e9;
+    LatencyHistogram latency = tracker.getLatency();
+
+    out.println();
+    out.printf("Sent          %d probes in %.1fs: %.1f probes/s (target %.1f), %d failed%n", probes.get(), seconds, probes.get() / seconds, rate, failures.get());
+    out.printf("On the wire   %d probes after splitting, %d datagrams with copies%n", tracker.getSent(), datagrams.get());
+    out.printf("Naked         %d sent, %d answered (%s)%n", tracker.getNakedSent(), tracker.getNakedAnswered(), percent(tracker.getNakedAnswered(), tracker.getNakedSent()));
+    out.printf("Targeted      %d sent, %d answered (%s)%n", tracker.getTargetedSent(), tracker.getTargetedAnswered(),
+        percent(tracker.getTargetedAnswered(), tracker.getTargetedSent()));
+    out.printf("Completeness  %s%n", percent(tracker.getAnswered(), tracker.getSent()));
+    out.printf("Responses     %d (%d extra, %d unknown, %d unparseable), %d services%n", tracker.getResponses(), tracker.getExtraResponses(),
+        tracker.getUnknownResponses(), tracker.getParseErrors(), tracker.getServices());
+    out.printf("Round trip    p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", millis(latency.percentile(50)), millis(latency.percentile(90)),
+        millis(latency.percentile(99)), millis(latency.percentile(99.9)), millis(latency.getMax()));
+  }
+
+  private static String percent(long part, long whole) {
+    return whole == 0 ? "-" : String.format("%.1f%%", 100.0 * part / whole);
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2fms", nanos / 1e6);
+  }
+
+  /**
+   * Take the settings from the command line.
+   *
+   * @param args the command line options
+   * @return false if the help was asked for, true if the storm can run
+   * @throws ParseException if the options don't make sense
+   */
+  public boolean parseCommandLine(String[] args) throws ParseException {
+    CommandLine cl = new BasicParser().parse(getOptions(), args);
+
+    if (cl.hasOption("h")) {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("ProbeStorm", getOptions());
+      return false;
+    }
+
+    rate = Double.parseDouble(cl.getOptionValue("rate", Double.toString(rate)));
+    duration = Integer.parseInt(cl.getOptionValue("duration", Integer.toString(duration)));
+    copies = Math.max(1, Integer.parseInt(cl.getOptionValue("copies", Integer.toString(copies))));
+    nakedShare = Double.parseDouble(cl.getOptionValue("naked", Double.toString(nakedShare)));
+    if (cl.hasOption("scids")) {
+      scids = idList(cl.getOptionValue("scids"));
+    }
+    if (cl.hasOption("siids")) {
+      siids = idList(cl.getOptionValue("siids"));
+    }
+    maxIds = Math.max(1, Integer.parseInt(cl.getOptionValue("maxIds", Integer.toString(maxIds))));
+    clients = Math.max(1, Integer.parseInt(cl.getOptionValue("clients", Integer.toString(clients))));
+    threads = Math.max(1, Integer.parseInt(cl.getOptionValue("threads", Integer.toString(threads))));
+    payloadType = cl.getOptionValue("payload", payloadType).toUpperCase();
+    transport = cl.getOptionValue("transport", transport).toLowerCase();
+    group = cl.getOptionValue("group", group);
+    port = Integer.parseInt(cl.getOptionValue("port", Integer.toString(port)));
+    niName = cl.getOptionValue("ni", niName);
+    channel = cl.getOptionValue("channel", channel);
+    listenHost = cl.getOptionValue("lh", listenHost);
+    listenPort = Integer.parseInt(cl.getOptionValue("lp", Integer.toString(listenPort)));
+    drain = Math.max(0, Integer.parseInt(cl.getOptionValue("drain", Integer.toString(drain))));
+    seed = Long.parseLong(cl.getOptionValue("seed", Long.toString(seed)));
+    responderConfig = cl.getOptionValue("responder");
+
+    if (rate <= 0 || duration <= 0) {
+      throw new ParseException("The rate and duration have to be more than 0");
+    }
+    return true;
+  }
+
+  private static String[] idList(String value) {
+    List<String> ids = new ArrayList<String>();
+    for (String id : value.split(",")) {
+      if (!id.trim().isEmpty()) {
+        ids.add(id.trim());
+      }
+    }
+    return ids.toArray(new String[ids.size()]);
+  }
+
+  @SuppressWarnings("static-access")
+  private static Options getOptions() {
+    Options options = new Options();
+
+    options.addOption("h", false, "display help for the probe storm");
+    options.addOption(option("rate", "probes per second", "the target rate of (distinct) probes per second - default 100"));
+    options.addOption(option("duration", "seconds", "how long to send probes for - default 30"));
+    options.addOption(option("copies", "count", "how many times each probe is sent - default 3"));
+    options.addOption(option("naked", "share", "the share (0 to 1) of probes that are naked - default 0.25"));
+    options.addOption(option("scids", "ids", "comma separated service contract IDs to target"));
+    options.addOption(option("siids", "ids", "comma separated service instance IDs to target"));
+    options.addOption(option("maxIds", "count", "the most IDs in a targeted probe - default 5"));
+    options.addOption(option("clients", "count", "how many client IDs the probes are spread over - default 1"));
+    options.addOption(option("threads", "count", "how many threads send probes - default 1"));
+    options.addOption(option("payload", "type", "the respondTo payload type (JSON or XML) - default JSON"));
+    options.addOption(option("transport", "name", "multicast or loopback - default multicast"));
+    options.addOption(option("group", "address", "the multicast group - default " + MulticastTransport.DEFAULT_ARGO_GROUP));
+    options.addOption(option("port", "port", "the multicast port - default " + MulticastTransport.DEFAULT_ARGO_PORT));
+    options.addOption(option("ni", "name", "the network interface to send multicast on"));
+    options.addOption(option("channel", "name", "the loopback channel - default argo"));
+    options.addOption(option("lh", "host", "the host name the Responders post responses to - default localhost"));
+    options.addOption(option("lp", "port", "the port the response listener listens on - default 4010"));
+    options.addOption(option("drain", "seconds", "how long to wait for responses after the last probe - default 5"));
+    options.addOption(option("seed", "number", "the seed for picking the probe mix - default 0"));
+    options.addOption(option("responder", "config filename", "run a Responder in this JVM with this configuration file"));
+
+    return options;
+  }
+
+  @SuppressWarnings("static-access")
+  private static org.apache.commons.cli.Option option(String name, String argName, String description) {
+    return OptionBuilder.withArgName(argName).hasArg().withDescription(description).create(name);
+  }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks.storm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ws.argo.responder.metrics.LatencyHistogram;
+
+/**
+ * The ResponseTracker matches the responses that come back to the storm's
+ * listener with the probes that were sent, by probe ID. The first response
+ * for a probe marks it as answered and its round trip (from the first copy of
+ * the probe going out to the response arriving) goes into the latency
+ * histogram. Any more responses for the same probe (from other Responders or
+ * from copies that got through the Responder's duplicate check) are counted
+ * as extra responses.
+ *
+ * <p>A response can beat the sender to recording the probe (over the loopback
+ * transport the probe is handled before sendProbe returns). Those are held
+ * until the probe is recorded, and if it never is they're unknown responses.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ResponseTracker {
+
+  /**
+   * A probe waiting on its response.
+   */
+  private static final class SentProbe {
+    final long          sentAt;
+    final boolean       naked;
+    final AtomicBoolean answered = new AtomicBoolean();
+
+    SentProbe(long sentAt, boolean naked) {
+      this.sentAt = sentAt;
+      this.naked = naked;
+    }
+  }
+
+  private final ConcurrentHashMap<String, SentProbe> probes = new ConcurrentHashMap<String, SentProbe>();
+  // responses that came in before their probe was recorded
+  private final ConcurrentHashMap<String, Long>      early  = new ConcurrentHashMap<String, Long>();
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private final AtomicLong nakedSent        = new AtomicLong();
+  private final AtomicLong targetedSent     = new AtomicLong();
+  private final AtomicLong nakedAnswered    = new AtomicLong();
+  private final AtomicLong targetedAnswered = new AtomicLong();
+  private final AtomicLong responses        = new AtomicLong();
+  private final AtomicLong extraResponses   = new AtomicLong();
+  private final AtomicLong unknownResponses = new AtomicLong();
+  private final AtomicLong parseErrors      = new AtomicLong();
+  private final AtomicLong services         = new AtomicLong();
+
+  /**
+   * Record that a probe went out.
+   * 
+   * @param probeID the ID of the probe
+   * @param naked true if the probe has no service contract or instance IDs
+   * @param sentAt when the first copy was sent (System.nanoTime())
+   */
+  public void sent(String probeID, boolean naked, long sentAt) {
+    SentProbe probe = new SentProbe(sentAt, naked);
+    probes.put(probeID, probe);
+    if (naked) {
+      nakedSent.incrementAndGet();
+    } else {
+      targetedSent.incrementAndGet();
+    }
+    Long receivedAt = early.remove(probeID);
+    if (receivedAt != null) {
+      answered(probe, receivedAt);
+    }
+  }
+
+  /**
+   * Record that a response came back.
+   * 
+   * @param probeID the ID of the probe the response is for
+   * @param numberOfServices the number of services in the response
+   * @param receivedAt when the response arrived (System.nanoTime())
+   */
+  public void responded(String probeID, int numberOfServices, long receivedAt) {
+    responses.incrementAndGet();
+    services.addAndGet(numberOfServices);
+
+    if (probeID == null) {
+      unknownResponses.incrementAndGet();
+      return;
+    }
+    SentProbe probe = probes.get(probeID);
+    if (probe == null) {
+      if (early.putIfAbsent(probeID, receivedAt) != null) {
+        extraResponses.incrementAndGet();
+        return;
+      }
+      // the probe may have been recorded in the meantime - whoever takes the
+      // early entry back out answers the probe
+      probe = probes.get(probeID);
+      if (probe == null || early.remove(probeID) == null) {
+        return;
+      }
+    }
+    answered(probe, receivedAt);
+  }
+
+  private void answered(SentProbe probe, long receivedAt) {
+    if (!probe.answered.compareAndSet(false, true)) {
+      extraResponses.incrementAndGet();
+      return;
+    }
+    latency.record(receivedAt - probe.sentAt);
+    if (probe.naked) {
+      nakedAnswered.incrementAndGet();
+    } else {
+      targetedAnswered.incrementAndGet();
+    }
+  }
+
+  public void parseError() {
+    parseErrors.incrementAndGet();
+  }
+
+  public long getSent() {
+    return nakedSent.get() + targetedSent.get();
+  }
+
+  public long getNakedSent() {
+    return nakedSent.get();
+  }
+
+  public long getTargetedSent() {
+    return targetedSent.get();
+  }
+
+  public long getAnswered() {
+    return nakedAnswered.get() + targetedAnswered.get();
+  }
+
+  public long getNakedAnswered() {
+    return nakedAnswered.get();
+  }
+
+  public long getTargetedAnswered() {
+    return targetedAnswered.get();
+  }
+
+  public long getResponses() {
+    return responses.get();
+  }
+
+  public long getExtraResponses() {
+    return extraResponses.get();
+  }
+
+  public long getUnknownResponses() {
+    return unknownResponses.get() + early.size();
+  }
+
+  public long getParseErrors() {
+    return parseErrors.get();
+  }
+
+  public long getServices() {
+    return services.get();
+  }
+
+  /**
+   * The round trip latencies of the answered probes.
+   * 
+   * @return the histogram
+   */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ws.argo.benchmarks.storm;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.UriBuilder;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import ws.argo.wireline.response.JSONSerializer;
+import ws.argo.wireline.response.ResponseParseException;
+import ws.argo.wireline.response.ResponseWrapper;
+import ws.argo.wireline.response.XMLSerializer;
+
+/**
+ * The storm's response listener resource for the JAX-RS container. It takes
+ * the responses posted to the probes' respondTo URL and hands them to the
+ * {@link ResponseTracker}.
+ * 
+ * @author jmsimpson
+ *
+ */
+@Path("/storm")
+public class StormListener {
+
+  private final ResponseTracker tracker;
+  private final JSONSerializer  jsonSerializer = new JSONSerializer();
+  private final XMLSerializer   xmlSerializer  = new XMLSerializer();
+
+  public StormListener(ResponseTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  /**
+   * Start the listener.
+   * 
+   * @param port the port to listen on
+   * @param tracker where the responses go
+   * @return the running HttpServer
+   * @throws IOException if something goes wrong creating the http server
+   */
+  public static HttpServer startServer(int port, ResponseTracker tracker) throws IOException {
+    URI uri = UriBuilder.fromUri("http://0.0.0.0/").port(port).build();
+
+    ResourceConfig resourceConfig = new ResourceConfig();
+    resourceConfig.registerInstances(new StormListener(tracker));
+    resourceConfig.setApplicationName("Argo Probe Storm");
+
+    HttpServer httpServer = GrizzlyHttpServerFactory.createHttpServer(uri, resourceConfig, false);
+    httpServer.getServerConfiguration().setName("Probe Storm Listener");
+    httpServer.start();
+
+    return httpServer;
+  }
+
+  /**
+   * Inbound JSON responses get processed here.
+   * 
+   * @param payload the wireline response payload
+   * @return some innocuous string
+   */
+  @POST
+  @Path("/probeResponse")
+  @Consumes("application/json")
+  public String handleJSONProbeResponse(String payload) {
+    long receivedAt = System.nanoTime();
+    try {
+      track(jsonSerializer.unmarshal(payload), receivedAt);
+    } catch (ResponseParseException | RuntimeException e) {
+      tracker.parseError();
+    }
+    return "Successfully handled response";
+  }
+
+  /**
+   * Inbound XML responses get processed here.
+   * 
+   * @param payload the wireline response payload
+   * @return some innocuous string
+   */
+  @POST
+  @Path("/probeResponse")
+  @Consumes("application/xml")
+  public String handleXMLProbeResponse(String payload) {
+    long receivedAt = System.nanoTime();
+    try {
+      track(xmlSerializer.unmarshal(payload), receivedAt);
+    } catch (ResponseParseException | RuntimeException e) {
+      tracker.parseError();
+    }
+    return "Successfully handled response";
+  }
+
+  private void track(ResponseWrapper response, long receivedAt) {
+    tracker.responded(response.getProbeID(), response.numberOfServices(), receivedAt);
+  }
+
+}
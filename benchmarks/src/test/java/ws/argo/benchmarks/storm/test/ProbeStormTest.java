@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.benchmarks.storm.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ws.argo.benchmarks.storm.ProbeStorm;
+import ws.argo.benchmarks.storm.ResponseTracker;
+import ws.argo.responder.Responder;
+
+/**
+ * Run a short storm over the LoopbackTransport against a Responder in this JVM
+ * and check that every probe was answered exactly once.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ProbeStormTest {
+
+  private static final String CHANNEL     = "probeStormTest";
+  private static final int    LISTEN_PORT = 4015;
+
+  @Rule
+  public TemporaryFolder configFolder = new TemporaryFolder();
+
+  private Responder responder;
+
+  /**
+   * Start a Responder listening on the loopback channel with a couple of
+   * services the storm's targeted probes ask for.
+   * 
+   * @throws Exception if the Responder can't be started
+   */
+  @Before
+  public void startResponder() throws Exception {
+    File services = write("services.xml", "<servicesConfiguration>\n"
+        + service("urn:uuid:storm-service-1", "urn:uuid:storm-contract-1")
+        + service("urn:uuid:storm-service-2", "urn:uuid:storm-contract-2")
+        + "</servicesConfiguration>\n");
+    File handler = write("configFileProbeHandlerConfig.prop", "xmlConfigFilename=" + services.getAbsolutePath() + "\n");
+    File loopback = write("loopbackTransport.prop", "channel=" + CHANNEL + "\n");
+    // plenty of threads, so the first probes (which are slow while everything
+    // warms up) don't get the later ones shed
+    File config = write("responderConfig.xml", "<responder>\n"
+        + "  <threadPoolSize>20</threadPoolSize>\n"
+        + "  <metricsJMX>false</metricsJMX>\n"
+        + "  <probeHandlers>\n"
+        + "    <probeHandler>\n"
+        + "      <classname>ws.argo.responder.plugin.configfile.ConfigFileProbeHandlerPlugin</classname>\n"
+        + "      <configFilename>" + handler.getAbsolutePath() + "</configFilename>\n"
+        + "    </probeHandler>\n"
+        + "  </probeHandlers>\n"
+        + "  <transports>\n"
+        + "    <transport>\n"
+        + "      <classname>ws.argo.transport.probe.standard.LoopbackTransport</classname>\n"
+        + "      <configFilename>" + loopback.getAbsolutePath() + "</configFilename>\n"
+        + "    </transport>\n"
+        + "  </transports>\n"
+        + "</responder>\n");
+
+    responder = Responder.initialize(new String[] { "-pf", config.getAbsolutePath() });
+    responder.run();
+    Thread.sleep(1000); // give the config file handler time to load its services
+  }
+
+  @After
+  public void stopResponder() {
+    if (responder != null) {
+      responder.stopResponder();
+    }
+  }
+
+  @Test
+  public void testEveryProbeIsAnsweredOnce() throws Exception {
+    ProbeStorm storm = new ProbeStorm();
+    assertTrue(storm.parseCommandLine(new String[] { "-transport", "loopback", "-channel", CHANNEL, "-lp", Integer.toString(LISTEN_PORT),
+        "-rate", "25", "-duration", "2", "-copies", "3", "-naked", "0.5", "-scids", "urn:uuid:storm-contract-1,urn:uuid:storm-contract-2",
+        "-drain", "10", "-seed", "1" }));
+
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    storm.run(new PrintStream(report, true, "UTF-8"));
+
+    ResponseTracker tracker = storm.getTracker();
+    String why = report.toString("UTF-8");
+    assertEquals(why, 0, storm.getFailures());
+    assertTrue(why, tracker.getSent() >= 50);
+    assertTrue(why, tracker.getNakedSent() > 0 && tracker.getTargetedSent() > 0);
+    assertEquals(why, tracker.getNakedSent(), tracker.getNakedAnswered());
+    assertEquals(why, tracker.getTargetedSent(), tracker.getTargetedAnswered());
+    assertEquals(why, tracker.getSent(), tracker.getResponses());
+    assertEquals(why, 0, tracker.getExtraResponses());
+    assertEquals(why, 0, tracker.getUnknownResponses());
+    assertEquals(why, 0, tracker.getParseErrors());
+    assertEquals(why, tracker.getSent(), tracker.getLatency().getCount());
+    assertTrue(why, why.contains("Completeness  100.0%"));
+  }
+
+  private File write(String name, String content) throws IOException {
+    File file = new File(configFolder.getRoot(), name);
+    FileUtils.writeStringToFile(file, content, "UTF-8");
+    return file;
+  }
+
+  private static String service(String id, String contractID) {
+    return "  <service id=\"" + id + "\" contractID=\"" + contractID + "\">\n"
+        + "    <serviceName>" + id + "</serviceName>\n"
+        + "    <accessPoints>\n"
+        + "      <accessPoint label=\"internal\">\n"
+        + "        <url>http://localhost:8080/storm</url>\n"
+        + "      </accessPoint>\n"
+        + "    </accessPoints>\n"
+        + "  </service>\n";
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * Licensed under the MIT License, (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.argo.benchmarks.storm.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ws.argo.benchmarks.storm.ResponseTracker;
+
+/**
+ * Test the ResponseTracker's bookkeeping.
+ * 
+ * @author jmsimpson
+ *
+ */
+public class ResponseTrackerTest {
+
+  @Test
+  public void testResponseAnswersItsProbe() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.sent("naked", true, 1000);
+    tracker.sent("targeted", false, 1000);
+
+    tracker.responded("targeted", 2, 6000);
+
+    assertEquals(2, tracker.getSent());
+    assertEquals(1, tracker.getNakedSent());
+    assertEquals(1, tracker.getTargetedSent());
+    assertEquals(1, tracker.getAnswered());
+    assertEquals(0, tracker.getNakedAnswered());
+    assertEquals(1, tracker.getTargetedAnswered());
+    assertEquals(1, tracker.getResponses());
+    assertEquals(2, tracker.getServices());
+    assertEquals(1, tracker.getLatency().getCount());
+    assertEquals(5000, tracker.getLatency().getTotal());
+  }
+
+  @Test
+  public void testEarlyResponseIsHeldUntilItsProbeIsSent() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.responded("probe", 1, 1000);
+
+    assertEquals(0, tracker.getAnswered());
+    assertEquals(1, tracker.getUnknownResponses());
+
+    tracker.sent("probe", true, 1200);
+
+    assertEquals(1, tracker.getAnswered());
+    assertEquals(1, tracker.getNakedAnswered());
+    assertEquals(0, tracker.getUnknownResponses());
+    assertEquals(0, tracker.getExtraResponses());
+    // the response beat the probe, so the round trip counts as nothing
+    assertEquals(1, tracker.getLatency().getCount());
+    assertEquals(0, tracker.getLatency().getTotal());
+  }
+
+  @Test
+  public void testEarlyResponseForAProbeNeverSentIsUnknown() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.sent("probe", true, 1000);
+    tracker.responded("stranger", 1, 2000);
+
+    assertEquals(0, tracker.getAnswered());
+    assertEquals(1, tracker.getResponses());
+    assertEquals(1, tracker.getUnknownResponses());
+  }
+
+  @Test
+  public void testDuplicateResponsesAreExtra() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.sent("probe", false, 1000);
+
+    tracker.responded("probe", 1, 2000);
+    tracker.responded("probe", 1, 3000);
+
+    assertEquals(1, tracker.getAnswered());
+    assertEquals(2, tracker.getResponses());
+    assertEquals(1, tracker.getExtraResponses());
+    assertEquals(0, tracker.getUnknownResponses());
+    // only the first response counts toward the round trip
+    assertEquals(1, tracker.getLatency().getCount());
+    assertEquals(1000, tracker.getLatency().getTotal());
+  }
+
+  @Test
+  public void testDuplicateEarlyResponsesAreExtra() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.responded("probe", 1, 1000);
+    tracker.responded("probe", 1, 1000);
+    tracker.sent("probe", true, 1000);
+
+    assertEquals(1, tracker.getAnswered());
+    assertEquals(2, tracker.getResponses());
+    assertEquals(1, tracker.getExtraResponses());
+    assertEquals(0, tracker.getUnknownResponses());
+  }
+
+  @Test
+  public void testResponseWithoutAnIDIsUnknown() {
+    ResponseTracker tracker = new ResponseTracker();
+    tracker.sent("probe", true, 1000);
+
+    tracker.responded(null, 3, 2000);
+
+    assertEquals(0, tracker.getAnswered());
+    assertEquals(1, tracker.getResponses());
+    assertEquals(1, tracker.getUnknownResponses());
+    assertEquals(0, tracker.getExtraResponses());
+    assertEquals(3, tracker.getServices());
+    assertEquals(0, tracker.getLatency().getCount());
+  }
+
+}